@@ -52,6 +52,7 @@ import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.resource.ServerResource;
@@ -122,6 +123,9 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _startupWaitDefault = 180000;
     long _startupWait = _startupWaitDefault;
     boolean _reconnectAllowed = true;
+    // Advertise the binary codec and switch to it once the server does.
+    boolean _binaryWire = true;
+    volatile Version _wireVersion = Version.v1;
     //For time sentitive task, e.g. PingTask
     private final ThreadPoolExecutor _ugentTaskPool;
     ExecutorService _executor;
@@ -162,6 +166,8 @@ public class Agent implements HandlerFactory, IAgentControl {
             params.put(cmdLineProp.getKey(), cmdLineProp.getValue());
         }
 
+        _binaryWire = Boolean.parseBoolean(_shell.getProperties().getProperty("binary.wire", "true"));
+
         if (!_resource.configure(getResourceName(), params)) {
             throw new ConfigurationException("Unable to configure " + _resource.getName());
         }
@@ -320,6 +326,9 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
             final Request request = new Request(_id != null ? _id : -1, -1, commands, false, false);
             request.setSequence(getNextSequence());
+            // Startup always goes out as v1, the server has not told us what it understands yet.
+            _wireVersion = Version.v1;
+            request.setAcceptsBinary(_binaryWire);
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending Startup: " + request.toString());
@@ -604,6 +613,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            prepareRequest(request);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -699,8 +709,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         postRequest(request);
     }
 
+    protected void prepareRequest(final Request request) {
+        request.setAcceptsBinary(_binaryWire);
+        request.setVersion(_wireVersion);
+    }
+
     private void postRequest(final Request request) throws AgentControlChannelException {
         if (_link != null) {
+            prepareRequest(request);
             try {
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
@@ -851,6 +867,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    if (_binaryWire && request.getVersion() == Version.v4) {
+                        _wireVersion = Version.v4;
+                    }
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
                         processResponse((Response)request, task.getLink());
@@ -633,14 +633,15 @@ public class ApiConstants {
     public static final String OVM3_POOL = "ovm3pool";
     public static final String OVM3_CLUSTER = "ovm3cluster";
     public static final String OVM3_VIP = "ovm3vip";
+    public static final String STATS_HISTORY = "statshistory";
 
     public static final String ADMIN = "admin";
 
     public enum HostDetails {
-        all, capacity, events, stats, min;
+        all, capacity, events, stats, statshistory, min;
     }
 
     public enum VMDetails {
-        all, group, nics, stats, secgrp, tmpl, servoff, diskoff, iso, volume, min, affgrp;
+        all, group, nics, stats, statshistory, secgrp, tmpl, servoff, diskoff, iso, volume, min, affgrp;
     }
 }
@@ -18,6 +18,7 @@ package org.apache.cloudstack.api;
 
 import com.cloud.exception.CloudAuthenticationException;
 import javax.servlet.http.HttpSession;
+import java.io.Writer;
 import java.util.Map;
 import java.net.InetAddress;
 
@@ -39,5 +40,12 @@ public interface ApiServerService {
 
     public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb) throws ServerApiException;
 
+    /**
+     * Like handleRequest(Map, String, StringBuilder), except that a paged list
+     * response is written straight to out as it is read, in which case null is
+     * returned.  Nothing is written to out before the command has executed.
+     */
+    public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb, Writer out) throws ServerApiException;
+
     public Class<?> getCmdClass(String cmdName);
 }
@@ -89,7 +89,8 @@ public class ListHostsCmd extends BaseListCmd {
     @Parameter(name = ApiConstants.DETAILS,
                type = CommandType.LIST,
                collectionType = CommandType.STRING,
-               description = "comma separated list of host details requested, value can be a list of [ min, all, capacity, events, stats]")
+               description = "comma separated list of host details requested, value can be a list of [ min, all, capacity, events, stats, statshistory]."
+                   + " statshistory is not part of all and has to be asked for")
     private List<String> viewDetails;
 
     @Parameter(name = ApiConstants.HA_HOST, type = CommandType.BOOLEAN, description = "if true, list only hosts dedicated to HA")
@@ -105,8 +105,8 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
                type = CommandType.LIST,
                collectionType = CommandType.STRING,
                description = "comma separated list of host details requested, "
-                   + "value can be a list of [all, group, nics, stats, secgrp, tmpl, servoff, diskoff, iso, volume, min, affgrp]."
-                   + " If no parameter is passed in, the details will be defaulted to all")
+                   + "value can be a list of [all, group, nics, stats, statshistory, secgrp, tmpl, servoff, diskoff, iso, volume, min, affgrp]."
+                   + " If no parameter is passed in, the details will be defaulted to all. statshistory is not part of all and has to be asked for")
     private List<String> viewDetails;
 
     @Parameter(name = ApiConstants.TEMPLATE_ID, type = CommandType.UUID, entityType = TemplateResponse.class, description = "list vms by template")
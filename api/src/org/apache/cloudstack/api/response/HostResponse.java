@@ -136,6 +136,10 @@ public class HostResponse extends BaseResponse {
     @Param(description = "the amount of the host's memory currently used")
     private Long memoryUsed;
 
+    @SerializedName(ApiConstants.STATS_HISTORY)
+    @Param(description = "the statistics of the host over the last hour, averaged per minute", responseObject = StatsPointResponse.class, since = "4.9")
+    private List<StatsPointResponse> statsHistory;
+
     @SerializedName(ApiConstants.GPUGROUP)
     @Param(description = "GPU cards present in the host", responseObject = GpuResponse.class, since = "4.4")
     private List<GpuResponse> gpuGroup;
@@ -323,6 +327,10 @@ public class HostResponse extends BaseResponse {
         this.networkKbsWrite = networkKbsWrite;
     }
 
+    public void setStatsHistory(List<StatsPointResponse> statsHistory) {
+        this.statsHistory = statsHistory;
+    }
+
     public void setMemoryTotal(Long memoryTotal) {
         this.memoryTotal = memoryTotal;
     }
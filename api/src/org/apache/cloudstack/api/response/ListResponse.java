@@ -16,28 +16,71 @@
 // under the License.
 package org.apache.cloudstack.api.response;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.cloudstack.api.BaseResponse;
 import org.apache.cloudstack.api.ResponseObject;
 
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
+    /**
+     * Supplies the responses of a large list one page at a time so that the
+     * serializer can write each page out before the next one is read.
+     */
+    public interface Pager<T> {
+        /**
+         * @return the next page of responses, or an empty list once there
+         * are no more.
+         */
+        List<T> nextPage();
+    }
+
     List<T> responses;
     private transient Integer count;
+    private transient Pager<T> pager;
 
+    /**
+     * Returns all the responses.  If the list is paged, the remaining pages
+     * are read in here, so callers that can consume a page at a time should
+     * check isPaged() and use nextPage() instead.
+     */
     public List<T> getResponses() {
+        if (pager != null) {
+            List<T> all = new ArrayList<T>();
+            for (List<T> page = pager.nextPage(); !page.isEmpty(); page = pager.nextPage()) {
+                all.addAll(page);
+            }
+            pager = null;
+            responses = all;
+        }
         return responses;
     }
 
     public void setResponses(List<T> responses) {
         this.responses = responses;
+        this.pager = null;
     }
 
     public void setResponses(List<T> responses, Integer count) {
         this.responses = responses;
+        this.pager = null;
+        this.count = count;
+    }
+
+    public void setPagedResponses(Pager<T> pager, Integer count) {
+        this.responses = null;
+        this.pager = pager;
         this.count = count;
     }
 
+    public boolean isPaged() {
+        return pager != null;
+    }
+
+    public List<T> nextPage() {
+        return pager.nextPage();
+    }
+
     public Integer getCount() {
         if (count != null) {
             return count;
@@ -0,0 +1,100 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.response;
+
+import java.util.Date;
+
+import com.google.gson.annotations.SerializedName;
+
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+
+public class StatsPointResponse extends BaseResponse {
+
+    @SerializedName("timestamp")
+    @Param(description = "the start of the interval the statistics are averaged over")
+    private Date timestamp;
+
+    @SerializedName("cpuused")
+    @Param(description = "the average amount of CPU used in the interval")
+    private String cpuUsed;
+
+    @SerializedName("networkkbsread")
+    @Param(description = "the average incoming network traffic in the interval")
+    private Long networkKbsRead;
+
+    @SerializedName("networkkbswrite")
+    @Param(description = "the average outgoing network traffic in the interval")
+    private Long networkKbsWrite;
+
+    @SerializedName("diskkbsread")
+    @Param(description = "the average read (bytes) of disk in the interval, vm only")
+    private Long diskKbsRead;
+
+    @SerializedName("diskkbswrite")
+    @Param(description = "the average write (bytes) of disk in the interval, vm only")
+    private Long diskKbsWrite;
+
+    @SerializedName("diskioread")
+    @Param(description = "the average read (io) of disk in the interval, vm only")
+    private Long diskIORead;
+
+    @SerializedName("diskiowrite")
+    @Param(description = "the average write (io) of disk in the interval, vm only")
+    private Long diskIOWrite;
+
+    @SerializedName("memoryused")
+    @Param(description = "the average amount of memory used in the interval, host only")
+    private Long memoryUsed;
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setCpuUsed(String cpuUsed) {
+        this.cpuUsed = cpuUsed;
+    }
+
+    public void setNetworkKbsRead(Long networkKbsRead) {
+        this.networkKbsRead = networkKbsRead;
+    }
+
+    public void setNetworkKbsWrite(Long networkKbsWrite) {
+        this.networkKbsWrite = networkKbsWrite;
+    }
+
+    public void setDiskKbsRead(Long diskKbsRead) {
+        this.diskKbsRead = diskKbsRead;
+    }
+
+    public void setDiskKbsWrite(Long diskKbsWrite) {
+        this.diskKbsWrite = diskKbsWrite;
+    }
+
+    public void setDiskIORead(Long diskIORead) {
+        this.diskIORead = diskIORead;
+    }
+
+    public void setDiskIOWrite(Long diskIOWrite) {
+        this.diskIOWrite = diskIOWrite;
+    }
+
+    public void setMemoryUsed(Long memoryUsed) {
+        this.memoryUsed = memoryUsed;
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.cloudstack.api.response;
 
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -204,6 +205,10 @@ public class UserVmResponse extends BaseResponse implements ControlledEntityResp
     @Param(description = "the write (io) of disk on the vm")
     private Long diskIOWrite;
 
+    @SerializedName(ApiConstants.STATS_HISTORY)
+    @Param(description = "the statistics of the vm over the last hour, averaged per minute", responseObject = StatsPointResponse.class, since = "4.9")
+    private List<StatsPointResponse> statsHistory;
+
     @SerializedName("guestosid")
     @Param(description = "Os type ID of the virtual machine")
     private String guestOsId;
@@ -712,6 +717,10 @@ public class UserVmResponse extends BaseResponse implements ControlledEntityResp
         this.forVirtualNetwork = forVirtualNetwork;
     }
 
+    public void setStatsHistory(List<StatsPointResponse> statsHistory) {
+        this.statsHistory = statsHistory;
+    }
+
     public void setNics(Set<NicResponse> nics) {
         this.nics = nics;
     }
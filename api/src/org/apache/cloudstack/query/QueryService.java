@@ -86,6 +86,9 @@ public interface QueryService {
     static final ConfigKey<Boolean> AllowUserViewDestroyedVM = new ConfigKey<Boolean>("Advanced", Boolean.class, "allow.user.view.destroyed.vm", "false",
             "Determines whether users can view their destroyed or expunging vm ", true, ConfigKey.Scope.Account);
 
+    static final ConfigKey<Integer> ListStreamBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "list.stream.batch.size", "500",
+            "Number of vms read from the database per batch when a listVirtualMachines response is larger than this and is streamed to the client", true);
+
     ListResponse<UserResponse> searchForUsers(ListUsersCmd cmd) throws PermissionDeniedException;
 
     ListResponse<EventResponse> searchForEvents(ListEventsCmd cmd);
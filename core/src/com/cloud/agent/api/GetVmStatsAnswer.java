@@ -27,6 +27,8 @@ import com.cloud.agent.api.LogLevel.Log4jLevel;
 public class GetVmStatsAnswer extends Answer {
 
     HashMap<String, VmStatsEntry> vmStatsMap;
+    // how long the host took to collect the stats, 0 when it does not tell
+    long collectionTimeMillis;
 
     public GetVmStatsAnswer(GetVmStatsCommand cmd, HashMap<String, VmStatsEntry> vmStatsMap) {
         super(cmd);
@@ -37,6 +39,14 @@ public class GetVmStatsAnswer extends Answer {
         return vmStatsMap;
     }
 
+    public long getCollectionTimeMillis() {
+        return collectionTimeMillis;
+    }
+
+    public void setCollectionTimeMillis(long collectionTimeMillis) {
+        this.collectionTimeMillis = collectionTimeMillis;
+    }
+
     protected GetVmStatsAnswer() {
         //no-args constructor for json serialization-deserialization
     }
@@ -30,6 +30,10 @@ public class PingRoutingCommand extends PingCommand {
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
+    // the report holds only the VMs whose power state changed since the
+    // previous report, a VM that left the host is reported as PowerOff
+    boolean _incrementalReport = false;
+
     protected PingRoutingCommand() {
     }
 
@@ -57,4 +61,12 @@ public class PingRoutingCommand extends PingCommand {
     public void setVnetAccessible(boolean vnetAccessible) {
         _vnetAccessible = vnetAccessible;
     }
+
+    public boolean isIncrementalReport() {
+        return _incrementalReport;
+    }
+
+    public void setIncrementalReport(boolean incrementalReport) {
+        _incrementalReport = incrementalReport;
+    }
 }
@@ -21,7 +21,13 @@ package com.cloud.agent.api;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.DeflaterOutputStream;
 
 import org.apache.commons.codec.binary.Base64;
@@ -34,6 +40,13 @@ import com.cloud.utils.net.NetUtils;
 public class SecurityGroupRulesCmd extends Command {
     private static Logger s_logger = Logger.getLogger(SecurityGroupRulesCmd.class);
 
+    /**
+     * Host detail an agent reports in its StartupRoutingCommand when it can
+     * apply delta updates.  Older agents would take a delta for the whole
+     * ruleset, so they only get complete ones.
+     */
+    public static final String RULESET_DELTA_DETAIL = "securitygroup.ruleset.delta";
+
     public static class IpPortAndProto {
         private String proto;
         private int startPort;
@@ -84,6 +97,11 @@ public class SecurityGroupRulesCmd extends Command {
     IpPortAndProto[] ingressRuleSet;
     IpPortAndProto[] egressRuleSet;
     private List<String> secIps;
+    // set on delta updates only: the sequence number of the ruleset the
+    // delta applies to, and the cidrs to take away from it
+    Long baseSeqNum;
+    IpPortAndProto[] revokedIngressRuleSet;
+    IpPortAndProto[] revokedEgressRuleSet;
 
     public SecurityGroupRulesCmd() {
         super();
@@ -145,6 +163,86 @@ public class SecurityGroupRulesCmd extends Command {
         this.egressRuleSet = egressRuleSet;
     }
 
+    /**
+     * A delta carries only the cidrs added since the ruleset with sequence
+     * number baseSeqNum, in the ingress and egress rule sets, and the cidrs
+     * removed since then, in the revoked rule sets.  The signature is that of
+     * the complete ruleset.
+     */
+    public boolean isDelta() {
+        return baseSeqNum != null;
+    }
+
+    public Long getBaseSeqNum() {
+        return baseSeqNum;
+    }
+
+    public IpPortAndProto[] getRevokedIngressRuleSet() {
+        return revokedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedEgressRuleSet() {
+        return revokedEgressRuleSet;
+    }
+
+    public void setDelta(long baseSeqNum, IpPortAndProto[] revokedIngressRuleSet, IpPortAndProto[] revokedEgressRuleSet) {
+        this.baseSeqNum = baseSeqNum;
+        this.revokedIngressRuleSet = revokedIngressRuleSet;
+        this.revokedEgressRuleSet = revokedEgressRuleSet;
+    }
+
+    /**
+     * Applies this delta to the complete ruleset it was computed against.
+     *
+     * @return the complete ruleset, with the sequence number and signature of
+     * this command
+     */
+    public SecurityGroupRulesCmd applyTo(SecurityGroupRulesCmd base) {
+        SecurityGroupRulesCmd full =
+                new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqNum, merge(base.getIngressRuleSet(), ingressRuleSet, revokedIngressRuleSet),
+                        merge(base.getEgressRuleSet(), egressRuleSet, revokedEgressRuleSet), secIps);
+        if (msId != null) {
+            full.setMsId(msId);
+        }
+        return full;
+    }
+
+    private static IpPortAndProto[] merge(IpPortAndProto[] base, IpPortAndProto[] added, IpPortAndProto[] revoked) {
+        Map<String, IpPortAndProto> rules = new LinkedHashMap<String, IpPortAndProto>();
+        Map<String, Set<String>> cidrs = new LinkedHashMap<String, Set<String>>();
+        for (IpPortAndProto[] rulesToAdd : new IpPortAndProto[][] {base, added}) {
+            if (rulesToAdd == null) {
+                continue;
+            }
+            for (IpPortAndProto rule : rulesToAdd) {
+                String key = rule.getProto() + ":" + rule.getStartPort() + ":" + rule.getEndPort();
+                if (!rules.containsKey(key)) {
+                    rules.put(key, rule);
+                    cidrs.put(key, new LinkedHashSet<String>());
+                }
+                cidrs.get(key).addAll(Arrays.asList(rule.getAllowedCidrs()));
+            }
+        }
+        if (revoked != null) {
+            for (IpPortAndProto rule : revoked) {
+                Set<String> existing = cidrs.get(rule.getProto() + ":" + rule.getStartPort() + ":" + rule.getEndPort());
+                if (existing != null) {
+                    existing.removeAll(Arrays.asList(rule.getAllowedCidrs()));
+                }
+            }
+        }
+
+        List<IpPortAndProto> merged = new ArrayList<IpPortAndProto>(rules.size());
+        for (Map.Entry<String, IpPortAndProto> entry : rules.entrySet()) {
+            Set<String> allowed = cidrs.get(entry.getKey());
+            if (!allowed.isEmpty()) {
+                IpPortAndProto rule = entry.getValue();
+                merged.add(new IpPortAndProto(rule.getProto(), rule.getStartPort(), rule.getEndPort(), allowed.toArray(new String[allowed.size()])));
+            }
+        }
+        return merged.toArray(new IpPortAndProto[merged.size()]);
+    }
+
     public String getGuestIp() {
         return guestIp;
     }
@@ -283,6 +381,14 @@ public class SecurityGroupRulesCmd extends Command {
         for (IpPortAndProto i : egressRuleSet) {
             count += i.allowedCidrs.length;
         }
+        if (isDelta()) {
+            for (IpPortAndProto i : revokedIngressRuleSet) {
+                count += i.allowedCidrs.length;
+            }
+            for (IpPortAndProto i : revokedEgressRuleSet) {
+                count += i.allowedCidrs.length;
+            }
+        }
         return count;
     }
 
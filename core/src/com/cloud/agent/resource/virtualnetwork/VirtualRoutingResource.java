@@ -28,6 +28,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -44,11 +47,15 @@ import com.cloud.agent.api.CheckS2SVpnConnectionsCommand;
 import com.cloud.agent.api.GetDomRVersionAnswer;
 import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.GetRouterAlertsAnswer;
+import com.cloud.agent.api.SetupGuestNetworkCommand;
 import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.routing.GetRouterAlertsCommand;
 import com.cloud.agent.api.routing.GroupAnswer;
+import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetNetworkACLCommand;
+import com.cloud.agent.api.routing.SetSourceNatCommand;
 import com.cloud.agent.resource.virtualnetwork.facade.AbstractConfigItemFacade;
 import com.cloud.utils.ExecutionResult;
 import com.cloud.utils.NumbersUtil;
@@ -68,21 +75,98 @@ public class VirtualRoutingResource {
     private VirtualRouterDeployer _vrDeployer;
     private Map<String, Queue<NetworkElementCommand>> _vrAggregateCommandsSet;
     protected Map<String, Lock> _vrLockMap = new HashMap<String, Lock>();
+    private final ConcurrentMap<String, Lock> _vrApplyLockMap = new ConcurrentHashMap<String, Lock>();
+    private final ConcurrentMap<String, Queue<PendingConfig>> _vrPendingConfigs = new ConcurrentHashMap<String, Queue<PendingConfig>>();
+    private final ConcurrentMap<String, RouterApplyStats> _vrApplyStats = new ConcurrentHashMap<String, RouterApplyStats>();
 
     private String _name;
     private int _sleep;
     private int _retry;
     private int _port;
     private int _eachTimeout;
+    private int _batchSize;
 
     private String _cfgVersion = "1.0";
 
+    /**
+     * A command waiting for its config to be applied to the router, possibly
+     * along with the commands queued before and after it.
+     */
+    private static class PendingConfig {
+        private final NetworkElementCommand _cmd;
+        private final List<ConfigItem> _cfg;
+        private final long _queued = System.currentTimeMillis();
+        private Answer _answer;
+
+        PendingConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
+            _cmd = cmd;
+            _cfg = cfg;
+        }
+    }
+
+    /**
+     * How long it takes to get config applied to a router: the time spent
+     * applying it and, per command, the time from being queued to being answered.
+     */
+    public static class RouterApplyStats {
+        private long _batches;
+        private long _commands;
+        private long _applyMillis;
+        private long _maxApplyMillis;
+        private long _latencyMillis;
+        private long _maxLatencyMillis;
+
+        synchronized void record(List<PendingConfig> batch, long startTimestamp, long endTimestamp) {
+            long applyMillis = endTimestamp - startTimestamp;
+            _batches++;
+            _commands += batch.size();
+            _applyMillis += applyMillis;
+            _maxApplyMillis = Math.max(_maxApplyMillis, applyMillis);
+            for (PendingConfig pending : batch) {
+                long latency = endTimestamp - pending._queued;
+                _latencyMillis += latency;
+                _maxLatencyMillis = Math.max(_maxLatencyMillis, latency);
+            }
+        }
+
+        public synchronized long getBatchCount() {
+            return _batches;
+        }
+
+        public synchronized long getCommandCount() {
+            return _commands;
+        }
+
+        public synchronized long getAverageApplyMillis() {
+            return _batches > 0 ? _applyMillis / _batches : 0;
+        }
+
+        public synchronized long getMaxApplyMillis() {
+            return _maxApplyMillis;
+        }
+
+        public synchronized long getAverageLatencyMillis() {
+            return _commands > 0 ? _latencyMillis / _commands : 0;
+        }
+
+        public synchronized long getMaxLatencyMillis() {
+            return _maxLatencyMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "commands: " + _commands + " in " + _batches + " batches, average apply: " + getAverageApplyMillis() + "ms, max apply: " + _maxApplyMillis
+                    + "ms, average latency: " + getAverageLatencyMillis() + "ms, max latency: " + _maxLatencyMillis + "ms";
+        }
+    }
+
     public VirtualRoutingResource(VirtualRouterDeployer deployer) {
         _vrDeployer = deployer;
     }
 
     public Answer executeRequest(final NetworkElementCommand cmd) {
         boolean aggregated = false;
+        PendingConfig pending = null;
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
         Lock lock;
         if (_vrLockMap.containsKey(routerName)) {
@@ -93,6 +177,13 @@ public class VirtualRoutingResource {
         }
         lock.lock();
 
+        // anything that can't wait in the batch queue holds the apply lock as well,
+        // so nothing else is applied to the router while it is prepared and applied
+        Lock applyLock = isBatchable(cmd) ? null : getApplyLock(routerName);
+        if (applyLock != null) {
+            applyLock.lock();
+        }
+
         try {
             ExecutionResult rc = _vrDeployer.prepareCommand(cmd);
             if (!rc.isSuccess()) {
@@ -123,18 +214,188 @@ public class VirtualRoutingResource {
                 return Answer.createUnsupportedCommandAnswer(cmd);
             }
 
-            return applyConfig(cmd, cfg);
+            if (applyLock != null || cfg.isEmpty()) {
+                if (applyLock != null) {
+                    applyPendingConfigs(routerName);
+                }
+                return applyConfig(cmd, cfg);
+            }
+
+            pending = new PendingConfig(cmd, cfg);
+            getPendingConfigs(routerName).add(pending);
         } catch (final IllegalArgumentException e) {
             return new Answer(cmd, false, e.getMessage());
         } finally {
+            if (applyLock != null) {
+                applyLock.unlock();
+            }
             lock.unlock();
-            if (!aggregated) {
-                ExecutionResult rc = _vrDeployer.cleanupCommand(cmd);
-                if (!rc.isSuccess()) {
-                    s_logger.error("Failed to cleanup VR command due to " + rc.getDetails());
+            if (!aggregated && pending == null) {
+                cleanupCommand(cmd);
+            }
+        }
+
+        try {
+            return applyPendingConfig(routerName, pending);
+        } finally {
+            cleanupCommand(cmd);
+        }
+    }
+
+    private void cleanupCommand(NetworkElementCommand cmd) {
+        ExecutionResult rc = _vrDeployer.cleanupCommand(cmd);
+        if (!rc.isSuccess()) {
+            s_logger.error("Failed to cleanup VR command due to " + rc.getDetails());
+        }
+    }
+
+    /**
+     * Commands that need the hypervisor to prepare the nics of the router,
+     * queries and aggregation control are never batched.
+     */
+    private boolean isBatchable(NetworkElementCommand cmd) {
+        return _batchSize > 1 && !cmd.isQuery() && !(cmd instanceof AggregationControlCommand) && !(cmd instanceof IpAssocCommand)
+                && !(cmd instanceof SetupGuestNetworkCommand) && !(cmd instanceof SetSourceNatCommand) && !(cmd instanceof SetNetworkACLCommand);
+    }
+
+    private Lock getApplyLock(String routerName) {
+        Lock lock = _vrApplyLockMap.get(routerName);
+        if (lock == null) {
+            Lock newLock = new ReentrantLock();
+            lock = _vrApplyLockMap.putIfAbsent(routerName, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private Queue<PendingConfig> getPendingConfigs(String routerName) {
+        Queue<PendingConfig> queue = _vrPendingConfigs.get(routerName);
+        if (queue == null) {
+            Queue<PendingConfig> newQueue = new ConcurrentLinkedQueue<PendingConfig>();
+            queue = _vrPendingConfigs.putIfAbsent(routerName, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * @return the number of commands queued for the router and not picked up by a batch yet
+     */
+    int getPendingConfigCount(String routerName) {
+        Queue<PendingConfig> queue = _vrPendingConfigs.get(routerName);
+        return queue == null ? 0 : queue.size();
+    }
+
+    private Answer applyPendingConfig(String routerName, PendingConfig pending) {
+        Lock applyLock = getApplyLock(routerName);
+        applyLock.lock();
+        try {
+            // whoever held the apply lock before may have applied it along with its own
+            if (pending._answer == null) {
+                applyPendingConfigs(routerName);
+            }
+            return pending._answer;
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    /**
+     * Applies everything queued for the router, in the order it was queued,
+     * in batches of up to _batchSize commands. Must hold the apply lock.
+     */
+    private void applyPendingConfigs(String routerName) {
+        Queue<PendingConfig> queue = _vrPendingConfigs.get(routerName);
+        if (queue == null) {
+            return;
+        }
+
+        List<PendingConfig> batch = new ArrayList<PendingConfig>();
+        PendingConfig pending;
+        while ((pending = queue.poll()) != null) {
+            batch.add(pending);
+            if (batch.size() >= _batchSize) {
+                applyBatch(routerName, batch);
+                batch = new ArrayList<PendingConfig>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            applyBatch(routerName, batch);
+        }
+    }
+
+    private void applyBatch(String routerName, List<PendingConfig> batch) {
+        long startTimestamp = System.currentTimeMillis();
+        try {
+            if (batch.size() == 1) {
+                PendingConfig pending = batch.get(0);
+                pending._answer = applyConfig(pending._cmd, pending._cfg);
+            } else {
+                List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+                int answerCounts = 0;
+                for (PendingConfig pending : batch) {
+                    cfg.addAll(pending._cfg);
+                    answerCounts += pending._cmd.getAnswersCount();
+                }
+
+                ExecutionResult result = applyAggregatedConfig(batch.get(0)._cmd.getRouterAccessIp(), cfg, answerCounts);
+                if (result.isSuccess()) {
+                    for (PendingConfig pending : batch) {
+                        pending._answer = createAnswer(pending._cmd, pending._cfg, "applied in a batch of " + batch.size() + " commands");
+                    }
+                } else {
+                    // the batch stops at the first failure, find out which commands
+                    // fail by applying them again one by one
+                    s_logger.warn("Failed to apply a batch of " + batch.size() + " commands to router " + routerName + " due to " + result.getDetails()
+                            + ", applying them one by one");
+                    for (PendingConfig pending : batch) {
+                        pending._answer = applyConfig(pending._cmd, pending._cfg);
+                    }
+                }
+            }
+        } catch (final RuntimeException e) {
+            // the commands are off the queue already, their callers wait for an answer
+            s_logger.warn("Failed to apply a batch of " + batch.size() + " commands to router " + routerName, e);
+            for (PendingConfig pending : batch) {
+                if (pending._answer == null) {
+                    pending._answer = new Answer(pending._cmd, false, "Failed to apply to router " + routerName + " due to " + e.getMessage());
                 }
             }
         }
+
+        long endTimestamp = System.currentTimeMillis();
+        RouterApplyStats stats = getApplyStats(routerName);
+        stats.record(batch, startTimestamp, endTimestamp);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Applying " + batch.size() + " commands to router " + routerName + " took " + (endTimestamp - startTimestamp) + "ms, " + stats);
+        }
+    }
+
+    private Answer createAnswer(NetworkElementCommand cmd, List<ConfigItem> cfg, String details) {
+        if (cfg.size() == 1) {
+            return new Answer(cmd, true, details);
+        }
+        String[] results = new String[cfg.size()];
+        for (int i = 0; i < cfg.size(); i++) {
+            results[i] = cfg.get(i).getInfo() + " - success: " + details;
+        }
+        return new GroupAnswer(cmd, true, results.length, results);
+    }
+
+    public RouterApplyStats getApplyStats(String routerName) {
+        RouterApplyStats stats = _vrApplyStats.get(routerName);
+        if (stats == null) {
+            RouterApplyStats newStats = new RouterApplyStats();
+            stats = _vrApplyStats.putIfAbsent(routerName, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
     }
 
     private Answer executeQueryCommand(NetworkElementCommand cmd) {
@@ -273,6 +534,9 @@ public class VirtualRoutingResource {
         value = (String)params.get("router.aggregation.command.each.timeout");
         _eachTimeout = NumbersUtil.parseInt(value, 3);
 
+        value = (String)params.get("router.aggregation.command.batch.size");
+        _batchSize = NumbersUtil.parseInt(value, 100);
+
         if (_vrDeployer == null) {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
@@ -337,6 +601,35 @@ public class VirtualRoutingResource {
         return configItemFacade.generateConfig(cmd);
     }
 
+    /**
+     * Writes the config items into a single config file on the router and has
+     * vr_cfg.sh apply it, which stops at the first item that fails.
+     */
+    private ExecutionResult applyAggregatedConfig(String routerAccessIp, List<ConfigItem> cfg, int answerCounts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Apache CloudStack Virtual Router Config File\n");
+        sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+        for (ConfigItem c : cfg) {
+            sb.append(c.getAggregateCommand());
+        }
+
+        String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
+        FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
+        ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
+        // 120s is the minimal timeout
+        int timeout = answerCounts * _eachTimeout;
+        if (timeout < 120) {
+            timeout = 120;
+        }
+
+        ExecutionResult result = applyConfigToVR(routerAccessIp, fileConfigItem);
+        if (!result.isSuccess()) {
+            return result;
+        }
+
+        return applyConfigToVR(routerAccessIp, scriptConfigItem, timeout);
+    }
+
     private Answer execute(AggregationControlCommand cmd) {
         Action action = cmd.getAction();
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
@@ -353,38 +646,22 @@ public class VirtualRoutingResource {
             Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
             int answerCounts = 0;
             try {
-                StringBuilder sb = new StringBuilder();
-                sb.append("#Apache CloudStack Virtual Router Config File\n");
-                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                // whatever was queued to be applied before the aggregation goes first
+                applyPendingConfigs(routerName);
+
+                List<ConfigItem> cfg = new ArrayList<ConfigItem>();
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
-                    List<ConfigItem> cfg = generateCommandCfg(command);
-                    if (cfg == null) {
+                    List<ConfigItem> commandCfg = generateCommandCfg(command);
+                    if (commandCfg == null) {
                         s_logger.warn("Unknown commands for VirtualRoutingResource, but continue: " + cmd.toString());
                         continue;
                     }
-
-                    for (ConfigItem c : cfg) {
-                        sb.append(c.getAggregateCommand());
-                    }
+                    cfg.addAll(commandCfg);
                 }
 
                 // TODO replace with applyConfig with a stop on fail
-                String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
-                FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
-                ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
-                // 120s is the minimal timeout
-                int timeout = answerCounts * _eachTimeout;
-                if (timeout < 120) {
-                    timeout = 120;
-                }
-
-                ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), fileConfigItem);
-                if (!result.isSuccess()) {
-                    return new Answer(cmd, false, result.getDetails());
-                }
-
-                result = applyConfigToVR(cmd.getRouterAccessIp(), scriptConfigItem, timeout);
+                ExecutionResult result = applyAggregatedConfig(cmd.getRouterAccessIp(), cfg, answerCounts);
                 if (!result.isSuccess()) {
                     return new Answer(cmd, false, result.getDetails());
                 }
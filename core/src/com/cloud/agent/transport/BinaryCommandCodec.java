@@ -0,0 +1,934 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.Since;
+import com.google.gson.annotations.Until;
+
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinaryCommandCodec marshalls Command and Answer arrays into a compact,
+ * schema-aware binary form used by Request.Version.v4.
+ *
+ * The layout of every class is computed once by reflection and cached, so
+ * the per-message cost is a straight walk over the cached field plans. Each
+ * top level entry carries a fingerprint of its class layout so both ends of
+ * a link can detect that they are running different versions of a command.
+ *
+ * Anything the codec does not understand (JDK types other than Strings and
+ * boxed primitives, interfaces, abstract or generic classes, classes without
+ * a no-arg constructor) is written as embedded JSON through the same Gson
+ * instance used for Version.v1, so the result is never less capable than
+ * the JSON path.
+ */
+public class BinaryCommandCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodec.class);
+
+    protected static final Gson s_gson = GsonHelper.getGson();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Must match the version set on the builder in GsonHelper.
+    private static final double GSON_VERSION = 1.5;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_BINARY = 1;
+    private static final byte TAG_JSON = 2;
+
+    private static final ConcurrentHashMap<Class<?>, ClassCodec> s_codecs = new ConcurrentHashMap<Class<?>, ClassCodec>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+
+    public static byte[] encode(final Object[] objs) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(objs.length);
+            for (final Object obj : objs) {
+                if (obj == null) {
+                    out.writeByte(TAG_NULL);
+                    continue;
+                }
+                final ClassCodec codec = getCodec(obj.getClass());
+                if (codec.isBinary()) {
+                    out.writeByte(TAG_BINARY);
+                    writeString(out, codec.getName());
+                    out.writeInt(codec.getFingerprint());
+                    codec.write(out, obj);
+                } else {
+                    out.writeByte(TAG_JSON);
+                    writeString(out, codec.getName());
+                    writeString(out, s_gson.toJson(obj, obj.getClass()));
+                }
+            }
+            out.flush();
+        } catch (final IOException e) {
+            throw new CloudRuntimeException("Unable to encode " + objs.length + " objects", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T[] decode(final byte[] bytes, final int offset, final int length, final Class<T> componentType) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        try {
+            final int count = in.readInt();
+            final T[] objs = (T[])Array.newInstance(componentType, count);
+            for (int i = 0; i < count; i++) {
+                final byte tag = in.readByte();
+                if (tag == TAG_NULL) {
+                    continue;
+                }
+                final Class<?> clazz = findClass(readString(in));
+                if (tag == TAG_BINARY) {
+                    final ClassCodec codec = getCodec(clazz);
+                    final int fingerprint = in.readInt();
+                    if (!codec.isBinary() || fingerprint != codec.getFingerprint()) {
+                        throw new CloudRuntimeException("Binary layout of " + clazz.getName() + " does not match the peer's; fingerprint " + fingerprint + " vs " +
+                                codec.getFingerprint());
+                    }
+                    objs[i] = (T)codec.read(in);
+                } else if (tag == TAG_JSON) {
+                    objs[i] = (T)s_gson.fromJson(readString(in), clazz);
+                } else {
+                    throw new CloudRuntimeException("Unknown tag " + tag + " at entry " + i);
+                }
+            }
+            return objs;
+        } catch (final IOException e) {
+            throw new CloudRuntimeException("Unable to decode " + componentType.getSimpleName() + " array", e);
+        }
+    }
+
+    /**
+     * @return true if the class is marshalled field by field rather than through embedded JSON.
+     */
+    public static boolean isBinary(final Class<?> clazz) {
+        return getCodec(clazz).isBinary();
+    }
+
+    protected static ClassCodec getCodec(final Class<?> clazz) {
+        ClassCodec codec = s_codecs.get(clazz);
+        if (codec == null) {
+            codec = new ClassCodec(clazz);
+            final ClassCodec existing = s_codecs.putIfAbsent(clazz, codec);
+            if (existing != null) {
+                codec = existing;
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Built " + (codec.isBinary() ? "binary" : "json") + " codec for " + clazz.getName());
+            }
+        }
+        return codec;
+    }
+
+    protected static Class<?> findClass(final String name) {
+        Class<?> clazz = s_classes.get(name);
+        if (clazz == null) {
+            try {
+                clazz = Class.forName(name);
+            } catch (final ClassNotFoundException e) {
+                throw new CloudRuntimeException("can't find " + name);
+            }
+            s_classes.put(name, clazz);
+        }
+        return clazz;
+    }
+
+    protected static void writeString(final DataOutputStream out, final String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(final DataInputStream in) throws IOException {
+        final int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    protected static boolean isOwnClass(final Class<?> clazz) {
+        final String name = clazz.getName();
+        return name.startsWith("com.cloud.") || name.startsWith("org.apache.cloudstack.");
+    }
+
+    protected static boolean isExcluded(final Field field) {
+        final int modifiers = field.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+            return true;
+        }
+        final Since since = field.getAnnotation(Since.class);
+        if (since != null && since.value() > GSON_VERSION) {
+            return true;
+        }
+        final Until until = field.getAnnotation(Until.class);
+        return until != null && until.value() <= GSON_VERSION;
+    }
+
+    /**
+     * Picks the value codec for a declared type. Anything that is not
+     * understood ends up as embedded JSON of the declared type.
+     */
+    protected static ValueCodec codecFor(final Type type) {
+        if (type instanceof Class) {
+            final Class<?> clazz = (Class<?>)type;
+            if (clazz == String.class) {
+                return StringCodec.INSTANCE;
+            } else if (clazz == Long.class) {
+                return new BoxedCodec('J');
+            } else if (clazz == Integer.class) {
+                return new BoxedCodec('I');
+            } else if (clazz == Boolean.class) {
+                return new BoxedCodec('Z');
+            } else if (clazz == Double.class) {
+                return new BoxedCodec('D');
+            } else if (clazz == Float.class) {
+                return new BoxedCodec('F');
+            } else if (clazz == Short.class) {
+                return new BoxedCodec('S');
+            } else if (clazz == Byte.class) {
+                return new BoxedCodec('B');
+            } else if (clazz == byte[].class) {
+                return ByteArrayCodec.INSTANCE;
+            } else if (clazz.isEnum()) {
+                return new EnumCodec(clazz);
+            } else if (clazz.isArray() && !clazz.getComponentType().isPrimitive()) {
+                final Class<?> component = clazz.getComponentType();
+                if (component == String.class || component.isEnum() || isBean(component)) {
+                    return new ArrayCodec(component, codecFor(component));
+                }
+            } else if (isBean(clazz)) {
+                return new BeanCodec(clazz);
+            }
+        } else if (type instanceof ParameterizedType) {
+            final ParameterizedType ptype = (ParameterizedType)type;
+            final Class<?> raw = (Class<?>)ptype.getRawType();
+            final Type[] args = ptype.getActualTypeArguments();
+            if (Collection.class.isAssignableFrom(raw) && isResolved(args[0])) {
+                final Class<?> impl = collectionImpl(raw);
+                if (impl != null) {
+                    return new CollectionCodec(impl, codecFor(args[0]));
+                }
+            } else if (Map.class.isAssignableFrom(raw) && isResolved(args[0]) && isResolved(args[1]) && isSimpleKey(args[0])) {
+                final Class<?> impl = mapImpl(raw);
+                if (impl != null) {
+                    return new MapCodec(impl, codecFor(args[0]), codecFor(args[1]));
+                }
+            }
+        }
+        return new JsonCodec(type);
+    }
+
+    protected static boolean isBean(final Class<?> clazz) {
+        if (!isOwnClass(clazz) || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || clazz.getTypeParameters().length > 0) {
+            return false;
+        }
+        if (clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers())) {
+            return false;
+        }
+        if (clazz.isAnonymousClass() || clazz.isLocalClass()) {
+            return false;
+        }
+        try {
+            clazz.getDeclaredConstructor();
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (c.getTypeParameters().length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean isResolved(final Type type) {
+        if (type instanceof Class) {
+            return true;
+        }
+        if (type instanceof TypeVariable || type instanceof WildcardType || type instanceof GenericArrayType) {
+            return false;
+        }
+        if (type instanceof ParameterizedType) {
+            for (final Type arg : ((ParameterizedType)type).getActualTypeArguments()) {
+                if (!isResolved(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    protected static boolean isSimpleKey(final Type type) {
+        if (!(type instanceof Class)) {
+            return false;
+        }
+        final Class<?> clazz = (Class<?>)type;
+        return clazz == String.class || clazz == Long.class || clazz == Integer.class || clazz.isEnum();
+    }
+
+    protected static Class<?> collectionImpl(final Class<?> declared) {
+        if (!declared.isInterface() && !Modifier.isAbstract(declared.getModifiers())) {
+            return hasDefaultConstructor(declared) ? declared : null;
+        }
+        if (declared.isAssignableFrom(ArrayList.class)) {
+            return ArrayList.class;
+        } else if (declared.isAssignableFrom(TreeSet.class) && SortedSet.class.isAssignableFrom(declared)) {
+            return TreeSet.class;
+        } else if (declared.isAssignableFrom(LinkedHashSet.class)) {
+            return LinkedHashSet.class;
+        }
+        return null;
+    }
+
+    protected static Class<?> mapImpl(final Class<?> declared) {
+        if (!declared.isInterface() && !Modifier.isAbstract(declared.getModifiers())) {
+            return hasDefaultConstructor(declared) ? declared : null;
+        }
+        if (SortedMap.class.isAssignableFrom(declared) && declared.isAssignableFrom(TreeMap.class)) {
+            return TreeMap.class;
+        } else if (declared.isAssignableFrom(LinkedHashMap.class)) {
+            return LinkedHashMap.class;
+        }
+        return null;
+    }
+
+    protected static boolean hasDefaultConstructor(final Class<?> clazz) {
+        try {
+            clazz.getConstructor();
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    protected static Object newInstance(final Constructor<?> ctor) {
+        try {
+            return ctor.newInstance();
+        } catch (final Exception e) {
+            throw new CloudRuntimeException("Unable to instantiate " + ctor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    /**
+     * Cached layout of one class: the fields in a stable order and how each
+     * one is written.
+     */
+    protected static class ClassCodec {
+        private final Class<?> _clazz;
+        private final boolean _binary;
+        private final Constructor<?> _ctor;
+        private final FieldCodec[] _fields;
+        private volatile Integer _fingerprint;
+
+        protected ClassCodec(final Class<?> clazz) {
+            _clazz = clazz;
+            _binary = isBean(clazz);
+            if (!_binary) {
+                _ctor = null;
+                _fields = new FieldCodec[0];
+                return;
+            }
+            try {
+                _ctor = clazz.getDeclaredConstructor();
+                _ctor.setAccessible(true);
+            } catch (final NoSuchMethodException e) {
+                throw new CloudRuntimeException("Unable to find the default constructor of " + clazz.getName(), e);
+            }
+            final List<FieldCodec> fields = new ArrayList<FieldCodec>();
+            final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+            for (final Class<?> c : hierarchy) {
+                for (final Field field : c.getDeclaredFields()) {
+                    if (isExcluded(field)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(new FieldCodec(field));
+                }
+            }
+            _fields = fields.toArray(new FieldCodec[fields.size()]);
+        }
+
+        public String getName() {
+            return _clazz.getName();
+        }
+
+        public boolean isBinary() {
+            return _binary;
+        }
+
+        public int getFingerprint() {
+            Integer fingerprint = _fingerprint;
+            if (fingerprint == null) {
+                fingerprint = computeFingerprint(new HashSet<Class<?>>());
+                _fingerprint = fingerprint;
+            }
+            return fingerprint;
+        }
+
+        protected int computeFingerprint(final Set<Class<?>> visited) {
+            visited.add(_clazz);
+            int hash = _clazz.getName().hashCode();
+            for (final FieldCodec field : _fields) {
+                hash = 31 * hash + field.getField().getName().hashCode();
+                hash = 31 * hash + field.getField().getGenericType().toString().hashCode();
+                for (final Class<?> nested : field.getNestedBeans()) {
+                    if (!visited.contains(nested)) {
+                        hash = 31 * hash + getCodec(nested).computeFingerprint(visited);
+                    }
+                }
+            }
+            return hash;
+        }
+
+        public void write(final DataOutputStream out, final Object obj) throws IOException {
+            for (final FieldCodec field : _fields) {
+                field.write(out, obj);
+            }
+        }
+
+        public Object read(final DataInputStream in) throws IOException {
+            final Object obj = newInstance(_ctor);
+            for (final FieldCodec field : _fields) {
+                field.read(in, obj);
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Primitive fields are read and written without boxing; everything else
+     * goes through a ValueCodec. A null reference is never set on decode so
+     * that, like Gson, the constructor's initial value is kept.
+     */
+    protected static class FieldCodec {
+        private final Field _field;
+        private final char _primitive;
+        private final ValueCodec _codec;
+
+        protected FieldCodec(final Field field) {
+            _field = field;
+            final Class<?> type = field.getType();
+            if (type.isPrimitive()) {
+                _primitive = primitiveCode(type);
+                _codec = null;
+            } else {
+                _primitive = 0;
+                _codec = codecFor(field.getGenericType());
+            }
+        }
+
+        public Field getField() {
+            return _field;
+        }
+
+        public List<Class<?>> getNestedBeans() {
+            final List<Class<?>> beans = new ArrayList<Class<?>>();
+            if (_codec != null) {
+                _codec.collectBeans(beans);
+            }
+            return beans;
+        }
+
+        public void write(final DataOutputStream out, final Object obj) throws IOException {
+            try {
+                switch (_primitive) {
+                case 'Z':
+                    out.writeBoolean(_field.getBoolean(obj));
+                    break;
+                case 'B':
+                    out.writeByte(_field.getByte(obj));
+                    break;
+                case 'C':
+                    out.writeChar(_field.getChar(obj));
+                    break;
+                case 'S':
+                    out.writeShort(_field.getShort(obj));
+                    break;
+                case 'I':
+                    out.writeInt(_field.getInt(obj));
+                    break;
+                case 'J':
+                    out.writeLong(_field.getLong(obj));
+                    break;
+                case 'F':
+                    out.writeFloat(_field.getFloat(obj));
+                    break;
+                case 'D':
+                    out.writeDouble(_field.getDouble(obj));
+                    break;
+                default:
+                    _codec.write(out, _field.get(obj));
+                }
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to read " + _field, e);
+            }
+        }
+
+        public void read(final DataInputStream in, final Object obj) throws IOException {
+            try {
+                switch (_primitive) {
+                case 'Z':
+                    _field.setBoolean(obj, in.readBoolean());
+                    break;
+                case 'B':
+                    _field.setByte(obj, in.readByte());
+                    break;
+                case 'C':
+                    _field.setChar(obj, in.readChar());
+                    break;
+                case 'S':
+                    _field.setShort(obj, in.readShort());
+                    break;
+                case 'I':
+                    _field.setInt(obj, in.readInt());
+                    break;
+                case 'J':
+                    _field.setLong(obj, in.readLong());
+                    break;
+                case 'F':
+                    _field.setFloat(obj, in.readFloat());
+                    break;
+                case 'D':
+                    _field.setDouble(obj, in.readDouble());
+                    break;
+                default:
+                    final Object value = _codec.read(in);
+                    if (value != null) {
+                        _field.set(obj, value);
+                    }
+                }
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to set " + _field, e);
+            }
+        }
+
+        protected static char primitiveCode(final Class<?> type) {
+            if (type == boolean.class) {
+                return 'Z';
+            } else if (type == byte.class) {
+                return 'B';
+            } else if (type == char.class) {
+                return 'C';
+            } else if (type == short.class) {
+                return 'S';
+            } else if (type == int.class) {
+                return 'I';
+            } else if (type == long.class) {
+                return 'J';
+            } else if (type == float.class) {
+                return 'F';
+            }
+            return 'D';
+        }
+    }
+
+    protected static abstract class ValueCodec {
+        public abstract void write(DataOutputStream out, Object value) throws IOException;
+
+        public abstract Object read(DataInputStream in) throws IOException;
+
+        public void collectBeans(final List<Class<?>> beans) {
+        }
+    }
+
+    protected static class StringCodec extends ValueCodec {
+        static final StringCodec INSTANCE = new StringCodec();
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, (String)value);
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            return readString(in);
+        }
+    }
+
+    protected static class ByteArrayCodec extends ValueCodec {
+        static final ByteArrayCodec INSTANCE = new ByteArrayCodec();
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = (byte[])value;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            final int len = in.readInt();
+            if (len < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    protected static class BoxedCodec extends ValueCodec {
+        private final char _type;
+
+        protected BoxedCodec(final char type) {
+            _type = type;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+                return;
+            }
+            out.writeByte(TAG_BINARY);
+            switch (_type) {
+            case 'Z':
+                out.writeBoolean((Boolean)value);
+                break;
+            case 'B':
+                out.writeByte((Byte)value);
+                break;
+            case 'S':
+                out.writeShort((Short)value);
+                break;
+            case 'I':
+                out.writeInt((Integer)value);
+                break;
+            case 'J':
+                out.writeLong((Long)value);
+                break;
+            case 'F':
+                out.writeFloat((Float)value);
+                break;
+            default:
+                out.writeDouble((Double)value);
+            }
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            if (in.readByte() == TAG_NULL) {
+                return null;
+            }
+            switch (_type) {
+            case 'Z':
+                return in.readBoolean();
+            case 'B':
+                return in.readByte();
+            case 'S':
+                return in.readShort();
+            case 'I':
+                return in.readInt();
+            case 'J':
+                return in.readLong();
+            case 'F':
+                return in.readFloat();
+            default:
+                return in.readDouble();
+            }
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    protected static class EnumCodec extends ValueCodec {
+        private final Class _clazz;
+
+        protected EnumCodec(final Class<?> clazz) {
+            _clazz = clazz;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, value == null ? null : ((Enum)value).name());
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            final String name = readString(in);
+            return name == null ? null : Enum.valueOf(_clazz, name);
+        }
+    }
+
+    /**
+     * Nested objects are written in place when the runtime class is exactly
+     * the declared class. Subclasses fall back to JSON of the declared type,
+     * which is what Gson would have deserialized anyway.
+     */
+    protected static class BeanCodec extends ValueCodec {
+        private final Class<?> _clazz;
+        private volatile ClassCodec _codec;
+        private JsonCodec _json;
+
+        protected BeanCodec(final Class<?> clazz) {
+            _clazz = clazz;
+        }
+
+        protected ClassCodec codec() {
+            ClassCodec codec = _codec;
+            if (codec == null) {
+                codec = getCodec(_clazz);
+                _codec = codec;
+            }
+            return codec;
+        }
+
+        protected JsonCodec json() {
+            if (_json == null) {
+                _json = new JsonCodec(_clazz);
+            }
+            return _json;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value.getClass() == _clazz) {
+                out.writeByte(TAG_BINARY);
+                codec().write(out, value);
+            } else {
+                out.writeByte(TAG_JSON);
+                json().write(out, value);
+            }
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            final byte tag = in.readByte();
+            if (tag == TAG_NULL) {
+                return null;
+            } else if (tag == TAG_BINARY) {
+                return codec().read(in);
+            }
+            return json().read(in);
+        }
+
+        @Override
+        public void collectBeans(final List<Class<?>> beans) {
+            beans.add(_clazz);
+        }
+    }
+
+    protected static class ArrayCodec extends ValueCodec {
+        private final Class<?> _component;
+        private final ValueCodec _element;
+
+        protected ArrayCodec(final Class<?> component, final ValueCodec element) {
+            _component = component;
+            _element = element;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final Object[] array = (Object[])value;
+            out.writeInt(array.length);
+            for (final Object element : array) {
+                _element.write(out, element);
+            }
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            final int len = in.readInt();
+            if (len < 0) {
+                return null;
+            }
+            final Object[] array = (Object[])Array.newInstance(_component, len);
+            for (int i = 0; i < len; i++) {
+                array[i] = _element.read(in);
+            }
+            return array;
+        }
+
+        @Override
+        public void collectBeans(final List<Class<?>> beans) {
+            _element.collectBeans(beans);
+        }
+    }
+
+    protected static class CollectionCodec extends ValueCodec {
+        private final Constructor<?> _ctor;
+        private final ValueCodec _element;
+
+        protected CollectionCodec(final Class<?> impl, final ValueCodec element) {
+            try {
+                _ctor = impl.getConstructor();
+            } catch (final NoSuchMethodException e) {
+                throw new CloudRuntimeException("Unable to find the default constructor of " + impl.getName(), e);
+            }
+            _element = element;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final Collection<?> collection = (Collection<?>)value;
+            out.writeInt(collection.size());
+            for (final Object element : collection) {
+                _element.write(out, element);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object read(final DataInputStream in) throws IOException {
+            final int size = in.readInt();
+            if (size < 0) {
+                return null;
+            }
+            final Collection<Object> collection = (Collection<Object>)newInstance(_ctor);
+            for (int i = 0; i < size; i++) {
+                collection.add(_element.read(in));
+            }
+            return collection;
+        }
+
+        @Override
+        public void collectBeans(final List<Class<?>> beans) {
+            _element.collectBeans(beans);
+        }
+    }
+
+    protected static class MapCodec extends ValueCodec {
+        private final Constructor<?> _ctor;
+        private final ValueCodec _key;
+        private final ValueCodec _value;
+
+        protected MapCodec(final Class<?> impl, final ValueCodec key, final ValueCodec value) {
+            try {
+                _ctor = impl.getConstructor();
+            } catch (final NoSuchMethodException e) {
+                throw new CloudRuntimeException("Unable to find the default constructor of " + impl.getName(), e);
+            }
+            _key = key;
+            _value = value;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final Map<?, ?> map = (Map<?, ?>)value;
+            out.writeInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                _key.write(out, entry.getKey());
+                _value.write(out, entry.getValue());
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object read(final DataInputStream in) throws IOException {
+            final int size = in.readInt();
+            if (size < 0) {
+                return null;
+            }
+            final Map<Object, Object> map = (Map<Object, Object>)newInstance(_ctor);
+            for (int i = 0; i < size; i++) {
+                final Object key = _key.read(in);
+                map.put(key, _value.read(in));
+            }
+            return map;
+        }
+
+        @Override
+        public void collectBeans(final List<Class<?>> beans) {
+            _key.collectBeans(beans);
+            _value.collectBeans(beans);
+        }
+    }
+
+    protected static class JsonCodec extends ValueCodec {
+        private final Type _type;
+
+        protected JsonCodec(final Type type) {
+            _type = type;
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, value == null ? null : s_gson.toJson(value, _type));
+        }
+
+        @Override
+        public Object read(final DataInputStream in) throws IOException {
+            final String json = readString(in);
+            return json == null ? null : s_gson.fromJson(json, _type);
+        }
+    }
+}
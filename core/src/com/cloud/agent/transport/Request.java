@@ -72,6 +72,11 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  *
+ * The data package is Gson JSON for v1 and the output of BinaryCommandCodec
+ * for v4. A side that understands v4 sets FLAG_ACCEPTS_BINARY on its
+ * requests; the peer may then send v4 and responses follow the version of
+ * the request they answer.
+ *
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -83,7 +88,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Same header as v1 but the data package is marshalled by BinaryCommandCodec.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -99,6 +105,7 @@ public class Request {
     protected static final short FLAG_REQUEST = 0x1;
     protected static final short FLAG_STOP_ON_ERROR = 0x2;
     protected static final short FLAG_IN_SEQUENCE = 0x4;
+    protected static final short FLAG_ACCEPTS_BINARY = 0x8;
     protected static final short FLAG_FROM_SERVER = 0x20;
     protected static final short FLAG_CONTROL = 0x40;
     protected static final short FLAG_COMPRESSED = 0x80;
@@ -112,6 +119,7 @@ public class Request {
     protected long _agentId;
     protected Command[] _cmds;
     protected String _content;
+    protected byte[] _binaryContent;
     protected String _agentName;
 
     protected Request() {
@@ -137,6 +145,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final byte[] binaryContent) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binaryContent = binaryContent;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] {command}, true, fromServer);
     }
@@ -201,6 +214,18 @@ public class Request {
         _flags |= (control ? FLAG_CONTROL : 0);
     }
 
+    /**
+     * Advertises that the sender of this request is able to parse Version.v4
+     * so the peer may switch the link over to the binary codec.
+     */
+    public void setAcceptsBinary(boolean acceptsBinary) {
+        _flags |= (acceptsBinary ? FLAG_ACCEPTS_BINARY : 0);
+    }
+
+    public boolean acceptsBinary() {
+        return (_flags & FLAG_ACCEPTS_BINARY) > 0;
+    }
+
     private final void setFromServer(boolean fromServer) {
         _flags |= (fromServer ? FLAG_FROM_SERVER : 0);
     }
@@ -217,6 +242,19 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Switches the wire format of a request that has not been serialized yet.
+     * Only v1 and v4 can be produced; anything else is sent as v1.
+     */
+    public void setVersion(Version ver) {
+        if (ver != _ver && (_content != null || _binaryContent != null)) {
+            getCommands();
+            _content = null;
+            _binaryContent = null;
+        }
+        _ver = (ver == Version.v4) ? Version.v4 : Version.v1;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -243,7 +281,9 @@ public class Request {
     }
 
     public Command[] getCommands() {
-        if (_cmds == null) {
+        if (_cmds == null && _binaryContent != null) {
+            _cmds = decodeBinaryContent();
+        } else if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
                 JsonReader jsonReader = new JsonReader(reader);
@@ -326,10 +366,17 @@ public class Request {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            if (_binaryContent == null) {
+                _binaryContent = BinaryCommandCodec.encode(_cmds);
+            }
+            tmp = ByteBuffer.wrap(_binaryContent);
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
@@ -395,7 +442,9 @@ public class Request {
     protected String log(String msg, boolean logContent, Level level) {
         StringBuilder content = new StringBuilder();
         if (logContent) {
-            if (_cmds == null) {
+            if (_cmds == null && _binaryContent != null) {
+                _cmds = decodeBinaryContent();
+            } else if (_cmds == null) {
                 try {
                     _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
                 } catch (RuntimeException e) {
@@ -418,7 +467,9 @@ public class Request {
                 return null;
             }
         } else {
-            if (_cmds == null) {
+            if (_cmds == null && _binaryContent != null) {
+                _cmds = decodeBinaryContent();
+            } else if (_cmds == null) {
                 _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
             }
             content.append("{ ");
@@ -452,6 +503,13 @@ public class Request {
         return buf.toString();
     }
 
+    protected Command[] decodeBinaryContent() {
+        if (this instanceof Response) {
+            return BinaryCommandCodec.decode(_binaryContent, 0, _binaryContent.length, Answer.class);
+        }
+        return BinaryCommandCodec.decode(_binaryContent, 0, _binaryContent.length, Command.class);
+    }
+
     public static String cleanPassword(String logString) {
         String cleanLogString = null;
         if (logString != null) {
@@ -486,7 +544,7 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         buff.get();
@@ -500,7 +558,7 @@ public class Request {
         final long agentId = buff.getLong();
 
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -521,6 +579,16 @@ public class Request {
             offset = 0;
         }
 
+        if (version == Version.v4) {
+            final byte[] binaryContent = new byte[command.length - offset];
+            System.arraycopy(command, offset, binaryContent, 0, binaryContent.length);
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, binaryContent);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, binaryContent);
+            }
+        }
+
         final String content = new String(command, offset, command.length - offset);
 
         if (isRequest) {
@@ -0,0 +1,258 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.GroupAnswer;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.utils.ExecutionResult;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class VirtualRoutingResourceBatchTest implements VirtualRouterDeployer {
+    private static final Logger s_logger = Logger.getLogger(VirtualRoutingResourceBatchTest.class);
+
+    private static final String ROUTERIP = "169.254.3.4";
+    private static final String ROUTERNAME = "r-4-VM";
+    private static final int COMMANDS = 50;
+    private static final long WAIT_SECONDS = 30;
+
+    private VirtualRoutingResource _resource;
+    private ExecutorService _executor;
+    private final AtomicInteger _sshCalls = new AtomicInteger();
+    private final AtomicInteger _vrCfgCalls = new AtomicInteger();
+    private volatile boolean _failVrCfg;
+    private volatile boolean _throwVrCfg;
+
+    // while set, ssh calls wait for it, so that commands queue up behind the one being applied
+    private volatile CountDownLatch _release;
+    private final CountDownLatch _applying = new CountDownLatch(1);
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args) {
+        return executeInVR(routerIp, script, args, 60);
+    }
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final int timeout) {
+        assertEquals(ROUTERIP, routerIp);
+        ssh();
+        if (VRScripts.VR_CFG.equals(script)) {
+            _vrCfgCalls.incrementAndGet();
+            if (_throwVrCfg) {
+                throw new CloudRuntimeException("VR config: connection lost");
+            }
+            if (_failVrCfg) {
+                return new ExecutionResult(false, "VR config: execution failed");
+            }
+        }
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+        assertEquals(ROUTERIP, routerIp);
+        ssh();
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
+        cmd.setRouterAccessIp(ROUTERIP);
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult cleanupCommand(final NetworkElementCommand cmd) {
+        return new ExecutionResult(true, null);
+    }
+
+    private void ssh() {
+        _sshCalls.incrementAndGet();
+        CountDownLatch release = _release;
+        if (release != null) {
+            _applying.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Before
+    public void setup() throws ConfigurationException {
+        _resource = createResource();
+        _executor = Executors.newFixedThreadPool(COMMANDS);
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    private VirtualRoutingResource createResource() throws ConfigurationException {
+        VirtualRoutingResource resource = new VirtualRoutingResource(this);
+        resource.configure("VRResource", new HashMap<String, Object>());
+        return resource;
+    }
+
+    protected SavePasswordCommand generateSavePasswordCommand(int i) {
+        final SavePasswordCommand cmd = new SavePasswordCommand("123pass", "10.1.10." + i, "i-" + i + "-VM", true);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        return cmd;
+    }
+
+    private Future<Answer> submit(int i) {
+        final SavePasswordCommand cmd = generateSavePasswordCommand(i);
+        return _executor.submit(new Callable<Answer>() {
+            @Override
+            public Answer call() {
+                return _resource.executeRequest(cmd);
+            }
+        });
+    }
+
+    /**
+     * Holds the first command in its ssh calls until the other count - 1
+     * commands are queued behind it, so those go out as one batch.
+     */
+    protected List<Answer> executeBehindFirstCommand(int count) throws Exception {
+        _release = new CountDownLatch(1);
+        List<Future<Answer>> futures = new ArrayList<Future<Answer>>();
+        futures.add(submit(0));
+        assertTrue(_applying.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 1; i < count; i++) {
+            futures.add(submit(i));
+        }
+
+        long deadline = System.currentTimeMillis() + WAIT_SECONDS * 1000;
+        while (_resource.getPendingConfigCount(ROUTERNAME) < count - 1) {
+            assertTrue("commands did not queue up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        _release.countDown();
+        _release = null;
+
+        List<Answer> answers = new ArrayList<Answer>();
+        for (Future<Answer> future : futures) {
+            Answer answer = future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(answer);
+            answers.add(answer);
+        }
+        return answers;
+    }
+
+    @Test
+    public void testSingleCommandIsAppliedOnItsOwn() {
+        Answer answer = _resource.executeRequest(generateSavePasswordCommand(1));
+        assertTrue(answer.getResult());
+        assertTrue(answer instanceof GroupAnswer);
+        assertEquals(2, ((GroupAnswer)answer).getResults().length);
+        assertEquals(0, _vrCfgCalls.get());
+        assertEquals(1, _resource.getApplyStats(ROUTERNAME).getCommandCount());
+    }
+
+    @Test
+    public void testQueuedCommandsAreBatched() throws Exception {
+        for (Answer answer : executeBehindFirstCommand(COMMANDS)) {
+            assertTrue(answer.getResult());
+            assertTrue(answer instanceof GroupAnswer);
+            assertEquals(2, ((GroupAnswer)answer).getResults().length);
+        }
+
+        // the first command on its own, a file and a script, then the rest as one vr_cfg file
+        VirtualRoutingResource.RouterApplyStats stats = _resource.getApplyStats(ROUTERNAME);
+        assertEquals(COMMANDS, stats.getCommandCount());
+        assertEquals(2, stats.getBatchCount());
+        assertEquals(1, _vrCfgCalls.get());
+        assertEquals(4, _sshCalls.get());
+    }
+
+    @Test
+    public void testFailedBatchIsAppliedOneByOne() throws Exception {
+        _failVrCfg = true;
+        for (Answer answer : executeBehindFirstCommand(COMMANDS)) {
+            assertTrue(answer.getResult());
+        }
+        assertEquals(1, _vrCfgCalls.get());
+        assertEquals(2 + 2 + 2 * (COMMANDS - 1), _sshCalls.get());
+        assertEquals(COMMANDS, _resource.getApplyStats(ROUTERNAME).getCommandCount());
+    }
+
+    @Test
+    public void testEveryCommandOfABatchThatThrowsIsAnswered() throws Exception {
+        _throwVrCfg = true;
+        List<Answer> answers = executeBehindFirstCommand(COMMANDS);
+        assertTrue(answers.get(0).getResult());
+        for (Answer answer : answers.subList(1, answers.size())) {
+            assertFalse(answer.getResult());
+        }
+        assertEquals(1, _vrCfgCalls.get());
+
+        _throwVrCfg = false;
+        assertTrue(_resource.executeRequest(generateSavePasswordCommand(COMMANDS)).getResult());
+    }
+
+    /**
+     * Applying one command after the other takes two ssh calls each, a file
+     * and the script that loads it; the commands that queue up while a batch
+     * is applied go out together in the next one.
+     */
+    @Test
+    public void testCompareWithOneByOne() throws Exception {
+        for (int i = 0; i < COMMANDS; i++) {
+            assertTrue(_resource.executeRequest(generateSavePasswordCommand(i)).getResult());
+        }
+        int serialSshCalls = _sshCalls.getAndSet(0);
+        assertEquals(2 * COMMANDS, serialSshCalls);
+        assertEquals(0, _vrCfgCalls.get());
+
+        _resource = createResource();
+        executeBehindFirstCommand(COMMANDS);
+        int batchedSshCalls = _sshCalls.get();
+
+        assertEquals(4, batchedSshCalls);
+        s_logger.info("Applying " + COMMANDS + " commands to a router one by one took " + serialSshCalls + " ssh calls, batched " + batchedSshCalls
+                + " ssh calls, " + _resource.getApplyStats(ROUTERNAME));
+    }
+}
@@ -0,0 +1,189 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.api.storage.ListTemplateCommand;
+import com.cloud.agent.api.to.NfsTO;
+import com.cloud.host.Host;
+import com.cloud.storage.DataStoreRole;
+import com.cloud.utils.Profiler;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class BinaryCommandCodecTest {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodecTest.class);
+
+    private static final int VMS_PER_HOST = 40;
+    private static final int ITERATIONS = 2000;
+
+    protected PingRoutingCommand createPing() {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < VMS_PER_HOST; i++) {
+            report.put("i-2-" + i + "-VM", new HostVmStateReportEntry(i % 2 == 0 ? PowerState.PowerOn : PowerState.PowerOff, "kvm-host-01"));
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 101, report);
+        ping.setGatewayAccessible(false);
+        ping.setContextParam("logid", "abcdef");
+        return ping;
+    }
+
+    protected GetVmStatsAnswer createVmStats() {
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < VMS_PER_HOST; i++) {
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(12.5 + i, 1024.0 * i, 2048.0 * i, 10.0 * i, 20.0 * i, 2, "vm"));
+        }
+        GetVmStatsCommand cmd = new GetVmStatsCommand(new ArrayList<String>(stats.keySet()), "hostguid", "kvm-host-01");
+        return new GetVmStatsAnswer(cmd, stats);
+    }
+
+    protected Request roundTrip(Request request) throws Exception {
+        return Request.parse(request.getBytes());
+    }
+
+    @Test
+    public void testPingRoundTrip() throws Exception {
+        PingRoutingCommand ping = createPing();
+        Request request = new Request(101, 3, new Command[] {ping}, true, false);
+        request.setSequence(42);
+        request.setVersion(Request.Version.v4);
+
+        Request parsed = roundTrip(request);
+        Assert.assertEquals(Request.Version.v4, parsed.getVersion());
+        Assert.assertEquals(42, parsed.getSequence());
+        Assert.assertEquals(101, parsed.getViaAgentId());
+
+        PingRoutingCommand copy = (PingRoutingCommand)parsed.getCommand();
+        Assert.assertEquals(101, copy.getHostId());
+        Assert.assertEquals(Host.Type.Routing, copy.getHostType());
+        Assert.assertFalse(copy.isGatewayAccessible());
+        Assert.assertTrue(copy.isVnetAccessible());
+        Assert.assertEquals("abcdef", copy.getContextParam("logid"));
+        Assert.assertEquals(VMS_PER_HOST, copy.getHostVmStateReport().size());
+        Assert.assertEquals(PowerState.PowerOff, copy.getHostVmStateReport().get("i-2-3-VM").getState());
+        Assert.assertEquals("kvm-host-01", copy.getHostVmStateReport().get("i-2-3-VM").getHost());
+    }
+
+    @Test
+    public void testResponseFollowsRequestVersion() throws Exception {
+        Request request = new Request(101, 3, new GetHostStatsCommand("hostguid", "kvm-host-01", 101), true);
+        request.setVersion(Request.Version.v4);
+        Request parsed = roundTrip(request);
+
+        Response response = new Response(parsed, createVmStats());
+        Response copy = Response.parse(response.getBytes());
+        Assert.assertEquals(Request.Version.v4, copy.getVersion());
+
+        GetVmStatsAnswer answer = (GetVmStatsAnswer)copy.getAnswer();
+        Assert.assertEquals(VMS_PER_HOST, answer.getVmStatsMap().size());
+        Assert.assertEquals(15.5, answer.getVmStatsMap().get("i-2-3-VM").getCPUUtilization(), 0.0);
+        Assert.assertEquals(2, answer.getVmStatsMap().get("i-2-3-VM").getNumCPUs());
+    }
+
+    @Test
+    public void testInterfaceFieldsFallBackToJson() throws Exception {
+        NfsTO nfs = new NfsTO("nfs://192.168.56.10/opt/storage/secondary", DataStoreRole.Image);
+        Request request = new Request(2, 3, new ListTemplateCommand(nfs), true);
+        request.setVersion(Request.Version.v4);
+
+        Request parsed = roundTrip(request);
+        ListTemplateCommand copy = (ListTemplateCommand)parsed.getCommand();
+        Assert.assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)copy.getDataStore()).getUrl());
+    }
+
+    @Test
+    public void testAcceptsBinaryFlag() throws Exception {
+        Request request = new Request(2, 3, new GetHostStatsCommand("hostguid", "kvm-host-01", 101), true);
+        Assert.assertFalse(roundTrip(request).acceptsBinary());
+        request = new Request(2, 3, new GetHostStatsCommand("hostguid", "kvm-host-01", 101), true);
+        request.setAcceptsBinary(true);
+        Request parsed = roundTrip(request);
+        Assert.assertTrue(parsed.acceptsBinary());
+        Assert.assertEquals(Request.Version.v1, parsed.getVersion());
+    }
+
+    @Test
+    public void testCompareCodecs() throws Exception {
+        compare("PingRoutingCommand", new Command[] {createPing()}, false);
+        compare("GetVmStatsAnswer", new Answer[] {createVmStats()}, true);
+    }
+
+    protected void compare(String name, Command[] payload, boolean answers) throws Exception {
+        Request request = new Request(101, 3, new GetHostStatsCommand("hostguid", "kvm-host-01", 101), true);
+        long jsonSize = 0;
+        long binarySize = 0;
+
+        // Warm up both paths so class layouts and Gson adapters are cached.
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            encodeAndDecode(request, payload, Request.Version.v1, answers);
+            encodeAndDecode(request, payload, Request.Version.v4, answers);
+        }
+
+        Profiler json = new Profiler();
+        json.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            jsonSize = encodeAndDecode(request, payload, Request.Version.v1, answers);
+        }
+        json.stop();
+
+        Profiler binary = new Profiler();
+        binary.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            binarySize = encodeAndDecode(request, payload, Request.Version.v4, answers);
+        }
+        binary.stop();
+
+        s_logger.info(name + ": json " + json.getDurationInMillis() + " ms / " + jsonSize + " bytes, binary " + binary.getDurationInMillis() + " ms / " +
+                binarySize + " bytes for " + ITERATIONS + " round trips");
+    }
+
+    protected long encodeAndDecode(Request template, Command[] payload, Request.Version version, boolean answers) throws Exception {
+        Request request;
+        if (answers) {
+            template.setVersion(version);
+            request = new Response(template, (Answer[])payload);
+        } else {
+            request = new Request(101, 3, payload, true, false);
+            request.setVersion(version);
+        }
+        byte[] bytes = request.getBytes();
+        Request parsed = Request.parse(bytes);
+        if (answers) {
+            Assert.assertEquals(payload.length, ((Response)parsed).getAnswers().length);
+        } else {
+            Assert.assertEquals(payload.length, parsed.getCommands().length);
+        }
+        return bytes.length;
+    }
+}
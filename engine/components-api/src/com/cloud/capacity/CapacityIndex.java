@@ -0,0 +1,422 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.Pair;
+
+/**
+ * CapacityIndex keeps the cpu and memory rows of op_host_capacity in memory,
+ * grouped by cluster, so that deployment planners and host allocators can
+ * rank clusters and filter hosts without going to the database.
+ *
+ * The database stays the system of record.  CapacityManager still allocates
+ * and releases capacity under row locks and hands the committed rows to the
+ * index afterwards; the index is also reloaded periodically to pick up rows
+ * changed by other management servers.
+ *
+ * Cluster totals are kept up to date as hosts change, so ranking a zone only
+ * walks its clusters.  Looking for a host with enough free capacity walks the
+ * hosts of a cluster.
+ */
+public class CapacityIndex {
+
+    /**
+     * Cpu and memory capacity of one host, as last committed to the database.
+     */
+    public static class HostCapacity {
+        private final long _hostId;
+        private final long _zoneId;
+        private final long _podId;
+        private final long _clusterId;
+        private final long[] _total = new long[2];
+        private final long[] _used = new long[2];
+        private final long[] _reserved = new long[2];
+        private final boolean _enabled;
+        private long _sequence;
+
+        public HostCapacity(long hostId, long zoneId, long podId, long clusterId, long totalCpu, long usedCpu, long reservedCpu, long totalMemory, long usedMemory,
+                long reservedMemory, boolean enabled) {
+            _hostId = hostId;
+            _zoneId = zoneId;
+            _podId = podId;
+            _clusterId = clusterId;
+            _total[Capacity.CAPACITY_TYPE_CPU] = totalCpu;
+            _used[Capacity.CAPACITY_TYPE_CPU] = usedCpu;
+            _reserved[Capacity.CAPACITY_TYPE_CPU] = reservedCpu;
+            _total[Capacity.CAPACITY_TYPE_MEMORY] = totalMemory;
+            _used[Capacity.CAPACITY_TYPE_MEMORY] = usedMemory;
+            _reserved[Capacity.CAPACITY_TYPE_MEMORY] = reservedMemory;
+            _enabled = enabled;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getZoneId() {
+            return _zoneId;
+        }
+
+        public long getPodId() {
+            return _podId;
+        }
+
+        public long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getTotal(short capacityType) {
+            return _total[capacityType];
+        }
+
+        public long getUsed(short capacityType) {
+            return _used[capacityType];
+        }
+
+        public long getReserved(short capacityType) {
+            return _reserved[capacityType];
+        }
+
+        public boolean isEnabled() {
+            return _enabled;
+        }
+
+        /**
+         * Same computation as CapacityManager.checkIfHostHasCapacity when not
+         * allocating from reserved capacity.
+         */
+        public boolean hasCapacity(int cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
+            long totalCpu = (long)(_total[Capacity.CAPACITY_TYPE_CPU] * cpuOvercommitRatio);
+            long totalMem = (long)(_total[Capacity.CAPACITY_TYPE_MEMORY] * memoryOvercommitRatio);
+            long reservedCpu = considerReservedCapacity ? _reserved[Capacity.CAPACITY_TYPE_CPU] : 0;
+            long reservedMem = considerReservedCapacity ? _reserved[Capacity.CAPACITY_TYPE_MEMORY] : 0;
+            return reservedCpu + _used[Capacity.CAPACITY_TYPE_CPU] + cpu <= totalCpu && reservedMem + _used[Capacity.CAPACITY_TYPE_MEMORY] + ram <= totalMem;
+        }
+
+        @Override
+        public String toString() {
+            return "HostCapacity[" + _hostId + ", cpu " + _used[Capacity.CAPACITY_TYPE_CPU] + "+" + _reserved[Capacity.CAPACITY_TYPE_CPU] + "/" +
+                    _total[Capacity.CAPACITY_TYPE_CPU] + ", mem " + _used[Capacity.CAPACITY_TYPE_MEMORY] + "+" + _reserved[Capacity.CAPACITY_TYPE_MEMORY] + "/" +
+                    _total[Capacity.CAPACITY_TYPE_MEMORY] + "]";
+        }
+    }
+
+    /**
+     * Hosts of one cluster and their summed capacity.  The sums over enabled
+     * hosts only are kept separately for the disable thresholds.
+     */
+    protected static class ClusterCapacity {
+        final long _clusterId;
+        final long _podId;
+        final long _zoneId;
+        final float[] _overcommitRatio = new float[] {1.0f, 1.0f};
+        final Map<Long, HostCapacity> _hosts = new HashMap<Long, HostCapacity>();
+        final long[] _total = new long[2];
+        final long[] _allocated = new long[2];
+        final long[] _enabledTotal = new long[2];
+        final long[] _enabledAllocated = new long[2];
+
+        ClusterCapacity(long clusterId, long podId, long zoneId) {
+            _clusterId = clusterId;
+            _podId = podId;
+            _zoneId = zoneId;
+        }
+
+        synchronized void put(HostCapacity host, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+            _overcommitRatio[Capacity.CAPACITY_TYPE_CPU] = cpuOvercommitRatio;
+            _overcommitRatio[Capacity.CAPACITY_TYPE_MEMORY] = memoryOvercommitRatio;
+            add(_hosts.put(host.getHostId(), host), -1);
+            add(host, 1);
+        }
+
+        synchronized boolean remove(long hostId) {
+            add(_hosts.remove(hostId), -1);
+            return _hosts.isEmpty();
+        }
+
+        private void add(HostCapacity host, int sign) {
+            if (host == null) {
+                return;
+            }
+            for (short type = 0; type < 2; type++) {
+                long allocated = host.getUsed(type) + host.getReserved(type);
+                _total[type] += sign * host.getTotal(type);
+                _allocated[type] += sign * allocated;
+                if (host.isEnabled() && host.getTotal(type) > 0) {
+                    _enabledTotal[type] += sign * host.getTotal(type);
+                    _enabledAllocated[type] += sign * allocated;
+                }
+            }
+        }
+
+        synchronized float getOvercommitRatio(short capacityType) {
+            return _overcommitRatio[capacityType];
+        }
+
+        /**
+         * @return total capacity of the cluster with overcommit applied
+         */
+        synchronized double getTotal(short capacityType) {
+            return _total[capacityType] * (double)_overcommitRatio[capacityType];
+        }
+
+        synchronized long getAllocated(short capacityType) {
+            return _allocated[capacityType];
+        }
+
+        synchronized float getConsumption(short capacityType, long requested) {
+            double total = _enabledTotal[capacityType] * (double)_overcommitRatio[capacityType];
+            return total > 0 ? (float)((_enabledAllocated[capacityType] + requested) / total) : 0;
+        }
+
+        synchronized boolean hasHostWithCapacity(int cpu, long ram) {
+            return !listHostsWithCapacity(cpu, ram, true).isEmpty();
+        }
+
+        /*
+         * Reserved capacity is left out here, like in the queries this
+         * replaces; allocators look at it host by host.
+         */
+        synchronized List<Long> listHostsWithCapacity(int cpu, long ram, boolean firstOnly) {
+            List<Long> hostIds = new ArrayList<Long>();
+            for (HostCapacity host : _hosts.values()) {
+                if (host.hasCapacity(cpu, ram, _overcommitRatio[Capacity.CAPACITY_TYPE_CPU], _overcommitRatio[Capacity.CAPACITY_TYPE_MEMORY], false)) {
+                    hostIds.add(host.getHostId());
+                    if (firstOnly) {
+                        break;
+                    }
+                }
+            }
+            return hostIds;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentHashMap<Long, ClusterCapacity> _clusters = new ConcurrentHashMap<Long, ClusterCapacity>();
+    private volatile boolean _loaded = false;
+    private long _sequence = 0;
+
+    /**
+     * @return true once the index has been filled from the database
+     */
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    public void setLoaded(boolean loaded) {
+        _loaded = loaded;
+    }
+
+    public int getHostCount() {
+        return _hosts.size();
+    }
+
+    public HostCapacity getHost(long hostId) {
+        return _hosts.get(hostId);
+    }
+
+    /**
+     * @return a marker to pass to reload() and retainHosts()
+     */
+    public synchronized long getSequence() {
+        return _sequence;
+    }
+
+    public synchronized void update(HostCapacity host, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        host._sequence = ++_sequence;
+        HostCapacity previous = _hosts.put(host.getHostId(), host);
+        if (previous != null && previous.getClusterId() != host.getClusterId()) {
+            removeFromCluster(previous);
+        }
+        ClusterCapacity cluster = _clusters.get(host.getClusterId());
+        if (cluster == null) {
+            cluster = new ClusterCapacity(host.getClusterId(), host.getPodId(), host.getZoneId());
+            _clusters.put(host.getClusterId(), cluster);
+        }
+        cluster.put(host, cpuOvercommitRatio, memoryOvercommitRatio);
+    }
+
+    /**
+     * Like update(), but keeps the indexed host if it was updated after the
+     * given marker, i.e. after the reloaded rows were read.
+     */
+    public synchronized void reload(HostCapacity host, float cpuOvercommitRatio, float memoryOvercommitRatio, long since) {
+        HostCapacity current = _hosts.get(host.getHostId());
+        if (current == null || current._sequence <= since) {
+            update(host, cpuOvercommitRatio, memoryOvercommitRatio);
+        }
+    }
+
+    public synchronized void remove(long hostId) {
+        HostCapacity previous = _hosts.remove(hostId);
+        if (previous != null) {
+            removeFromCluster(previous);
+        }
+    }
+
+    private void removeFromCluster(HostCapacity host) {
+        ClusterCapacity cluster = _clusters.get(host.getClusterId());
+        if (cluster != null && cluster.remove(host.getHostId())) {
+            _clusters.remove(host.getClusterId(), cluster);
+        }
+    }
+
+    /**
+     * Drops hosts that are not in the given set and were not updated after
+     * the given marker.
+     */
+    public synchronized void retainHosts(Collection<Long> hostIds, long since) {
+        for (HostCapacity host : new ArrayList<HostCapacity>(_hosts.values())) {
+            if (host._sequence <= since && !hostIds.contains(host.getHostId())) {
+                remove(host.getHostId());
+            }
+        }
+    }
+
+    public boolean hasCapacity(HostCapacity host, int cpu, long ram, boolean considerReservedCapacity) {
+        ClusterCapacity cluster = _clusters.get(host.getClusterId());
+        if (cluster == null) {
+            return false;
+        }
+        return host.hasCapacity(cpu, ram, cluster.getOvercommitRatio(Capacity.CAPACITY_TYPE_CPU), cluster.getOvercommitRatio(Capacity.CAPACITY_TYPE_MEMORY),
+                considerReservedCapacity);
+    }
+
+    public float getOvercommitRatio(long clusterId, short capacityType) {
+        ClusterCapacity cluster = _clusters.get(clusterId);
+        return cluster == null ? 1.0f : cluster.getOvercommitRatio(capacityType);
+    }
+
+    protected List<ClusterCapacity> listClusters(long id, boolean isZone) {
+        List<ClusterCapacity> clusters = new ArrayList<ClusterCapacity>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if ((isZone ? cluster._zoneId : cluster._podId) == id) {
+                clusters.add(cluster);
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * @return clusters of the zone or pod having a host with enough cpu and ram
+     */
+    public List<Long> listClustersWithHostCapacity(long id, boolean isZone, int requiredCpu, long requiredRam) {
+        List<Long> clusterIds = new ArrayList<Long>();
+        for (ClusterCapacity cluster : listClusters(id, isZone)) {
+            if (cluster.hasHostWithCapacity(requiredCpu, requiredRam)) {
+                clusterIds.add(cluster._clusterId);
+            }
+        }
+        return clusterIds;
+    }
+
+    /**
+     * @return clusters of the zone or pod ordered by allocated over total
+     * capacity, least used first, and that ratio per cluster
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone) {
+        Map<Long, Double> usage = new HashMap<Long, Double>();
+        for (ClusterCapacity cluster : listClusters(id, isZone)) {
+            double total = cluster.getTotal(capacityType);
+            if (total > 0) {
+                usage.put(cluster._clusterId, cluster.getAllocated(capacityType) / total);
+            }
+        }
+        return new Pair<List<Long>, Map<Long, Double>>(sortByValue(usage), usage);
+    }
+
+    /**
+     * @return pods of the zone having a host with enough cpu and ram
+     */
+    public List<Long> listPodsWithHostCapacity(long zoneId, int requiredCpu, long requiredRam) {
+        List<Long> podIds = new ArrayList<Long>();
+        for (ClusterCapacity cluster : listClusters(zoneId, true)) {
+            if (!podIds.contains(cluster._podId) && cluster.hasHostWithCapacity(requiredCpu, requiredRam)) {
+                podIds.add(cluster._podId);
+            }
+        }
+        return podIds;
+    }
+
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType) {
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (ClusterCapacity cluster : listClusters(zoneId, true)) {
+            double[] sum = sums.get(cluster._podId);
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(cluster._podId, sum);
+            }
+            sum[0] += cluster.getAllocated(capacityType);
+            sum[1] += cluster.getTotal(capacityType);
+        }
+        Map<Long, Double> usage = new HashMap<Long, Double>();
+        for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            if (entry.getValue()[1] > 0) {
+                usage.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+            }
+        }
+        return new Pair<List<Long>, Map<Long, Double>>(sortByValue(usage), usage);
+    }
+
+    /**
+     * @return (allocated + requested) / total capacity of the enabled hosts of
+     * the cluster, 0 if it has none
+     */
+    public float findClusterConsumption(long clusterId, short capacityType, long requested) {
+        ClusterCapacity cluster = _clusters.get(clusterId);
+        return cluster == null ? 0 : cluster.getConsumption(capacityType, requested);
+    }
+
+    public List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, long clusterId) {
+        ClusterCapacity cluster = _clusters.get(clusterId);
+        return cluster == null ? new ArrayList<Long>() : cluster.listHostsWithCapacity(requiredCpu, requiredRam, false);
+    }
+
+    /**
+     * @return hosts of the cluster, or all hosts if clusterId is null, with
+     * the most free capacity, without overcommit, first
+     */
+    public List<Long> orderHostsByFreeCapacity(Long clusterId, short capacityType) {
+        Map<Long, Double> used = new HashMap<Long, Double>();
+        for (HostCapacity host : _hosts.values()) {
+            if ((clusterId == null || host.getClusterId() == clusterId) && host.getTotal(capacityType) > 0) {
+                used.put(host.getHostId(), (host.getUsed(capacityType) + host.getReserved(capacityType)) / (double)host.getTotal(capacityType));
+            }
+        }
+        return sortByValue(used);
+    }
+
+    private static List<Long> sortByValue(final Map<Long, Double> values) {
+        List<Long> ids = new ArrayList<Long>(values.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                return values.get(o1).compareTo(values.get(o2));
+            }
+        });
+        return ids;
+    }
+}
@@ -53,6 +53,10 @@ public interface CapacityManager {
             "0.85",
             "Percentage (as a value between 0 and 1) of allocated storage utilization above which allocators will disable using the pool for low allocated storage available.",
             true, ConfigKey.Scope.Zone);
+    static final ConfigKey<Boolean> CapacityIndexEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "capacity.index.enabled", "true",
+        "Keep host cpu and memory capacity in memory so deployment planners and host allocators do not query op_host_capacity for every decision", false);
+    static final ConfigKey<Integer> CapacityIndexReloadInterval = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.index.reload.interval", "300",
+        "Interval (in seconds) at which the in memory host capacity is reloaded from the database", false);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
@@ -67,6 +71,13 @@ public interface CapacityManager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, float memoryOvercommitRatio,
         boolean considerReservedCapacity);
 
+    /**
+     * Checks, with the cpu and memory capacity rows of the host locked, whether
+     * what is allocated on the host is more than it can hold.  Planners may have
+     * picked the host from capacity another management server has used up since.
+     */
+    boolean isHostOverAllocated(long hostId, float cpuOvercommitRatio, float memoryOvercommitRatio);
+
     void updateCapacityForHost(Host host);
 
     /**
@@ -106,4 +117,10 @@ public interface CapacityManager {
     long getUsedBytes(StoragePoolVO pool);
 
     long getUsedIops(StoragePoolVO pool);
+
+    /**
+     * @return the in memory host cpu and memory capacity, or null if it is
+     * disabled or has not been loaded yet
+     */
+    CapacityIndex getCapacityIndex();
 }
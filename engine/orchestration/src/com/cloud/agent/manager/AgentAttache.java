@@ -53,6 +53,7 @@ import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.storage.CreateCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
@@ -106,6 +107,7 @@ public abstract class AgentAttache {
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long _nextSequence;
+    protected volatile Version _wireVersion = Version.v1;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -134,6 +136,17 @@ public abstract class AgentAttache {
         return ++_nextSequence;
     }
 
+    /**
+     * @return the version requests to this agent are marshalled with.
+     */
+    public Version getWireVersion() {
+        return _wireVersion;
+    }
+
+    public void setWireVersion(final Version version) {
+        _wireVersion = version;
+    }
+
     public synchronized void setMaintenanceMode(final boolean value) {
         _maintenance = value;
     }
@@ -69,6 +69,7 @@ import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
 import com.cloud.dc.ClusterVO;
@@ -195,6 +196,10 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                     "false",
                     "This parameter allows developers to enable a check to see if a transaction wraps commands that are sent to the resource.  This is not to be enabled on production systems.",
                     true);
+    protected final ConfigKey<Boolean> BinaryWireEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "agent.binary.wire.enabled", "true",
+                    "Switch links to the compact binary command codec when the agent advertises support for it.", true);
+    protected final ConfigKey<Integer> NioSelectors = new ConfigKey<Integer>("Advanced", Integer.class, "agent.nio.selectors", "0",
+                    "Number of selector threads serving agent connections; 0 uses one per core and 1 keeps accept and I/O on a single selector.", false);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -218,6 +223,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         _connectExecutor.allowCoreThreadTimeOut(true);
 
         _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, this);
+        _connection.setSelectors(NioSelectors.value(), true);
         s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers");
 
         // executes all agent commands other than cron and ping
@@ -450,6 +456,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        req.setVersion(agent.getWireVersion());
         final Answer[] answers = agent.send(req, timeout);
         notifyAnswersToMonitors(hostId, req.getSequence(), answers);
         commands.setAnswers(answers);
@@ -500,6 +507,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        req.setVersion(agent.getWireVersion());
 
         agent.send(req, listener);
         return req.getSequence();
@@ -1187,6 +1195,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             final long hostId = attache.getId();
             final String hostName = attache.getName();
 
+            attache.setWireVersion(request.acceptsBinary() && BinaryWireEnabled.value() ? Version.v4 : Version.v1);
+
             if (s_logger.isDebugEnabled()) {
                 if (cmd instanceof PingRoutingCommand) {
                     logD = false;
@@ -1653,7 +1663,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] { CheckTxnBeforeSending, Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize,
-                        DirectAgentThreadCap };
+                        DirectAgentThreadCap, BinaryWireEnabled, NioSelectors };
     }
 
 }
@@ -990,6 +990,11 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
 
                 try {
+                    // Capacity was allocated by the state change above; give the host
+                    // up if concurrent deployments have filled it in the meantime.
+                    if (_capacityMgr.isHostOverAllocated(destHostId, Float.parseFloat(cluster_detail_cpu.getValue()), Float.parseFloat(cluster_detail_ram.getValue()))) {
+                        throw new InsufficientServerCapacityException("Host " + destHostId + " no longer has enough capacity for " + vm, Host.class, destHostId);
+                    }
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("VM is being created in podId: " + vm.getPodIdToDeployIn());
                     }
@@ -2764,7 +2769,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             if (cmd instanceof PingRoutingCommand) {
                 final PingRoutingCommand ping = (PingRoutingCommand)cmd;
                 if (ping.getHostVmStateReport() != null) {
-                    _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
+                    _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport(), ping.isIncrementalReport());
                 }
 
                 // take the chance to scan VMs that are stuck in transitional states
@@ -3721,7 +3726,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
             // reset VM power state tracking so that we won't lost signal when VM has
             // been translated to
-            _vmDao.resetVmPowerStateTracking(vmId);
+            _syncMgr.resetVmSyncState(vmId);
         }
     }
 
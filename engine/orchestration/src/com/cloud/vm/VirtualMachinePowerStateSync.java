@@ -24,10 +24,15 @@ public interface VirtualMachinePowerStateSync {
 
     void resetHostSyncState(long hostId);
 
+    void resetVmSyncState(long vmId);
+
     void processHostVmStateReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    // an incremental report carries only the VMs whose power state changed since the previous one
+    void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report, boolean incremental);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
@@ -16,11 +16,16 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
 import org.apache.log4j.Logger;
@@ -29,13 +34,28 @@ import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.VMInstanceDao;
 
 public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStateSync {
     private static final Logger s_logger = Logger.getLogger(VirtualMachinePowerStateSyncImpl.class);
 
+    // power states in the table are read again from the DB, and hosts scanned for
+    // VMs missing from their reports, after this many ping intervals
+    private static final int POWER_STATE_TABLE_MAX_AGE_PINGS = 10;
+
+    // resets of the DB tracking are sent to the other management servers so that their
+    // power state tables do not keep treating reports of the reset VMs as unchanged
+    private static final String POWER_STATE_RESET_SUBJECT = "vm.powerstate.reset";
+    private static final String RESET_HOST_PREFIX = "host:";
+    private static final String RESET_VM_PREFIX = "vm:";
+
+    @Inject ClusterManager _clusterMgr;
     @Inject MessageBus _messageBus;
     @Inject VMInstanceDao _instanceDao;
     @Inject VirtualMachineManager _vmMgr;
@@ -43,13 +63,46 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     protected final ConfigKey<Integer> PingInterval = new ConfigKey<Integer>(Integer.class, "ping.interval", "Advanced", "60",
             "Interval to send application level pings to make sure the connection is still working", false);
 
+    protected final VirtualMachinePowerStateTable _powerStateTable = new VirtualMachinePowerStateTable(VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT);
+
+    // the last full report of each host, incremental reports are merged into it
+    protected final Map<Long, Map<String, HostVmStateReportEntry>> _lastHostReports = new ConcurrentHashMap<Long, Map<String, HostVmStateReportEntry>>();
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
+    @PostConstruct
+    protected void registerResetListener() {
+        _clusterMgr.registerNotificationListener(POWER_STATE_RESET_SUBJECT, new ClusterManager.NotificationListener() {
+            @Override
+            public void onNotification(String sourcePeer, String subject, String message) {
+                if (message.startsWith(RESET_HOST_PREFIX)) {
+                    invalidateHost(Long.parseLong(message.substring(RESET_HOST_PREFIX.length())));
+                } else if (message.startsWith(RESET_VM_PREFIX)) {
+                    _powerStateTable.invalidate(Long.parseLong(message.substring(RESET_VM_PREFIX.length())));
+                }
+            }
+        });
+    }
+
     @Override
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
+        invalidateHost(hostId);
+        _clusterMgr.notifyPeers(POWER_STATE_RESET_SUBJECT, RESET_HOST_PREFIX + hostId);
+    }
+
+    @Override
+    public void resetVmSyncState(long vmId) {
+        _instanceDao.resetVmPowerStateTracking(vmId);
+        _powerStateTable.invalidate(vmId);
+        _clusterMgr.notifyPeers(POWER_STATE_RESET_SUBJECT, RESET_VM_PREFIX + vmId);
+    }
+
+    private void invalidateHost(long hostId) {
+        _powerStateTable.invalidateHost(hostId);
+        _lastHostReports.remove(hostId);
     }
 
     @Override
@@ -58,39 +111,148 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, translatedInfo, true);
     }
 
     @Override
     public void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report) {
+        processHostVmStatePingReport(hostId, report, false);
+    }
+
+    @Override
+    public void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report, boolean incremental) {
         if (s_logger.isDebugEnabled())
-            s_logger.debug("Process host VM state report from ping process. host: " + hostId);
+            s_logger.debug("Process host VM state report from ping process. host: " + hostId + ", incremental: " + incremental);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        if (report == null) {
+            report = new HashMap<String, HostVmStateReportEntry>();
+        }
+
+        if (!incremental) {
+            _lastHostReports.put(hostId, new HashMap<String, HostVmStateReportEntry>(report));
+            processReport(hostId, convertVmStateReport(report), true);
+            return;
+        }
+
+        Map<String, HostVmStateReportEntry> lastReport = _lastHostReports.get(hostId);
+        if (lastReport == null) {
+            // nothing to merge the changes into until the host sends a full report,
+            // so VMs missing from this one say nothing about their state
+            processReport(hostId, convertVmStateReport(report), false);
+            return;
+        }
+
+        Map<String, HostVmStateReportEntry> merged;
+        synchronized (lastReport) {
+            mergeReport(lastReport, report);
+            merged = new HashMap<String, HostVmStateReportEntry>(lastReport);
+        }
+        processReport(hostId, convertVmStateReport(merged), true);
+    }
+
+    /**
+     * Applies the changes of an incremental report to the last full report of a host,
+     * which like a full report holds only the VMs that are powered on.
+     */
+    protected static void mergeReport(Map<String, HostVmStateReportEntry> lastReport, Map<String, HostVmStateReportEntry> changes) {
+        for (Map.Entry<String, HostVmStateReportEntry> entry : changes.entrySet()) {
+            if (entry.getValue().getState() == VirtualMachine.PowerState.PowerOn) {
+                lastReport.put(entry.getKey(), entry.getValue());
+            } else {
+                lastReport.remove(entry.getKey());
+            }
+        }
+    }
+
+    private long getPowerStateTableMaxAge() {
+        return PingInterval.value() * 1000L * POWER_STATE_TABLE_MAX_AGE_PINGS;
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    private void processReport(final long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo, boolean fullReport) {
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
+        long now = System.currentTimeMillis();
+        long maxAge = getPowerStateTableMaxAge();
+        loadPowerStates(translatedInfo, now, maxAge);
+
+        // only the VMs whose power state, power host or update count moves are written,
+        // those that go to the same values in a single UPDATE
+        final List<VirtualMachinePowerStateTable.Update> updates = _powerStateTable.diff(hostId, translatedInfo);
+        if (!updates.isEmpty()) {
+            final long updateTime = now;
+            Transaction.execute(new TransactionCallbackNoReturn() {
+                @Override
+                public void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (VirtualMachinePowerStateTable.Update update : updates) {
+                        int updated = _instanceDao.updatePowerState(update.getVmIds(), hostId, update.getPowerState(), update.getUpdateCount());
+                        for (Long vmId : update.getVmIds()) {
+                            if (updated == update.getVmIds().size()) {
+                                _powerStateTable.put(vmId, update.getPowerState(), hostId, update.getUpdateCount(), updateTime);
+                            } else {
+                                _powerStateTable.invalidate(vmId);
+                            }
+                        }
+                    }
+                }
+            });
 
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+            for (VirtualMachinePowerStateTable.Update update : updates) {
+                for (Long vmId : update.getVmIds()) {
+                    if (s_logger.isDebugEnabled())
+                        s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + vmId + ", power state: " + update.getPowerState());
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+                    _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
+                }
+            }
+        }
 
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
+        if (s_logger.isDebugEnabled()) {
+            int updated = 0;
+            for (VirtualMachinePowerStateTable.Update update : updates) {
+                updated += update.getVmIds().size();
+            }
+            s_logger.debug("VM power state does not change for " + (translatedInfo.size() - updated) + " VMs, skip DB writing. host: " + hostId);
+        }
+
+        if (fullReport && _powerStateTable.needsMissingReportScan(hostId, translatedInfo.keySet(), now, maxAge)) {
+            _powerStateTable.missingReportScanned(hostId, processMissingReport(hostId, translatedInfo), now);
+            _powerStateTable.purge(now, maxAge);
+        }
+
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Done with process of VM state report. host: " + hostId);
+    }
+
+    /**
+     * Reads the power state of the reported VMs the table has no current entry
+     * for in a single query, and drops the VMs that no longer exist from the report.
+     */
+    private void loadPowerStates(Map<Long, VirtualMachine.PowerState> translatedInfo, long now, long maxAge) {
+        List<Long> stale = _powerStateTable.listStale(translatedInfo.keySet(), now, maxAge);
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        Set<Long> found = new HashSet<Long>();
+        for (VMInstanceVO instance : _instanceDao.listByIds(stale)) {
+            _powerStateTable.put(instance.getId(), instance.getPowerState(), instance.getPowerHostId(), instance.getPowerStateUpdateCount(), now);
+            found.add(instance.getId());
+        }
+        for (Long vmId : stale) {
+            if (!found.contains(vmId)) {
+                s_logger.info("VM " + vmId + " no longer exists, ignoring its power state report");
+                translatedInfo.remove(vmId);
+                _powerStateTable.forget(vmId);
             }
         }
+    }
 
+    /**
+     * @return whether any VM that should be on the host is still missing from its report
+     */
+    private boolean processMissingReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
                 VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
@@ -115,7 +277,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
                 try {
                     if (!_instanceDao.isPowerStateUpToDate(instance.getId())) {
                         s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
-                        _instanceDao.resetVmPowerStateTracking(instance.getId());
+                        resetVmSyncState(instance.getId());
                         continue;
                     }
                 } catch (CloudRuntimeException e) {
@@ -138,6 +300,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
 
+                    _powerStateTable.invalidate(instance.getId());
                     if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing)) {
                         if (s_logger.isDebugEnabled())
                             s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
@@ -153,8 +316,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             }
         }
 
-        if (s_logger.isDebugEnabled())
-            s_logger.debug("Done with process of VM state report. host: " + hostId);
+        return vmsThatAreMissingReport.size() > 0;
     }
 
     @Override
@@ -164,19 +326,32 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             return map;
         }
 
+        long now = System.currentTimeMillis();
+        long maxAge = getPowerStateTableMaxAge();
+        List<String> unresolved = new ArrayList<String>();
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
-            if (vm != null) {
-                map.put(vm.getId(), entry.getValue().getState());
-            } else {
-                s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
+            Long vmId = _powerStateTable.getVmId(entry.getKey());
+            if (vmId != null) {
+                map.put(vmId, entry.getValue().getState());
+            } else if (!_powerStateTable.isUnknownName(entry.getKey(), now, maxAge)) {
+                unresolved.add(entry.getKey());
             }
         }
 
-        return map;
-    }
+        // instance names never change, look up the ones not seen before in a single query
+        if (!unresolved.isEmpty()) {
+            for (VMInstanceVO vm : _instanceDao.listByInstanceNames(unresolved)) {
+                _powerStateTable.putVmId(vm.getInstanceName(), vm.getId());
+                map.put(vm.getId(), states.get(vm.getInstanceName()).getState());
+            }
+            for (String vmName : unresolved) {
+                if (_powerStateTable.getVmId(vmName) == null) {
+                    s_logger.info("Unable to find matched VM in CloudStack DB. name: " + vmName);
+                    _powerStateTable.putUnknownName(vmName, now);
+                }
+            }
+        }
 
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
+        return map;
     }
 }
@@ -0,0 +1,274 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the power state of every vm as it was last written to, or read from,
+ * the database, so that a host report can be diffed in memory and only the vms
+ * whose power state, power host or update count moves need to be written.
+ *
+ * Entries are trusted for maxAge milliseconds and are then read again, which
+ * puts a bound on how long a change made behind the back of the table can go
+ * unnoticed.
+ */
+public class VirtualMachinePowerStateTable {
+
+    public static class Entry {
+        private final VirtualMachine.PowerState _powerState;
+        private final Long _powerHostId;
+        private final int _updateCount;
+        private final long _loaded;
+
+        public Entry(VirtualMachine.PowerState powerState, Long powerHostId, int updateCount, long loaded) {
+            _powerState = powerState;
+            _powerHostId = powerHostId;
+            _updateCount = updateCount;
+            _loaded = loaded;
+        }
+
+        public VirtualMachine.PowerState getPowerState() {
+            return _powerState;
+        }
+
+        public Long getPowerHostId() {
+            return _powerHostId;
+        }
+
+        public int getUpdateCount() {
+            return _updateCount;
+        }
+    }
+
+    /**
+     * The vms that are to get the same power state and update count, which
+     * makes them a single UPDATE.
+     */
+    public static class Update {
+        private final VirtualMachine.PowerState _powerState;
+        private final int _updateCount;
+        private final List<Long> _vmIds = new ArrayList<Long>();
+
+        public Update(VirtualMachine.PowerState powerState, int updateCount) {
+            _powerState = powerState;
+            _updateCount = updateCount;
+        }
+
+        public VirtualMachine.PowerState getPowerState() {
+            return _powerState;
+        }
+
+        public int getUpdateCount() {
+            return _updateCount;
+        }
+
+        public List<Long> getVmIds() {
+            return _vmIds;
+        }
+    }
+
+    private final int _maxUpdateCount;
+    private final Map<Long, Entry> _entries = new ConcurrentHashMap<Long, Entry>();
+    private final Map<Long, Set<Long>> _reportedVmIds = new ConcurrentHashMap<Long, Set<Long>>();
+    private final Map<Long, Long> _lastMissingReportScan = new ConcurrentHashMap<Long, Long>();
+    private final Map<String, Long> _vmIds = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> _unknownNames = new ConcurrentHashMap<String, Long>();
+    private volatile long _lastPurge;
+
+    /**
+     * @param maxUpdateCount the number of times the same power state is written
+     * again, and published, before further reports of it are dropped.
+     */
+    public VirtualMachinePowerStateTable(int maxUpdateCount) {
+        _maxUpdateCount = maxUpdateCount;
+    }
+
+    public Long getVmId(String instanceName) {
+        return _vmIds.get(instanceName);
+    }
+
+    public void putVmId(String instanceName, long vmId) {
+        _vmIds.put(instanceName, vmId);
+        _unknownNames.remove(instanceName);
+    }
+
+    /**
+     * @return whether instanceName was looked up less than maxAge ago and did
+     * not match any vm.
+     */
+    public boolean isUnknownName(String instanceName, long now, long maxAge) {
+        Long lookedUp = _unknownNames.get(instanceName);
+        return lookedUp != null && now - lookedUp < maxAge;
+    }
+
+    public void putUnknownName(String instanceName, long now) {
+        _unknownNames.put(instanceName, now);
+    }
+
+    public Entry get(long vmId) {
+        return _entries.get(vmId);
+    }
+
+    public void put(long vmId, VirtualMachine.PowerState powerState, Long powerHostId, int updateCount, long now) {
+        _entries.put(vmId, new Entry(powerState, powerHostId, updateCount, now));
+    }
+
+    /**
+     * @return the vms in vmIds that have no entry, or one older than maxAge.
+     */
+    public List<Long> listStale(Collection<Long> vmIds, long now, long maxAge) {
+        List<Long> stale = new ArrayList<Long>();
+        for (Long vmId : vmIds) {
+            Entry entry = _entries.get(vmId);
+            if (entry == null || now - entry._loaded >= maxAge) {
+                stale.add(vmId);
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Works out what reporting powerState for each vm on hostId would write,
+     * by the same rules VMInstanceDao.updatePowerState applies to a single vm:
+     * a new power state or power host starts counting at one, the same one
+     * counts up to maxUpdateCount and is then left alone. Vms without an entry
+     * are left out.
+     *
+     * @return the updates to make, grouped by power state and update count.
+     */
+    public List<Update> diff(long hostId, Map<Long, VirtualMachine.PowerState> report) {
+        List<Update> updates = new ArrayList<Update>();
+        for (Map.Entry<Long, VirtualMachine.PowerState> reported : report.entrySet()) {
+            Entry entry = _entries.get(reported.getKey());
+            if (entry == null) {
+                continue;
+            }
+
+            int updateCount;
+            if (entry._powerState != reported.getValue() || entry._powerHostId == null || entry._powerHostId.longValue() != hostId) {
+                updateCount = 1;
+            } else if (entry._updateCount < _maxUpdateCount) {
+                updateCount = entry._updateCount + 1;
+            } else {
+                continue;
+            }
+            getUpdate(updates, reported.getValue(), updateCount).getVmIds().add(reported.getKey());
+        }
+        return updates;
+    }
+
+    private static Update getUpdate(List<Update> updates, VirtualMachine.PowerState powerState, int updateCount) {
+        for (Update update : updates) {
+            if (update._powerState == powerState && update._updateCount == updateCount) {
+                return update;
+            }
+        }
+        Update update = new Update(powerState, updateCount);
+        updates.add(update);
+        return update;
+    }
+
+    /**
+     * Records the vms hostId reported and tells whether the vms that may be
+     * missing from its report need to be looked for in the database: when
+     * the set of vms changed, when the last scan found vms missing, or when
+     * the last scan is more than maxAge old.
+     */
+    public boolean needsMissingReportScan(long hostId, Set<Long> reportedVmIds, long now, long maxAge) {
+        Set<Long> previous = _reportedVmIds.put(hostId, new HashSet<Long>(reportedVmIds));
+        Long lastScan = _lastMissingReportScan.get(hostId);
+        return previous == null || !previous.equals(reportedVmIds) || lastScan == null || now - lastScan >= maxAge;
+    }
+
+    /**
+     * @param missing whether vms were found missing, which has the next report
+     * scan again until they are resolved.
+     */
+    public void missingReportScanned(long hostId, boolean missing, long now) {
+        if (missing) {
+            _lastMissingReportScan.remove(hostId);
+        } else {
+            _lastMissingReportScan.put(hostId, now);
+        }
+    }
+
+    public void invalidate(long vmId) {
+        _entries.remove(vmId);
+    }
+
+    public void invalidateHost(long hostId) {
+        Iterator<Entry> it = _entries.values().iterator();
+        while (it.hasNext()) {
+            Long powerHostId = it.next()._powerHostId;
+            if (powerHostId != null && powerHostId.longValue() == hostId) {
+                it.remove();
+            }
+        }
+        _reportedVmIds.remove(hostId);
+        _lastMissingReportScan.remove(hostId);
+    }
+
+    /**
+     * Drops the vm and its instance name, for a vm that no longer exists.
+     */
+    public void forget(long vmId) {
+        _entries.remove(vmId);
+        _vmIds.values().remove(vmId);
+    }
+
+    /**
+     * Drops the vms no host has reported for twice maxAge, which are gone or
+     * now reported to another management server, at most once every maxAge.
+     */
+    public void purge(long now, long maxAge) {
+        if (now - _lastPurge < maxAge) {
+            return;
+        }
+        _lastPurge = now;
+
+        Iterator<Entry> it = _entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next()._loaded >= 2 * maxAge) {
+                it.remove();
+            }
+        }
+        Iterator<Long> vmIds = _vmIds.values().iterator();
+        while (vmIds.hasNext()) {
+            if (!_entries.containsKey(vmIds.next())) {
+                vmIds.remove();
+            }
+        }
+        Iterator<Long> lookedUp = _unknownNames.values().iterator();
+        while (lookedUp.hasNext()) {
+            if (now - lookedUp.next() >= maxAge) {
+                lookedUp.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+}
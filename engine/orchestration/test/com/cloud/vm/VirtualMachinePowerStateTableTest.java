@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class VirtualMachinePowerStateTableTest {
+    private static final Logger s_logger = Logger.getLogger(VirtualMachinePowerStateTableTest.class);
+
+    private static final long HOST_ID = 1L;
+    private static final long MAX_AGE = 600000L;
+    private static final int VMS = 40;
+
+    private VirtualMachinePowerStateTable table;
+    private Map<Long, PowerState> report;
+
+    @Before
+    public void setUp() {
+        table = new VirtualMachinePowerStateTable(3);
+        report = new HashMap<Long, PowerState>();
+        for (long vmId = 1; vmId <= VMS; vmId++) {
+            report.put(vmId, PowerState.PowerOn);
+        }
+    }
+
+    // applies the updates the way VirtualMachinePowerStateSyncImpl does after writing them
+    private int apply(List<VirtualMachinePowerStateTable.Update> updates, long now) {
+        int written = 0;
+        for (VirtualMachinePowerStateTable.Update update : updates) {
+            for (Long vmId : update.getVmIds()) {
+                table.put(vmId, update.getPowerState(), HOST_ID, update.getUpdateCount(), now);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    @Test
+    public void testUnchangedReportWritesNothing() {
+        for (long vmId = 1; vmId <= VMS; vmId++) {
+            table.put(vmId, PowerState.PowerOff, HOST_ID, 3, 0);
+        }
+
+        // the first report changes every vm, in a single update, and the same
+        // state is written again until it has been seen three times
+        List<VirtualMachinePowerStateTable.Update> updates = table.diff(HOST_ID, report);
+        Assert.assertEquals(1, updates.size());
+        Assert.assertEquals(1, updates.get(0).getUpdateCount());
+        Assert.assertEquals(VMS, apply(updates, 0));
+        Assert.assertEquals(VMS, apply(table.diff(HOST_ID, report), 0));
+        Assert.assertEquals(VMS, apply(table.diff(HOST_ID, report), 0));
+
+        Assert.assertTrue(table.diff(HOST_ID, report).isEmpty());
+        Assert.assertTrue(table.listStale(report.keySet(), 1000, MAX_AGE).isEmpty());
+        Assert.assertTrue(table.needsMissingReportScan(HOST_ID, report.keySet(), 1000, MAX_AGE));
+        table.missingReportScanned(HOST_ID, false, 1000);
+        Assert.assertFalse(table.needsMissingReportScan(HOST_ID, report.keySet(), 2000, MAX_AGE));
+    }
+
+    @Test
+    public void testChangesAreGroupedByPowerState() {
+        for (long vmId = 1; vmId <= VMS; vmId++) {
+            table.put(vmId, PowerState.PowerOn, HOST_ID, 3, 0);
+        }
+        report.put(1L, PowerState.PowerOff);
+        report.put(2L, PowerState.PowerOff);
+
+        List<VirtualMachinePowerStateTable.Update> updates = table.diff(HOST_ID, report);
+        Assert.assertEquals(1, updates.size());
+        Assert.assertEquals(PowerState.PowerOff, updates.get(0).getPowerState());
+        Assert.assertEquals(2, updates.get(0).getVmIds().size());
+    }
+
+    @Test
+    public void testMovedVmIsWritten() {
+        table.put(1L, PowerState.PowerOn, 2L, 3, 0);
+        Map<Long, PowerState> moved = new HashMap<Long, PowerState>();
+        moved.put(1L, PowerState.PowerOn);
+
+        List<VirtualMachinePowerStateTable.Update> updates = table.diff(HOST_ID, moved);
+        Assert.assertEquals(1, updates.size());
+        Assert.assertEquals(1, updates.get(0).getUpdateCount());
+    }
+
+    @Test
+    public void testStaleAndInvalidatedEntriesAreReloaded() {
+        for (long vmId = 1; vmId <= VMS; vmId++) {
+            table.put(vmId, PowerState.PowerOn, HOST_ID, 3, 0);
+        }
+        table.invalidate(5L);
+        Assert.assertEquals(1, table.listStale(report.keySet(), 1000, MAX_AGE).size());
+        Assert.assertEquals(VMS, table.listStale(report.keySet(), MAX_AGE, MAX_AGE).size());
+
+        // vms without an entry are not diffed, they are read first
+        Assert.assertTrue(table.diff(HOST_ID, report).isEmpty());
+
+        table.invalidateHost(HOST_ID);
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testMissingReportScan() {
+        Assert.assertTrue(table.needsMissingReportScan(HOST_ID, report.keySet(), 0, MAX_AGE));
+        // vms were missing, scan again on the next report
+        table.missingReportScanned(HOST_ID, true, 0);
+        Assert.assertTrue(table.needsMissingReportScan(HOST_ID, report.keySet(), 1000, MAX_AGE));
+        table.missingReportScanned(HOST_ID, false, 1000);
+
+        report.remove(1L);
+        Assert.assertTrue(table.needsMissingReportScan(HOST_ID, report.keySet(), 2000, MAX_AGE));
+        table.missingReportScanned(HOST_ID, false, 2000);
+        Assert.assertFalse(table.needsMissingReportScan(HOST_ID, report.keySet(), 3000, MAX_AGE));
+        Assert.assertTrue(table.needsMissingReportScan(HOST_ID, report.keySet(), 2000 + MAX_AGE, MAX_AGE));
+    }
+
+    @Test
+    public void testPurgeDropsVmsNoLongerReported() {
+        table.putVmId("i-2-1-VM", 1L);
+        table.put(1L, PowerState.PowerOn, HOST_ID, 3, 0);
+        table.putVmId("i-2-2-VM", 2L);
+        table.put(2L, PowerState.PowerOn, HOST_ID, 3, 2 * MAX_AGE);
+        table.putUnknownName("unmanaged", 0);
+        Assert.assertTrue(table.isUnknownName("unmanaged", 1000, MAX_AGE));
+
+        table.purge(2 * MAX_AGE, MAX_AGE);
+        Assert.assertNull(table.get(1L));
+        Assert.assertNull(table.getVmId("i-2-1-VM"));
+        Assert.assertEquals(Long.valueOf(2L), table.getVmId("i-2-2-VM"));
+        Assert.assertFalse(table.isUnknownName("unmanaged", 2 * MAX_AGE, MAX_AGE));
+
+        table.forget(2L);
+        Assert.assertNull(table.getVmId("i-2-2-VM"));
+    }
+
+    /**
+     * Counts the rows a day of pings from one host writes, once per minute, when
+     * one of its vms changes power state every hour. Only the three reports that
+     * confirm each change are written, where every vm used to be read, in a
+     * transaction of its own, on every ping.
+     */
+    @Test
+    public void testWritesPerDay() {
+        for (long vmId = 1; vmId <= VMS; vmId++) {
+            table.put(vmId, PowerState.PowerOn, HOST_ID, 3, 0);
+        }
+        int pings = 24 * 60;
+        int written = 0;
+        List<Long> reportedVmIds = new ArrayList<Long>(report.keySet());
+        long start = System.nanoTime();
+        for (int ping = 0; ping < pings; ping++) {
+            if (ping % 60 == 0) {
+                Long vmId = reportedVmIds.get((ping / 60) % VMS);
+                report.put(vmId, report.get(vmId) == PowerState.PowerOn ? PowerState.PowerOff : PowerState.PowerOn);
+            }
+            written += apply(table.diff(HOST_ID, report), ping * 60000L);
+        }
+        long nanos = System.nanoTime() - start;
+
+        Assert.assertEquals(24 * 3, written);
+        s_logger.info("A day of pings from a host with " + VMS + " VMs wrote " + written + " rows and read none, instead of " + pings * VMS + " single vm lookups, diffing took " + nanos / 1000 + " us");
+    }
+}
@@ -80,6 +80,15 @@ public class UsageJobVO implements InternalIdentity {
     @Column(name = "heartbeat")
     private Date heartbeat;
 
+    @Column(name = "checkpoint_start_millis")
+    private long checkpointStartMillis;
+
+    @Column(name = "checkpoint_end_millis")
+    private long checkpointEndMillis;
+
+    @Column(name = "checkpoint_account_id")
+    private long checkpointAccountId;
+
     public UsageJobVO() {
     }
 
@@ -179,4 +188,28 @@ public class UsageJobVO implements InternalIdentity {
     public void setHeartbeat(Date heartbeat) {
         this.heartbeat = heartbeat;
     }
+
+    public long getCheckpointStartMillis() {
+        return checkpointStartMillis;
+    }
+
+    public void setCheckpointStartMillis(long checkpointStartMillis) {
+        this.checkpointStartMillis = checkpointStartMillis;
+    }
+
+    public long getCheckpointEndMillis() {
+        return checkpointEndMillis;
+    }
+
+    public void setCheckpointEndMillis(long checkpointEndMillis) {
+        this.checkpointEndMillis = checkpointEndMillis;
+    }
+
+    public long getCheckpointAccountId() {
+        return checkpointAccountId;
+    }
+
+    public void setCheckpointAccountId(long checkpointAccountId) {
+        this.checkpointAccountId = checkpointAccountId;
+    }
 }
@@ -46,6 +46,12 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
 
     List<Long> listPublicTemplatesByAccount(long accountId);
 
+    /**
+     * @return the ids of the accounts that own a usage helper table entry that
+     * is not closed yet, such as a running vm or a volume that is not deleted
+     */
+    List<Long> listAccountsWithOpenUsage();
+
     Long getLastVmDiskStatsId();
 
     void updateVmDiskStats(List<VmDiskStatisticsVO> vmDiskStats);
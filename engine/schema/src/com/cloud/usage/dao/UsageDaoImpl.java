@@ -68,7 +68,18 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             + "net_bytes_read=?, net_bytes_write=?, current_bytes_read=?, current_bytes_write=?, agg_bytes_read=?, agg_bytes_write=?  WHERE id=?";
     private static final String INSERT_USAGE_RECORDS = "INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, "
             + "usage_type, raw_usage, vm_instance_id, vm_name, offering_id, template_id, "
-            + "usage_id, type, size, network_id, start_date, end_date, virtual_size) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?)";
+            + "usage_id, type, size, network_id, start_date, end_date, virtual_size, cpu_cores, memory, cpu_speed) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String LIST_ACCOUNTS_WITH_OPEN_USAGE = "SELECT account_id FROM cloud_usage.usage_vm_instance WHERE end_date IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_volume WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_storage WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_ip_address WHERE released IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_load_balancer_policy WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_port_forwarding WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_network_offering WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_vpn_user WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_security_group WHERE deleted IS NULL"
+            + " UNION SELECT account_id FROM cloud_usage.usage_vmsnapshot WHERE processed IS NULL";
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -286,6 +297,25 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         return templateList;
     }
 
+    @Override
+    public List<Long> listAccountsWithOpenUsage() {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        String sql = LIST_ACCOUNTS_WITH_OPEN_USAGE;
+        List<Long> accountIds = new ArrayList<Long>();
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                accountIds.add(Long.valueOf(rs.getLong(1)));
+            }
+        } catch (Exception ex) {
+            s_logger.error("error listing accounts with open usage", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        }
+        return accountIds;
+    }
+
     @Override
     public Long getLastVmDiskStatsId() {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -438,6 +468,21 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
                 } else {
                     pstmt.setNull(18, Types.BIGINT);
                 }
+                if (usageRecord.getCpuCores() != null) {
+                    pstmt.setLong(19, usageRecord.getCpuCores());
+                } else {
+                    pstmt.setNull(19, Types.BIGINT);
+                }
+                if (usageRecord.getMemory() != null) {
+                    pstmt.setLong(20, usageRecord.getMemory());
+                } else {
+                    pstmt.setNull(20, Types.BIGINT);
+                }
+                if (usageRecord.getCpuSpeed() != null) {
+                    pstmt.setLong(21, usageRecord.getCpuSpeed());
+                } else {
+                    pstmt.setNull(21, Types.BIGINT);
+                }
                 pstmt.addBatch();
             }
             pstmt.executeBatch();
@@ -37,4 +37,17 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
     UsageJobVO isOwner(String hostname, int pid);
 
     void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success);
+
+    /**
+     * Records that every account up to accountId has been parsed for the
+     * aggregation interval starting at startMillis, of a run that parses up to
+     * endMillis.  Meant to be called in the transaction that commits the
+     * parsed usage, and cleared once a job succeeds.
+     */
+    void updateCheckpoint(Long jobId, long startMillis, long endMillis, long accountId);
+
+    /**
+     * @return the job with the latest checkpoint of a run that did not succeed
+     */
+    UsageJobVO getLastCheckpoint();
 }
@@ -74,6 +74,17 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
             jobForUpdate.setSuccess(success);
             update(job.getId(), jobForUpdate);
 
+            if (success) {
+                // every partition of the runs that left a checkpoint is parsed now
+                SearchCriteria<UsageJobVO> sc = createSearchCriteria();
+                sc.addAnd("checkpointEndMillis", SearchCriteria.Op.GT, Long.valueOf(0));
+                UsageJobVO checkpointForUpdate = createForUpdate();
+                checkpointForUpdate.setCheckpointStartMillis(0);
+                checkpointForUpdate.setCheckpointEndMillis(0);
+                checkpointForUpdate.setCheckpointAccountId(0);
+                update(checkpointForUpdate, sc);
+            }
+
             txn.commit();
         } catch (Exception ex) {
             txn.rollback();
@@ -84,6 +95,33 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
         }
     }
 
+    @Override
+    public void updateCheckpoint(Long jobId, long startMillis, long endMillis, long accountId) {
+        UsageJobVO jobForUpdate = createForUpdate();
+        jobForUpdate.setCheckpointStartMillis(startMillis);
+        jobForUpdate.setCheckpointEndMillis(endMillis);
+        jobForUpdate.setCheckpointAccountId(accountId);
+        update(jobId, jobForUpdate);
+    }
+
+    @Override
+    public UsageJobVO getLastCheckpoint() {
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        try {
+            Filter filter = new Filter(UsageJobVO.class, "id", false, Long.valueOf(0), Long.valueOf(1));
+            SearchCriteria<UsageJobVO> sc = createSearchCriteria();
+            sc.addAnd("checkpointEndMillis", SearchCriteria.Op.GT, Long.valueOf(0));
+            List<UsageJobVO> jobs = search(sc, filter);
+
+            if ((jobs == null) || jobs.isEmpty()) {
+                return null;
+            }
+            return jobs.get(0);
+        } finally {
+            txn.close();
+        }
+    }
+
     @Override
     public Long checkHeartbeat(String hostname, int pid, int aggregationDuration) {
         UsageJobVO job = getNextRecurringJob();
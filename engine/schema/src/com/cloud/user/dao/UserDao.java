@@ -31,6 +31,8 @@ public interface UserDao extends GenericDao<UserVO, Long> {
 
     UserVO getUser(long userId);
 
+    List<UserVO> listByIds(List<Long> userIds);
+
     List<UserVO> findUsersLike(String username);
 
     List<UserVO> listByAccount(long accountId);
@@ -34,6 +34,7 @@ public class UserDaoImpl extends GenericDaoBase<UserVO, Long> implements UserDao
     protected SearchBuilder<UserVO> UsernameSearch;
     protected SearchBuilder<UserVO> UsernameLikeSearch;
     protected SearchBuilder<UserVO> UserIdSearch;
+    protected SearchBuilder<UserVO> UserIdsSearch;
     protected SearchBuilder<UserVO> AccountIdSearch;
     protected SearchBuilder<UserVO> SecretKeySearch;
     protected SearchBuilder<UserVO> RegistrationTokenSearch;
@@ -60,6 +61,10 @@ public class UserDaoImpl extends GenericDaoBase<UserVO, Long> implements UserDao
         UserIdSearch.and("id", UserIdSearch.entity().getId(), SearchCriteria.Op.EQ);
         UserIdSearch.done();
 
+        UserIdsSearch = createSearchBuilder();
+        UserIdsSearch.and("ids", UserIdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        UserIdsSearch.done();
+
         SecretKeySearch = createSearchBuilder();
         SecretKeySearch.and("secretKey", SecretKeySearch.entity().getSecretKey(), SearchCriteria.Op.EQ);
         SecretKeySearch.done();
@@ -98,6 +103,13 @@ public class UserDaoImpl extends GenericDaoBase<UserVO, Long> implements UserDao
         return findOneBy(sc);
     }
 
+    @Override
+    public List<UserVO> listByIds(List<Long> userIds) {
+        SearchCriteria<UserVO> sc = UserIdsSearch.create();
+        sc.setParameters("ids", userIds.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<UserVO> findUsersLike(String username) {
         SearchCriteria<UserVO> sc = UsernameLikeSearch.create();
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +33,9 @@ import com.cloud.vm.VirtualMachine.State;
  * Data Access Object for vm_instance table
  */
 public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<State, VirtualMachine.Event, VirtualMachine> {
+    // to reduce DB updates, the same power state is written for up to this many consecutive reports
+    int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
+
     /**
      * What are the vms running on this host?
      * @param hostId host.
@@ -131,6 +135,18 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     boolean updatePowerState(long instanceId, long powerHostId, VirtualMachine.PowerState powerState);
 
+    /**
+     * Sets the same power state, power host and update count on all the
+     * instances in a single UPDATE.
+     *
+     * @return the number of instances updated
+     */
+    int updatePowerState(Collection<Long> instanceIds, long powerHostId, VirtualMachine.PowerState powerState, int updateCount);
+
+    List<VMInstanceVO> listByInstanceNames(Collection<String> names);
+
+    List<VMInstanceVO> listByIds(Collection<Long> ids);
+
     void resetVmPowerStateTracking(long instanceId);
 
     void resetHostPowerStateTracking(long hostId);
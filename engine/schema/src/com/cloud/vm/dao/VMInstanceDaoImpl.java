@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -65,8 +66,6 @@ import com.cloud.vm.VirtualMachine.Type;
 public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implements VMInstanceDao {
 
     public static final Logger s_logger = Logger.getLogger(VMInstanceDaoImpl.class);
-    private static final int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
-
     protected SearchBuilder<VMInstanceVO> VMClusterSearch;
     protected SearchBuilder<VMInstanceVO> LHVMClusterSearch;
     protected SearchBuilder<VMInstanceVO> IdStatesSearch;
@@ -82,6 +81,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
+    protected SearchBuilder<VMInstanceVO> InstanceNamesSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
@@ -214,6 +215,14 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("instanceNames", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
         HostNameSearch = createSearchBuilder();
         HostNameSearch.and("hostName", HostNameSearch.entity().getHostName(), Op.EQ);
         HostNameSearch.done();
@@ -412,6 +421,20 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return findOneBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("instanceNames", names.toArray());
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByIds(Collection<Long> ids) {
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public VMInstanceVO findVMByHostName(String hostName) {
         SearchCriteria<VMInstanceVO> sc = HostNameSearch.create();
@@ -802,6 +825,20 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public int updatePowerState(final Collection<Long> instanceIds, final long powerHostId, final VirtualMachine.PowerState powerState, final int updateCount) {
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", instanceIds.toArray());
+
+        VMInstanceVO instance = createForUpdate();
+        instance.setPowerState(powerState);
+        instance.setPowerHostId(powerHostId);
+        instance.setPowerStateUpdateCount(updateCount);
+        instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+
+        return update(instance, sc);
+    }
+
     @Override
     public boolean isPowerStateUpToDate(final long instanceId) {
         VMInstanceVO instance = findById(instanceId);
@@ -41,6 +41,14 @@ public interface ResourceDetailsDao<R extends ResourceDetail> extends GenericDao
      */
     public List<R> findDetails(String key, String value, Boolean display);
 
+    /**
+     * Finds the detail with the given key for each of the resources
+     * @param resourceIds
+     * @param key
+     * @return the details found, at most one per resource
+     */
+    public List<R> findDetails(List<Long> resourceIds, String key);
+
     /**
      * Removes all details for the resource specified
      * @param resourceId
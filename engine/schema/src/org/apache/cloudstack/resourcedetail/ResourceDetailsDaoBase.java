@@ -29,6 +29,7 @@ import com.cloud.utils.db.TransactionLegacy;
 
 public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends GenericDaoBase<R, Long> {
     private SearchBuilder<R> AllFieldsSearch;
+    private SearchBuilder<R> ResourceIdsSearch;
 
     public ResourceDetailsDaoBase() {
         AllFieldsSearch = createSearchBuilder();
@@ -40,6 +41,11 @@ public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends G
             AllFieldsSearch.and("display", AllFieldsSearch.entity().isDisplay(), SearchCriteria.Op.EQ);
         }
         AllFieldsSearch.done();
+
+        ResourceIdsSearch = createSearchBuilder();
+        ResourceIdsSearch.and("resourceIds", ResourceIdsSearch.entity().getResourceId(), SearchCriteria.Op.IN);
+        ResourceIdsSearch.and("name", ResourceIdsSearch.entity().getName(), SearchCriteria.Op.EQ);
+        ResourceIdsSearch.done();
     }
 
     public R findDetail(long resourceId, String name) {
@@ -69,6 +75,13 @@ public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends G
         return results;
     }
 
+    public List<R> findDetails(List<Long> resourceIds, String name) {
+        SearchCriteria<R> sc = ResourceIdsSearch.create();
+        sc.setParameters("resourceIds", resourceIds.toArray());
+        sc.setParameters("name", name);
+        return search(sc, null);
+    }
+
     public Map<String, String> listDetailsKeyPairs(long resourceId) {
         SearchCriteria<R> sc = AllFieldsSearch.create();
         sc.setParameters("resourceId", resourceId);
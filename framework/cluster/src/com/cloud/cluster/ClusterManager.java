@@ -52,6 +52,16 @@ public interface ClusterManager extends Manager {
 
     void registerDispatcher(Dispatcher dispatcher);
 
+    /**
+     * Sends a one way notification to all other active management servers.
+     * Delivery is best effort, receivers must not depend on it for correctness.
+     * @param subject subject the receivers registered for
+     * @param message message body, must not be null
+     */
+    void notifyPeers(String subject, String message);
+
+    void registerNotificationListener(String subject, NotificationListener listener);
+
     ManagementServerHost getPeer(String peerName);
 
     String getSelfPeerName();
@@ -67,4 +77,8 @@ public interface ClusterManager extends Manager {
 
         String dispatch(ClusterServicePdu pdu);
     }
+
+    public interface NotificationListener {
+        void onNotification(String sourcePeer, String subject, String message);
+    }
 }
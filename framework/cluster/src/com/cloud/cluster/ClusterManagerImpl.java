@@ -26,14 +26,19 @@ import java.sql.SQLException;
 import java.sql.SQLNonTransientException;
 import java.sql.SQLRecoverableException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -56,6 +61,7 @@ import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.DbProperties;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
@@ -71,10 +77,15 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private static final Logger s_logger = Logger.getLogger(ClusterManagerImpl.class);
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
-    private static final int DEFAULT_OUTGOING_WORKERS = 5;
+    private static final int CACHE_INVALIDATION_DELAY = 50; // ms to gather invalidations into one PDU
+    private static final String CONFIG_CHANGED_SUBJECT = "config.changed";
+    private static final String CACHE_INVALIDATION_SUBJECT = "cache.invalidation";
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
     private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
+    // snapshot of the peer names in _activePeers, minus ourselves, for use outside of the heartbeat thread
+    private volatile List<String> _activePeerNames = Collections.emptyList();
+    private final Map<String, List<NotificationListener>> _notificationListeners = new ConcurrentHashMap<String, List<NotificationListener>>();
 
     private final Map<String, ClusterService> _clusterPeers;
 
@@ -113,9 +124,12 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     private String _clusterNodeIP = "127.0.0.1";
 
-    private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
-    private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
-    private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
+    private final ClusterPduTransport _clusterPduTransport;
+    private final BlockingQueue<ClusterServicePdu> _clusterPduIncomingQueue = new LinkedBlockingQueue<ClusterServicePdu>();
+    private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new ConcurrentHashMap<Long, ClusterServiceRequestPdu>();
+
+    private final ScheduledExecutorService _invalidationScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-CacheInvalidation"));
+    private final List<EntityCache.Invalidation> _pendingInvalidations = new ArrayList<EntityCache.Invalidation>();
 
     public ClusterManagerImpl() {
         _clusterPeers = new HashMap<String, ClusterService>();
@@ -124,13 +138,17 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         // recursive remote calls between nodes
         //
         _executor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-Worker"));
+        _clusterPduTransport = new ClusterPduTransport(new ClusterPduTransport.Channel() {
+            @Override
+            public boolean deliver(final String peer, final List<ClusterServicePdu> pdus) {
+                return deliverClusterPdus(peer, pdus);
+            }
+        }, _executor);
         setRunLevel(ComponentLifecycle.RUN_LEVEL_FRAMEWORK);
     }
 
     private void registerRequestPdu(final ClusterServiceRequestPdu pdu) {
-        synchronized (_outgoingPdusWaitingForAck) {
-            _outgoingPdusWaitingForAck.put(pdu.getSequenceId(), pdu);
-        }
+        _outgoingPdusWaitingForAck.put(pdu.getSequenceId(), pdu);
     }
 
     @Override
@@ -138,93 +156,55 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         _dispatcher = dispatcher;
     }
 
-    private ClusterServiceRequestPdu popRequestPdu(final long ackSequenceId) {
-        synchronized (_outgoingPdusWaitingForAck) {
-            if (_outgoingPdusWaitingForAck.get(ackSequenceId) != null) {
-                final ClusterServiceRequestPdu pdu = _outgoingPdusWaitingForAck.get(ackSequenceId);
-                _outgoingPdusWaitingForAck.remove(ackSequenceId);
-                return pdu;
+    @Override
+    public void registerNotificationListener(final String subject, final NotificationListener listener) {
+        synchronized (_notificationListeners) {
+            List<NotificationListener> listeners = _notificationListeners.get(subject);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<NotificationListener>();
+                _notificationListeners.put(subject, listeners);
             }
+            listeners.add(listener);
         }
+    }
 
-        return null;
+    private ClusterServiceRequestPdu popRequestPdu(final long ackSequenceId) {
+        return _outgoingPdusWaitingForAck.remove(ackSequenceId);
     }
 
     private void cancelClusterRequestToPeer(final String strPeer) {
-        final List<ClusterServiceRequestPdu> candidates = new ArrayList<ClusterServiceRequestPdu>();
-        synchronized (_outgoingPdusWaitingForAck) {
-            for (final Map.Entry<Long, ClusterServiceRequestPdu> entry : _outgoingPdusWaitingForAck.entrySet()) {
-                if (entry.getValue().getDestPeer().equalsIgnoreCase(strPeer)) {
-                    candidates.add(entry.getValue());
-                }
-            }
+        final int dropped = _clusterPduTransport.discard(strPeer);
+        if (dropped > 0) {
+            s_logger.warn("Dropped " + dropped + " cluster PDUs queued for peer: " + strPeer);
+        }
 
-            for (final ClusterServiceRequestPdu pdu : candidates) {
-                _outgoingPdusWaitingForAck.remove(pdu.getSequenceId());
+        final List<ClusterServiceRequestPdu> candidates = new ArrayList<ClusterServiceRequestPdu>();
+        for (final ClusterServiceRequestPdu pdu : _outgoingPdusWaitingForAck.values()) {
+            if (pdu.getDestPeer().equalsIgnoreCase(strPeer) && _outgoingPdusWaitingForAck.remove(pdu.getSequenceId()) != null) {
+                candidates.add(pdu);
             }
         }
 
         for (final ClusterServiceRequestPdu pdu : candidates) {
             s_logger.warn("Cancel cluster request PDU to peer: " + strPeer + ", pdu: " + pdu.getJsonPackage());
-            synchronized (pdu) {
-                pdu.notifyAll();
-            }
+            pdu.complete(null);
         }
     }
 
     private void addOutgoingClusterPdu(final ClusterServicePdu pdu) {
-        synchronized (_clusterPduOutgoingQueue) {
-            _clusterPduOutgoingQueue.add(pdu);
-            _clusterPduOutgoingQueue.notifyAll();
-        }
-    }
-
-    private ClusterServicePdu popOutgoingClusterPdu(final long timeoutMs) {
-        synchronized (_clusterPduOutgoingQueue) {
-            try {
-                _clusterPduOutgoingQueue.wait(timeoutMs);
-            } catch (final InterruptedException e) {
-            }
-
-            if (_clusterPduOutgoingQueue.size() > 0) {
-                final ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-                _clusterPduOutgoingQueue.remove(0);
-                return pdu;
-            }
-        }
-        return null;
+        _clusterPduTransport.send(pdu);
     }
 
     private void addIncomingClusterPdu(final ClusterServicePdu pdu) {
-        synchronized (_clusterPduIncomingQueue) {
-            _clusterPduIncomingQueue.add(pdu);
-            _clusterPduIncomingQueue.notifyAll();
-        }
+        _clusterPduIncomingQueue.add(pdu);
     }
 
     private ClusterServicePdu popIncomingClusterPdu(final long timeoutMs) {
-        synchronized (_clusterPduIncomingQueue) {
-            try {
-                _clusterPduIncomingQueue.wait(timeoutMs);
-            } catch (final InterruptedException e) {
-            }
-
-            if (_clusterPduIncomingQueue.size() > 0) {
-                final ClusterServicePdu pdu = _clusterPduIncomingQueue.get(0);
-                _clusterPduIncomingQueue.remove(0);
-                return pdu;
-            }
+        try {
+            return _clusterPduIncomingQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            return null;
         }
-        return null;
-    }
-
-    private Runnable getClusterPduSendingTask() {
-        return new ManagedContextRunnable() {
-            @Override
-            protected void runInContext() {
-                onSendingClusterPdu();
-            }
-        };
     }
 
     private Runnable getClusterPduNotificationTask() {
@@ -236,58 +216,70 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         };
     }
 
-    private void onSendingClusterPdu() {
-        while (true) {
+    /**
+     * Delivers PDUs to a peer for the transport, several of them as one batch.
+     * A peer that does not take batches, as one running an older version,
+     * gets them one by one.
+     */
+    private boolean deliverClusterPdus(final String peer, final List<ClusterServicePdu> pdus) {
+        if (deliverClusterPduBatch(peer, pdus)) {
+            return true;
+        }
+        if (pdus.size() == 1) {
+            return false;
+        }
+
+        boolean delivered = true;
+        for (final ClusterServicePdu pdu : pdus) {
+            delivered &= deliverClusterPduBatch(peer, Collections.singletonList(pdu));
+        }
+        return delivered;
+    }
+
+    private boolean deliverClusterPduBatch(final String peer, final List<ClusterServicePdu> pdus) {
+        // a single PDU goes out the way it always did, so that it reaches peers that do not know of batches
+        final int attempts = pdus.size() == 1 ? 2 : 1;
+        for (int i = 0; i < attempts; i++) {
+            ClusterService peerService = null;
             try {
-                final ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if (pdu == null) {
-                    continue;
-                }
+                peerService = getPeerService(peer);
+            } catch (final RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + peer);
+            }
 
-                ClusterService peerService = null;
-                for (int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (final RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
+            if (peerService != null) {
+                try {
+                    if (s_logger.isDebugEnabled()) {
+                        for (final ClusterServicePdu pdu : pdus) {
+                            s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + peer + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
+                                    pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
+                        }
                     }
 
-                    if (peerService != null) {
-                        try {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
-                                        pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
-
-                            final Profiler profiler = new Profiler();
-                            profiler.start();
+                    final Profiler profiler = new Profiler();
+                    profiler.start();
 
-                            final String strResult = peerService.execute(pdu);
-                            profiler.stop();
+                    final String strResult = pdus.size() == 1 ? peerService.execute(pdus.get(0)) : peerService.execute(pdus);
+                    profiler.stop();
 
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                        profiler.getDurationInMillis() + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
-                                        ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDUs " + getSelfPeerName() + " -> " + peer + " completed. time: " + profiler.getDurationInMillis() + "ms. pdus: " +
+                                pdus.size() + ", first pdu seq: " + pdus.get(0).getSequenceId());
+                    }
 
-                            if ("true".equals(strResult)) {
-                                break;
-                            }
+                    if ("true".equals(strResult)) {
+                        return true;
+                    }
 
-                        } catch (final RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if (s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
-                                        e.getMessage());
-                            }
-                        }
+                } catch (final RemoteException e) {
+                    invalidatePeerService(peer);
+                    if (s_logger.isInfoEnabled()) {
+                        s_logger.info("Exception on remote execution, peer: " + peer + ", iteration: " + i + ", exception message :" + e.getMessage());
                     }
                 }
-            } catch (final Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
             }
         }
+        return false;
     }
 
     private void onNotifyingClusterPdu() {
@@ -304,13 +296,12 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                         if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
                             final ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getAckSequenceId());
                             if (requestPdu != null) {
-                                requestPdu.setResponseResult(pdu.getJsonPackage());
-                                synchronized (requestPdu) {
-                                    requestPdu.notifyAll();
-                                }
+                                requestPdu.complete(pdu.getJsonPackage());
                             } else {
                                 s_logger.warn("Original request has already been cancelled. pdu: " + pdu.getJsonPackage());
                             }
+                        } else if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_NOTIFICATION) {
+                            onPeerNotification(pdu);
                         } else {
                             String result = _dispatcher.dispatch(pdu);
                             if (result == null) {
@@ -336,6 +327,88 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    private void queueCacheInvalidation(final EntityCache.Invalidation invalidation) {
+        synchronized (_pendingInvalidations) {
+            _pendingInvalidations.add(invalidation);
+            if (_pendingInvalidations.size() > 1) {
+                return; // flush is already scheduled
+            }
+        }
+        _invalidationScheduler.schedule(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                flushCacheInvalidations();
+            }
+        }, CACHE_INVALIDATION_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushCacheInvalidations() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (_pendingInvalidations) {
+            for (final EntityCache.Invalidation invalidation : _pendingInvalidations) {
+                sb.append(invalidation.toString()).append("\n");
+            }
+            _pendingInvalidations.clear();
+        }
+        if (sb.length() == 0) {
+            return;
+        }
+
+        notifyPeers(CACHE_INVALIDATION_SUBJECT, sb.toString());
+    }
+
+    private void onCacheInvalidation(final String sourcePeer, final String message) {
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Cache invalidations from " + sourcePeer + ": " + message);
+        }
+        for (final String line : message.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final EntityCache.Invalidation invalidation = EntityCache.Invalidation.parse(line);
+            if (invalidation != null) {
+                EntityCache.onRemoteInvalidation(invalidation);
+            } else {
+                s_logger.warn("Ignoring malformed cache invalidation from " + sourcePeer + ": " + line);
+            }
+        }
+    }
+
+    @Override
+    public void notifyPeers(final String subject, final String message) {
+        final String body = subject + "\n" + message;
+        for (final String peerName : _activePeerNames) {
+            final ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setPduType(ClusterServicePdu.PDU_TYPE_NOTIFICATION);
+            pdu.setSourcePeer(getSelfPeerName());
+            pdu.setDestPeer(peerName);
+            pdu.setJsonPackage(body);
+            addOutgoingClusterPdu(pdu);
+        }
+    }
+
+    private void onPeerNotification(final ClusterServicePdu pdu) {
+        final String body = pdu.getJsonPackage();
+        final int index = body.indexOf('\n');
+        if (index < 0) {
+            s_logger.warn("Ignoring malformed notification from " + pdu.getSourcePeer() + ": " + body);
+            return;
+        }
+        final String subject = body.substring(0, index);
+        final List<NotificationListener> listeners = _notificationListeners.get(subject);
+        if (listeners == null) {
+            return;
+        }
+        final String message = body.substring(index + 1);
+        for (final NotificationListener listener : listeners) {
+            try {
+                listener.onNotification(pdu.getSourcePeer(), subject, message);
+            } catch (final Throwable e) {
+                s_logger.warn("Notification listener failed on " + subject + " from " + pdu.getSourcePeer(), e);
+            }
+        }
+    }
+
     @Override
     public void OnReceiveClusterServicePdu(final ClusterServicePdu pdu) {
         addIncomingClusterPdu(pdu);
@@ -399,12 +472,14 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         registerRequestPdu(pdu);
         addOutgoingClusterPdu(pdu);
 
-        synchronized (pdu) {
-            try {
-                pdu.wait();
-            } catch (final InterruptedException e) {
+        try {
+            if (!pdu.waitForResponse(ClusterServiceAdapter.ClusterMessageTimeOut.value() * 1000L)) {
+                s_logger.warn("Timed out waiting for the response of " + strPeer + " to cluster request, pdu seq: " + pdu.getSequenceId());
             }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        popRequestPdu(pdu.getSequenceId());
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(getSelfPeerName() + " -> " + strPeer + "." + agentId + " completed. result: " + pdu.getResponseResult());
@@ -919,6 +994,14 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             }
         }
 
+        final List<String> peerNames = new ArrayList<String>(_activePeers.size());
+        for (final ManagementServerHostVO mshost : _activePeers.values()) {
+            if (mshost.getMsid() != _msId) {
+                peerNames.add(Long.toString(mshost.getMsid()));
+            }
+        }
+        _activePeerNames = peerNames;
+
         if (newNodeList.size() > 0) {
             queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeAdded, newNodeList));
         }
@@ -997,6 +1080,19 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HeartbeatInterval.value(), HeartbeatInterval.value(), TimeUnit.MILLISECONDS);
         _notificationExecutor.submit(getNotificationTask());
 
+        registerNotificationListener(CACHE_INVALIDATION_SUBJECT, new NotificationListener() {
+            @Override
+            public void onNotification(final String sourcePeer, final String subject, final String message) {
+                onCacheInvalidation(sourcePeer, message);
+            }
+        });
+        EntityCache.setInvalidationPublisher(new EntityCache.InvalidationPublisher() {
+            @Override
+            public void publish(final EntityCache.Invalidation invalidation) {
+                queueCacheInvalidation(invalidation);
+            }
+        });
+
         if (s_logger.isInfoEnabled()) {
             s_logger.info("Cluster manager was started successfully");
         }
@@ -1017,6 +1113,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             _mshostDao.update(_mshostId, mshost);
         }
 
+        EntityCache.setInvalidationPublisher(null);
+        _invalidationScheduler.shutdown();
         _heartbeatScheduler.shutdownNow();
         _executor.shutdownNow();
 
@@ -1054,10 +1152,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             throw new ConfigurationException("cluster node IP should be valid local address where the server is running, please check your configuration");
         }
 
-        for (int i = 0; i < DEFAULT_OUTGOING_WORKERS; i++) {
-            _executor.execute(getClusterPduSendingTask());
-        }
-
         // notification task itself in turn works as a task dispatcher
         _executor.execute(getClusterPduNotificationTask());
 
@@ -1072,6 +1166,20 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
         checkConflicts();
 
+        // a config change on any management server drops the cached config values on all of them
+        _configDepot.registerConfigChangeListener(new ConfigDepot.ConfigChangeListener() {
+            @Override
+            public void onConfigChanged(final long version) {
+                notifyPeers(CONFIG_CHANGED_SUBJECT, String.valueOf(version));
+            }
+        });
+        registerNotificationListener(CONFIG_CHANGED_SUBJECT, new NotificationListener() {
+            @Override
+            public void onNotification(final String sourcePeer, final String subject, final String message) {
+                _configDepot.invalidateConfigCache();
+            }
+        });
+
         if (s_logger.isInfoEnabled()) {
             s_logger.info("Cluster manager is configured.");
         }
@@ -0,0 +1,195 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+/**
+ * Sends the outgoing cluster PDUs, from a queue per peer so that a slow or
+ * unreachable peer only holds up the PDUs addressed to it.
+ *
+ * The queue of a peer is drained by one task at a time on the shared
+ * executor.  The task sends whatever queued up while the previous batch was
+ * on the wire as the next batch, so a peer receives its PDUs in the order
+ * they were queued.  Nothing waits here for the answer to a request; it comes
+ * back as a response PDU of its own and is matched to the request by its
+ * sequence id.
+ */
+public class ClusterPduTransport {
+    private static final Logger s_logger = Logger.getLogger(ClusterPduTransport.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+    public interface Channel {
+        /**
+         * Sends the PDUs to the peer, as one batch if there are several.
+         *
+         * @return true if the peer accepted all of them
+         */
+        boolean deliver(String peer, List<ClusterServicePdu> pdus);
+    }
+
+    private final Channel _channel;
+    private final Executor _executor;
+    private final int _maxBatchSize;
+    private final int _maxBatchBytes;
+    private final ConcurrentHashMap<String, PeerQueue> _peers = new ConcurrentHashMap<String, PeerQueue>();
+
+    private final AtomicLong _sentPduCount = new AtomicLong();
+    private final AtomicLong _sentBatchCount = new AtomicLong();
+    private final AtomicLong _failedPduCount = new AtomicLong();
+
+    public ClusterPduTransport(Channel channel, Executor executor) {
+        this(channel, executor, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    public ClusterPduTransport(Channel channel, Executor executor, int maxBatchSize, int maxBatchBytes) {
+        _channel = channel;
+        _executor = executor;
+        _maxBatchSize = maxBatchSize;
+        _maxBatchBytes = maxBatchBytes;
+    }
+
+    public void send(ClusterServicePdu pdu) {
+        PeerQueue queue = _peers.get(pdu.getDestPeer());
+        if (queue == null) {
+            queue = new PeerQueue(pdu.getDestPeer());
+            PeerQueue existing = _peers.putIfAbsent(pdu.getDestPeer(), queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        queue._pdus.add(pdu);
+        queue.schedule();
+    }
+
+    /**
+     * Drops the PDUs still queued for a peer that left the cluster.
+     *
+     * @return the number of PDUs dropped
+     */
+    public int discard(String peer) {
+        PeerQueue queue = _peers.remove(peer);
+        if (queue == null) {
+            return 0;
+        }
+        List<ClusterServicePdu> dropped = new ArrayList<ClusterServicePdu>();
+        queue._pdus.drainTo(dropped);
+        _failedPduCount.addAndGet(dropped.size());
+        return dropped.size();
+    }
+
+    public int getQueueSize(String peer) {
+        PeerQueue queue = _peers.get(peer);
+        return queue != null ? queue._pdus.size() : 0;
+    }
+
+    public long getSentPduCount() {
+        return _sentPduCount.get();
+    }
+
+    public long getSentBatchCount() {
+        return _sentBatchCount.get();
+    }
+
+    public long getFailedPduCount() {
+        return _failedPduCount.get();
+    }
+
+    public String getStatsReport() {
+        long batches = _sentBatchCount.get();
+        long pdus = _sentPduCount.get();
+        return "PDUs sent: " + pdus + " in " + batches + " batches (" + (batches > 0 ? pdus / batches : 0) + " per batch), failed: " + _failedPduCount.get();
+    }
+
+    private class PeerQueue extends ManagedContextRunnable {
+        private final String _peer;
+        private final BlockingQueue<ClusterServicePdu> _pdus = new LinkedBlockingQueue<ClusterServicePdu>();
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+        PeerQueue(String peer) {
+            _peer = peer;
+        }
+
+        void schedule() {
+            if (_scheduled.compareAndSet(false, true)) {
+                try {
+                    _executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    _scheduled.set(false);
+                    s_logger.warn("Unable to send cluster PDUs to peer " + _peer + ": " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        protected void runInContext() {
+            try {
+                List<ClusterServicePdu> batch = new ArrayList<ClusterServicePdu>();
+                while (true) {
+                    batch.clear();
+                    int bytes = 0;
+                    ClusterServicePdu pdu;
+                    while (batch.size() < _maxBatchSize && (batch.isEmpty() || bytes < _maxBatchBytes) && (pdu = _pdus.poll()) != null) {
+                        batch.add(pdu);
+                        bytes += pdu.getJsonPackage() != null ? pdu.getJsonPackage().length() : 0;
+                    }
+                    if (batch.isEmpty()) {
+                        _scheduled.set(false);
+                        // a PDU queued after the poll above found no task to send it
+                        if (_pdus.isEmpty() || !_scheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    boolean delivered = false;
+                    try {
+                        delivered = _channel.deliver(_peer, batch);
+                    } catch (RuntimeException e) {
+                        s_logger.warn("Unexpected exception sending cluster PDUs to peer " + _peer, e);
+                    }
+                    if (delivered) {
+                        _sentPduCount.addAndGet(batch.size());
+                        _sentBatchCount.incrementAndGet();
+                    } else {
+                        _failedPduCount.addAndGet(batch.size());
+                    }
+                }
+            } catch (Throwable e) {
+                s_logger.error("Unexpected exception: ", e);
+                _scheduled.set(false);
+                if (!_pdus.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -18,9 +18,15 @@ package com.cloud.cluster;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface ClusterService extends Remote {
     String execute(ClusterServicePdu pdu) throws RemoteException;
 
+    /**
+     * Delivers several PDUs in one call, in order.
+     */
+    String execute(List<ClusterServicePdu> pdus) throws RemoteException;
+
     boolean ping(String callingPeer) throws RemoteException;
 }
@@ -16,10 +16,13 @@
 // under the License.
 package com.cloud.cluster;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class ClusterServicePdu {
     public final static int PDU_TYPE_MESSAGE = 0;
     public final static int PDU_TYPE_REQUEST = 1;
     public final static int PDU_TYPE_RESPONSE = 2;
+    public final static int PDU_TYPE_NOTIFICATION = 3;
 
     private long sequenceId;
     private long ackSequenceId;
@@ -33,7 +36,7 @@ public class ClusterServicePdu {
 
     private int pduType = PDU_TYPE_MESSAGE;
 
-    private static long s_nextPduSequenceId = 1;
+    private static final AtomicLong s_nextPduSequenceId = new AtomicLong(1);
 
     public ClusterServicePdu() {
         sequenceId = getNextPduSequenceId();
@@ -42,8 +45,8 @@ public class ClusterServicePdu {
         stopOnError = false;
     }
 
-    public synchronized long getNextPduSequenceId() {
-        return s_nextPduSequenceId++;
+    public long getNextPduSequenceId() {
+        return s_nextPduSequenceId.getAndIncrement();
     }
 
     public long getSequenceId() {
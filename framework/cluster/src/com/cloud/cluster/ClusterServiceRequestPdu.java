@@ -21,6 +21,7 @@ public class ClusterServiceRequestPdu extends ClusterServicePdu {
     private String responseResult;
     private long startTick;
     private long timeout;
+    private boolean completed;
 
     public ClusterServiceRequestPdu() {
         startTick = System.currentTimeMillis();
@@ -28,6 +29,31 @@ public class ClusterServiceRequestPdu extends ClusterServicePdu {
         setPduType(PDU_TYPE_REQUEST);
     }
 
+    /**
+     * Hands the response, or null if the request was cancelled, to the caller
+     * waiting in waitForResponse.
+     */
+    public synchronized void complete(String responseResult) {
+        this.responseResult = responseResult;
+        completed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return true if the request was completed within the timeout
+     */
+    public synchronized boolean waitForResponse(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!completed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
     public String getResponseResult() {
         return responseResult;
     }
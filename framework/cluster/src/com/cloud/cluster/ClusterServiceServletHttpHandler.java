@@ -19,6 +19,8 @@ package com.cloud.cluster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -127,6 +129,10 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                     responseContent = handleDeliverPduMethodCall(req);
                     break;
 
+                case RemoteMethodConstants.METHOD_DELIVER_PDUS:
+                    responseContent = handleDeliverPdusMethodCall(req);
+                    break;
+
                 case RemoteMethodConstants.METHOD_PING:
                     responseContent = handlePingMethodCall(req);
                     break;
@@ -155,15 +161,33 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
     }
 
     private String handleDeliverPduMethodCall(HttpRequest req) {
+        manager.OnReceiveClusterServicePdu(parsePdu(req, ""));
+        return "true";
+    }
+
+    private String handleDeliverPdusMethodCall(HttpRequest req) {
+        int count = Integer.parseInt((String)req.getParams().getParameter("pduCount"));
+
+        // parse them all first, so that a malformed batch delivers none of its PDUs
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>(count);
+        for (int i = 0; i < count; i++) {
+            pdus.add(parsePdu(req, "." + i));
+        }
+        for (ClusterServicePdu pdu : pdus) {
+            manager.OnReceiveClusterServicePdu(pdu);
+        }
+        return "true";
+    }
 
-        String pduSeq = (String)req.getParams().getParameter("pduSeq");
-        String pduAckSeq = (String)req.getParams().getParameter("pduAckSeq");
-        String sourcePeer = (String)req.getParams().getParameter("sourcePeer");
-        String destPeer = (String)req.getParams().getParameter("destPeer");
-        String agentId = (String)req.getParams().getParameter("agentId");
-        String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
-        String stopOnError = (String)req.getParams().getParameter("stopOnError");
-        String pduType = (String)req.getParams().getParameter("pduType");
+    private ClusterServicePdu parsePdu(HttpRequest req, String suffix) {
+        String pduSeq = (String)req.getParams().getParameter("pduSeq" + suffix);
+        String pduAckSeq = (String)req.getParams().getParameter("pduAckSeq" + suffix);
+        String sourcePeer = (String)req.getParams().getParameter("sourcePeer" + suffix);
+        String destPeer = (String)req.getParams().getParameter("destPeer" + suffix);
+        String agentId = (String)req.getParams().getParameter("agentId" + suffix);
+        String gsonPackage = (String)req.getParams().getParameter("gsonPackage" + suffix);
+        String stopOnError = (String)req.getParams().getParameter("stopOnError" + suffix);
+        String pduType = (String)req.getParams().getParameter("pduType" + suffix);
 
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(sourcePeer);
@@ -174,9 +198,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         pdu.setJsonPackage(gsonPackage);
         pdu.setStopOnError("1".equals(stopOnError));
         pdu.setPduType(Integer.parseInt(pduType));
-
-        manager.OnReceiveClusterServicePdu(pdu);
-        return "true";
+        return pdu;
     }
 
     private String handlePingMethodCall(HttpRequest req) {
@@ -18,6 +18,7 @@ package com.cloud.cluster;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -54,18 +55,37 @@ public class ClusterServiceServletImpl implements ClusterService {
         final PostMethod method = new PostMethod(_serviceUrl);
 
         method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDU));
-        method.addParameter("sourcePeer", pdu.getSourcePeer());
-        method.addParameter("destPeer", pdu.getDestPeer());
-        method.addParameter("pduSeq", Long.toString(pdu.getSequenceId()));
-        method.addParameter("pduAckSeq", Long.toString(pdu.getAckSequenceId()));
-        method.addParameter("agentId", Long.toString(pdu.getAgentId()));
-        method.addParameter("gsonPackage", pdu.getJsonPackage());
-        method.addParameter("stopOnError", pdu.isStopOnError() ? "1" : "0");
-        method.addParameter("pduType", Integer.toString(pdu.getPduType()));
+        addPduParameters(method, pdu, "");
 
         return executePostMethod(client, method);
     }
 
+    @Override
+    public String execute(final List<ClusterServicePdu> pdus) throws RemoteException {
+
+        final HttpClient client = getHttpClient();
+        final PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDUS));
+        method.addParameter("pduCount", Integer.toString(pdus.size()));
+        for (int i = 0; i < pdus.size(); i++) {
+            addPduParameters(method, pdus.get(i), "." + i);
+        }
+
+        return executePostMethod(client, method);
+    }
+
+    private void addPduParameters(final PostMethod method, final ClusterServicePdu pdu, final String suffix) {
+        method.addParameter("sourcePeer" + suffix, pdu.getSourcePeer());
+        method.addParameter("destPeer" + suffix, pdu.getDestPeer());
+        method.addParameter("pduSeq" + suffix, Long.toString(pdu.getSequenceId()));
+        method.addParameter("pduAckSeq" + suffix, Long.toString(pdu.getAckSequenceId()));
+        method.addParameter("agentId" + suffix, Long.toString(pdu.getAgentId()));
+        method.addParameter("gsonPackage" + suffix, pdu.getJsonPackage());
+        method.addParameter("stopOnError" + suffix, pdu.isStopOnError() ? "1" : "0");
+        method.addParameter("pduType" + suffix, Integer.toString(pdu.getPduType()));
+    }
+
     @Override
     public boolean ping(final String callingPeer) throws RemoteException {
         if (s_logger.isDebugEnabled()) {
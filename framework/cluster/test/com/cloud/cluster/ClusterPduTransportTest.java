@@ -0,0 +1,254 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterPduTransportTest {
+    private static final Logger s_logger = Logger.getLogger(ClusterPduTransportTest.class);
+
+    private static final int REQUESTS = 1000;
+    private static final int CALLERS = 16;
+    private static final long ROUND_TRIP = 1;
+
+    private ExecutorService _executor;
+
+    @Before
+    public void setUp() {
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    protected ClusterServicePdu createPdu(String destPeer, String json) {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer(destPeer);
+        pdu.setJsonPackage(json);
+        return pdu;
+    }
+
+    // records what it is given, taking a round trip per call
+    private static class RecordingChannel implements ClusterPduTransport.Channel {
+        private final List<Long> _sequenceIds = Collections.synchronizedList(new ArrayList<Long>());
+        private final CountDownLatch _delivered;
+
+        RecordingChannel(int expected) {
+            _delivered = new CountDownLatch(expected);
+        }
+
+        @Override
+        public boolean deliver(String peer, List<ClusterServicePdu> pdus) {
+            try {
+                Thread.sleep(ROUND_TRIP);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            for (ClusterServicePdu pdu : pdus) {
+                _sequenceIds.add(pdu.getSequenceId());
+                _delivered.countDown();
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void testPdusOfAPeerStayInOrder() throws Exception {
+        RecordingChannel channel = new RecordingChannel(REQUESTS);
+        ClusterPduTransport transport = new ClusterPduTransport(channel, _executor);
+        List<Long> sent = new ArrayList<Long>();
+        for (int i = 0; i < REQUESTS; i++) {
+            ClusterServicePdu pdu = createPdu("2", "{}");
+            sent.add(pdu.getSequenceId());
+            transport.send(pdu);
+        }
+
+        Assert.assertTrue(channel._delivered.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(sent, channel._sequenceIds);
+        // counted once the channel returns, just after the latch
+        for (int i = 0; i < 100 && transport.getSentPduCount() < REQUESTS; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(REQUESTS, transport.getSentPduCount());
+        Assert.assertTrue(transport.getSentBatchCount() < REQUESTS);
+    }
+
+    @Test
+    public void testSlowPeerHoldsUpOnlyItsOwnPdus() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowInFlight = new CountDownLatch(1);
+        final CountDownLatch fastDelivered = new CountDownLatch(10);
+        ClusterPduTransport transport = new ClusterPduTransport(new ClusterPduTransport.Channel() {
+            @Override
+            public boolean deliver(String peer, List<ClusterServicePdu> pdus) {
+                if (peer.equals("slow")) {
+                    slowInFlight.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                } else {
+                    for (int i = 0; i < pdus.size(); i++) {
+                        fastDelivered.countDown();
+                    }
+                }
+                return true;
+            }
+        }, _executor);
+
+        transport.send(createPdu("slow", "{}"));
+        Assert.assertTrue(slowInFlight.await(5, TimeUnit.SECONDS));
+        transport.send(createPdu("slow", "{}"));
+        for (int i = 0; i < 10; i++) {
+            transport.send(createPdu("fast", "{}"));
+        }
+        Assert.assertTrue(fastDelivered.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, transport.getQueueSize("slow"));
+
+        Assert.assertEquals(1, transport.discard("slow"));
+        release.countDown();
+        Assert.assertEquals(1, transport.getFailedPduCount());
+    }
+
+    @Test
+    public void testBatchesAreBounded() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch delivered = new CountDownLatch(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        ClusterPduTransport transport = new ClusterPduTransport(new ClusterPduTransport.Channel() {
+            @Override
+            public boolean deliver(String peer, List<ClusterServicePdu> pdus) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                batchSizes.add(pdus.size());
+                for (int i = 0; i < pdus.size(); i++) {
+                    delivered.countDown();
+                }
+                return true;
+            }
+        }, _executor, 8, 1024);
+
+        for (int i = 0; i < 100; i++) {
+            transport.send(createPdu("2", i % 10 == 0 ? new String(new char[2000]) : "{}"));
+        }
+        release.countDown();
+        Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        for (int size : batchSizes) {
+            Assert.assertTrue(size <= 8);
+        }
+    }
+
+    /**
+     * Two management servers forwarding requests to each other, the answer
+     * coming back as a response PDU matched by sequence id.  Sending every PDU
+     * as a call of its own makes each one wait for a round trip; batching lets
+     * the PDUs queued meanwhile share the next one.
+     */
+    @Test
+    public void testForwardedRequestThroughput() throws Exception {
+        long perPduNanos = forwardRequests(1);
+        long batchedNanos = forwardRequests(ClusterPduTransport.DEFAULT_MAX_BATCH_SIZE);
+        s_logger.info(REQUESTS + " forwarded requests from " + CALLERS + " callers with a " + ROUND_TRIP + " ms round trip: one PDU per call " + perPduNanos / 1000000 +
+                " ms, batched " + batchedNanos / 1000000 + " ms");
+        Assert.assertTrue(batchedNanos < perPduNanos);
+    }
+
+    private long forwardRequests(int maxBatchSize) throws Exception {
+        final Map<Long, ClusterServiceRequestPdu> waiting = new ConcurrentHashMap<Long, ClusterServiceRequestPdu>();
+        final ClusterPduTransport[] servers = new ClusterPduTransport[2];
+        ClusterPduTransport.Channel network = new ClusterPduTransport.Channel() {
+            @Override
+            public boolean deliver(String peer, List<ClusterServicePdu> pdus) {
+                try {
+                    Thread.sleep(ROUND_TRIP);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                for (ClusterServicePdu pdu : pdus) {
+                    if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
+                        ClusterServiceRequestPdu request = waiting.remove(pdu.getAckSequenceId());
+                        request.complete(pdu.getJsonPackage());
+                    } else {
+                        ClusterServicePdu response = new ClusterServicePdu();
+                        response.setPduType(ClusterServicePdu.PDU_TYPE_RESPONSE);
+                        response.setSourcePeer(pdu.getDestPeer());
+                        response.setDestPeer(pdu.getSourcePeer());
+                        response.setAckSequenceId(pdu.getSequenceId());
+                        response.setJsonPackage("answer to " + pdu.getJsonPackage());
+                        servers[1].send(response);
+                    }
+                }
+                return true;
+            }
+        };
+        servers[0] = new ClusterPduTransport(network, _executor, maxBatchSize, ClusterPduTransport.DEFAULT_MAX_BATCH_BYTES);
+        servers[1] = new ClusterPduTransport(network, _executor, maxBatchSize, ClusterPduTransport.DEFAULT_MAX_BATCH_BYTES);
+
+        final CountDownLatch done = new CountDownLatch(CALLERS);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        long startTick = System.nanoTime();
+        for (int c = 0; c < CALLERS; c++) {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < REQUESTS / CALLERS; i++) {
+                            ClusterServiceRequestPdu request = new ClusterServiceRequestPdu();
+                            request.setSourcePeer("1");
+                            request.setDestPeer("2");
+                            request.setJsonPackage("command " + i);
+                            waiting.put(request.getSequenceId(), request);
+                            servers[0].send(request);
+                            if (!request.waitForResponse(10000) || !("answer to command " + i).equals(request.getResponseResult())) {
+                                failures.add(request.getJsonPackage());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        failures.add(e.toString());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        long nanos = System.nanoTime() - startTick;
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+        return nanos;
+    }
+}
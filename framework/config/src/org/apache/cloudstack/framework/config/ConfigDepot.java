@@ -31,4 +31,29 @@ public interface ConfigDepot {
     <T> void set(ConfigKey<T> key, T value);
 
     <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value);
+
+    /**
+     * @return the config version, which changes whenever a config value does
+     */
+    long getConfigVersion();
+
+    /**
+     * Drops the cached config values.  To be called after a config value has
+     * been changed; the listeners are told so they can pass it on to the
+     * other management servers.
+     * @return the new config version
+     */
+    long bumpConfigVersion();
+
+    /**
+     * Drops the cached config values after another management server
+     * reported a change, without telling the listeners.
+     */
+    void invalidateConfigCache();
+
+    void registerConfigChangeListener(ConfigChangeListener listener);
+
+    public interface ConfigChangeListener {
+        void onConfigChanged(long version);
+    }
 }
@@ -19,6 +19,7 @@ package org.apache.cloudstack.framework.config;
 import java.sql.Date;
 
 import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl;
+import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl.CachedValue;
 import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
 
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -137,25 +138,44 @@ public class ConfigKey<T> {
         throw new CloudRuntimeException("Comparing ConfigKey to " + obj.toString());
     }
 
+    @SuppressWarnings("unchecked")
     public T value() {
-        if (_value == null || isDynamic()) {
-            ConfigurationVO vo = s_depot != null ? s_depot.global().findById(key()) : null;
-            _value = valueOf((vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue());
+        if (_value != null && !isDynamic()) {
+            return _value;
+        }
+        if (s_depot == null) {
+            _value = valueOf(defaultValue());
+            return _value;
         }
 
-        return _value;
+        long version = s_depot.getConfigVersion();
+        CachedValue cached = s_depot.getCachedValue(this, null);
+        if (cached != null && cached.isCurrent(version)) {
+            return (T)cached.getValue();
+        }
+        ConfigurationVO vo = s_depot.global().findById(key());
+        T value = valueOf((vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue());
+        s_depot.cacheValue(this, null, version, value);
+        _value = value;
+        return value;
     }
 
+    @SuppressWarnings("unchecked")
     public T valueIn(Long id) {
-        if (id == null) {
+        if (id == null || s_depot == null) {
             return value();
         }
 
-        String value = s_depot != null ? s_depot.scoped(this).getConfigValue(id, this) : null;
-        if (value == null) {
+        long version = s_depot.getConfigVersion();
+        CachedValue cached = s_depot.getCachedValue(this, id);
+        if (cached == null || !cached.isCurrent(version)) {
+            String value = s_depot.scoped(this).getConfigValue(id, this);
+            cached = s_depot.cacheValue(this, id, version, value != null ? valueOf(value) : null);
+        }
+        if (cached.getValue() == null) {
             return value();
         } else {
-            return valueOf(value);
+            return (T)cached.getValue();
         }
     }
 
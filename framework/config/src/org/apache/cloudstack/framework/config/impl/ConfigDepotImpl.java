@@ -23,6 +23,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -48,6 +51,12 @@ import com.cloud.utils.exception.CloudRuntimeException;
  *     variables into the config table.
  *   - Hide the data source where configs are stored and retrieved.
  *
+ * Config values are cached, typed, per key and per scope id.  A cached value
+ * is used as long as the config version it was read at is still current and
+ * it is not older than CACHE_MAX_AGE; changing a config bumps the version,
+ * which drops every cached value.  The age limit picks up changes made
+ * directly in the database.
+ *
  * When dealing with this class, we must be very careful on cluster situations.
  *
  * TODO:
@@ -78,6 +87,36 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
 
     HashMap<ConfigKey.Scope, Set<ConfigKey<?>>> _scopeLevelConfigsMap = new HashMap<ConfigKey.Scope, Set<ConfigKey<?>>>();
 
+    static final long CACHE_MAX_AGE = 60000L;
+
+    private final AtomicLong _configVersion = new AtomicLong();
+    private final ConcurrentHashMap<String, CachedValue> _globalValues = new ConcurrentHashMap<String, CachedValue>(1007);
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Long, CachedValue>> _scopedValues = new ConcurrentHashMap<String, ConcurrentHashMap<Long, CachedValue>>();
+    private final List<ConfigChangeListener> _changeListeners = new CopyOnWriteArrayList<ConfigChangeListener>();
+
+    public static final class CachedValue {
+        private final long _version;
+        private final long _expires;
+        private final Object _value;
+
+        CachedValue(long version, long expires, Object value) {
+            _version = version;
+            _expires = expires;
+            _value = value;
+        }
+
+        /**
+         * @return the typed value, or null if the scope has no value of its own
+         */
+        public Object getValue() {
+            return _value;
+        }
+
+        public boolean isCurrent(long version) {
+            return _version == version && System.currentTimeMillis() < _expires;
+        }
+    }
+
     public ConfigDepotImpl() {
         ConfigKey.init(this);
         _scopeLevelConfigsMap.put(ConfigKey.Scope.Zone, new HashSet<ConfigKey<?>>());
@@ -200,11 +239,77 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     @Override
     public <T> void set(ConfigKey<T> key, T value) {
         _configDao.update(key.key(), value.toString());
+        bumpConfigVersion();
     }
 
     @Override
     public <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value) {
         createOrupdateConfigObject(new Date(), componentName, key, value);
+        bumpConfigVersion();
+    }
+
+    @Override
+    public long getConfigVersion() {
+        return _configVersion.get();
+    }
+
+    @Override
+    public long bumpConfigVersion() {
+        long version = _configVersion.incrementAndGet();
+        _globalValues.clear();
+        _scopedValues.clear();
+        for (ConfigChangeListener listener : _changeListeners) {
+            try {
+                listener.onConfigChanged(version);
+            } catch (RuntimeException e) {
+                s_logger.warn("Config change listener failed", e);
+            }
+        }
+        return version;
+    }
+
+    @Override
+    public void invalidateConfigCache() {
+        _configVersion.incrementAndGet();
+        _globalValues.clear();
+        _scopedValues.clear();
+    }
+
+    @Override
+    public void registerConfigChangeListener(ConfigChangeListener listener) {
+        _changeListeners.add(listener);
+    }
+
+    /**
+     * @param scopeId id of the zone, cluster, account or storage pool, null for the global value
+     * @return the cached value, which may be out of date, or null if there is none
+     */
+    public CachedValue getCachedValue(ConfigKey<?> key, Long scopeId) {
+        if (scopeId == null) {
+            return _globalValues.get(key.key());
+        }
+        ConcurrentHashMap<Long, CachedValue> values = _scopedValues.get(key.key());
+        return values != null ? values.get(scopeId) : null;
+    }
 
+    /**
+     * Caches the value of a key, as read at the given config version.
+     */
+    public CachedValue cacheValue(ConfigKey<?> key, Long scopeId, long version, Object value) {
+        CachedValue cached = new CachedValue(version, System.currentTimeMillis() + CACHE_MAX_AGE, value);
+        if (scopeId == null) {
+            _globalValues.put(key.key(), cached);
+        } else {
+            ConcurrentHashMap<Long, CachedValue> values = _scopedValues.get(key.key());
+            if (values == null) {
+                values = new ConcurrentHashMap<Long, CachedValue>();
+                ConcurrentHashMap<Long, CachedValue> existing = _scopedValues.putIfAbsent(key.key(), values);
+                if (existing != null) {
+                    values = existing;
+                }
+            }
+            values.put(scopeId, cached);
+        }
+        return cached;
     }
 }
@@ -0,0 +1,160 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.config.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import org.apache.cloudstack.framework.config.ConfigDepot;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.ConfigKey.Scope;
+import org.apache.cloudstack.framework.config.ScopedConfigStorage;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+public class ConfigDepotImplTest {
+    private static final Logger s_logger = Logger.getLogger(ConfigDepotImplTest.class);
+
+    private final static ConfigKey<Integer> DynamicIntCK = new ConfigKey<Integer>(Integer.class, "dynIntKey", "Advance", "10", "Test Key", true);
+    private final static ConfigKey<Integer> ZoneIntCK = new ConfigKey<Integer>(Integer.class, "zoneIntKey", "Advance", "10", "Test Key", true, Scope.Zone, null);
+
+    private static final int LOOKUPS = 100000;
+
+    @Mock
+    ConfigurationDao _configDao;
+
+    @Mock
+    ScopedConfigStorage _zoneStorage;
+
+    ConfigDepotImpl _depot;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        _depot = new ConfigDepotImpl();
+        _depot._configDao = _configDao;
+        _depot._scopedStorages = new ArrayList<ScopedConfigStorage>();
+        _depot._scopedStorages.add(_zoneStorage);
+        when(_zoneStorage.getScope()).thenReturn(Scope.Zone);
+    }
+
+    protected ConfigurationVO createConfig(ConfigKey<?> key, String value) {
+        ConfigurationVO vo = new ConfigurationVO("UnitTestComponent", key);
+        vo.setValue(value);
+        return vo;
+    }
+
+    @Test
+    public void testDynamicValueIsCachedUntilChanged() {
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(createConfig(DynamicIntCK, "100"));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(100, DynamicIntCK.value().intValue());
+        }
+        verify(_configDao, times(1)).findById(DynamicIntCK.key());
+
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(createConfig(DynamicIntCK, "200"));
+        Assert.assertEquals(100, DynamicIntCK.value().intValue());
+        _depot.bumpConfigVersion();
+        Assert.assertEquals(200, DynamicIntCK.value().intValue());
+        verify(_configDao, times(2)).findById(DynamicIntCK.key());
+    }
+
+    @Test
+    public void testScopedValueIsCachedPerId() {
+        when(_configDao.findById(ZoneIntCK.key())).thenReturn(createConfig(ZoneIntCK, "20"));
+        when(_zoneStorage.getConfigValue(1L, ZoneIntCK)).thenReturn("30");
+        when(_zoneStorage.getConfigValue(2L, ZoneIntCK)).thenReturn(null);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(30, ZoneIntCK.valueIn(1L).intValue());
+            // no value of its own, falls back to the global one
+            Assert.assertEquals(20, ZoneIntCK.valueIn(2L).intValue());
+        }
+        verify(_zoneStorage, times(1)).getConfigValue(1L, ZoneIntCK);
+        verify(_zoneStorage, times(1)).getConfigValue(2L, ZoneIntCK);
+
+        when(_zoneStorage.getConfigValue(2L, ZoneIntCK)).thenReturn("40");
+        _depot.invalidateConfigCache();
+        Assert.assertEquals(40, ZoneIntCK.valueIn(2L).intValue());
+        verify(_zoneStorage, times(2)).getConfigValue(anyLong(), any(ConfigKey.class));
+    }
+
+    @Test
+    public void testOnlyLocalChangesAreReported() {
+        final AtomicLong reported = new AtomicLong();
+        _depot.registerConfigChangeListener(new ConfigDepot.ConfigChangeListener() {
+            @Override
+            public void onConfigChanged(long version) {
+                reported.set(version);
+            }
+        });
+
+        long version = _depot.bumpConfigVersion();
+        Assert.assertEquals(version, reported.get());
+        Assert.assertEquals(version, _depot.getConfigVersion());
+
+        _depot.invalidateConfigCache();
+        Assert.assertEquals(version, reported.get());
+        Assert.assertEquals(version + 1, _depot.getConfigVersion());
+    }
+
+    /**
+     * Every lookup of a dynamic key used to read the configuration row and
+     * parse it; now it is a map lookup and a version check.  The rows are read
+     * from a plain map here, so neither side pays for the mock.
+     */
+    @Test
+    public void testCompareLookupCost() {
+        ConfigurationVO vo = createConfig(DynamicIntCK, "100");
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(vo);
+        Map<String, ConfigurationVO> rows = new HashMap<String, ConfigurationVO>();
+        rows.put(DynamicIntCK.key(), vo);
+
+        long total = 0;
+        long uncachedStart = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            ConfigurationVO row = rows.get(DynamicIntCK.key());
+            total += Integer.parseInt(row.getValue());
+        }
+        long uncachedNanos = System.nanoTime() - uncachedStart;
+
+        long cachedStart = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            total += DynamicIntCK.value();
+        }
+        long cachedNanos = System.nanoTime() - cachedStart;
+
+        Assert.assertEquals(2L * LOOKUPS * 100, total);
+        verify(_configDao, times(1)).findById(DynamicIntCK.key());
+        s_logger.info(LOOKUPS + " lookups of a dynamic key: reading the row " + uncachedNanos / LOOKUPS + " ns each (without the database round trip), cached "
+                + cachedNanos / LOOKUPS + " ns each");
+    }
+}
@@ -0,0 +1,340 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.StringUtils;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * EntityCache is the by-id cache of a GenericDaoBase.  Caches are looked up
+ * by the tables they hold rows of, so a write through any DAO mapping one
+ * of those tables evicts the row from every cache holding it.
+ *
+ * A near cache additionally publishes its evictions to the other management
+ * servers through the InvalidationPublisher and only accepts a loaded entity
+ * if no eviction happened while it was being read.  Entries carry the row's
+ * update_count as their version so an eviction for an older version does
+ * not throw away a row that has already been reloaded.  Writes that bypass
+ * GenericDaoBase (hand written SQL) are not seen; the time to live bounds
+ * how long such rows can stay stale.
+ */
+public class EntityCache extends StandardMBean implements EntityCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(EntityCache.class);
+
+    public static final String ALL = "*";
+    public static final long ANY_VERSION = -1;
+
+    private static final ConcurrentHashMap<String, List<EntityCache>> s_caches = new ConcurrentHashMap<String, List<EntityCache>>();
+    private static volatile InvalidationPublisher s_publisher;
+
+    /**
+     * Carries evictions of near cached rows to the other management servers.
+     */
+    public interface InvalidationPublisher {
+        void publish(Invalidation invalidation);
+    }
+
+    public static class Invalidation {
+        private final String _table;
+        private final String _id;
+        private final long _version;
+
+        public Invalidation(final String table, final String id, final long version) {
+            _table = table;
+            _id = id;
+            _version = version;
+        }
+
+        public String getTable() {
+            return _table;
+        }
+
+        public String getId() {
+            return _id;
+        }
+
+        public long getVersion() {
+            return _version;
+        }
+
+        /**
+         * @return the invalidation in the form written by toString(), or null if it is malformed.
+         */
+        public static Invalidation parse(final String str) {
+            final String[] parts = str.trim().split(" ");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Invalidation(parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return _table + " " + _id + " " + _version;
+        }
+    }
+
+    private final String _name;
+    private final Cache _cache;
+    private final Class<?> _idType;
+    private final Collection<String> _tables;
+    private final boolean _near;
+
+    private final AtomicLong _generation = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _remoteInvalidations = new AtomicLong();
+    private final AtomicLong _rejectedPuts = new AtomicLong();
+
+    public EntityCache(final String name, final Cache cache, final Class<?> idType, final Collection<String> tables, final boolean near) {
+        super(EntityCacheMBean.class, false);
+        _name = name;
+        _cache = cache;
+        _idType = idType;
+        _tables = new ArrayList<String>(tables);
+        _near = near;
+    }
+
+    /**
+     * Makes the cache reachable by table for invalidations and over JMX.
+     */
+    public void register() {
+        for (final String table : _tables) {
+            List<EntityCache> caches = s_caches.get(table);
+            if (caches == null) {
+                caches = new CopyOnWriteArrayList<EntityCache>();
+                final List<EntityCache> existing = s_caches.putIfAbsent(table, caches);
+                if (existing != null) {
+                    caches = existing;
+                }
+            }
+            caches.add(this);
+        }
+        try {
+            JmxUtil.registerMBean("EntityCache", _name, this);
+        } catch (final Exception e) {
+            s_logger.warn("Unable to register entity cache " + _name + " for JMX", e);
+        }
+    }
+
+    public static void setInvalidationPublisher(final InvalidationPublisher publisher) {
+        s_publisher = publisher;
+    }
+
+    public Object get(final Object id) {
+        final Element element = _cache.get(id);
+        if (element == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return element.getObjectValue();
+    }
+
+    /**
+     * @return a token to hand to put() for an entity read after this call.
+     */
+    public long getGeneration() {
+        return _generation.get();
+    }
+
+    public void put(final Object id, final Object entity, final long version) {
+        final Element existing = _cache.getQuiet(id);
+        if (existing != null && existing.getVersion() > version) {
+            return;
+        }
+        _cache.put(new Element(id, entity, version));
+    }
+
+    /**
+     * Caches an entity unless an eviction happened since generation was
+     * taken, in which case the entity may already be stale.
+     */
+    public boolean put(final Object id, final Object entity, final long version, final long generation) {
+        if (_generation.get() != generation) {
+            _rejectedPuts.incrementAndGet();
+            return false;
+        }
+        put(id, entity, version);
+        if (_generation.get() != generation) {
+            // An eviction raced with the put, it may have missed the entry.
+            _cache.remove(id);
+            _rejectedPuts.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the row unless the cache already holds a newer version of it.
+     */
+    public void evict(final Object id, final long version) {
+        _generation.incrementAndGet();
+        _invalidations.incrementAndGet();
+        if (version != ANY_VERSION) {
+            final Element existing = _cache.getQuiet(id);
+            if (existing != null && existing.getVersion() > version) {
+                return;
+            }
+        }
+        _cache.remove(id);
+    }
+
+    @Override
+    public void clear() {
+        _generation.incrementAndGet();
+        _invalidations.incrementAndGet();
+        _cache.removeAll();
+    }
+
+    /**
+     * Evicts a row, or every row if id is null, of the given tables from all
+     * caches holding them and tells the other management servers about it
+     * if any of those caches is a near cache.
+     */
+    public static void invalidate(final Collection<String> tables, final Object id, final long version) {
+        for (final String table : tables) {
+            final List<EntityCache> caches = s_caches.get(table);
+            if (caches == null) {
+                continue;
+            }
+            boolean near = false;
+            for (final EntityCache cache : caches) {
+                if (id == null) {
+                    cache.clear();
+                } else {
+                    cache.evict(id, version);
+                }
+                near |= cache.isNear();
+            }
+            final InvalidationPublisher publisher = s_publisher;
+            if (near && publisher != null) {
+                publisher.publish(new Invalidation(table, id == null ? ALL : id.toString(), version));
+            }
+        }
+    }
+
+    /**
+     * Applies an invalidation published by another management server.
+     */
+    public static void onRemoteInvalidation(final Invalidation invalidation) {
+        final List<EntityCache> caches = s_caches.get(invalidation.getTable());
+        if (caches == null) {
+            return;
+        }
+        for (final EntityCache cache : caches) {
+            cache._remoteInvalidations.incrementAndGet();
+            final Object id = ALL.equals(invalidation.getId()) ? null : cache.toId(invalidation.getId());
+            if (id == null) {
+                cache.clear();
+            } else {
+                cache.evict(id, invalidation.getVersion());
+            }
+        }
+    }
+
+    protected Object toId(final String id) {
+        try {
+            if (_idType == Long.class || _idType == long.class) {
+                return Long.valueOf(id);
+            } else if (_idType == Integer.class || _idType == int.class) {
+                return Integer.valueOf(id);
+            } else if (_idType == String.class) {
+                return id;
+            }
+        } catch (final NumberFormatException e) {
+            s_logger.warn("Unable to parse id " + id + " for " + _name);
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public String getTables() {
+        return StringUtils.join(_tables, ",");
+    }
+
+    @Override
+    public boolean isNear() {
+        return _near;
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        final long hits = _hits.get();
+        final long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidations() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public long getRejectedPuts() {
+        return _rejectedPuts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache[" + _name + ", near=" + _near + ", size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -14,19 +14,29 @@
 // KIND, either express or implied.  See the License for the
 // specific language governing permissions and limitations
 // under the License.
-package org.apache.cloudstack.ratelimit;
+package com.cloud.utils.db;
 
-/**
- * Interface for each entry in LimitStore.
- *
- */
-public interface StoreEntry {
+public interface EntityCacheMBean {
 
-    int getCounter();
+    String getName();
 
-    int incrementAndGet();
+    String getTables();
 
-    boolean isExpired();
+    boolean isNear();
 
-    long getExpireDuration(); /* seconds to reset counter */
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getInvalidations();
+
+    long getRemoteInvalidations();
+
+    long getRejectedPuts();
+
+    void clear();
 }
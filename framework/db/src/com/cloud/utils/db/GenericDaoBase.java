@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -63,7 +64,6 @@ import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.NoOp;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -788,7 +788,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
         if (_cache != null) {
-            _cache.remove(id);
+            _cache.evict(id, EntityCache.ANY_VERSION);
         }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
@@ -842,9 +842,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 prepareAttribute(i++, pstmt, value.first(), value.second());
             }
 
+            final long version = getUpdatedVersion(changes);
             int result = pstmt.executeUpdate();
             txn.commit();
             ub.clear();
+            if (result > 0) {
+                invalidateCaches(sc, version);
+            }
             return result;
         } catch (final SQLException e) {
             if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
@@ -942,12 +946,20 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     @DB()
     @SuppressWarnings("unchecked")
     public T findById(final ID id) {
-        if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
-        } else {
+        if (_cache == null) {
             return lockRow(id, null);
         }
+        T entity = (T)_cache.get(id);
+        if (entity != null) {
+            return _cache.isNear() ? copyOf(entity) : entity;
+        }
+        final long generation = _cache.getGeneration();
+        entity = lockRow(id, null);
+        // Rows read inside a transaction may not be committed yet.
+        if (entity != null && _cache.isNear() && !TransactionLegacy.currentTxn().dbTxnStarted()) {
+            _cache.put(id, copyOf(entity), getVersion(entity), generation);
+        }
+        return entity;
     }
 
     @Override
@@ -980,7 +992,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
 
         if (_cache != null) {
-            _cache.remove(id);
+            _cache.evict(id, EntityCache.ANY_VERSION);
         }
         return lockRow(id, null);
     }
@@ -1172,9 +1184,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateAfterCommit(id, EntityCache.ANY_VERSION);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1206,7 +1216,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCaches(sc, EntityCache.ANY_VERSION);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1603,9 +1617,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !_cache.isNear()) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity, getVersion(entity));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1625,9 +1639,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !_cache.isNear()) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity, getVersion(entity));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1732,7 +1746,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             txn.start();
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() > 0) {
+                invalidateAfterCommit(null, EntityCache.ANY_VERSION);
+            }
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1773,9 +1789,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateAfterCommit(id, EntityCache.ANY_VERSION);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1795,8 +1809,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected EntityCache _cache;
+    protected Attribute _versionAttr;
+    protected List<Field> _copyFields;
 
+    /**
+     * Sets up the by-id cache if cache.size is given.  With cache.near set
+     * the cache stays coherent across management servers; see EntityCache.
+     */
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1806,14 +1826,103 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             final int maxElements = NumbersUtil.parseInt(value, 0);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
+            final boolean near = Boolean.parseBoolean((String)params.get("cache.near"));
+            final Cache cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
+            cm.addCache(cache);
+            _versionAttr = _allColumns.get(new Pair<String, String>(_table, "update_count"));
+            _copyFields = new ArrayList<Field>();
+            for (Class<?> clazz = _entityBeanType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        _copyFields.add(field);
+                    }
+                }
+            }
+            _cache = new EntityCache(getName(), cache, _idField.getType(), _idAttributes.keySet(), near);
+            _cache.register();
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
         }
     }
 
+    /**
+     * Near caches hand out copies so that callers changing the entity they
+     * got, and its UpdateBuilder, don't share it with other threads.
+     */
+    @SuppressWarnings("unchecked")
+    protected T copyOf(final T entity) {
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (final Field field : _copyFields) {
+                field.set(copy, field.get(entity));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + _entityBeanType.getSimpleName(), e);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the update_count of the entity, or 0 if its table has none.
+     */
+    protected long getVersion(final T entity) {
+        if (_versionAttr == null) {
+            return 0;
+        }
+        try {
+            final Object version = _versionAttr.field.get(entity);
+            return version instanceof Number ? ((Number)version).longValue() : 0;
+        } catch (final IllegalAccessException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the update_count an update sets, or ANY_VERSION if it doesn't set it.
+     */
+    protected long getUpdatedVersion(final Collection<Ternary<Attribute, Boolean, Object>> changes) {
+        if (_versionAttr != null) {
+            for (final Ternary<Attribute, Boolean, Object> change : changes) {
+                if (_versionAttr.equals(change.first()) && change.second() == null && change.third() instanceof Number) {
+                    return ((Number)change.third()).longValue();
+                }
+            }
+        }
+        return EntityCache.ANY_VERSION;
+    }
+
+    /**
+     * Invalidates a row, or every row if id is null, once the write is committed
+     * by the outermost transaction.  Invalidating before that would let a
+     * concurrent read, here or on a peer, cache the row as it was before the write.
+     */
+    protected void invalidateAfterCommit(final Object id, final long version) {
+        TransactionLegacy.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                EntityCache.invalidate(_idAttributes.keySet(), id, version);
+            }
+        });
+    }
+
+    /**
+     * Invalidates the rows a write with the given criteria may have touched:
+     * the ids it is restricted to, or every cached row of the tables if it
+     * isn't restricted by id.
+     */
+    protected void invalidateCaches(final SearchCriteria<?> sc, final long version) {
+        final List<Object> ids = _idField == null ? null : sc.getRestrictedValues(_idAttributes.get(_table)[0]);
+        if (ids == null) {
+            invalidateAfterCommit(null, version);
+            return;
+        }
+        for (final Object id : ids) {
+            invalidateAfterCommit(id, version);
+        }
+    }
+
     @Override
     @DB()
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
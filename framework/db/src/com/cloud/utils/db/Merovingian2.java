@@ -26,32 +26,59 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Histogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
+/**
+ * Merovingian2 is the lock master.  Locks are granted out of an in-memory
+ * lock table: reentrant acquires and contention between threads of this
+ * management server never touch the database.  The op_lock table holds one
+ * lease row per key this server owns, so that other management servers are
+ * excluded and a crashed server's locks can be cleaned up by its peers.  The
+ * lease row outlives the final release for a short while and is handed over
+ * to the next local owner, so a key that is taken again and again does not
+ * insert and delete its row every time.  Idle lease rows are released after
+ * LEASE_IDLE_MS, and rows without a local owner are reconciled away
+ * periodically.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
     private static final String ACQUIRE_SQL =
             "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
     private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
-    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
-    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
+    private static final String RELEASE_LEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
+    private static final String TAKE_OVER_LEASE_SQL =
+            "UPDATE op_lock SET op_lock.ip=?, op_lock.thread=?, op_lock.acquired_on=? WHERE op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final int RECONCILE_INTERVAL_SECONDS = 60;
+    // how long other management servers may be kept out by a lease nobody here holds
+    private static final long LEASE_IDLE_MS = 1000;
+
     TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -60,6 +87,14 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final ConcurrentHashMap<String, LocalLock> _locks = new ConcurrentHashMap<String, LocalLock>();
+    private ScheduledExecutorService _reconciler;
+
+    private final Histogram _acquireLatency = new Histogram(1, 5, 10, 50, 100, 500, 1000, 5000, 30000);
+    private final Histogram _contention = new Histogram(0, 1, 2, 4, 8, 16);
+    private final AtomicLong _remoteContended = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -87,6 +122,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         assert s_instance == null : "No lock can serve two masters.  Either he will hate the one and love the other, or he will be devoted to the one and despise the other.";
         s_instance = new Merovingian2(msId);
         s_instance.cleanupThisServer();
+        s_instance.startReconciler();
         try {
             JmxUtil.registerMBean("Locks", "Locks", s_instance);
         } catch (Exception e) {
@@ -95,6 +131,30 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    protected void startReconciler() {
+        _reconciler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("LockMaster-Reconciler"));
+        _reconciler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    reconcileLeases();
+                } catch (Throwable th) {
+                    s_logger.warn("Unable to reconcile lock leases", th);
+                }
+            }
+        }, RECONCILE_INTERVAL_SECONDS, RECONCILE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        _reconciler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    releaseIdleLeases(LEASE_IDLE_MS);
+                } catch (Throwable th) {
+                    s_logger.warn("Unable to release idle lock leases", th);
+                }
+            }
+        }, LEASE_IDLE_MS, LEASE_IDLE_MS, TimeUnit.MILLISECONDS);
+    }
+
     public static Merovingian2 getLockMaster() {
         return s_instance;
     }
@@ -118,6 +178,30 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count--;
     }
 
+    protected LocalLock lockFor(String key) {
+        LocalLock lock = _locks.get(key);
+        if (lock == null) {
+            LocalLock created = new LocalLock();
+            lock = _locks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Drops the entry from the lock table once nobody owns or waits on it and
+     * it no longer holds a lease.  Must be called while holding the lock's
+     * monitor.
+     */
+    protected void retire(String key, LocalLock lock) {
+        if (lock.owner == null && lock.waiters == 0 && lock.leaseName == null && !lock.removed) {
+            lock.removed = true;
+            _locks.remove(key, lock);
+        }
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -126,55 +210,121 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000l;
+
+        LocalLock lock;
+        String leaseName;
+        int leaseTid;
+        while (true) {
+            lock = lockFor(key);
+            synchronized (lock) {
+                if (lock.removed) {
+                    continue;
+                }
+                if (lock.owner == th) {
+                    lock.count++;
+                    incrCount();
+                    _acquireLatency.record(System.currentTimeMillis() - startTime);
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " acquired again");
+                    }
+                    return true;
+                }
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
+                _contention.record(lock.owner == null ? 0 : lock.waiters + 1);
+                lock.waiters++;
+                try {
+                    while (lock.owner != null) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            lock.wait(remaining);
+                        } catch (InterruptedException e) {
+                            s_logger.debug("[ignored] interupted while aquiring " + key);
+                        }
+                    }
+                } finally {
+                    lock.waiters--;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                if (lock.owner != null) {
+                    retire(key, lock);
+                    return timedOut(key, startTime);
                 }
+                lock.owner = th;
+                lock.count = 0;
+                leaseName = lock.leaseName;
+                leaseTid = lock.leaseTid;
+                break;
             }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+        }
+
+        // This thread is now the only one on this server going after the lease.
+        boolean acquired = false;
+        try {
+            if (leaseName != null) {
+                acquired = (leaseName.equals(threadName) && leaseTid == threadId) || takeOverLease(key, leaseName, leaseTid, threadName, threadId);
+                if (acquired) {
+                    incrCount();
+                } else {
+                    synchronized (lock) {
+                        lock.leaseName = null;
+                    }
+                }
+            }
+            long backoff = MIN_BACKOFF_MS;
+            boolean contended = false;
+            while (!acquired && !(acquired = doAcquire(key, threadName, threadId))) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                if (!contended) {
+                    contended = true;
+                    _remoteContended.incrementAndGet();
+                }
+                try {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    }
+                    Thread.sleep(Math.min(backoff, remaining));
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interupted while aquiring " + key);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        } finally {
+            synchronized (lock) {
+                if (acquired) {
+                    lock.count = 1;
+                    lock.leaseName = threadName;
+                    lock.leaseTid = threadId;
+                } else {
+                    lock.owner = null;
+                    lock.notifyAll();
+                    retire(key, lock);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                s_logger.debug("[ignored] interupted while aquiring " + key);
             }
         }
-        String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
+
+        if (!acquired) {
+            return timedOut(key, startTime);
+        }
+        _acquireLatency.record(System.currentTimeMillis() - startTime);
+        return true;
+    }
+
+    protected boolean timedOut(String key, long startTime) {
+        _timeouts.incrementAndGet();
+        String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((System.currentTimeMillis() - startTime)/1000) +  "seconds";
         Exception e = new CloudRuntimeException(msg);
         s_logger.warn(msg, e);
         return false;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
-      try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);){
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
-            }
-            if (rows == 1) {
-                incrCount();
-                return true;
-            }
-            return false;
-        } catch (Exception e) {
-            s_logger.error("increment:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("increment:Exception:"+e.getMessage(), e);
-        }
-    }
-
     protected boolean doAcquire(String key, String threadName, int threadId) {
         long startTime = InaccurateClock.getTime();
         try(PreparedStatement pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);) {
@@ -206,6 +356,28 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return false;
     }
 
+    /**
+     * Moves the lease row left behind by the previous local owner over to
+     * this thread.
+     *
+     * @return false if the row is gone, e.g. released from JMX.
+     */
+    protected boolean takeOverLease(String key, String leaseName, int leaseTid, String threadName, int threadId) {
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(TAKE_OVER_LEASE_SQL);) {
+            pstmt.setString(1, threadName);
+            pstmt.setInt(2, threadId);
+            pstmt.setString(3, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
+            pstmt.setString(4, key);
+            pstmt.setLong(5, _msId);
+            pstmt.setString(6, leaseName);
+            pstmt.setInt(7, leaseTid);
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            s_logger.error("takeOverLease:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("Unable to lock " + key, e);
+        }
+    }
+
     protected Map<String, String> isLocked(String key) {
         try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INQUIRE_SQL);){
             pstmt.setString(1, key);
@@ -238,6 +410,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     pstmt.setLong(1, msId);
                     int rows = pstmt.executeUpdate();
                     s_logger.info("Released " + rows + " locks for " + msId);
+                    if (msId == _msId) {
+                        resetLocalLocks(null);
+                    }
                 }catch (Exception e) {
                     s_logger.error("cleanupForServer:Exception:"+e.getMessage());
                     throw new CloudRuntimeException("cleanupForServer:Exception:"+e.getMessage(), e);
@@ -251,42 +426,125 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
 
     public boolean release(String key) {
         Thread th = Thread.currentThread();
-        String threadName = th.getName();
         int threadId = System.identityHashCode(th);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(DECREMENT_SQL);)
-        {
+        LocalLock lock = _locks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner == th && lock.count > 0) {
+                    lock.count--;
+                    decrCount();
+                    if (lock.count > 0) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("lck-" + key + " released");
+                        }
+                        return true;
+                    }
+                    // the lease row stays for the next owner, see releaseIdleLeases()
+                    lock.owner = null;
+                    lock.idleSince = System.currentTimeMillis();
+                    lock.notifyAll();
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " released, lease kept");
+                    }
+                    return true;
+                }
+            }
+        }
+
+        String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
+        Exception e = new CloudRuntimeException(msg);
+        s_logger.warn(msg, e);
+        return false;
+    }
+
+    protected int releaseLease(String key, String threadName, int threadId) {
+        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(RELEASE_LEASE_SQL);) {
             pstmt.setString(1, key);
             pstmt.setLong(2, _msId);
             pstmt.setString(3, threadName);
-            pstmt.setLong(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmmm....keys not unique? " + pstmt;
+            pstmt.setInt(4, threadId);
+            return pstmt.executeUpdate();
+        } catch (Exception e) {
+            s_logger.error("release:Exception:"+ e.getMessage());
+            throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
+        }
+    }
 
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + " released");
+    /**
+     * Releases the lease rows that no local thread has taken again within
+     * idleMs of their final release, letting other management servers in.
+     *
+     * @return number of leases released.
+     */
+    protected int releaseIdleLeases(long idleMs) {
+        int released = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, LocalLock> entry : _locks.entrySet()) {
+            LocalLock lock = entry.getValue();
+            synchronized (lock) {
+                if (lock.removed || lock.owner != null || lock.leaseName == null || now - lock.idleSince < idleMs) {
+                    continue;
+                }
+                try {
+                    released += releaseLease(entry.getKey(), lock.leaseName, lock.leaseTid);
+                } finally {
+                    // a row left behind by a failure here is reconciled away later
+                    lock.leaseName = null;
+                    retire(entry.getKey(), lock);
+                }
             }
-            if (rows == 1) {
-                try (PreparedStatement rel_sql_pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);) {
-                    rel_sql_pstmt.setString(1, key);
-                    rel_sql_pstmt.setLong(2, _msId);
-                    int result = rel_sql_pstmt.executeUpdate();
-                    if (result == 1 && s_logger.isTraceEnabled()) {
-                        s_logger.trace("lck-" + key + " removed");
-                    }
-                    decrCount();
-                }catch (Exception e) {
-                    s_logger.error("release:Exception:"+ e.getMessage());
-                    throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
+        }
+        if (released > 0 && s_logger.isTraceEnabled()) {
+            s_logger.trace("Released " + released + " idle lock leases");
+        }
+        return released;
+    }
+
+    /**
+     * Removes this server's lease rows that no local thread owns or keeps
+     * idle any more, e.g. ones left behind by a failed release.
+     *
+     * @return number of leases released.
+     */
+    @Override
+    public int reconcileLeases() {
+        int released = 0;
+        for (Map<String, String> lease : getLocks(SELECT_MGMT_LOCKS_SQL, _msId)) {
+            String key = lease.get("key");
+            LocalLock lock = lockFor(key);
+            synchronized (lock) {
+                if (lock.removed || lock.owner != null || lock.leaseName != null) {
+                    continue;
+                }
+                released += releaseLease(key, lease.get("name"), Integer.parseInt(lease.get("tid")));
+                retire(key, lock);
+            }
+        }
+        if (released > 0) {
+            s_logger.warn("Released " + released + " lock leases without a local owner for " + _msId);
+        }
+        return released;
+    }
+
+    /**
+     * Forgets every lock in the lock table and wakes up anyone waiting on
+     * them.  Used when the leases have been wiped from under the owners.
+     */
+    protected void resetLocalLocks(Thread owner) {
+        for (Map.Entry<String, LocalLock> entry : _locks.entrySet()) {
+            LocalLock lock = entry.getValue();
+            synchronized (lock) {
+                boolean held = lock.owner != null && (owner == null || lock.owner == owner);
+                boolean idle = lock.owner == null && lock.leaseName != null
+                        && (owner == null || (lock.leaseName.equals(owner.getName()) && lock.leaseTid == System.identityHashCode(owner)));
+                if (held || idle) {
+                    lock.owner = null;
+                    lock.count = 0;
+                    lock.leaseName = null;
+                    lock.notifyAll();
+                    retire(entry.getKey(), lock);
                 }
-            } else if (rows < 1) {
-                String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
-                Exception e = new CloudRuntimeException(msg);
-                s_logger.warn(msg, e);
             }
-            return rows == 1;
-        } catch (Exception e) {
-            s_logger.error("release:Exception:"+ e.getMessage());
-            throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
         }
     }
 
@@ -336,20 +594,58 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
 
     @Override
     public List<Map<String, String>> getLocksAcquiredByThisServer() {
-        return getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
+        List<Map<String, String>> locks = getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
+        for (Map<String, String> map : locks) {
+            LocalLock lock = _locks.get(map.get("key"));
+            if (lock != null) {
+                synchronized (lock) {
+                    map.put("count", Integer.toString(lock.count));
+                    map.put("waiters", Integer.toString(lock.waiters));
+                }
+            }
+        }
+        return locks;
     }
 
+    @Override
+    public Map<String, Long> getAcquireLatencyHistogram() {
+        return _acquireLatency.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getContentionHistogram() {
+        return _contention.toMap();
+    }
+
+    @Override
+    public long getRemoteContentionCount() {
+        return _remoteContended.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    /**
+     * @return the number of times the current thread holds the lock, -1 if
+     * someone else holds it and 0 if it is not held.
+     */
     public int owns(String key) {
         Thread th = Thread.currentThread();
-        int threadId = System.identityHashCode(th);
-        Map<String, String> owner = isLocked(key);
-        if (owner == null) {
-            return 0;
-        }
-        if (owner.get("mgmt").equals(Long.toString(_msId)) && owner.get("tid").equals(Integer.toString(threadId))) {
-            return Integer.parseInt(owner.get("count"));
+        LocalLock lock = _locks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    return lock.count;
+                } else if (lock.owner != null) {
+                    return -1;
+                } else if (lock.leaseName != null) {
+                    return 0;
+                }
+            }
         }
-        return -1;
+        return isLocked(key) == null ? 0 : -1;
     }
 
     public List<Map<String, String>> getLocksAcquiredBy(long msId, String threadName) {
@@ -379,6 +675,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count = 0;
 
         Thread th = Thread.currentThread();
+        resetLocalLocks(th);
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
         try (PreparedStatement pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);)
@@ -402,6 +699,16 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         {
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            LocalLock lock = _locks.get(key);
+            if (lock != null) {
+                synchronized (lock) {
+                    lock.owner = null;
+                    lock.count = 0;
+                    lock.leaseName = null;
+                    lock.notifyAll();
+                    retire(key, lock);
+                }
+            }
             return rows > 0;
         } catch (Exception e) {
             s_logger.error("releaseLockAsLastResortAndIReallyKnowWhatIAmDoing : Exception: " +  e.getMessage());
@@ -412,4 +719,20 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * Entry in the lock table.  All fields are guarded by its monitor.  Once
+     * removed is set the entry is no longer in the table and must be looked
+     * up again.  leaseName and leaseTid identify the op_lock row held for the
+     * key, if any, and idleSince is when its last owner released it.
+     */
+    protected static class LocalLock {
+        Thread owner;
+        int count;
+        int waiters;
+        boolean removed;
+        String leaseName;
+        int leaseTid;
+        long idleSince;
+    }
 }
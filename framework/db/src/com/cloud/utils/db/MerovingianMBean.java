@@ -28,4 +28,14 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    int reconcileLeases();
+
+    Map<String, Long> getAcquireLatencyHistogram();
+
+    Map<String, Long> getContentionHistogram();
+
+    long getRemoteContentionCount();
+
+    long getTimeoutCount();
 }
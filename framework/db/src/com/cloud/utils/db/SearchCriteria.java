@@ -18,6 +18,7 @@ package com.cloud.utils.db;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -287,6 +288,30 @@ public class SearchCriteria<K> {
         return params;
     }
 
+    /**
+     * @return the values attr is restricted to by EQ or IN conditions, or
+     * null if the criteria does not restrict it or may also match rows with
+     * other values, i.e. it ORs or nests conditions.
+     */
+    public List<Object> getRestrictedValues(Attribute attr) {
+        List<Object> values = null;
+        List<Condition> conditions = new ArrayList<Condition>(_conditions);
+        conditions.addAll(_additionals);
+        for (Condition condition : conditions) {
+            Object[] objs = condition.isPreset() ? condition.presets : _params.get(condition.name);
+            if (condition.op != null && condition.op.params != 0 && objs == null) {
+                continue;
+            }
+            if (condition.op == null || condition.op == Op.SC || condition.op == Op.OR || condition.op == Op.NOT || " OR ".equals(condition.cond)) {
+                return null;
+            }
+            if (values == null && attr.equals(condition.attr) && (condition.op == Op.EQ || condition.op == Op.IN) && objs.length > 0) {
+                values = Arrays.asList(objs);
+            }
+        }
+        return values;
+    }
+
     public Collection<JoinBuilder<SearchCriteria<?>>> getJoins() {
         return _joins != null ? _joins.values() : null;
     }
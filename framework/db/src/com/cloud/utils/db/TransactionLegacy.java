@@ -95,6 +95,7 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final LinkedList<Runnable> _afterCommitTasks = new LinkedList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -631,6 +632,7 @@ public class TransactionLegacy implements Closeable {
         }
         _txn = false;
         _name = null;
+        _afterCommitTasks.clear();
 
         closeConnection();
 
@@ -681,6 +683,29 @@ public class TransactionLegacy implements Closeable {
         return true;
     }
 
+    /**
+     * Runs the task once the outermost transaction commits, or right away if
+     * there is no transaction.  The task is dropped if the transaction rolls back.
+     */
+    public void runAfterCommit(final Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        _afterCommitTasks.add(task);
+    }
+
+    protected void runAfterCommitTasks() {
+        while (!_afterCommitTasks.isEmpty()) {
+            final Runnable task = _afterCommitTasks.removeFirst();
+            try {
+                task.run();
+            } catch (final Exception e) {
+                s_logger.warn("Unable to run task after commit: " + task, e);
+            }
+        }
+    }
+
     protected boolean hasTxnInStack() {
         return peekInStack(START_TXN) != null;
     }
@@ -724,6 +749,7 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
+            runAfterCommitTasks();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -833,6 +859,7 @@ public class TransactionLegacy implements Closeable {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _afterCommitTasks.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -858,6 +885,7 @@ public class TransactionLegacy implements Closeable {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            _afterCommitTasks.clear();
             closeConnection();
         }
     }
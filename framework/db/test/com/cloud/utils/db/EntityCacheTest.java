@@ -0,0 +1,228 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EntityCacheTest {
+
+    private EntityCache createCache(String name, String table, boolean near) {
+        Cache cache = new Cache(name, 100, false, true, 0, 0);
+        CacheManager.create().addCache(cache);
+        EntityCache entityCache = new EntityCache(name, cache, Long.class, Collections.singletonList(table), near);
+        entityCache.register();
+        return entityCache;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        EntityCache cache = createCache("EntityCacheTest-hits", "ec_hits", false);
+        Assert.assertNull(cache.get(1L));
+        cache.put(1L, "one", 0);
+        Assert.assertEquals("one", cache.get(1L));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void testPutAfterEvictionIsRejected() {
+        EntityCache cache = createCache("EntityCacheTest-generation", "ec_generation", true);
+        long generation = cache.getGeneration();
+        cache.evict(1L, EntityCache.ANY_VERSION);
+        Assert.assertFalse(cache.put(1L, "stale", 3, generation));
+        Assert.assertNull(cache.get(1L));
+        Assert.assertEquals(1, cache.getRejectedPuts());
+
+        Assert.assertTrue(cache.put(1L, "fresh", 4, cache.getGeneration()));
+        Assert.assertEquals("fresh", cache.get(1L));
+    }
+
+    @Test
+    public void testOlderVersionDoesNotEvictNewerRow() {
+        EntityCache cache = createCache("EntityCacheTest-version", "ec_version", true);
+        cache.put(1L, "v5", 5);
+        cache.evict(1L, 4);
+        Assert.assertEquals("v5", cache.get(1L));
+        cache.evict(1L, 5);
+        Assert.assertNull(cache.get(1L));
+
+        cache.put(1L, "v7", 7);
+        cache.put(1L, "v6", 6);
+        Assert.assertEquals("v7", cache.get(1L));
+    }
+
+    @Test
+    public void testInvalidateReachesEveryCacheOfTheTable() {
+        EntityCache first = createCache("EntityCacheTest-first", "ec_shared", false);
+        EntityCache second = createCache("EntityCacheTest-second", "ec_shared", false);
+        first.put(1L, "a", 0);
+        second.put(1L, "b", 0);
+        second.put(2L, "c", 0);
+
+        EntityCache.invalidate(Arrays.asList("ec_shared", "ec_other"), 1L, EntityCache.ANY_VERSION);
+        Assert.assertNull(first.get(1L));
+        Assert.assertNull(second.get(1L));
+        Assert.assertEquals("c", second.get(2L));
+
+        EntityCache.invalidate(Collections.singletonList("ec_shared"), null, EntityCache.ANY_VERSION);
+        Assert.assertEquals(0, second.getSize());
+    }
+
+    @Test
+    public void testNearCachePublishesAndAppliesInvalidations() {
+        final List<EntityCache.Invalidation> published = new ArrayList<EntityCache.Invalidation>();
+        EntityCache.setInvalidationPublisher(new EntityCache.InvalidationPublisher() {
+            @Override
+            public void publish(EntityCache.Invalidation invalidation) {
+                published.add(invalidation);
+            }
+        });
+        try {
+            EntityCache cache = createCache("EntityCacheTest-near", "ec_near", true);
+            EntityCache.invalidate(Collections.singletonList("ec_near"), 42L, 8);
+            Assert.assertEquals(1, published.size());
+            Assert.assertEquals("ec_near 42 8", published.get(0).toString());
+
+            cache.put(42L, "v7", 7);
+            EntityCache.onRemoteInvalidation(EntityCache.Invalidation.parse(published.get(0).toString()));
+            Assert.assertNull(cache.get(42L));
+            Assert.assertEquals(1, cache.getRemoteInvalidations());
+
+            EntityCache local = createCache("EntityCacheTest-local", "ec_local", false);
+            EntityCache.invalidate(Collections.singletonList("ec_local"), 1L, EntityCache.ANY_VERSION);
+            Assert.assertEquals(1, published.size());
+            Assert.assertEquals(1, local.getInvalidations());
+        } finally {
+            EntityCache.setInvalidationPublisher(null);
+        }
+    }
+
+    /**
+     * A connection whose statements update one row, enough to run DAO writes
+     * without a database.
+     */
+    private static Connection createConnection() {
+        final PreparedStatement pstmt = (PreparedStatement)Proxy.newProxyInstance(EntityCacheTest.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("executeUpdate") ? 1 : null;
+                    }
+                });
+        return (Connection)Proxy.newProxyInstance(EntityCacheTest.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().startsWith("prepare")) {
+                    return pstmt;
+                }
+                return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+
+    @Test
+    public void testUpdateInNestedTransactionInvalidatesAfterOutermostCommit() throws Exception {
+        final List<EntityCache.Invalidation> published = new ArrayList<EntityCache.Invalidation>();
+        EntityCache.setInvalidationPublisher(new EntityCache.InvalidationPublisher() {
+            @Override
+            public void publish(EntityCache.Invalidation invalidation) {
+                published.add(invalidation);
+            }
+        });
+        TransactionLegacy txn = TransactionLegacy.open("EntityCacheTest-nested");
+        try {
+            DbTestDao dao = new DbTestDao();
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("cache.size", "100");
+            params.put("cache.near", "true");
+            dao.configure("EntityCacheTest-dao", params);
+
+            txn.transitToUserManagedConnection(createConnection());
+            txn.start();
+
+            DbTestVO vo = dao.createForUpdate(1L);
+            GenericDaoBase.getUpdateBuilder(vo).set(vo, "fieldString", "updated");
+            Assert.assertTrue(dao.update(1L, vo));
+
+            // a concurrent read still sees the row as it was before the update
+            dao._cache.put(1L, new DbTestVO(), 0, dao._cache.getGeneration());
+            Assert.assertNotNull(dao._cache.get(1L));
+            Assert.assertTrue(published.isEmpty());
+
+            txn.commit();
+            Assert.assertNull(dao._cache.get(1L));
+            Assert.assertEquals(1, published.size());
+            Assert.assertEquals("1", published.get(0).getId());
+        } finally {
+            EntityCache.setInvalidationPublisher(null);
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testRolledBackUpdateIsNotPublished() {
+        final List<EntityCache.Invalidation> published = new ArrayList<EntityCache.Invalidation>();
+        EntityCache.setInvalidationPublisher(new EntityCache.InvalidationPublisher() {
+            @Override
+            public void publish(EntityCache.Invalidation invalidation) {
+                published.add(invalidation);
+            }
+        });
+        TransactionLegacy txn = TransactionLegacy.open("EntityCacheTest-rollback");
+        try {
+            createCache("EntityCacheTest-rollback", "ec_rollback", true);
+            txn.start();
+            txn.runAfterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    EntityCache.invalidate(Collections.singletonList("ec_rollback"), 1L, EntityCache.ANY_VERSION);
+                }
+            });
+            txn.rollback();
+            txn.start();
+            txn.commit();
+            Assert.assertTrue(published.isEmpty());
+        } finally {
+            EntityCache.setInvalidationPublisher(null);
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testParseRejectsMalformedInvalidation() {
+        Assert.assertNull(EntityCache.Invalidation.parse("host 1"));
+        Assert.assertNull(EntityCache.Invalidation.parse("host 1 x"));
+        Assert.assertEquals("*", EntityCache.Invalidation.parse("host * -1").getId());
+    }
+}
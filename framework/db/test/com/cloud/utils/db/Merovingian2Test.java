@@ -16,6 +16,12 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -26,7 +32,13 @@ import org.junit.Test;
 
 public class Merovingian2Test extends TestCase {
     static final Logger s_logger = Logger.getLogger(Merovingian2Test.class);
-    Merovingian2 _lockMaster = Merovingian2.createLockMaster(1234);
+    Merovingian2 _lockMaster = lockMaster();
+
+    // JUnit creates one instance per test but there can only be one lock master.
+    static synchronized Merovingian2 lockMaster() {
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        return lockMaster != null ? lockMaster : Merovingian2.createLockMaster(1234);
+    }
 
     @Override
     @Before
@@ -76,4 +88,170 @@ public class Merovingian2Test extends TestCase {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void testReentrantAcquire() {
+        String key = "reentrant" + 1234;
+        for (int i = 1; i <= 3; i++) {
+            Assert.assertTrue(_lockMaster.acquire(key, 5));
+            Assert.assertEquals(i, _lockMaster.owns(key));
+        }
+
+        Assert.assertEquals("Only one lease row is held whatever the depth", 1, _lockMaster.getLocksAcquiredByThisServer().size());
+
+        for (int i = 2; i >= 0; i--) {
+            Assert.assertTrue(_lockMaster.release(key));
+            Assert.assertEquals(i, _lockMaster.owns(key));
+        }
+
+        Assert.assertFalse("Releasing a lock that is not held", _lockMaster.release(key));
+    }
+
+    @Test
+    public void testIdleLeaseIsHandedOverAndReleased() throws Exception {
+        final String key = "lease" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+        Assert.assertTrue(_lockMaster.release(key));
+
+        Assert.assertEquals(0, _lockMaster.owns(key));
+        Assert.assertEquals("The lease row outlives the release", 1, _lockMaster.getLocksAcquiredByThisServer().size());
+        Assert.assertEquals("Recently released leases are kept", 0, _lockMaster.releaseIdleLeases(60000));
+
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(_lockMaster.acquire(key, 5) && _lockMaster.release(key));
+            }
+        }, "Merovingian2Test-other");
+        other.start();
+        other.join(10000);
+        Assert.assertTrue(result.get());
+
+        List<Map<String, String>> leases = _lockMaster.getLocksAcquiredByThisServer();
+        Assert.assertEquals(1, leases.size());
+        Assert.assertEquals("The lease was handed over", "Merovingian2Test-other", leases.get(0).get("name"));
+        Assert.assertEquals("0", leases.get(0).get("count"));
+
+        Assert.assertEquals(1, _lockMaster.releaseIdleLeases(0));
+        Assert.assertTrue(_lockMaster.getLocksAcquiredByThisServer().isEmpty());
+        Assert.assertEquals(0, _lockMaster.reconcileLeases());
+
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+        Assert.assertEquals(1, _lockMaster.owns(key));
+        Assert.assertTrue(_lockMaster.release(key));
+    }
+
+    @Test
+    public void testWaiterIsWokenUpOnRelease() throws Exception {
+        final String key = "waiter" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                result.set(_lockMaster.acquire(key, 30));
+                acquired.countDown();
+                if (result.get()) {
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Merovingian2Test-waiter");
+        waiter.start();
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse("Waiter got the lock while it is held", acquired.await(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, _lockMaster.owns(key));
+
+        long released = System.currentTimeMillis();
+        Assert.assertTrue(_lockMaster.release(key));
+
+        Assert.assertTrue("Waiter was not woken up by the release", acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(result.get());
+        Assert.assertTrue("Waiter should not wait for its timeout", System.currentTimeMillis() - released < 5000);
+        waiter.join(5000);
+        Assert.assertEquals(0, _lockMaster.owns(key));
+    }
+
+    @Test
+    public void testAcquireTimesOut() throws Exception {
+        final String key = "timeout" + 1234;
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread owner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                _lockMaster.acquire(key, 5);
+                held.countDown();
+                try {
+                    done.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interrupted while holding " + key);
+                } finally {
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Merovingian2Test-owner");
+        owner.start();
+
+        try {
+            Assert.assertTrue(held.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(-1, _lockMaster.owns(key));
+
+            long timeouts = _lockMaster.getTimeoutCount();
+            long start = System.currentTimeMillis();
+            Assert.assertFalse(_lockMaster.acquire(key, 1));
+            long waited = System.currentTimeMillis() - start;
+
+            Assert.assertTrue("Gave up after " + waited + "ms", waited >= 900);
+            Assert.assertEquals(timeouts + 1, _lockMaster.getTimeoutCount());
+            Assert.assertEquals(-1, _lockMaster.owns(key));
+        } finally {
+            done.countDown();
+            owner.join(5000);
+        }
+
+        Assert.assertEquals(0, _lockMaster.owns(key));
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+        Assert.assertTrue(_lockMaster.release(key));
+    }
+
+    @Test
+    public void testReconcileLeases() throws Exception {
+        String owned = "owned" + 1234;
+        final String orphan = "orphan" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(owned, 5));
+
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread leaker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(_lockMaster.acquire(orphan, 5));
+            }
+        }, "Merovingian2Test-leaker");
+        leaker.start();
+        leaker.join(10000);
+        Assert.assertTrue(result.get());
+        Assert.assertEquals(-1, _lockMaster.owns(orphan));
+
+        // Lose the local owner while the lease row stays behind, as a
+        // release that failed half way would.
+        _lockMaster.resetLocalLocks(leaker);
+        Assert.assertEquals("The lease row still excludes everyone", -1, _lockMaster.owns(orphan));
+        Assert.assertEquals(2, _lockMaster.getLocksAcquiredByThisServer().size());
+
+        Assert.assertEquals(1, _lockMaster.reconcileLeases());
+        Assert.assertEquals(0, _lockMaster.owns(orphan));
+        Assert.assertEquals("Leases with a local owner are kept", 1, _lockMaster.owns(owned));
+        Assert.assertEquals(1, _lockMaster.getLocksAcquiredByThisServer().size());
+        Assert.assertEquals(0, _lockMaster.reconcileLeases());
+
+        Assert.assertTrue(_lockMaster.acquire(orphan, 5));
+        Assert.assertTrue(_lockMaster.release(orphan));
+        Assert.assertTrue(_lockMaster.release(owned));
+    }
+
 }
@@ -26,6 +26,9 @@ public class MessageDetector implements MessageSubscriber {
     private MessageBus _messageBus;
     private String[] _subjects;
 
+    // set when a message arrives while nobody is waiting, so that it is not lost
+    private boolean _signalled;
+
     public MessageDetector() {
         _messageBus = null;
         _subjects = null;
@@ -39,10 +42,13 @@ public class MessageDetector implements MessageSubscriber {
 
         synchronized (this) {
             try {
-                wait(timeoutInMiliseconds);
+                if (!_signalled) {
+                    wait(timeoutInMiliseconds);
+                }
             } catch (InterruptedException e) {
                 s_logger.debug("[ignored] interupted while waiting on any message.");
             }
+            _signalled = false;
         }
     }
 
@@ -74,6 +80,7 @@ public class MessageDetector implements MessageSubscriber {
     public void onPublishMessage(String senderAddress, String subject, Object args) {
         if (subjectMatched(subject)) {
             synchronized (this) {
+                _signalled = true;
                 notifyAll();
             }
         }
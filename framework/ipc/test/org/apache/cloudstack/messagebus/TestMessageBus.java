@@ -118,6 +118,22 @@ public class TestMessageBus extends TestCase {
         _messageBus.clearAll();
     }
 
+    @Test
+    public void testMessageDetectorKeepsMessageArrivedBeforeWait() {
+        MessageDetector detector = new MessageDetector();
+        detector.open(_messageBus, new String[] {"VM", "Host"});
+        try {
+            _messageBus.publish(null, "Host", PublishScope.LOCAL, null);
+
+            long start = System.currentTimeMillis();
+            detector.waitAny(10000);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            detector.close();
+        }
+        _messageBus.clearAll();
+    }
+
     public void testMessageDetector() {
         MessageDetector detector = new MessageDetector();
         detector.open(_messageBus, new String[] {"VM", "Host"});
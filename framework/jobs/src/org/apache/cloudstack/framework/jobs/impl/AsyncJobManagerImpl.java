@@ -21,9 +21,12 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -56,6 +59,7 @@ import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.slf4j.MDC;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
 import com.cloud.utils.DateUtil;
@@ -92,13 +96,25 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final ConfigKey<Integer> VmJobLockTimeout = new ConfigKey<Integer>("Advanced",
             Integer.class, "vm.job.lock.timeout", "1800",
             "Time in seconds to wait in acquiring lock to submit a vm worker job", false);
+    private static final ConfigKey<Integer> JobQueueLimit = new ConfigKey<Integer>("Advanced", Integer.class, "job.executor.queue.limit", "10000",
+        "Maximum number of jobs of one priority class waiting for an executor thread, jobs beyond that are rejected", false);
+    private static final ConfigKey<String> HighPriorityJobs = new ConfigKey<String>("Advanced", String.class, "job.priority.high.commands",
+        "VmWorkStart,VmWorkStop,VmWorkReboot,DeployVMCmd,DeployVMCmdByAdmin,StartVMCmd,StartVMCmdByAdmin,StopVMCmd,StopVMCmdByAdmin,RebootVMCmd,"
+            + "RebootVMCmdByAdmin",
+        "Comma separated job commands, by class simple name, that are run ahead of other jobs", false);
+    private static final ConfigKey<String> LowPriorityJobs = new ConfigKey<String>("Advanced", String.class, "job.priority.low.commands",
+        "VmWorkTakeVolumeSnapshot,VmWorkCreateVMSnapshot,VmWorkDeleteVMSnapshot,VmWorkDeleteAllVMSnapshots,VmWorkExtractVolume,CreateSnapshotCmd,"
+            + "DeleteSnapshotCmd,CreateVMSnapshotCmd,DeleteVMSnapshotCmd,ExtractVolumeCmd,ExtractTemplateCmd,CreateTemplateCmd,CreateTemplateCmdByAdmin,"
+            + "CopyTemplateCmd,CopyTemplateCmdByAdmin",
+        "Comma separated job commands, by class simple name, that yield to other jobs", false);
+    private static final ConfigKey<Integer> JobScanInterval = new ConfigKey<Integer>("Advanced", Integer.class, "job.scan.interval", "5",
+        "Interval (in seconds) to scan sync queues and job joins for work that was not signalled on completion of other jobs", false);
 
     private static final Logger s_logger = Logger.getLogger(AsyncJobManagerImpl.class);
 
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 3;     // 3 seconds
 
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
-    private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
 
     @Inject
@@ -119,12 +135,18 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private AsyncJobMonitor _jobMonitor;
     @Inject
     private VMInstanceDao _vmInstanceDao;
+    @Inject
+    private ClusterManager _clusterMgr;
 
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
-    private ExecutorService _apiJobExecutor;
-    private ExecutorService _workerJobExecutor;
+    private final ExecutorService _wakeupExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-Wakeup"));
+    private final Set<Long> _pendingQueueWakeups = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private FairShareJobExecutor _apiJobExecutor;
+    private FairShareJobExecutor _workerJobExecutor;
+    private final Set<String> _highPriorityJobs = new HashSet<String>();
+    private final Set<String> _lowPriorityJobs = new HashSet<String>();
 
     @Override
     public String getConfigComponentName() {
@@ -133,7 +155,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout, JobScanInterval, JobQueueLimit, HighPriorityJobs,
+            LowPriorityJobs};
     }
 
     @Override
@@ -178,7 +201,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         dao.persist(job);
 
         publishOnEventBus(job, "submit");
-        scheduleExecution(job, scheduleJobExecutionInContext);
+        try {
+            scheduleExecution(job, scheduleJobExecutionInContext);
+        } catch (RejectedExecutionException e) {
+            // the job never ran, drop it so that the caller can push back and retry later
+            s_logger.warn("Rejected job-" + job.getId() + ": " + e.getMessage());
+            _jobDao.expunge(job.getId());
+            throw e;
+        }
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("submit async job-" + job.getId() + ", details: " + StringUtils.cleanString(job.toString()));
         }
@@ -199,21 +229,25 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 throw new CloudRuntimeException("Failed to acquire lock in submitting async job: " + job.getCmd() + " with timeout value = " + VmJobLockTimeout.value());
             }
 
+            final SyncQueueVO queue;
             try {
                 // lock is acquired
-                return Transaction.execute(new TransactionCallback<Long>() {
+                queue = Transaction.execute(new TransactionCallback<SyncQueueVO>() {
                     @Override
-                    public Long doInTransaction(TransactionStatus status) {
+                    public SyncQueueVO doInTransaction(TransactionStatus status) {
                         job.setInitMsid(getMsid());
                         dao.persist(job);
 
-                        syncAsyncJobExecution(job, syncObjType, syncObjId, 1);
-                        return job.getId();
+                        return queueJob(job, syncObjType, syncObjId, 1);
                     }
                 });
             } finally {
                 _vmInstanceDao.unlockFromLockTable(String.valueOf(syncObjId));
             }
+
+            // the item is committed now, no need to wait for the next queue scan to pick it up
+            wakeupQueue(queue.getId());
+            return job.getId();
         } catch (Exception e) {
             String errMsg = "Unable to schedule async job for command " + job.getCmd() + ", unexpected exception.";
             s_logger.warn(errMsg, e);
@@ -235,7 +269,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     resultObject);
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            wakeupQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -244,7 +278,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 s_logger.debug("job-" + jobId + " is already completed.");
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            wakeupQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -259,9 +293,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Wake up jobs related to job-" + jobId);
         }
-        List<Long> wakeupList = Transaction.execute(new TransactionCallback<List<Long>>() {
+        Pair<List<Long>, Long> wakeups = Transaction.execute(new TransactionCallback<Pair<List<Long>, Long>>() {
             @Override
-            public List<Long> doInTransaction(TransactionStatus status) {
+            public Pair<List<Long>, Long> doInTransaction(TransactionStatus status) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Update db status for job-" + jobId);
                 }
@@ -286,11 +320,13 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 _joinMapDao.disjoinAllJobs(jobId);
 
                 // purge the job sync item from queue
-                _queueMgr.purgeAsyncJobQueueItemId(jobId);
+                Long queueId = _queueMgr.purgeAsyncJobQueueItemId(jobId);
 
-                return wakeupList;
+                return new Pair<List<Long>, Long>(wakeupList, queueId);
             }
         });
+        List<Long> wakeupList = wakeups.first();
+        wakeupQueue(wakeups.second());
 
         publishOnEventBus(job, "complete"); // publish before the instance type and ID are wiped out
 
@@ -306,6 +342,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 }
         */
         _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
+        _clusterMgr.notifyPeers(AsyncJob.Topics.JOB_STATE, String.valueOf(jobId));
     }
 
     @Override
@@ -411,10 +448,39 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             s_logger.debug("Sync job-" + job.getId() + " execution on object " + syncObjType + "." + syncObjId);
         }
 
-        SyncQueueVO queue = null;
-        queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
+        SyncQueueVO queue = queueJob(job, syncObjType, syncObjId, queueSizeLimit);
+        wakeupQueue(queue.getId());
+    }
+
+    private SyncQueueVO queueJob(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
+        SyncQueueVO queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+        return queue;
+    }
+
+    /**
+     * Asks the wakeup thread to dispatch whatever is runnable in the queue.
+     * Wakeups for a queue that is already pending are merged.  Anything missed
+     * here, e.g. because the caller's transaction was not committed yet, is
+     * picked up by the heartbeat scan.
+     */
+    private void wakeupQueue(final Long queueId) {
+        if (queueId == null || !_pendingQueueWakeups.add(queueId)) {
+            return;
+        }
+        try {
+            _wakeupExecutor.execute(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    _pendingQueueWakeups.remove(queueId);
+                    checkQueue(queueId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _pendingQueueWakeups.remove(queueId);
+            s_logger.debug("[ignored] wakeup of sync queue-" + queueId + " is rejected, leave it to the heartbeat scan");
+        }
     }
 
     @Override
@@ -438,9 +504,34 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             runnable.run();
         } else {
             if (job.getDispatcher() == null || job.getDispatcher().equalsIgnoreCase("ApiAsyncJobDispatcher"))
-                _apiJobExecutor.submit(runnable);
+                _apiJobExecutor.execute(getPriority(job), job.getAccountId(), runnable);
             else
-                _workerJobExecutor.submit(runnable);
+                _workerJobExecutor.execute(getPriority(job), job.getAccountId(), runnable);
+        }
+    }
+
+    protected FairShareJobExecutor.Priority getPriority(AsyncJob job) {
+        String cmd = job.getCmd();
+        if (cmd == null) {
+            return FairShareJobExecutor.Priority.NORMAL;
+        }
+        String name = cmd.substring(cmd.lastIndexOf('.') + 1);
+        if (_highPriorityJobs.contains(name)) {
+            return FairShareJobExecutor.Priority.HIGH;
+        } else if (_lowPriorityJobs.contains(name)) {
+            return FairShareJobExecutor.Priority.LOW;
+        }
+        return FairShareJobExecutor.Priority.NORMAL;
+    }
+
+    private static void parseJobNames(String value, Set<String> names) {
+        if (value == null) {
+            return;
+        }
+        for (String name : value.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
         }
     }
 
@@ -571,6 +662,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         if (job.getSyncSource() != null) {
                             // here check queue item one more time to double make sure that queue item is removed in case of any uncaught exception
                             _queueMgr.purgeItem(job.getSyncSource().getId());
+                            // the queue is free now, dispatch its next item right away
+                            wakeupQueue(job.getSyncSource().getQueueId());
                         }
 
                         try {
@@ -606,7 +699,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return signals;
     }
 
-    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
+    /**
+     * @return false if the item could not be scheduled and was returned to its queue
+     */
+    private boolean executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if (s_logger.isDebugEnabled()) {
@@ -650,6 +746,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 } catch (Exception e3) {
                     s_logger.warn("Unexpected exception while update job-" + item.getContentId() + " msid for bookkeeping");
                 }
+                return false;
             }
 
         } else {
@@ -659,6 +756,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
             _queueMgr.purgeItem(item.getId());
         }
+        return true;
     }
 
     @Override
@@ -729,7 +827,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
 
-                    executeQueueItem(item, false);
+                    // a rejected item goes back to the head of the queue, leave it to the next
+                    // release or to the heartbeat scan instead of dequeuing it again right away
+                    if (!executeQueueItem(item, false)) {
+                        break;
+                    }
                 } else {
                     break;
                 }
@@ -821,7 +923,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                                 }
 
                                 // purge the item and resume queue processing
-                                _queueMgr.purgeItem(item.getId());
+                                wakeupQueue(_queueMgr.purgeItem(item.getId()));
                             } catch (Throwable e) {
                                 s_logger.error("Unexpected exception when trying to remove job from sync queue, ", e);
                             }
@@ -943,6 +1045,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        final int queueLimit = JobQueueLimit.value();
+        parseJobNames(HighPriorityJobs.value(), _highPriorityJobs);
+        parseJobNames(LowPriorityJobs.value(), _lowPriorityJobs);
+
         try {
             final Properties dbProps = DbProperties.getDbProperties();
             final int cloudMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.maxActive"));
@@ -951,14 +1057,22 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             int workPoolSize = (cloudMaxActive * 2) / 3;
 
             s_logger.info("Start AsyncJobManager API executor thread pool in size " + apiPoolSize);
-            _apiJobExecutor = Executors.newFixedThreadPool(apiPoolSize, new NamedThreadFactory(AsyncJobManager.API_JOB_POOL_THREAD_PREFIX));
+            _apiJobExecutor = new FairShareJobExecutor(AsyncJobManager.API_JOB_POOL_THREAD_PREFIX, apiPoolSize, queueLimit);
 
             s_logger.info("Start AsyncJobManager Work executor thread pool in size " + workPoolSize);
-            _workerJobExecutor = Executors.newFixedThreadPool(workPoolSize, new NamedThreadFactory(AsyncJobManager.WORK_JOB_POOL_THREAD_PREFIX));
+            _workerJobExecutor = new FairShareJobExecutor(AsyncJobManager.WORK_JOB_POOL_THREAD_PREFIX, workPoolSize, queueLimit);
         } catch (final Exception e) {
             throw new ConfigurationException("Unable to load db.properties to configure AsyncJobManagerImpl");
         }
 
+        for (FairShareJobExecutor executor : new FairShareJobExecutor[] {_apiJobExecutor, _workerJobExecutor}) {
+            try {
+                JmxUtil.registerMBean("AsyncJobManager", executor.getName(), executor);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register " + executor.getName() + " to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+            }
+        }
+
         JoinJobSearch = _joinMapDao.createSearchBuilder(Long.class);
         JoinJobSearch.and(JoinJobSearch.entity().getJoinJobId(), Op.EQ, "joinJobId");
         JoinJobSearch.selectFields(JoinJobSearch.entity().getJobId());
@@ -1039,7 +1153,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     public boolean start() {
         cleanupLeftOverJobs(getMsid());
 
-        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        _clusterMgr.registerNotificationListener(AsyncJob.Topics.JOB_STATE, new ClusterManager.NotificationListener() {
+            @Override
+            public void onNotification(String sourcePeer, String subject, String message) {
+                // wake up local waiters on jobs completed by other management servers
+                _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.LOCAL, Long.parseLong(message));
+            }
+        });
+
+        // queued work is dispatched when it is submitted or when its queue is released, the scan is only a safety net
+        long scanInterval = JobScanInterval.value() * 1000L;
+        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), scanInterval, scanInterval, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
         return true;
@@ -1048,6 +1172,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     @Override
     public boolean stop() {
         _heartbeatScheduler.shutdown();
+        _wakeupExecutor.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
         return true;
@@ -0,0 +1,297 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.jobs.JobExecutorMBean;
+
+import com.cloud.utils.Histogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs jobs on a fixed pool of threads.  Jobs are queued by priority class
+ * and, within a class, by account.  Classes are served by smooth weighted
+ * round robin so that lower classes are slowed down but never starved, and
+ * accounts within a class take turns so that one account with thousands of
+ * queued jobs does not hold back everybody else.
+ *
+ * Every class admits at most queueLimit waiting jobs, beyond that execute()
+ * throws RejectedExecutionException so that callers can push back.
+ */
+public class FairShareJobExecutor extends StandardMBean implements JobExecutorMBean {
+    private static final Logger s_logger = Logger.getLogger(FairShareJobExecutor.class);
+
+    public enum Priority {
+        HIGH(6), NORMAL(3), LOW(1);
+
+        private final int _weight;
+
+        private Priority(int weight) {
+            _weight = weight;
+        }
+
+        public int getWeight() {
+            return _weight;
+        }
+    }
+
+    private final String _name;
+    private final int _queueLimit;
+    private final List<Thread> _workers = new ArrayList<Thread>();
+    private final ClassQueue[] _queues;
+    private int _active;
+    private boolean _shutdown;
+
+    public FairShareJobExecutor(String name, int poolSize, int queueLimit) {
+        super(JobExecutorMBean.class, false);
+        _name = name;
+        _queueLimit = queueLimit;
+        _queues = new ClassQueue[Priority.values().length];
+        for (Priority priority : Priority.values()) {
+            _queues[priority.ordinal()] = new ClassQueue(priority);
+        }
+
+        NamedThreadFactory factory = new NamedThreadFactory(name);
+        for (int i = 0; i < poolSize; i++) {
+            Thread worker = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+            _workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the task.
+     * @throws RejectedExecutionException if the executor is shut down or the
+     * priority class already has queueLimit jobs waiting.
+     */
+    public void execute(Priority priority, long accountId, Runnable task) {
+        ClassQueue queue = _queues[priority.ordinal()];
+        synchronized (this) {
+            if (_shutdown) {
+                throw new RejectedExecutionException(_name + " is shut down");
+            }
+            if (queue._depth >= _queueLimit) {
+                queue._rejected.incrementAndGet();
+                throw new RejectedExecutionException(_name + " already has " + queue._depth + " " + priority + " priority jobs waiting");
+            }
+            queue.add(accountId, new Task(task));
+            notify();
+        }
+    }
+
+    protected void work() {
+        while (true) {
+            Task task;
+            ClassQueue queue;
+            synchronized (this) {
+                while ((queue = pick()) == null) {
+                    if (_shutdown) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        s_logger.debug("[ignored] interupted while waiting for jobs");
+                    }
+                }
+                task = queue.poll();
+                _active++;
+            }
+
+            long waited = System.currentTimeMillis() - task._queuedAt;
+            queue._waitTime.record(waited);
+            queue._totalWait.addAndGet(waited);
+            try {
+                task._runnable.run();
+            } catch (Throwable e) {
+                s_logger.error("Unexpected exception from job run in " + _name, e);
+            } finally {
+                queue._completed.incrementAndGet();
+                synchronized (this) {
+                    _active--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Smooth weighted round robin over the classes that have jobs waiting.
+     * Must be called with the monitor held.
+     */
+    protected ClassQueue pick() {
+        ClassQueue best = null;
+        int total = 0;
+        for (ClassQueue queue : _queues) {
+            if (queue._depth == 0) {
+                continue;
+            }
+            queue._current += queue._priority.getWeight();
+            total += queue._priority.getWeight();
+            if (best == null || queue._current > best._current) {
+                best = queue;
+            }
+        }
+        if (best != null) {
+            best._current -= total;
+        }
+        return best;
+    }
+
+    /**
+     * Stops taking new jobs.  Jobs already queued are still run.
+     */
+    public synchronized void shutdown() {
+        _shutdown = true;
+        notifyAll();
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return _workers.size();
+    }
+
+    @Override
+    public synchronized int getActiveCount() {
+        return _active;
+    }
+
+    @Override
+    public int getQueueLimit() {
+        return _queueLimit;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+        for (ClassQueue queue : _queues) {
+            depths.put(queue._priority.toString(), queue._depth);
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Long> getRejectedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (ClassQueue queue : _queues) {
+            counts.put(queue._priority.toString(), queue._rejected.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getCompletedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (ClassQueue queue : _queues) {
+            counts.put(queue._priority.toString(), queue._completed.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getAverageWaitMillis() {
+        Map<String, Long> waits = new LinkedHashMap<String, Long>();
+        for (ClassQueue queue : _queues) {
+            long started = queue._waitTime.getCount();
+            waits.put(queue._priority.toString(), started == 0 ? 0 : queue._totalWait.get() / started);
+        }
+        return waits;
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getWaitTimeHistograms() {
+        Map<String, Map<String, Long>> histograms = new LinkedHashMap<String, Map<String, Long>>();
+        for (ClassQueue queue : _queues) {
+            histograms.put(queue._priority.toString(), queue._waitTime.toMap());
+        }
+        return histograms;
+    }
+
+    protected static class Task {
+        final Runnable _runnable;
+        final long _queuedAt = System.currentTimeMillis();
+
+        Task(Runnable runnable) {
+            _runnable = runnable;
+        }
+    }
+
+    /**
+     * Jobs of one priority class, one FIFO per account.  Accounts are kept in
+     * the order they are to be served; an account goes to the back after each
+     * of its jobs is taken.  Guarded by the executor's monitor except for the
+     * counters.
+     */
+    protected static class ClassQueue {
+        final Priority _priority;
+        final LinkedHashMap<Long, ArrayDeque<Task>> _accounts = new LinkedHashMap<Long, ArrayDeque<Task>>();
+        int _depth;
+        int _current;
+
+        final Histogram _waitTime = new Histogram(10, 100, 1000, 5000, 30000, 60000, 300000);
+        final AtomicLong _totalWait = new AtomicLong();
+        final AtomicLong _rejected = new AtomicLong();
+        final AtomicLong _completed = new AtomicLong();
+
+        ClassQueue(Priority priority) {
+            _priority = priority;
+        }
+
+        void add(long accountId, Task task) {
+            ArrayDeque<Task> tasks = _accounts.get(accountId);
+            if (tasks == null) {
+                tasks = new ArrayDeque<Task>();
+                _accounts.put(accountId, tasks);
+            }
+            tasks.add(task);
+            _depth++;
+        }
+
+        Task poll() {
+            Iterator<Map.Entry<Long, ArrayDeque<Task>>> it = _accounts.entrySet().iterator();
+            Map.Entry<Long, ArrayDeque<Task>> entry = it.next();
+            Task task = entry.getValue().poll();
+            it.remove();
+            if (!entry.getValue().isEmpty()) {
+                _accounts.put(entry.getKey(), entry.getValue());
+            }
+            _depth--;
+            return task;
+        }
+    }
+}
@@ -27,7 +27,10 @@ public interface SyncQueueManager extends Manager {
 
     public List<SyncQueueItemVO> dequeueFromAny(Long msid, int maxItems);
 
-    public void purgeItem(long queueItemId);
+    /**
+     * @return id of the queue the item was purged from, null if there was no such item
+     */
+    public Long purgeItem(long queueItemId);
 
     public void returnItem(long queueItemId);
 
@@ -35,7 +38,10 @@ public interface SyncQueueManager extends Manager {
 
     public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 
-    void purgeAsyncJobQueueItemId(long asyncJobId);
+    /**
+     * @return id of the queue the job's item was purged from, null if the job was not queued
+     */
+    Long purgeAsyncJobQueueItemId(long asyncJobId);
 
     public void cleanupActiveQueueItems(Long msid, boolean exclusive);
 }
@@ -177,31 +177,35 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
 
     @Override
     @DB
-    public void purgeItem(final long queueItemId) {
+    public Long purgeItem(final long queueItemId) {
         try {
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            return Transaction.execute(new TransactionCallback<Long>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
+                public Long doInTransaction(TransactionStatus status) {
                     SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
-                    if(itemVO != null) {
-                        SyncQueueVO queueVO = _syncQueueDao.findById(itemVO.getQueueId());
+                    if(itemVO == null) {
+                        return null;
+                    }
 
-                        _syncQueueItemDao.expunge(itemVO.getId());
+                    SyncQueueVO queueVO = _syncQueueDao.findById(itemVO.getQueueId());
 
-                        // if item is active, reset queue information
-                        if (itemVO.getLastProcessMsid() != null) {
-                            queueVO.setLastUpdated(DateUtil.currentGMTTime());
-                            // decrement the count
-                            assert (queueVO.getQueueSize() > 0) : "Count reduce happens when it's already <= 0!";
-                            queueVO.setQueueSize(queueVO.getQueueSize() - 1);
-                            _syncQueueDao.update(queueVO.getId(), queueVO);
-                        }
+                    _syncQueueItemDao.expunge(itemVO.getId());
+
+                    // if item is active, reset queue information
+                    if (itemVO.getLastProcessMsid() != null) {
+                        queueVO.setLastUpdated(DateUtil.currentGMTTime());
+                        // decrement the count
+                        assert (queueVO.getQueueSize() > 0) : "Count reduce happens when it's already <= 0!";
+                        queueVO.setQueueSize(queueVO.getQueueSize() - 1);
+                        _syncQueueDao.update(queueVO.getId(), queueVO);
                     }
+                    return itemVO.getQueueId();
                 }
             });
         } catch (Exception e) {
             s_logger.error("Unexpected exception: ", e);
         }
+        return null;
     }
 
     @Override
@@ -255,11 +259,12 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     }
 
     @Override
-    public void purgeAsyncJobQueueItemId(long asyncJobId) {
+    public Long purgeAsyncJobQueueItemId(long asyncJobId) {
         Long itemId = _syncQueueItemDao.getQueueItemIdByContentIdAndType(asyncJobId, SyncQueueItem.AsyncJobContentType);
         if (itemId != null) {
-            purgeItem(itemId);
+            return purgeItem(itemId);
         }
+        return null;
     }
 
     @Override
@@ -0,0 +1,118 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.jobs.JobInfo;
+
+import com.cloud.utils.Predicate;
+
+/**
+ * Queued and waiting jobs are resumed by the wakeup events alone; start() is
+ * never called, so the heartbeat scan does not run here.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncJobManagerImplTest {
+    private static final long CHECK_INTERVAL = 60000;
+
+    @Mock
+    SyncQueueManager _queueMgr;
+
+    @Mock
+    AsyncJobDao _jobDao;
+
+    @Spy
+    MessageBus _messageBus = new MessageBusBase();
+
+    @InjectMocks
+    AsyncJobManagerImpl _jobMgr = new AsyncJobManagerImpl();
+
+    @Test
+    public void testQueuedJobIsDispatchedOnWakeup() {
+        SyncQueueVO queue = mock(SyncQueueVO.class);
+        when(queue.getId()).thenReturn(7L);
+        when(_queueMgr.queue(eq("VmWorkJobQueue"), eq(1L), anyString(), eq(42L), anyLong())).thenReturn(queue);
+        AsyncJob job = mock(AsyncJob.class);
+        when(job.getId()).thenReturn(42L);
+
+        _jobMgr.syncAsyncJobExecution(job, "VmWorkJobQueue", 1L, 1);
+
+        verify(_queueMgr, timeout(5000)).dequeueFromOne(eq(7L), anyLong());
+    }
+
+    @Test
+    public void testWaitingJobResumesOnJoinedJobCompletion() throws Exception {
+        AsyncJobVO waiting = new AsyncJobVO();
+        waiting.setStatus(JobInfo.Status.IN_PROGRESS);
+        when(_jobDao.findById(43L)).thenReturn(waiting);
+        AsyncJob job = mock(AsyncJob.class);
+        when(job.getId()).thenReturn(43L);
+
+        final AsyncJobVO joined = new AsyncJobVO();
+        joined.setStatus(JobInfo.Status.IN_PROGRESS);
+        Thread completer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                verify(_messageBus, timeout(5000)).subscribe(eq(AsyncJob.Topics.JOB_STATE), any(MessageSubscriber.class));
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // what completeAsyncJob() publishes once the joined job is done
+                joined.setStatus(JobInfo.Status.SUCCEEDED);
+                _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.LOCAL, 44L);
+            }
+        });
+        completer.start();
+
+        long start = System.currentTimeMillis();
+        boolean resumed = _jobMgr.waitAndCheck(job, new String[0], CHECK_INTERVAL, CHECK_INTERVAL, new Predicate() {
+            @Override
+            public boolean checkCondition() {
+                return joined.getStatus().done();
+            }
+        });
+        long waited = System.currentTimeMillis() - start;
+        completer.join(5000);
+
+        assertTrue(resumed);
+        assertTrue("Waited " + waited + " ms for the job state event", waited < CHECK_INTERVAL / 2);
+    }
+}
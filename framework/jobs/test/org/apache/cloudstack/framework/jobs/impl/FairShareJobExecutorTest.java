@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.jobs.impl.FairShareJobExecutor.Priority;
+
+public class FairShareJobExecutorTest {
+    private FairShareJobExecutor _executor;
+    private CountDownLatch _gate;
+    private final List<String> _order = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = new FairShareJobExecutor("Test-Job-Executor", 1, 4);
+        _gate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        // occupy the only worker so that everything submitted afterwards is queued
+        _executor.execute(Priority.NORMAL, 0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    _gate.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        _gate.countDown();
+        _executor.shutdown();
+    }
+
+    protected void submit(Priority priority, long accountId, final String name) {
+        _executor.execute(priority, accountId, new Runnable() {
+            @Override
+            public void run() {
+                _order.add(name);
+            }
+        });
+    }
+
+    protected void drain(int expected) throws InterruptedException {
+        _gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (_order.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, _order.size());
+    }
+
+    @Test
+    public void accountsTakeTurnsWithinAClass() throws Exception {
+        submit(Priority.NORMAL, 1, "a1");
+        submit(Priority.NORMAL, 1, "a2");
+        submit(Priority.NORMAL, 1, "a3");
+        submit(Priority.NORMAL, 2, "b1");
+        drain(4);
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), _order);
+    }
+
+    @Test
+    public void higherClassesGoFirstButLowerOnesAreNotStarved() throws Exception {
+        submit(Priority.LOW, 1, "low");
+        for (int i = 0; i < 4; i++) {
+            submit(Priority.HIGH, 1, "high" + i);
+        }
+        drain(5);
+        assertEquals("high0", _order.get(0));
+        assertTrue(_order.indexOf("low") < 4);
+    }
+
+    @Test
+    public void admissionIsBoundedPerClass() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            submit(Priority.LOW, i, "low" + i);
+        }
+        try {
+            submit(Priority.LOW, 5, "rejected");
+            fail("queue limit was not enforced");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        submit(Priority.HIGH, 5, "high");
+        assertEquals(Long.valueOf(1), _executor.getRejectedCounts().get("LOW"));
+        assertEquals(Integer.valueOf(4), _executor.getQueueDepths().get("LOW"));
+
+        drain(5);
+        assertEquals("high", _order.get(0));
+    }
+}
@@ -17,15 +17,21 @@
 package org.apache.cloudstack.ratelimit;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -33,8 +39,12 @@ import org.apache.cloudstack.acl.APIChecker;
 import org.apache.cloudstack.api.command.admin.ratelimit.ResetApiLimitCmd;
 import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
@@ -42,11 +52,22 @@ import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
 import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 @Component
-public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService {
+public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService, Configurable {
     private static final Logger s_logger = Logger.getLogger(ApiRateLimitServiceImpl.class);
 
+    private static final String SYNC_SUBJECT = "ApiRateLimit";
+
+    static final ConfigKey<String> ApiLimitCommandMax = new ConfigKey<String>("Advanced", String.class, "api.throttling.command.max", "",
+            "Comma separated list of api=max pairs, e.g. deployVirtualMachine=5. Each listed api gets its own limit per account and interval, on top of api.throttling.max",
+            false);
+
+    static final ConfigKey<Integer> ApiLimitClusterSyncInterval = new ConfigKey<Integer>("Advanced", Integer.class, "api.throttling.cluster.sync.interval", "0",
+            "Interval (in milliseconds) at which management servers share the api requests they have let through, so that limits apply to the whole cluster. 0 keeps limits per management server",
+            false);
+
     /**
      * True if api rate limiting is enabled
      */
@@ -62,7 +83,24 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
      */
     private int maxAllowed = 30;
 
-    private LimitStore _store = null;
+    /**
+     * Number of buckets above which idle, then least recently used, ones are
+     * dropped by the sweeper.
+     */
+    private int maxBuckets = 10000;
+
+    /**
+     * Per api limits, keyed by api name.
+     */
+    private Map<String, Integer> commandMaxAllowed = new HashMap<String, Integer>();
+
+    private boolean clustered = false;
+
+    private final ConcurrentHashMap<String, TokenBucket> _buckets = new ConcurrentHashMap<String, TokenBucket>(1024, 0.75f, 64);
+
+    private final AtomicBoolean _sweepPending = new AtomicBoolean();
+
+    private ScheduledExecutorService _executor;
 
     @Inject
     AccountService _accountService;
@@ -70,41 +108,193 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    ClusterManager _clusterMgr;
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
 
-        if (_store == null) {
-            // get global configured duration and max values
-            String isEnabled = _configDao.getValue(Config.ApiLimitEnabled.key());
-            if (isEnabled != null) {
-                enabled = Boolean.parseBoolean(isEnabled);
+        // get global configured duration and max values
+        String isEnabled = _configDao.getValue(Config.ApiLimitEnabled.key());
+        if (isEnabled != null) {
+            enabled = Boolean.parseBoolean(isEnabled);
+        }
+        String duration = _configDao.getValue(Config.ApiLimitInterval.key());
+        if (duration != null) {
+            timeToLive = Integer.parseInt(duration);
+        }
+        String maxReqs = _configDao.getValue(Config.ApiLimitMax.key());
+        if (maxReqs != null) {
+            maxAllowed = Integer.parseInt(maxReqs);
+        }
+        String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
+        if (cachesize != null) {
+            maxBuckets = Integer.parseInt(cachesize);
+        }
+        commandMaxAllowed = parseCommandMaxAllowed(ApiLimitCommandMax.value());
+        clustered = _clusterMgr != null && ApiLimitClusterSyncInterval.value() > 0;
+        s_logger.info("Api rate limit configured with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxBuckets=" + maxBuckets + ", commandMaxAllowed=" +
+                commandMaxAllowed + ", clustered=" + clustered);
+
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ApiRateLimit"));
+        int sweepInterval = Math.max(1, timeToLive);
+        _executor.scheduleWithFixedDelay(new BucketSweeper(), sweepInterval, sweepInterval, TimeUnit.SECONDS);
+        if (clustered) {
+            _clusterMgr.registerNotificationListener(SYNC_SUBJECT, new ClusterManager.NotificationListener() {
+                @Override
+                public void onNotification(String sourcePeer, String subject, String message) {
+                    consumeRemote(message);
+                }
+            });
+            int interval = ApiLimitClusterSyncInterval.value();
+            _executor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        reportToPeers();
+                    } catch (Throwable e) {
+                        s_logger.warn("Unable to share api request counts with peers", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    protected static Map<String, Integer> parseCommandMaxAllowed(String value) {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        if (value == null) {
+            return limits;
+        }
+        for (String pair : value.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2 || parts[0].trim().isEmpty()) {
+                if (!pair.trim().isEmpty()) {
+                    s_logger.warn("Ignoring malformed " + ApiLimitCommandMax.key() + " entry: " + pair);
+                }
+                continue;
+            }
+            try {
+                limits.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring malformed " + ApiLimitCommandMax.key() + " entry: " + pair);
+            }
+        }
+        return limits;
+    }
+
+    protected static String bucketKey(long accountId, String apiCommandName) {
+        return apiCommandName == null ? String.valueOf(accountId) : accountId + "/" + apiCommandName;
+    }
+
+    protected TokenBucket getBucket(String key, long now) {
+        TokenBucket bucket = _buckets.get(key);
+        if (bucket == null) {
+            bucket = new TokenBucket(timeToLive * 1000L, now);
+            TokenBucket existing = _buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            } else if (_buckets.size() > maxBuckets && _executor != null && _sweepPending.compareAndSet(false, true)) {
+                // trim in the background rather than scanning on the request path
+                _executor.execute(new BucketSweeper());
             }
-            String duration = _configDao.getValue(Config.ApiLimitInterval.key());
-            if (duration != null) {
-                timeToLive = Integer.parseInt(duration);
+        }
+        return bucket;
+    }
+
+    protected class BucketSweeper extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                sweepBuckets(System.currentTimeMillis());
+            } catch (Throwable e) {
+                s_logger.warn("Unable to drop unused api limit buckets", e);
             }
-            String maxReqs = _configDao.getValue(Config.ApiLimitMax.key());
-            if (maxReqs != null) {
-                maxAllowed = Integer.parseInt(maxReqs);
+        }
+    }
+
+    /**
+     * Drops the buckets nobody has used in the current interval, then, if
+     * there are still more than maxBuckets, the least recently used ones.
+     * Runs on the executor, so the request path never scans the buckets.
+     */
+    protected void sweepBuckets(long now) {
+        _sweepPending.set(false);
+        for (Iterator<TokenBucket> it = _buckets.values().iterator(); it.hasNext();) {
+            if (it.next().isIdle(now)) {
+                it.remove();
             }
-            // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
-            int maxElements = 10000;
-            String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
-            if (cachesize != null) {
-                maxElements = Integer.parseInt(cachesize);
+        }
+
+        int excess = _buckets.size() - maxBuckets;
+        if (excess <= 0) {
+            return;
+        }
+        List<Map.Entry<String, TokenBucket>> entries = new ArrayList<Map.Entry<String, TokenBucket>>(_buckets.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, TokenBucket>>() {
+            @Override
+            public int compare(Map.Entry<String, TokenBucket> e1, Map.Entry<String, TokenBucket> e2) {
+                long lastUsed1 = e1.getValue().getLastUsed();
+                long lastUsed2 = e2.getValue().getLastUsed();
+                return lastUsed1 < lastUsed2 ? -1 : (lastUsed1 == lastUsed2 ? 0 : 1);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements);
-            cacheStore.setCache(cache);
-            _store = cacheStore;
+        });
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            _buckets.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        s_logger.debug("Dropped " + excess + " least recently used api limit buckets above " + maxBuckets);
+    }
 
+    /**
+     * Sends the requests let through since the last report to the other
+     * management servers, one "key count" line per bucket.
+     */
+    protected void reportToPeers() {
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<String, TokenBucket> entry : _buckets.entrySet()) {
+            int tokens = entry.getValue().reportUnreported();
+            if (tokens > 0) {
+                message.append(entry.getKey()).append(' ').append(tokens).append('\n');
+            }
+        }
+        if (message.length() > 0) {
+            _clusterMgr.notifyPeers(SYNC_SUBJECT, message.toString());
         }
+    }
 
-        return true;
+    protected void consumeRemote(String message) {
+        long now = System.currentTimeMillis();
+        for (String line : message.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space <= 0) {
+                continue;
+            }
+            String key = line.substring(0, space);
+            int slash = key.indexOf('/');
+            Integer capacity = slash < 0 ? Integer.valueOf(maxAllowed) : commandMaxAllowed.get(key.substring(slash + 1));
+            if (capacity == null) {
+                continue;
+            }
+            try {
+                getBucket(key, now).consumeRemote(Integer.parseInt(line.substring(space + 1).trim()), capacity, now);
+            } catch (NumberFormatException e) {
+                s_logger.debug("Ignoring malformed api request count from peer: " + line);
+            }
+        }
     }
 
     @Override
@@ -112,19 +302,12 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
         ApiLimitResponse response = new ApiLimitResponse();
         response.setAccountId(caller.getUuid());
         response.setAccountName(caller.getAccountName());
-        StoreEntry entry = _store.get(caller.getId());
-        if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(caller.getId(), timeToLive);
-            response.setApiIssued(0);
-            response.setApiAllowed(maxAllowed);
-            response.setExpireAfter(timeToLive);
-        } else {
-            response.setApiIssued(entry.getCounter());
-            response.setApiAllowed(maxAllowed - entry.getCounter());
-            response.setExpireAfter(entry.getExpireDuration());
-        }
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = getBucket(bucketKey(caller.getId(), null), now);
+        int issued = bucket.getTaken(now);
+        response.setApiIssued(issued);
+        response.setApiAllowed(Math.max(0, maxAllowed - issued));
+        response.setExpireAfter(bucket.getRefillAfter(now));
 
         return response;
     }
@@ -132,9 +315,15 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public boolean resetApiLimit(Long accountId) {
         if (accountId != null) {
-            _store.create(accountId, timeToLive);
+            String prefix = accountId + "/";
+            for (Iterator<String> it = _buckets.keySet().iterator(); it.hasNext();) {
+                String key = it.next();
+                if (key.equals(accountId.toString()) || key.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
         } else {
-            _store.resetCounters();
+            _buckets.clear();
         }
         return true;
     }
@@ -151,27 +340,36 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             // no API throttling on root admin
             return true;
         }
-        StoreEntry entry = _store.get(accountId);
-
-        if (entry == null) {
 
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(accountId, timeToLive);
+        long now = System.currentTimeMillis();
+        TokenBucket accountBucket = getBucket(bucketKey(accountId, null), now);
+        TokenBucket bucket = accountBucket;
+        if (!bucket.tryConsume(maxAllowed, now, clustered)) {
+            throw limitReached(account, bucket, now);
         }
 
-        /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
+        Integer commandMax = apiCommandName == null ? null : commandMaxAllowed.get(apiCommandName);
+        if (commandMax != null) {
+            bucket = getBucket(bucketKey(accountId, apiCommandName), now);
+            if (!bucket.tryConsume(commandMax, now, clustered)) {
+                // the call is not made, so it does not count against the account
+                accountBucket.refund(now, clustered);
+                throw limitReached(account, bucket, now);
+            }
+        }
 
-        if (current <= maxAllowed) {
-            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
-            return true;
-        } else {
-            long expireAfter = entry.getExpireDuration();
-            // for this exception, we can just show the same message to user and admin users.
-            String msg = "The given user has reached his/her account api limit, please retry after " + expireAfter + " ms.";
-            s_logger.warn(msg);
-            throw new RequestLimitException(msg);
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + bucket.getTaken(now));
         }
+        return true;
+    }
+
+    private RequestLimitException limitReached(Account account, TokenBucket bucket, long now) {
+        long expireAfter = bucket.getRefillAfter(now);
+        // for this exception, we can just show the same message to user and admin users.
+        String msg = "The given user has reached his/her account api limit, please retry after " + expireAfter + " ms.";
+        s_logger.warn(msg);
+        return new RequestLimitException(msg);
     }
 
     @Override
@@ -182,6 +380,16 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
         return cmdList;
     }
 
+    @Override
+    public String getConfigComponentName() {
+        return ApiRateLimitService.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ApiLimitCommandMax, ApiLimitClusterSyncInterval};
+    }
+
     @Override
     public void setTimeToLive(int timeToLive) {
         this.timeToLive = timeToLive;
@@ -199,4 +407,11 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
     }
 
+    public void setCommandMaxAllowed(Map<String, Integer> commandMaxAllowed) {
+        this.commandMaxAllowed = commandMaxAllowed;
+    }
+
+    public void setMaxBuckets(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
 }
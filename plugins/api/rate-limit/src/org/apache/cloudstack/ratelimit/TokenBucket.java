@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket holding the api requests one account, or one account and api
+ * command, may still make in the current interval.  The bucket is filled up
+ * again at the start of every interval, counted from when it was created.
+ *
+ * The interval number and the tokens taken in it are packed into one long, so
+ * taking a token is a single compare-and-set and never blocks.
+ */
+public class TokenBucket {
+    private static final long WINDOW_MASK = 0x7fffffffL;
+
+    private final long _created;
+    private final long _intervalMs;
+
+    /* interval number << 32 | tokens taken in that interval */
+    private final AtomicLong _state = new AtomicLong();
+
+    /* tokens taken locally that have not been reported to the cluster yet */
+    private final AtomicInteger _unreported = new AtomicInteger();
+
+    /* when a token was last taken locally, for evicting the least recently used buckets */
+    private volatile long _lastUsed;
+
+    public TokenBucket(long intervalMs, long now) {
+        _created = now;
+        _lastUsed = now;
+        _intervalMs = Math.max(1, intervalMs);
+    }
+
+    protected long window(long now) {
+        return ((now - _created) / _intervalMs) & WINDOW_MASK;
+    }
+
+    protected int taken(long state, long window) {
+        return (state >>> 32) == window ? (int)state : 0;
+    }
+
+    /**
+     * Takes a token if any are left in the current interval.
+     *
+     * @param capacity number of tokens the bucket holds per interval
+     * @param track whether to remember the token for reportUnreported()
+     * @return false if the bucket is empty
+     */
+    public boolean tryConsume(int capacity, long now, boolean track) {
+        long window = window(now);
+        while (true) {
+            long state = _state.get();
+            int taken = taken(state, window);
+            if (taken >= capacity) {
+                return false;
+            }
+            if (_state.compareAndSet(state, (window << 32) | (taken + 1))) {
+                if (track) {
+                    _unreported.incrementAndGet();
+                }
+                _lastUsed = now;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by tryConsume() for a request that was then
+     * rejected by another bucket.  Nothing is given back once the interval
+     * the token was taken in is over.
+     */
+    public void refund(long now, boolean track) {
+        long window = window(now);
+        while (true) {
+            long state = _state.get();
+            int taken = taken(state, window);
+            if (taken == 0) {
+                return;
+            }
+            if (_state.compareAndSet(state, (window << 32) | (taken - 1))) {
+                break;
+            }
+        }
+        if (track) {
+            while (true) {
+                int unreported = _unreported.get();
+                if (unreported == 0 || _unreported.compareAndSet(unreported, unreported - 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes tokens used on other management servers, without going over
+     * capacity.
+     */
+    public void consumeRemote(int tokens, int capacity, long now) {
+        long window = window(now);
+        while (true) {
+            long state = _state.get();
+            int taken = Math.min(capacity, taken(state, window) + tokens);
+            if (_state.compareAndSet(state, (window << 32) | taken)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the tokens taken locally since the last call
+     */
+    public int reportUnreported() {
+        return _unreported.getAndSet(0);
+    }
+
+    public int getTaken(long now) {
+        return taken(_state.get(), window(now));
+    }
+
+    /**
+     * @return milliseconds until the bucket is filled up again
+     */
+    public long getRefillAfter(long now) {
+        return _intervalMs - (now - _created) % _intervalMs;
+    }
+
+    /**
+     * @return true if no token has been taken in the current interval
+     */
+    public boolean isIdle(long now) {
+        return getTaken(now) == 0 && _unreported.get() == 0;
+    }
+
+    public long getLastUsed() {
+        return _lastUsed;
+    }
+}
@@ -23,12 +23,17 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.ConfigurationException;
 
+import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -45,6 +50,7 @@ import com.cloud.user.User;
 import com.cloud.user.UserVO;
 
 public class ApiRateLimitTest {
+    private static final Logger s_logger = Logger.getLogger(ApiRateLimitTest.class);
 
     static ApiRateLimitServiceImpl s_limitService = new ApiRateLimitServiceImpl();
     static AccountService s_accountService = mock(AccountService.class);
@@ -88,8 +94,12 @@ public static void setUp() throws ConfigurationException {
     }
 
     private boolean isUnderLimit(User key) {
+        return isUnderLimit(key, null);
+    }
+
+    private boolean isUnderLimit(User key, String apiCommandName) {
         try {
-            s_limitService.checkAccess(key, null);
+            s_limitService.checkAccess(key, apiCommandName);
             return true;
         } catch (RequestLimitException ex) {
             return false;
@@ -250,4 +260,128 @@ public static void setUp() throws ConfigurationException {
 
     }
 
+    @Test
+    public void contendedAccountAllowsExactlyMax() throws Exception {
+        final int allowedRequests = 10000;
+        final int threads = 64;
+        final int requestsPerThread = 1000;
+        s_limitService.setMaxAllowed(allowedRequests);
+        s_limitService.setTimeToLive(60);
+
+        final User key = createFakeUser();
+        final AtomicInteger allowed = new AtomicInteger();
+        final CountDownLatch startGate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        for (int j = 0; j < requestsPerThread; j++) {
+                            if (isUnderLimit(key)) {
+                                allowed.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        executor.shutdown();
+        assertTrue("Clients did not finish in time", executor.awaitTermination(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals("Exactly " + allowedRequests + " requests should get through", allowedRequests, allowed.get());
+        s_logger.info(threads * requestsPerThread + " checks from " + threads + " threads on one account took " + elapsed / 1000000 + " ms, " +
+                elapsed / (threads * requestsPerThread) + " ns per check");
+    }
+
+    @Test
+    public void commandLimitIsAppliedOnTopOfAccountLimit() throws Exception {
+        Map<String, Integer> commandMax = new HashMap<String, Integer>();
+        commandMax.put("deployVirtualMachine", 2);
+        s_limitService.setMaxAllowed(10);
+        s_limitService.setTimeToLive(1);
+        s_limitService.setCommandMaxAllowed(commandMax);
+        try {
+            User key = createFakeUser();
+            assertTrue("First deploy should be allowed", isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue("Second deploy should be allowed", isUnderLimit(key, "deployVirtualMachine"));
+            assertFalse("Third deploy should be blocked", isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue("Other apis should still be allowed", isUnderLimit(key, "listVirtualMachines"));
+
+            ApiLimitResponse response = s_limitService.searchApiLimit(s_testAccount);
+            assertEquals("apiIssued should not count the blocked deploy", 3, response.getApiIssued());
+        } finally {
+            s_limitService.setCommandMaxAllowed(new HashMap<String, Integer>());
+        }
+    }
+
+    @Test
+    public void requestsFromPeersAreCounted() throws Exception {
+        s_limitService.setMaxAllowed(5);
+        s_limitService.setTimeToLive(1);
+
+        s_limitService.consumeRemote(s_testAccount.getId() + " 4\n");
+        User key = createFakeUser();
+        assertTrue("One request should be left", isUnderLimit(key));
+        assertFalse("Peer requests should count against the limit", isUnderLimit(key));
+    }
+
+    @Test
+    public void sweeperDropsIdleThenLeastRecentlyUsedBuckets() throws Exception {
+        s_limitService.setMaxBuckets(2);
+        try {
+            long now = System.currentTimeMillis();
+            TokenBucket idle = s_limitService.getBucket("1", now);
+            TokenBucket older = s_limitService.getBucket("2", now);
+            TokenBucket newer = s_limitService.getBucket("3", now);
+            TokenBucket newest = s_limitService.getBucket("4", now);
+            older.tryConsume(10, now, false);
+            newer.tryConsume(10, now + 1, false);
+            newest.tryConsume(10, now + 2, false);
+
+            s_limitService.sweepBuckets(now + 2);
+
+            assertFalse("Idle bucket should be dropped", idle == s_limitService.getBucket("1", now));
+            s_limitService.resetApiLimit(1L);
+            assertTrue("Recently used buckets should be kept", newest == s_limitService.getBucket("4", now));
+            assertTrue(newer == s_limitService.getBucket("3", now));
+            assertFalse("Least recently used bucket should be dropped above the cache size", older == s_limitService.getBucket("2", now));
+        } finally {
+            s_limitService.setMaxBuckets(10000);
+        }
+    }
+
+    @Test
+    public void commandLimitRejectionDoesNotUseAccountQuota() throws Exception {
+        s_limitService.setMaxAllowed(2);
+        s_limitService.setTimeToLive(10);
+        s_limitService.setCommandMaxAllowed(Collections.singletonMap("deployVirtualMachine", 1));
+        try {
+            User key = createFakeUser();
+            assertTrue(isUnderLimit(key, "deployVirtualMachine"));
+            assertFalse(isUnderLimit(key, "deployVirtualMachine"));
+            assertFalse(isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue("Rejected calls should not count against the account", isUnderLimit(key, "listVirtualMachines"));
+            assertFalse(isUnderLimit(key, "listVirtualMachines"));
+        } finally {
+            s_limitService.setCommandMaxAllowed(new HashMap<String, Integer>());
+        }
+    }
+
+    @Test
+    public void parseCommandMaxAllowed() {
+        Map<String, Integer> limits = ApiRateLimitServiceImpl.parseCommandMaxAllowed(" deployVirtualMachine=5, bogus, listHosts=x ,createVolume = 3");
+        assertEquals(2, limits.size());
+        assertEquals(Integer.valueOf(5), limits.get("deployVirtualMachine"));
+        assertEquals(Integer.valueOf(3), limits.get("createVolume"));
+        assertTrue(ApiRateLimitServiceImpl.parseCommandMaxAllowed("").isEmpty());
+    }
+
 }
@@ -276,6 +276,7 @@ public class HypervServerDiscoverer extends DiscovererBase implements Discoverer
             params.putAll(details);
 
             params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+            params.put("router.aggregation.command.batch.size", _configDao.getValue(Config.RouterAggregationCommandBatchSize.toString()));
 
             HypervDirectConnectResource resource = new HypervDirectConnectResource();
             resource.configure(agentIp, params);
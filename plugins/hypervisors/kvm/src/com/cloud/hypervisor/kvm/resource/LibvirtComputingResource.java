@@ -60,7 +60,11 @@ import org.libvirt.DomainInfo;
 import org.libvirt.DomainInfo.DomainState;
 import org.libvirt.DomainInterfaceStats;
 import org.libvirt.LibvirtException;
+import org.libvirt.Library;
 import org.libvirt.NodeInfo;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.LifecycleListener;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
@@ -69,6 +73,7 @@ import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
 import com.cloud.agent.api.SetupGuestNetworkCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupStorageCommand;
@@ -225,6 +230,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     protected String _pool;
     protected String _localGateway;
     private boolean _canBridgeFirewall;
+    // last complete security group ruleset programmed per vm, the base for delta updates
+    private final Map<String, SecurityGroupRulesCmd> _appliedNetworkRules = new ConcurrentHashMap<String, SecurityGroupRulesCmd>();
     protected String _localStoragePath;
     protected String _localStorageUUID;
     protected boolean _noMemBalloon = false;
@@ -245,6 +252,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
 
+    // pings carry the VM states that libvirt events reported as changed, with a
+    // full report from all domains every this many pings
+    private static final int DEFAULT_FULL_VM_STATE_REPORT_INTERVAL = 10;
+    private LibvirtDomainStateCache _domainStateCache = new LibvirtDomainStateCache(DEFAULT_FULL_VM_STATE_REPORT_INTERVAL);
+    private boolean _domainEventsEnabled;
+    private final Map<String, Connect> _domainEventConnections = new HashMap<String, Connect>();
+
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
         s_powerStatesTable = new HashMap<DomainState, PowerState>();
@@ -800,6 +814,15 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             _noKvmClock = true;
         }
 
+        value = (String)params.get("vm.state.full.report.interval");
+        _domainStateCache = new LibvirtDomainStateCache(NumbersUtil.parseInt(value, DEFAULT_FULL_VM_STATE_REPORT_INTERVAL));
+
+        // the event loop has to be in place before the first connection is opened
+        value = (String)params.get("libvirt.events.enable");
+        if (value == null || Boolean.parseBoolean(value)) {
+            _domainEventsEnabled = startLibvirtEventLoop();
+        }
+
         LibvirtConnection.initialize(_hypervisorURI);
         Connect conn = null;
         try {
@@ -2366,12 +2389,154 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public PingCommand getCurrentStatus(final long id) {
+        final long startTick = System.currentTimeMillis();
+        final boolean fullReport = !registerDomainEventListeners() || _domainStateCache.isFullReportDue();
+        final Map<String, HostVmStateReportEntry> vmStates;
+        if (fullReport) {
+            // the scan sees whatever these events were about
+            _domainStateCache.drainChangedDomains();
+            vmStates = _domainStateCache.fullReport(this.getHostVmStateReport());
+        } else {
+            updateChangedDomainStates();
+            vmStates = _domainStateCache.incrementalReport();
+        }
+        _domainStateCache.reportCollected(fullReport, System.currentTimeMillis() - startTick);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Collected " + (fullReport ? "full" : "incremental") + " VM state report of " + vmStates.size() + " VMs in "
+                    + (System.currentTimeMillis() - startTick) + " ms, " + _domainStateCache.getStatsReport());
+        }
 
+        final PingRoutingCommand ping;
         if (!_canBridgeFirewall) {
-            return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
+            ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, vmStates);
         } else {
             final HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-            return new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
+            ping = new PingRoutingWithNwGroupsCommand(getType(), id, vmStates, nwGrpStates);
+        }
+        ping.setIncrementalReport(!fullReport);
+        return ping;
+    }
+
+    private boolean startLibvirtEventLoop() {
+        try {
+            Library.initEventLoop();
+        } catch (final LibvirtException | LinkageError e) {
+            s_logger.warn("Unable to start the libvirt event loop, VM states will be collected from all domains on every ping: " + e.getMessage());
+            return false;
+        }
+
+        final Thread eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Library.processEvent();
+                    } catch (final LibvirtException e) {
+                        s_logger.warn("Failed to process libvirt events: " + e.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (final InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "LibvirtEventLoop");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+        return true;
+    }
+
+    private class DomainStateListener implements LifecycleListener {
+        private final String _hypervisorType;
+
+        DomainStateListener(final String hypervisorType) {
+            _hypervisorType = hypervisorType;
+        }
+
+        @Override
+        public int onLifecycleChange(final Domain domain, final DomainEvent event) {
+            // the state is looked up when the next ping is built, not on the event loop
+            try {
+                final boolean stopped = event.getType() == DomainEventType.STOPPED || event.getType() == DomainEventType.UNDEFINED;
+                _domainStateCache.domainChanged(domain.getName(), _hypervisorType, stopped);
+            } catch (final LibvirtException e) {
+                s_logger.debug("Unable to get the domain of a lifecycle event, sending a full VM state report next: " + e.getMessage());
+                _domainStateCache.invalidate();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Makes sure there is a lifecycle listener on the current connection of each
+     * hypervisor type; a new connection means events may have been missed.
+     *
+     * @return whether pings can rely on events for VM state changes
+     */
+    private boolean registerDomainEventListeners() {
+        if (!_domainEventsEnabled) {
+            return false;
+        }
+
+        final List<String> hypervisorTypes = new ArrayList<String>();
+        if (_hypervisorType == HypervisorType.LXC) {
+            hypervisorTypes.add(HypervisorType.LXC.toString());
+        }
+        hypervisorTypes.add(HypervisorType.KVM.toString());
+
+        try {
+            for (final String hypervisorType : hypervisorTypes) {
+                final Connect conn = LibvirtConnection.getConnectionByType(hypervisorType);
+                if (conn != _domainEventConnections.get(hypervisorType)) {
+                    conn.addLifecycleListener(new DomainStateListener(hypervisorType));
+                    _domainEventConnections.put(hypervisorType, conn);
+                    _domainStateCache.invalidate();
+                }
+            }
+            return true;
+        } catch (final LibvirtException e) {
+            s_logger.warn("Unable to listen for libvirt domain events: " + e.getMessage());
+            _domainEventConnections.clear();
+            return false;
+        } catch (final LinkageError e) {
+            s_logger.warn("Libvirt java bindings do not support domain events, VM states will be collected from all domains on every ping: " + e.getMessage());
+            _domainEventsEnabled = false;
+            return false;
+        }
+    }
+
+    private void updateChangedDomainStates() {
+        for (final Map.Entry<String, LibvirtDomainStateCache.DomainChange> entry : _domainStateCache.drainChangedDomains().entrySet()) {
+            final String vmName = entry.getKey();
+            Domain dm = null;
+            try {
+                final Connect conn = LibvirtConnection.getConnectionByType(entry.getValue().getHypervisorType());
+                try {
+                    dm = conn.domainLookupByName(vmName);
+                } catch (final LibvirtException e) {
+                    if (entry.getValue().isStopped()) {
+                        // a transient domain is gone once it stops
+                        _domainStateCache.updateDomainState(vmName, null);
+                        continue;
+                    }
+                    throw e;
+                }
+
+                final PowerState state = convertToPowerState(dm.getInfo().state);
+                _domainStateCache.updateDomainState(vmName, new HostVmStateReportEntry(state, conn.getHostName()));
+            } catch (final LibvirtException e) {
+                s_logger.warn("Unable to get the state of vm " + vmName + ", sending a full VM state report next: " + e.getMessage());
+                _domainStateCache.invalidate();
+            } finally {
+                try {
+                    if (dm != null) {
+                        dm.free();
+                    }
+                } catch (final LibvirtException e) {
+                    s_logger.trace("Ignoring libvirt error.", e);
+                }
+            }
         }
     }
 
@@ -2394,6 +2559,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     @Override
     public StartupCommand[] initialize() {
 
+        // the management server starts over with the VM states of this host
+        _domainStateCache.invalidate();
+
         final List<Object> info = getHostInfo();
 
         final StartupRoutingCommand cmd =
@@ -2403,6 +2571,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         fillNetworkInformation(cmd);
         _privateIp = cmd.getPrivateIpAddress();
         cmd.getHostDetails().putAll(getVersionStrings());
+        cmd.getHostDetails().put(SecurityGroupRulesCmd.RULESET_DELTA_DETAIL, Boolean.TRUE.toString());
         cmd.setPool(_pool);
         cmd.setCluster(_clusterId);
         cmd.setGatewayIpAddress(_localGateway);
@@ -3022,6 +3191,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
+        return getVmStat(conn, vmName, null);
+    }
+
+    /**
+     * @param node the host info of the connection, read once for all the VMs of a
+     * stats pass; null to read it here
+     */
+    public VmStatsEntry getVmStat(final Connect conn, final String vmName, final NodeInfo node) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
@@ -3043,8 +3220,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
                 double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
+                utilization = utilization / (node != null ? node : conn.nodeInfo()).cpus;
                 if (utilization > 0) {
                     stats.setCPUUtilization(utilization * 100);
                 }
@@ -3145,6 +3321,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             final InterfaceDef intf = intfs.get(0);
             vif = intf.getDevName();
         }
+        _appliedNetworkRules.remove(vmName);
         final Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
         cmd.add("destroy_network_rules_for_vm");
         cmd.add("--vmname", vmName);
@@ -3241,6 +3418,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    public SecurityGroupRulesCmd getAppliedNetworkRules(final String vmName) {
+        return _appliedNetworkRules.get(vmName);
+    }
+
+    public void setAppliedNetworkRules(final String vmName, final SecurityGroupRulesCmd rules) {
+        _appliedNetworkRules.put(vmName, rules);
+    }
+
     public boolean addNetworkRules(final String vmName, final String vmId, final String guestIP, final String sig, final String seq, final String mac, final String rules, final String vif, final String brname,
             final String secIps) {
         if (!_canBridgeFirewall) {
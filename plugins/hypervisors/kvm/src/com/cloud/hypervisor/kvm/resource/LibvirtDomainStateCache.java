@@ -0,0 +1,184 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Keeps the power state of the domains on the host between pings, so that a
+ * ping can carry only the domains whose state changed since the last report
+ * instead of going through every domain in libvirt.
+ *
+ * Libvirt lifecycle events only name the domains that changed; their state is
+ * looked up when the next report is built.  A full report, from going through
+ * all domains, is sent every fullReportInterval pings and whenever the cache
+ * may have missed events, e.g. after the agent (re)connects.
+ */
+public class LibvirtDomainStateCache {
+
+    public static class DomainChange {
+        private final String _hypervisorType;
+        private final boolean _stopped;
+
+        public DomainChange(String hypervisorType, boolean stopped) {
+            _hypervisorType = hypervisorType;
+            _stopped = stopped;
+        }
+
+        public String getHypervisorType() {
+            return _hypervisorType;
+        }
+
+        /**
+         * @return whether the last event said the domain stopped or went away,
+         * in which case not finding it any more is expected
+         */
+        public boolean isStopped() {
+            return _stopped;
+        }
+    }
+
+    private final int _fullReportInterval;
+
+    // powered on domains, like a full report holds them
+    private final Map<String, HostVmStateReportEntry> _domainStates = new HashMap<String, HostVmStateReportEntry>();
+    // what the management server got in the last report
+    private final Map<String, HostVmStateReportEntry> _reportedStates = new HashMap<String, HostVmStateReportEntry>();
+    // domains named by lifecycle events since they were last looked up
+    private final Map<String, DomainChange> _changedDomains = new HashMap<String, DomainChange>();
+
+    private boolean _fullReportNeeded = true;
+    private int _reportsSinceFullReport;
+
+    private long _events;
+    private long _fullReports;
+    private long _incrementalReports;
+    private long _fullReportMillis;
+    private long _incrementalReportMillis;
+    private long _maxReportMillis;
+
+    public LibvirtDomainStateCache(int fullReportInterval) {
+        _fullReportInterval = fullReportInterval;
+    }
+
+    /**
+     * Called from the libvirt event loop when a lifecycle event comes in for a domain.
+     */
+    public synchronized void domainChanged(String vmName, String hypervisorType, boolean stopped) {
+        _changedDomains.put(vmName, new DomainChange(hypervisorType, stopped));
+        _events++;
+    }
+
+    /**
+     * @return the domains named by events since the previous call
+     */
+    public synchronized Map<String, DomainChange> drainChangedDomains() {
+        Map<String, DomainChange> changed = new HashMap<String, DomainChange>(_changedDomains);
+        _changedDomains.clear();
+        return changed;
+    }
+
+    /**
+     * Records the state of a domain that was looked up after an event, null when the
+     * domain is no longer there.
+     */
+    public synchronized void updateDomainState(String vmName, HostVmStateReportEntry state) {
+        if (state != null && state.getState() == PowerState.PowerOn) {
+            _domainStates.put(vmName, state);
+        } else {
+            _domainStates.remove(vmName);
+        }
+    }
+
+    /**
+     * Makes the next report a full one, for when events may have been missed.
+     */
+    public synchronized void invalidate() {
+        _fullReportNeeded = true;
+    }
+
+    public synchronized boolean isFullReportDue() {
+        return _fullReportNeeded || _reportsSinceFullReport + 1 >= _fullReportInterval;
+    }
+
+    /**
+     * Replaces the cached states with those found going through all domains.
+     *
+     * @return the report to send
+     */
+    public synchronized Map<String, HostVmStateReportEntry> fullReport(Map<String, HostVmStateReportEntry> vmStates) {
+        _domainStates.clear();
+        for (Map.Entry<String, HostVmStateReportEntry> entry : vmStates.entrySet()) {
+            updateDomainState(entry.getKey(), entry.getValue());
+        }
+        _reportedStates.clear();
+        _reportedStates.putAll(_domainStates);
+        _fullReportNeeded = false;
+        _reportsSinceFullReport = 0;
+        return vmStates;
+    }
+
+    /**
+     * @return the domains whose state changed since the last report, those
+     * no longer powered on as PowerOff
+     */
+    public synchronized Map<String, HostVmStateReportEntry> incrementalReport() {
+        Map<String, HostVmStateReportEntry> changes = new HashMap<String, HostVmStateReportEntry>();
+        for (Map.Entry<String, HostVmStateReportEntry> entry : _domainStates.entrySet()) {
+            HostVmStateReportEntry reported = _reportedStates.get(entry.getKey());
+            if (reported == null || reported.getState() != entry.getValue().getState()) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, HostVmStateReportEntry> entry : _reportedStates.entrySet()) {
+            if (!_domainStates.containsKey(entry.getKey())) {
+                changes.put(entry.getKey(), new HostVmStateReportEntry(PowerState.PowerOff, entry.getValue().getHost()));
+            }
+        }
+        _reportedStates.clear();
+        _reportedStates.putAll(_domainStates);
+        _reportsSinceFullReport++;
+        return changes;
+    }
+
+    public synchronized void reportCollected(boolean fullReport, long millis) {
+        if (fullReport) {
+            _fullReports++;
+            _fullReportMillis += millis;
+        } else {
+            _incrementalReports++;
+            _incrementalReportMillis += millis;
+        }
+        if (millis > _maxReportMillis) {
+            _maxReportMillis = millis;
+        }
+    }
+
+    public synchronized int size() {
+        return _domainStates.size();
+    }
+
+    public synchronized String getStatsReport() {
+        return "domains: " + _domainStates.size() + ", events: " + _events + ", full reports: " + _fullReports + ", average full report time: "
+                + (_fullReports > 0 ? _fullReportMillis / _fullReports : 0) + " ms, incremental reports: " + _incrementalReports + ", average incremental report time: "
+                + (_incrementalReports > 0 ? _incrementalReportMillis / _incrementalReports : 0) + " ms, max report time: " + _maxReportMillis + " ms";
+    }
+}
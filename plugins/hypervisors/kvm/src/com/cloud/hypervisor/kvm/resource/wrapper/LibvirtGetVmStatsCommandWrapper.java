@@ -21,10 +21,12 @@ package com.cloud.hypervisor.kvm.resource.wrapper;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
+import org.libvirt.NodeInfo;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.GetVmStatsAnswer;
@@ -42,15 +44,23 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
     @Override
     public Answer execute(final GetVmStatsCommand command, final LibvirtComputingResource libvirtComputingResource) {
         final List<String> vmNames = command.getVmNames();
+        final long startTick = System.currentTimeMillis();
         try {
             final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+            // the host info is the same for every VM of a connection, read it once per pass
+            final Map<Connect, NodeInfo> nodeInfos = new HashMap<Connect, NodeInfo>();
             for (final String vmName : vmNames) {
 
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
-
                 final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
                 try {
-                    final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
+                    NodeInfo node = nodeInfos.get(conn);
+                    if (node == null) {
+                        node = conn.nodeInfo();
+                        nodeInfos.put(conn, node);
+                    }
+
+                    final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName, node);
                     if (statEntry == null) {
                         continue;
                     }
@@ -60,7 +70,14 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
                     s_logger.warn("Can't get vm stats: " + e.toString() + ", continue");
                 }
             }
-            return new GetVmStatsAnswer(command, vmStatsNameMap);
+
+            final long collectionTime = System.currentTimeMillis() - startTick;
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Collected the stats of " + vmStatsNameMap.size() + " of " + vmNames.size() + " vms in " + collectionTime + " ms");
+            }
+            final GetVmStatsAnswer answer = new GetVmStatsAnswer(command, vmStatsNameMap);
+            answer.setCollectionTimeMillis(collectionTime);
+            return answer;
         } catch (final LibvirtException e) {
             s_logger.debug("Can't get vm stats: " + e.toString());
             return new GetVmStatsAnswer(command, null);
@@ -39,7 +39,18 @@ public final class LibvirtSecurityGroupRulesCommandWrapper extends CommandWrappe
     private static final Logger s_logger = Logger.getLogger(LibvirtSecurityGroupRulesCommandWrapper.class);
 
     @Override
-    public Answer execute(final SecurityGroupRulesCmd command, final LibvirtComputingResource libvirtComputingResource) {
+    public Answer execute(final SecurityGroupRulesCmd cmd, final LibvirtComputingResource libvirtComputingResource) {
+        SecurityGroupRulesCmd command = cmd;
+        if (cmd.isDelta()) {
+            final SecurityGroupRulesCmd base = libvirtComputingResource.getAppliedNetworkRules(cmd.getVmName());
+            if (base == null || !cmd.getBaseSeqNum().equals(base.getSeqNum())) {
+                s_logger.debug("Cannot apply security group rules delta for vm " + cmd.getVmName() + " on top of seqno " + cmd.getBaseSeqNum() + ", host has " +
+                        (base == null ? "no rules" : "seqno " + base.getSeqNum()));
+                return new SecurityGroupRuleAnswer(cmd, false, "ruleset sequence mismatch", SecurityGroupRuleAnswer.FailureReason.SEQUENCE_MISMATCH);
+            }
+            command = cmd.applyTo(base);
+        }
+
         String vif = null;
         String brname = null;
         try {
@@ -61,6 +72,7 @@ public final class LibvirtSecurityGroupRulesCommandWrapper extends CommandWrappe
             s_logger.warn("Failed to program network rules for vm " + command.getVmName());
             return new SecurityGroupRuleAnswer(command, false, "programming network rules failed");
         } else {
+            libvirtComputingResource.setAppliedNetworkRules(command.getVmName(), command);
             s_logger.debug("Programmed network rules for vm " + command.getVmName() + " guestIp=" + command.getGuestIp() + ",ingress numrules="
                     + command.getIngressRuleSet().length + ",egress numrules=" + command.getEgressRuleSet().length);
             return new SecurityGroupRuleAnswer(command);
@@ -0,0 +1,163 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class LibvirtDomainStateCacheTest {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainStateCacheTest.class);
+
+    private static final String HOST = "kvm-host";
+    private static final String KVM = "KVM";
+
+    private static Map<String, HostVmStateReportEntry> runningVms(int count) {
+        Map<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < count; i++) {
+            vmStates.put("i-2-" + i + "-VM", new HostVmStateReportEntry(PowerState.PowerOn, HOST));
+        }
+        return vmStates;
+    }
+
+    @Test
+    public void testFirstReportIsFull() {
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(10);
+        Assert.assertTrue(cache.isFullReportDue());
+
+        Map<String, HostVmStateReportEntry> report = cache.fullReport(runningVms(3));
+        Assert.assertEquals(3, report.size());
+        Assert.assertEquals(3, cache.size());
+        Assert.assertFalse(cache.isFullReportDue());
+    }
+
+    @Test
+    public void testIncrementalReportCarriesChanges() {
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(10);
+        cache.fullReport(runningVms(3));
+        Assert.assertTrue(cache.incrementalReport().isEmpty());
+
+        cache.domainChanged("i-2-9-VM", KVM, false);
+        cache.domainChanged("i-2-0-VM", KVM, true);
+        Map<String, LibvirtDomainStateCache.DomainChange> changed = cache.drainChangedDomains();
+        Assert.assertEquals(2, changed.size());
+        Assert.assertFalse(changed.get("i-2-9-VM").isStopped());
+        Assert.assertTrue(changed.get("i-2-0-VM").isStopped());
+        Assert.assertEquals(KVM, changed.get("i-2-0-VM").getHypervisorType());
+        Assert.assertTrue(cache.drainChangedDomains().isEmpty());
+
+        cache.updateDomainState("i-2-9-VM", new HostVmStateReportEntry(PowerState.PowerOn, HOST));
+        cache.updateDomainState("i-2-0-VM", null);
+        Map<String, HostVmStateReportEntry> report = cache.incrementalReport();
+        Assert.assertEquals(2, report.size());
+        Assert.assertEquals(PowerState.PowerOn, report.get("i-2-9-VM").getState());
+        Assert.assertEquals(PowerState.PowerOff, report.get("i-2-0-VM").getState());
+        Assert.assertEquals(HOST, report.get("i-2-0-VM").getHost());
+
+        // reported once
+        Assert.assertTrue(cache.incrementalReport().isEmpty());
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testVmOffAgainBeforeReportIsNotReported() {
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(10);
+        cache.fullReport(runningVms(1));
+
+        cache.updateDomainState("i-2-5-VM", new HostVmStateReportEntry(PowerState.PowerOn, HOST));
+        cache.updateDomainState("i-2-5-VM", new HostVmStateReportEntry(PowerState.PowerOff, HOST));
+        Assert.assertTrue(cache.incrementalReport().isEmpty());
+    }
+
+    @Test
+    public void testFullReportEveryInterval() {
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(3);
+        cache.fullReport(runningVms(2));
+        Assert.assertFalse(cache.isFullReportDue());
+        cache.incrementalReport();
+        Assert.assertFalse(cache.isFullReportDue());
+        cache.incrementalReport();
+        Assert.assertTrue(cache.isFullReportDue());
+
+        cache.fullReport(runningVms(2));
+        Assert.assertFalse(cache.isFullReportDue());
+        cache.invalidate();
+        Assert.assertTrue(cache.isFullReportDue());
+    }
+
+    @Test
+    public void testFullReportReplacesStates() {
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(10);
+        cache.fullReport(runningVms(3));
+        cache.updateDomainState("i-2-7-VM", new HostVmStateReportEntry(PowerState.PowerOn, HOST));
+
+        cache.fullReport(runningVms(2));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.incrementalReport().isEmpty());
+    }
+
+    /**
+     * A day of pings from a host with 40 VMs of which one starts or stops every
+     * ten minutes: the pings carry the changes, with a full report every 10 pings.
+     */
+    @Test
+    public void testPingPayloadOverADay() {
+        final int vms = 40;
+        LibvirtDomainStateCache cache = new LibvirtDomainStateCache(10);
+        Map<String, HostVmStateReportEntry> host = runningVms(vms);
+
+        int entries = 0;
+        for (int ping = 0; ping < 24 * 60; ping++) {
+            if (ping % 10 == 5) {
+                String vmName = "i-2-" + (ping / 10 % vms) + "-VM";
+                boolean stop = host.containsKey(vmName);
+                if (stop) {
+                    host.remove(vmName);
+                } else {
+                    host.put(vmName, new HostVmStateReportEntry(PowerState.PowerOn, HOST));
+                }
+                cache.domainChanged(vmName, KVM, stop);
+            }
+
+            long startTick = System.nanoTime();
+            boolean full = cache.isFullReportDue();
+            Map<String, HostVmStateReportEntry> report;
+            if (full) {
+                cache.drainChangedDomains();
+                report = cache.fullReport(new HashMap<String, HostVmStateReportEntry>(host));
+            } else {
+                for (String vmName : cache.drainChangedDomains().keySet()) {
+                    cache.updateDomainState(vmName, host.get(vmName));
+                }
+                report = cache.incrementalReport();
+            }
+            cache.reportCollected(full, (System.nanoTime() - startTick) / 1000000);
+            entries += report.size();
+        }
+
+        Assert.assertEquals(host.size(), cache.size());
+        Assert.assertTrue(entries < 24 * 60 * vms / 5);
+        s_logger.info("A day of pings carried " + entries + " VM states instead of " + (24 * 60 * vms) + ", " + cache.getStatsReport());
+    }
+}
@@ -386,6 +386,7 @@ public class VmwareServerDiscoverer extends DiscovererBase implements Discoverer
                 params.put("publicTrafficInfo", publicTrafficLabelObj);
 
                 params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+                params.put("router.aggregation.command.batch.size", _configDao.getValue(Config.RouterAggregationCommandBatchSize.toString()));
 
                 VmwareResource resource = new VmwareResource();
                 try {
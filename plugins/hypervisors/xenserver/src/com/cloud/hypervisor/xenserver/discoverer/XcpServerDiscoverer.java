@@ -341,6 +341,7 @@ public class XcpServerDiscoverer extends DiscovererBase implements Discoverer, L
                 params.put("securitygroupenabled", Boolean.toString(securityGroupEnabled));
 
                 params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+                params.put("router.aggregation.command.batch.size", _configDao.getValue(Config.RouterAggregationCommandBatchSize.toString()));
                 params.put("wait", Integer.toString(_wait));
                 details.put("wait", Integer.toString(_wait));
                 params.put("migratewait", _configDao.getValue(Config.MigrateWait.toString()));
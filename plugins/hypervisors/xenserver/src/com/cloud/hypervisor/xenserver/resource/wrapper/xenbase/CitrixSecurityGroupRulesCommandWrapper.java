@@ -47,6 +47,11 @@ public final class CitrixSecurityGroupRulesCommandWrapper extends CommandWrapper
                     SecurityGroupRuleAnswer.FailureReason.CANNOT_BRIDGE_FIREWALL);
         }
 
+        if (command.isDelta()) {
+            // no copy of the programmed rules is kept here to apply a delta to
+            return new SecurityGroupRuleAnswer(command, false, "ruleset deltas are not supported", SecurityGroupRuleAnswer.FailureReason.SEQUENCE_MISMATCH);
+        }
+
         final String result = citrixResourceBase.callHostPlugin(conn, "vmops", "network_rules", "vmName", command.getVmName(), "vmIP", command.getGuestIp(), "vmMAC",
                 command.getGuestMac(), "vmID", Long.toString(command.getVmId()), "signature", command.getSignature(), "seqno", Long.toString(command.getSeqNum()), "deflated",
                 "true", "rules", command.compressStringifiedRules(), "secIps", command.getSecIpsString());
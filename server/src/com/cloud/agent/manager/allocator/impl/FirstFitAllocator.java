@@ -30,6 +30,7 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -277,6 +278,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         long serviceOfferingId = offering.getId();
         List<Host> suitableHosts = new ArrayList<Host>();
         ServiceOfferingDetailsVO offeringDetails = null;
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -311,15 +313,21 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
             int cpu_requested = offering.getCpu() * offering.getSpeed();
             long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+            // The index may be behind changes made by other management servers,
+            // so it only rules hosts out; the database has the final say.
+            CapacityIndex.HostCapacity hostCapacity = capacityIndex != null ? capacityIndex.getHost(host.getId()) : null;
+            boolean hostHasCapacity = hostCapacity == null || capacityIndex.hasCapacity(hostCapacity, cpu_requested, ram_requested, considerReservedCapacity);
+            if (hostHasCapacity) {
+                Cluster cluster = _clusterDao.findById(host.getClusterId());
+                ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+                ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+                Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
+                Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+                hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
+                    considerReservedCapacity);
+            }
 
             boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
-                considerReservedCapacity);
 
             if (hostHasCpuCapability && hostHasCapacity) {
                 if (s_logger.isDebugEnabled()) {
@@ -350,7 +358,9 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         if("RAM".equalsIgnoreCase(capacityTypeToOrder)){
             capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
         }
-        List<Long> hostIdsByFreeCapacity = _capacityDao.orderHostsByFreeCapacity(clusterId, capacityType);
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        List<Long> hostIdsByFreeCapacity = capacityIndex != null ? capacityIndex.orderHostsByFreeCapacity(clusterId, capacityType) :
+            _capacityDao.orderHostsByFreeCapacity(clusterId, capacityType);
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("List of hosts in descending order of free capacity in the cluster: "+ hostIdsByFreeCapacity);
         }
@@ -17,6 +17,7 @@
 package com.cloud.api;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -238,6 +239,7 @@ import com.cloud.server.ResourceMetaDataService;
 import com.cloud.server.ResourceTag;
 import com.cloud.server.ResourceTag.ResourceObjectType;
 import com.cloud.server.StatsCollector;
+import com.cloud.server.StatsTimeSeries;
 import com.cloud.server.TaggedResourceService;
 import com.cloud.service.ServiceOfferingDetailsVO;
 import com.cloud.service.ServiceOfferingVO;
@@ -905,6 +907,14 @@ public class ApiDBUtils {
         return s_statsCollector.getVmStats(hostId);
     }
 
+    public static List<StatsTimeSeries.Point> getVmStatisticsHistory(long vmId, StatsTimeSeries.Resolution resolution, Date from, Date to) {
+        return s_statsCollector.getVmStatsHistory(vmId, resolution, from, to);
+    }
+
+    public static List<StatsTimeSeries.Point> getHostStatisticsHistory(long hostId, StatsTimeSeries.Resolution resolution, Date from, Date to) {
+        return s_statsCollector.getHostStatsHistory(hostId, resolution, from, to);
+    }
+
     public static StorageStats getSecondaryStorageStatistics(long id) {
         return s_statsCollector.getStorageStats(id);
     }
@@ -1637,6 +1647,10 @@ public class ApiDBUtils {
         return s_userVmJoinDao.newUserVmResponse(view, objectName, userVm, details, caller);
     }
 
+    public static List<UserVmResponse> newUserVmResponses(ResponseView view, String objectName, EnumSet<VMDetails> details, UserVmJoinVO... userVms) {
+        return s_userVmJoinDao.newUserVmResponses(view, objectName, details, userVms);
+    }
+
     public static UserVmResponse fillVmDetails(ResponseView view, UserVmResponse vmData, UserVmJoinVO vm) {
         return s_userVmJoinDao.setUserVmResponse(view, vmData, vm);
     }
@@ -147,6 +147,7 @@ import javax.servlet.http.HttpSession;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -170,6 +171,7 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -474,6 +476,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
+        return handleRequest(params, responseType, auditTrailSb, null);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb, final Writer out) throws ServerApiException {
         checkCharacterInkParams(params);
 
         String response = null;
@@ -526,7 +534,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
                     // This is where the command is either serialized, or directly dispatched
                     StringBuilder log = new StringBuilder();
-                    response = queueCommand(cmdObj, paramMap, log);
+                    response = queueCommand(cmdObj, paramMap, log, out);
                     buildAuditTrail(auditTrailSb, command[0], log.toString());
                 } else {
                     final String errorString = "Unknown API command: " + command[0];
@@ -612,7 +620,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
     }
 
-    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params, StringBuilder log) throws Exception {
+    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params, StringBuilder log, final Writer out) throws Exception {
         final CallContext ctx = CallContext.current();
         final Long callerUserId = ctx.getCallingUserId();
         final Account caller = ctx.getCallingAccount();
@@ -679,7 +687,14 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                     injectedJobId);
             job.setDispatcher(_asyncDispatcher.getName());
 
-            final long jobId = _asyncMgr.submitAsyncJob(job);
+            final long jobId;
+            try {
+                jobId = _asyncMgr.submitAsyncJob(job);
+            } catch (final RejectedExecutionException e) {
+                // job executors are saturated, tell the client to back off instead of queueing without bound
+                s_logger.info("Unable to schedule async job for command " + job.getCmd() + ": " + e.getMessage());
+                throw new ServerApiException(ApiErrorCode.API_LIMIT_EXCEED, "There are too many jobs pending, please retry later");
+            }
 
             if (jobId == 0L) {
                 final String errorMsg = "Unable to schedule async job for command " + job.getCmd();
@@ -712,7 +727,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedStringWithSecureLogs((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), log);
+            final ResponseObject responseObject = (ResponseObject)cmdObj.getResponseObject();
+            if (out != null && responseObject instanceof ListResponse && ((ListResponse<?>)responseObject).isPaged()) {
+                ApiResponseSerializer.writeListResponse((ListResponse<?>)responseObject, cmdObj.getResponseType(), out, log);
+                return null;
+            }
+            return ApiResponseSerializer.toSerializedStringWithSecureLogs(responseObject, cmdObj.getResponseType(), log);
         }
     }
 
@@ -44,7 +44,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.util.Arrays;
@@ -153,6 +155,7 @@ public class ApiServlet extends HttpServlet {
             s_logger.debug("===START=== " + reqStr);
         }
 
+        StreamedResponseWriter streamedResponse = null;
         try {
 
             if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
@@ -294,8 +297,11 @@ public class ApiServlet extends HttpServlet {
 
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[] {req.getMethod()});
-                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                streamedResponse = new StreamedResponseWriter(resp, responseType);
+                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb, streamedResponse);
+                if (!streamedResponse.isStarted()) {
+                    HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                }
             } else {
                 if (session != null) {
                     try {
@@ -312,9 +318,14 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (final ServerApiException se) {
-            final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
-            resp.setHeader("X-Description", se.getDescription());
-            HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.getJSONContentType());
+            if (streamedResponse != null && streamedResponse.isStarted()) {
+                // Part of the response has gone out already, all we can do is cut it short
+                s_logger.warn("Failed to stream api response: " + se.getDescription());
+            } else {
+                final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
+                resp.setHeader("X-Description", se.getDescription());
+                HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.getJSONContentType());
+            }
             auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
         } catch (final Exception ex) {
             s_logger.error("unknown exception writing api response", ex);
@@ -329,6 +340,63 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Writer that ApiServer streams large list responses into.  The status and
+     * headers are set when the first characters are written, before the
+     * container can commit the response.
+     */
+    static class StreamedResponseWriter extends Writer {
+        private final HttpServletResponse _resp;
+        private final String _responseType;
+        private Writer _out;
+
+        StreamedResponseWriter(final HttpServletResponse resp, final String responseType) {
+            _resp = resp;
+            _responseType = responseType;
+        }
+
+        boolean isStarted() {
+            return _out != null;
+        }
+
+        private Writer start() throws IOException {
+            if (_out == null) {
+                if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(_responseType)) {
+                    _resp.setContentType(ApiServer.getJSONContentType());
+                } else if (HttpUtils.RESPONSE_TYPE_XML.equalsIgnoreCase(_responseType)) {
+                    _resp.setContentType(HttpUtils.XML_CONTENT_TYPE);
+                }
+                _resp.setStatus(HttpServletResponse.SC_OK);
+                HttpUtils.addSecurityHeaders(_resp);
+                _out = _resp.getWriter();
+            }
+            return _out;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            start().write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(final String str) throws IOException {
+            start().write(str);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (_out != null) {
+                _out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the container owns the underlying writer
+            flush();
+        }
+    }
+
     //This method will try to get login IP of user even if servlet is behind reverseProxy or loadBalancer
     static String getClientAddress(final HttpServletRequest request) {
         for(final String header : s_clientAddressHeaders) {
@@ -18,6 +18,7 @@ package com.cloud.api.query;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +32,7 @@ import org.apache.cloudstack.affinity.AffinityGroupResponse;
 import org.apache.cloudstack.affinity.AffinityGroupVMMapVO;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDomainMapDao;
 import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.api.ApiConstants.VMDetails;
 import org.apache.cloudstack.api.BaseListProjectAndAccountResourcesCmd;
 import org.apache.cloudstack.api.ResourceDetail;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
@@ -756,12 +758,22 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
     @Override
     public ListResponse<UserVmResponse> searchForUserVMs(ListVMsCmd cmd) {
-        Pair<List<UserVmJoinVO>, Integer> result = searchForUserVMsInternal(cmd);
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
         ResponseView respView = ResponseView.Restricted;
         if (cmd instanceof ListVMsCmdByAdmin) {
             respView = ResponseView.Full;
         }
+
+        // Pages larger than a batch are read and serialized a batch at a time
+        Long pageSize = cmd.getPageSizeVal();
+        int batchSize = ListStreamBatchSize.value();
+        if (batchSize > 0 && (pageSize == null || pageSize > batchSize)) {
+            UserVmResponsePager pager = new UserVmResponsePager(cmd, respView, batchSize);
+            response.setPagedResponses(pager, pager.getCount());
+            return response;
+        }
+
+        Pair<List<UserVmJoinVO>, Integer> result = searchForUserVMsInternal(cmd);
         List<UserVmResponse> vmResponses = ViewResponseHelper.createUserVmResponse(respView, "virtualmachine", cmd.getDetails(),
                 result.first().toArray(new UserVmJoinVO[result.first().size()]));
 
@@ -769,7 +781,104 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         return response;
     }
 
+    /**
+     * Reads the vms of a listVirtualMachines page in id order, one batch at a
+     * time.  The first batch starts at the requested start index; every later
+     * one continues after the last id seen (keyset pagination), so reading a
+     * batch does not get slower the further into the result it is.
+     */
+    private class UserVmResponsePager implements ListResponse.Pager<UserVmResponse> {
+        private final SearchCriteria<UserVmJoinVO> _sc;
+        private final ResponseView _view;
+        private final EnumSet<VMDetails> _details;
+        private final int _batchSize;
+        private final int _count;
+        private Long _remaining;
+        private List<UserVmJoinVO> _firstBatch;
+        private Long _lastId;
+        private boolean _done;
+
+        UserVmResponsePager(ListVMsCmd cmd, ResponseView view, int batchSize) {
+            _sc = createUserVmSearchCriteria(cmd);
+            _view = view;
+            _details = cmd.getDetails();
+            _batchSize = batchSize;
+            _remaining = cmd.getPageSizeVal();
+
+            Long startIndex = cmd.getStartIndex();
+            Filter filter = new Filter(UserVmJoinVO.class, "id", true, startIndex == null ? 0L : startIndex, nextBatchSize());
+            Pair<List<UserVmJoinVO>, Integer> first = _userVmJoinDao.searchAndDistinctCount(_sc, filter);
+            _firstBatch = first.first();
+            _count = first.second();
+        }
+
+        int getCount() {
+            return _count;
+        }
+
+        private long nextBatchSize() {
+            return _remaining == null ? _batchSize : Math.min(_batchSize, _remaining);
+        }
+
+        @Override
+        public List<UserVmResponse> nextPage() {
+            List<UserVmJoinVO> uniqueVms;
+            long limit = nextBatchSize();
+            if (_firstBatch != null) {
+                uniqueVms = _firstBatch;
+                _firstBatch = null;
+            } else if (_done || limit <= 0) {
+                return new ArrayList<UserVmResponse>();
+            } else {
+                _sc.setParameters("idGT", _lastId);
+                uniqueVms = _userVmJoinDao.search(_sc, new Filter(UserVmJoinVO.class, "id", true, 0L, limit));
+            }
+
+            if (uniqueVms.size() < limit) {
+                _done = true;
+            }
+            if (uniqueVms.isEmpty()) {
+                return new ArrayList<UserVmResponse>();
+            }
+
+            Long[] vmIds = new Long[uniqueVms.size()];
+            int i = 0;
+            for (UserVmJoinVO v : uniqueVms) {
+                vmIds[i++] = v.getId();
+            }
+            _lastId = vmIds[vmIds.length - 1];
+            if (_remaining != null) {
+                _remaining -= vmIds.length;
+            }
+
+            List<UserVmJoinVO> vms = _userVmJoinDao.searchByIds(vmIds);
+            return ViewResponseHelper.createUserVmResponse(_view, "virtualmachine", _details, vms.toArray(new UserVmJoinVO[vms.size()]));
+        }
+    }
+
     private Pair<List<UserVmJoinVO>, Integer> searchForUserVMsInternal(ListVMsCmd cmd) {
+        Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(),
+                cmd.getPageSizeVal());
+        SearchCriteria<UserVmJoinVO> sc = createUserVmSearchCriteria(cmd);
+
+        // search vm details by ids
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndDistinctCount(sc, searchFilter);
+        Integer count = uniqueVmPair.second();
+        if (count.intValue() == 0) {
+            // handle empty result cases
+            return uniqueVmPair;
+        }
+        List<UserVmJoinVO> uniqueVms = uniqueVmPair.first();
+        Long[] vmIds = new Long[uniqueVms.size()];
+        int i = 0;
+        for (UserVmJoinVO v : uniqueVms) {
+            vmIds[i++] = v.getId();
+        }
+        List<UserVmJoinVO> vms = _userVmJoinDao.searchByIds(vmIds);
+        return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
+    }
+
+    private SearchCriteria<UserVmJoinVO> createUserVmSearchCriteria(ListVMsCmd cmd) {
         Account caller = CallContext.current().getCallingAccount();
         List<Long> permittedAccounts = new ArrayList<Long>();
 
@@ -786,9 +895,6 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(),
-                cmd.getPageSizeVal());
-
         List<Long> ids = null;
         if (cmd.getId() != null) {
             if (cmd.getIds() != null && !cmd.getIds().isEmpty()) {
@@ -845,6 +951,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
         sb.and("displayName", sb.entity().getDisplayName(), SearchCriteria.Op.LIKE);
         sb.and("idIN", sb.entity().getId(), SearchCriteria.Op.IN);
+        sb.and("idGT", sb.entity().getId(), SearchCriteria.Op.GT);
         sb.and("name", sb.entity().getName(), SearchCriteria.Op.LIKE);
         sb.and("stateEQ", sb.entity().getState(), SearchCriteria.Op.EQ);
         sb.and("stateNEQ", sb.entity().getState(), SearchCriteria.Op.NEQ);
@@ -1013,21 +1120,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         if (!isRootAdmin) {
             sc.setParameters("displayVm", 1);
         }
-        // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndDistinctCount(sc, searchFilter);
-        Integer count = uniqueVmPair.second();
-        if (count.intValue() == 0) {
-            // handle empty result cases
-            return uniqueVmPair;
-        }
-        List<UserVmJoinVO> uniqueVms = uniqueVmPair.first();
-        Long[] vmIds = new Long[uniqueVms.size()];
-        int i = 0;
-        for (UserVmJoinVO v : uniqueVms) {
-            vmIds[i++] = v.getId();
-        }
-        List<UserVmJoinVO> vms = _userVmJoinDao.searchByIds(vmIds);
-        return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
+        return sc;
     }
 
     @Override
@@ -3689,6 +3782,6 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {AllowUserViewDestroyedVM};
+        return new ConfigKey<?>[] {AllowUserViewDestroyedVM, ListStreamBatchSize};
     }
 }
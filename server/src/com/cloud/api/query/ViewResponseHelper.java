@@ -130,23 +130,7 @@ public class ViewResponseHelper {
     }
 
     public static List<UserVmResponse> createUserVmResponse(ResponseView view, String objectName, EnumSet<VMDetails> details, UserVmJoinVO... userVms) {
-        Account caller = CallContext.current().getCallingAccount();
-
-        Hashtable<Long, UserVmResponse> vmDataList = new Hashtable<Long, UserVmResponse>();
-        // Initialise the vmdatalist with the input data
-
-        for (UserVmJoinVO userVm : userVms) {
-            UserVmResponse userVmData = vmDataList.get(userVm.getId());
-            if (userVmData == null) {
-                // first time encountering this vm
-                userVmData = ApiDBUtils.newUserVmResponse(view, objectName, userVm, details, caller);
-            } else{
-                // update nics, securitygroups, tags, affinitygroups for 1 to many mapping fields
-                userVmData = ApiDBUtils.fillVmDetails(view, userVmData, userVm);
-            }
-            vmDataList.put(userVm.getId(), userVmData);
-        }
-        return new ArrayList<UserVmResponse>(vmDataList.values());
+        return ApiDBUtils.newUserVmResponses(view, objectName, details, userVms);
     }
 
     public static List<DomainRouterResponse> createDomainRouterResponse(DomainRouterJoinVO... routers) {
@@ -34,6 +34,7 @@ import org.apache.cloudstack.api.ApiConstants.HostDetails;
 import org.apache.cloudstack.api.response.GpuResponse;
 import org.apache.cloudstack.api.response.HostForMigrationResponse;
 import org.apache.cloudstack.api.response.HostResponse;
+import org.apache.cloudstack.api.response.StatsPointResponse;
 import org.apache.cloudstack.api.response.VgpuResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 
@@ -46,6 +47,9 @@ import com.cloud.host.HostStats;
 import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor;
+import com.cloud.server.StatsTimeSeries;
+import com.cloud.server.StatsTimeSeries.Metric;
+import com.cloud.server.StatsTimeSeries.Resolution;
 import com.cloud.storage.StorageStats;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
@@ -186,6 +190,24 @@ public class HostJoinDaoImpl extends GenericDaoBase<HostJoinVO, Long> implements
                 }
             }
 
+            if (details.contains(HostDetails.statshistory)) {
+                // the last hour, one point per minute
+                Date to = new Date();
+                Date from = new Date(to.getTime() - Resolution.OneMinute.getMillis() * Resolution.OneMinute.getSlots());
+                List<StatsPointResponse> statsHistory = new ArrayList<StatsPointResponse>();
+                for (StatsTimeSeries.Point point : ApiDBUtils.getHostStatisticsHistory(host.getId(), Resolution.OneMinute, from, to)) {
+                    StatsPointResponse pointResponse = new StatsPointResponse();
+                    pointResponse.setTimestamp(new Date(point.getTime()));
+                    pointResponse.setCpuUsed(decimalFormat.format(point.getValue(Metric.CpuUtilization)) + "%");
+                    pointResponse.setNetworkKbsRead((long)point.getValue(Metric.NetworkReadKBs));
+                    pointResponse.setNetworkKbsWrite((long)point.getValue(Metric.NetworkWriteKBs));
+                    // in bytes, like the memory used of the host
+                    pointResponse.setMemoryUsed((long)point.getValue(Metric.UsedMemoryKBs) * 1024L);
+                    statsHistory.add(pointResponse);
+                }
+                hostResponse.setStatsHistory(statsHistory);
+            }
+
             if (details.contains(HostDetails.all) && host.getHypervisorType() == Hypervisor.HypervisorType.KVM) {
                 //only kvm has the requirement to return host details
                 try {
@@ -34,6 +34,13 @@ public interface UserVmJoinDao extends GenericDao<UserVmJoinVO, Long> {
 
     UserVmResponse setUserVmResponse(ResponseView view, UserVmResponse userVmData, UserVmJoinVO uvo);
 
+    /**
+     * Builds the responses for the vms in a set of user_vm_view rows.  The
+     * users, details, secondary ips and tags they refer to are read with one
+     * query per relation for all the rows rather than one per row.
+     */
+    List<UserVmResponse> newUserVmResponses(ResponseView view, String objectName, EnumSet<VMDetails> details, UserVmJoinVO... userVms);
+
     List<UserVmJoinVO> newUserVmView(UserVm... userVms);
 
     List<UserVmJoinVO> searchByIds(Long... ids);
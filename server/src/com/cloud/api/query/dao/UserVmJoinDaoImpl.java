@@ -18,9 +18,13 @@ package com.cloud.api.query.dao;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,6 +40,7 @@ import org.apache.cloudstack.api.ResponseObject.ResponseView;
 import org.apache.cloudstack.api.response.NicResponse;
 import org.apache.cloudstack.api.response.NicSecondaryIpResponse;
 import org.apache.cloudstack.api.response.SecurityGroupResponse;
+import org.apache.cloudstack.api.response.StatsPointResponse;
 import org.apache.cloudstack.api.response.UserVmResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 
@@ -44,10 +49,15 @@ import com.cloud.api.query.vo.ResourceTagJoinVO;
 import com.cloud.api.query.vo.UserVmJoinVO;
 import com.cloud.gpu.GPU;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.server.StatsTimeSeries;
+import com.cloud.server.StatsTimeSeries.Metric;
+import com.cloud.server.StatsTimeSeries.Resolution;
 import com.cloud.service.ServiceOfferingDetailsVO;
+import com.cloud.service.dao.ServiceOfferingDetailsDao;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.User;
+import com.cloud.user.UserVO;
 import com.cloud.user.dao.UserDao;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.db.GenericDaoBase;
@@ -57,6 +67,7 @@ import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.VmDetailConstants;
 import com.cloud.vm.VmStats;
+import com.cloud.vm.dao.NicSecondaryIpDao;
 import com.cloud.vm.dao.NicSecondaryIpVO;
 import com.cloud.vm.dao.UserVmDetailsDao;
 
@@ -72,6 +83,12 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
     private UserVmDetailsDao _userVmDetailsDao;
     @Inject
     private UserDao _userDao;
+    @Inject
+    private ServiceOfferingDetailsDao _serviceOfferingDetailsDao;
+    @Inject
+    private NicSecondaryIpDao _nicSecondaryIpDao;
+    @Inject
+    private ResourceTagJoinDao _tagJoinDao;
 
     private final SearchBuilder<UserVmJoinVO> VmDetailSearch;
     private final SearchBuilder<UserVmJoinVO> activeVmByIsoSearch;
@@ -102,6 +119,29 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
 
     @Override
     public UserVmResponse newUserVmResponse(ResponseView view, String objectName, UserVmJoinVO userVm, EnumSet<VMDetails> details, Account caller) {
+        return newUserVmResponse(view, objectName, userVm, details, new RelatedEntities());
+    }
+
+    @Override
+    public List<UserVmResponse> newUserVmResponses(ResponseView view, String objectName, EnumSet<VMDetails> details, UserVmJoinVO... userVms) {
+        RelatedEntities related = new RelatedEntities();
+        related.load(details, userVms);
+
+        // a vm has one row per nic, security group, tag and affinity group
+        Map<Long, UserVmResponse> vmDataList = new LinkedHashMap<Long, UserVmResponse>();
+        for (UserVmJoinVO userVm : userVms) {
+            UserVmResponse userVmData = vmDataList.get(userVm.getId());
+            if (userVmData == null) {
+                userVmData = newUserVmResponse(view, objectName, userVm, details, related);
+            } else {
+                userVmData = setUserVmResponse(userVmData, userVm, related);
+            }
+            vmDataList.put(userVm.getId(), userVmData);
+        }
+        return new ArrayList<UserVmResponse>(vmDataList.values());
+    }
+
+    private UserVmResponse newUserVmResponse(ResponseView view, String objectName, UserVmJoinVO userVm, EnumSet<VMDetails> details, RelatedEntities related) {
         UserVmResponse userVmResponse = new UserVmResponse();
 
         if (userVm.getHypervisorType() != null) {
@@ -123,7 +163,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
             userVmResponse.setAccountName(userVm.getAccountName());
         }
 
-        User user = _userDao.getUser(userVm.getUserId());
+        User user = related.getUser(userVm.getUserId());
         if (user != null) {
             userVmResponse.setUserId(user.getUuid());
             userVmResponse.setUserName(user.getUsername());
@@ -173,9 +213,9 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
             userVmResponse.setCpuNumber(userVm.getCpu());
             userVmResponse.setCpuSpeed(userVm.getSpeed());
             userVmResponse.setMemory(userVm.getRamSize());
-            ServiceOfferingDetailsVO serviceOfferingDetail = ApiDBUtils.findServiceOfferingDetail(userVm.getServiceOfferingId(), GPU.Keys.vgpuType.toString());
-            if (serviceOfferingDetail != null) {
-                userVmResponse.setVgpu(serviceOfferingDetail.getValue());
+            String vgpuType = related.getVgpuType(userVm.getServiceOfferingId());
+            if (vgpuType != null) {
+                userVmResponse.setVgpu(vgpuType);
             }
         }
         userVmResponse.setGuestOsId(userVm.getGuestOsUuid());
@@ -219,6 +259,27 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
             }
         }
 
+        if (details.contains(VMDetails.statshistory)) {
+            // the last hour, one point per minute
+            Date to = new Date();
+            Date from = new Date(to.getTime() - Resolution.OneMinute.getMillis() * Resolution.OneMinute.getSlots());
+            DecimalFormat decimalFormat = new DecimalFormat("#.##");
+            List<StatsPointResponse> statsHistory = new ArrayList<StatsPointResponse>();
+            for (StatsTimeSeries.Point point : ApiDBUtils.getVmStatisticsHistory(userVm.getId(), Resolution.OneMinute, from, to)) {
+                StatsPointResponse pointResponse = new StatsPointResponse();
+                pointResponse.setTimestamp(new Date(point.getTime()));
+                pointResponse.setCpuUsed(decimalFormat.format(point.getValue(Metric.CpuUtilization)) + "%");
+                pointResponse.setNetworkKbsRead((long)point.getValue(Metric.NetworkReadKBs));
+                pointResponse.setNetworkKbsWrite((long)point.getValue(Metric.NetworkWriteKBs));
+                pointResponse.setDiskKbsRead((long)point.getValue(Metric.DiskReadKBs));
+                pointResponse.setDiskKbsWrite((long)point.getValue(Metric.DiskWriteKBs));
+                pointResponse.setDiskIORead((long)point.getValue(Metric.DiskReadIOs));
+                pointResponse.setDiskIOWrite((long)point.getValue(Metric.DiskWriteIOs));
+                statsHistory.add(pointResponse);
+            }
+            userVmResponse.setStatsHistory(statsHistory);
+        }
+
         if (details.contains(VMDetails.all) || details.contains(VMDetails.secgrp)) {
             Long securityGroupId = userVm.getSecurityGroupId();
             if (securityGroupId != null && securityGroupId.longValue() != 0) {
@@ -264,7 +325,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
                     nicResponse.setType(userVm.getGuestType().toString());
                 }
                 nicResponse.setIsDefault(userVm.isDefaultNic());
-                List<NicSecondaryIpVO> secondaryIps = ApiDBUtils.findNicSecondaryIps(userVm.getNicId());
+                List<NicSecondaryIpVO> secondaryIps = related.getSecondaryIps(userVm.getNicId());
                 if (secondaryIps != null) {
                     List<NicSecondaryIpResponse> ipList = new ArrayList<NicSecondaryIpResponse>();
                     for (NicSecondaryIpVO ip : secondaryIps) {
@@ -283,7 +344,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
         // update tag information
         long tag_id = userVm.getTagId();
         if (tag_id > 0 && !userVmResponse.containTag(tag_id)) {
-            ResourceTagJoinVO vtag = ApiDBUtils.findResourceTagViewById(tag_id);
+            ResourceTagJoinVO vtag = related.getTag(tag_id);
             if (vtag != null) {
                 userVmResponse.addTag(ApiDBUtils.newResourceTagResponse(vtag, false));
             }
@@ -304,10 +365,10 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
 
         // set resource details map
         // only hypervisortoolsversion can be returned to the end user
-        UserVmDetailVO hypervisorToolsVersion = _userVmDetailsDao.findDetail(userVm.getId(), VmDetailConstants.HYPERVISOR_TOOLS_VERSION);
+        String hypervisorToolsVersion = related.getHypervisorToolsVersion(userVm.getId());
         if (hypervisorToolsVersion != null) {
             Map<String, String> resourceDetails = new HashMap<String, String>();
-            resourceDetails.put(hypervisorToolsVersion.getName(), hypervisorToolsVersion.getValue());
+            resourceDetails.put(VmDetailConstants.HYPERVISOR_TOOLS_VERSION, hypervisorToolsVersion);
             userVmResponse.setDetails(resourceDetails);
         }
 
@@ -323,6 +384,10 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
 
     @Override
     public UserVmResponse setUserVmResponse(ResponseView view, UserVmResponse userVmData, UserVmJoinVO uvo) {
+        return setUserVmResponse(userVmData, uvo, new RelatedEntities());
+    }
+
+    private UserVmResponse setUserVmResponse(UserVmResponse userVmData, UserVmJoinVO uvo, RelatedEntities related) {
         Long securityGroupId = uvo.getSecurityGroupId();
         if (securityGroupId != null && securityGroupId.longValue() != 0) {
             SecurityGroupResponse resp = new SecurityGroupResponse();
@@ -365,7 +430,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
                 nicResponse.setType(uvo.getGuestType().toString());
             }
             nicResponse.setIsDefault(uvo.isDefaultNic());
-            List<NicSecondaryIpVO> secondaryIps = ApiDBUtils.findNicSecondaryIps(uvo.getNicId());
+            List<NicSecondaryIpVO> secondaryIps = related.getSecondaryIps(uvo.getNicId());
             if (secondaryIps != null) {
                 List<NicSecondaryIpResponse> ipList = new ArrayList<NicSecondaryIpResponse>();
                 for (NicSecondaryIpVO ip : secondaryIps) {
@@ -383,7 +448,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
 
         long tag_id = uvo.getTagId();
         if (tag_id > 0 && !userVmData.containTag(tag_id)) {
-            ResourceTagJoinVO vtag = ApiDBUtils.findResourceTagViewById(tag_id);
+            ResourceTagJoinVO vtag = related.getTag(tag_id);
             if (vtag != null) {
                 userVmData.addTag(ApiDBUtils.newResourceTagResponse(vtag, false));
             }
@@ -403,40 +468,139 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
         return userVmData;
     }
 
-    @Override
-    public List<UserVmJoinVO> searchByIds(Long... vmIds) {
-        // set detail batch query size
-        int DETAILS_BATCH_SIZE = 2000;
+    private int getDetailsBatchSize() {
+        int batchSize = 2000;
         String batchCfg = _configDao.getValue("detail.batch.query.size");
         if (batchCfg != null) {
-            DETAILS_BATCH_SIZE = Integer.parseInt(batchCfg);
+            batchSize = Integer.parseInt(batchCfg);
         }
-        // query details by batches
-        List<UserVmJoinVO> uvList = new ArrayList<UserVmJoinVO>();
-        // query details by batches
-        int curr_index = 0;
-        if (vmIds.length > DETAILS_BATCH_SIZE) {
-            while ((curr_index + DETAILS_BATCH_SIZE) <= vmIds.length) {
-                Long[] ids = new Long[DETAILS_BATCH_SIZE];
-                for (int k = 0, j = curr_index; j < curr_index + DETAILS_BATCH_SIZE; j++, k++) {
-                    ids[k] = vmIds[j];
+        return batchSize;
+    }
+
+    private static List<List<Long>> partition(Set<Long> ids, int batchSize) {
+        List<List<Long>> batches = new ArrayList<List<Long>>();
+        List<Long> batch = new ArrayList<Long>(Math.min(ids.size(), batchSize));
+        for (Long id : ids) {
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<Long>(batchSize);
+            }
+            batch.add(id);
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * The users, offering and vm details, nic secondary ips and tags referred
+     * to by user_vm_view rows.  load() reads them for a whole page of rows
+     * with one IN query per relation and batch of ids; a RelatedEntities that
+     * has not been loaded looks each one up as it is asked for.
+     */
+    private class RelatedEntities {
+        private boolean _loaded;
+        private final Map<Long, User> _users = new HashMap<Long, User>();
+        private final Map<Long, String> _vgpuTypes = new HashMap<Long, String>();
+        private final Map<Long, String> _toolsVersions = new HashMap<Long, String>();
+        private final Map<Long, List<NicSecondaryIpVO>> _secondaryIps = new HashMap<Long, List<NicSecondaryIpVO>>();
+        private final Map<Long, ResourceTagJoinVO> _tags = new HashMap<Long, ResourceTagJoinVO>();
+
+        void load(EnumSet<VMDetails> details, UserVmJoinVO... userVms) {
+            Set<Long> userIds = new HashSet<Long>();
+            Set<Long> offeringIds = new HashSet<Long>();
+            Set<Long> vmIds = new HashSet<Long>();
+            Set<Long> nicIds = new HashSet<Long>();
+            Set<Long> tagIds = new HashSet<Long>();
+            boolean offerings = details.contains(VMDetails.all) || details.contains(VMDetails.servoff) || details.contains(VMDetails.stats);
+            for (UserVmJoinVO userVm : userVms) {
+                userIds.add(userVm.getUserId());
+                vmIds.add(userVm.getId());
+                if (offerings) {
+                    offeringIds.add(userVm.getServiceOfferingId());
+                }
+                if (userVm.getNicId() > 0) {
+                    nicIds.add(userVm.getNicId());
+                }
+                if (userVm.getTagId() > 0) {
+                    tagIds.add(userVm.getTagId());
                 }
-                SearchCriteria<UserVmJoinVO> sc = VmDetailSearch.create();
-                sc.setParameters("idIN", ids);
-                List<UserVmJoinVO> vms = searchIncludingRemoved(sc, null, null, false);
-                if (vms != null) {
-                    uvList.addAll(vms);
+            }
+
+            int batchSize = getDetailsBatchSize();
+            for (List<Long> ids : partition(userIds, batchSize)) {
+                for (UserVO user : _userDao.listByIds(ids)) {
+                    _users.put(user.getId(), user);
+                }
+            }
+            for (List<Long> ids : partition(offeringIds, batchSize)) {
+                for (ServiceOfferingDetailsVO detail : _serviceOfferingDetailsDao.findDetails(ids, GPU.Keys.vgpuType.toString())) {
+                    _vgpuTypes.put(detail.getResourceId(), detail.getValue());
+                }
+            }
+            for (List<Long> ids : partition(vmIds, batchSize)) {
+                for (UserVmDetailVO detail : _userVmDetailsDao.findDetails(ids, VmDetailConstants.HYPERVISOR_TOOLS_VERSION)) {
+                    _toolsVersions.put(detail.getResourceId(), detail.getValue());
+                }
+            }
+            for (List<Long> ids : partition(nicIds, batchSize)) {
+                for (NicSecondaryIpVO ip : _nicSecondaryIpDao.listByNicIds(ids)) {
+                    List<NicSecondaryIpVO> ips = _secondaryIps.get(ip.getNicId());
+                    if (ips == null) {
+                        ips = new ArrayList<NicSecondaryIpVO>();
+                        _secondaryIps.put(ip.getNicId(), ips);
+                    }
+                    ips.add(ip);
+                }
+            }
+            if (!tagIds.isEmpty()) {
+                for (ResourceTagJoinVO tag : _tagJoinDao.searchByIds(tagIds.toArray(new Long[tagIds.size()]))) {
+                    _tags.put(tag.getId(), tag);
                 }
-                curr_index += DETAILS_BATCH_SIZE;
             }
+            _loaded = true;
+        }
+
+        User getUser(long userId) {
+            return _loaded ? _users.get(userId) : _userDao.getUser(userId);
+        }
+
+        String getVgpuType(long serviceOfferingId) {
+            if (_loaded) {
+                return _vgpuTypes.get(serviceOfferingId);
+            }
+            ServiceOfferingDetailsVO detail = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString());
+            return detail == null ? null : detail.getValue();
         }
-        if (curr_index < vmIds.length) {
-            int batch_size = (vmIds.length - curr_index);
-            // set the ids value
-            Long[] ids = new Long[batch_size];
-            for (int k = 0, j = curr_index; j < curr_index + batch_size; j++, k++) {
-                ids[k] = vmIds[j];
+
+        String getHypervisorToolsVersion(long vmId) {
+            if (_loaded) {
+                return _toolsVersions.get(vmId);
             }
+            UserVmDetailVO detail = _userVmDetailsDao.findDetail(vmId, VmDetailConstants.HYPERVISOR_TOOLS_VERSION);
+            return detail == null ? null : detail.getValue();
+        }
+
+        List<NicSecondaryIpVO> getSecondaryIps(long nicId) {
+            if (!_loaded) {
+                return _nicSecondaryIpDao.listByNicId(nicId);
+            }
+            List<NicSecondaryIpVO> ips = _secondaryIps.get(nicId);
+            return ips == null ? new ArrayList<NicSecondaryIpVO>() : ips;
+        }
+
+        ResourceTagJoinVO getTag(long tagId) {
+            return _loaded ? _tags.get(tagId) : _tagJoinDao.searchById(tagId);
+        }
+    }
+
+    @Override
+    public List<UserVmJoinVO> searchByIds(Long... vmIds) {
+        int batchSize = getDetailsBatchSize();
+        List<UserVmJoinVO> uvList = new ArrayList<UserVmJoinVO>();
+        for (int from = 0; from < vmIds.length; from += batchSize) {
+            Long[] ids = Arrays.copyOfRange(vmIds, from, Math.min(from + batchSize, vmIds.length));
             SearchCriteria<UserVmJoinVO> sc = VmDetailSearch.create();
             sc.setParameters("idIN", ids);
             List<UserVmJoinVO> vms = searchIncludingRemoved(sc, null, null, false);
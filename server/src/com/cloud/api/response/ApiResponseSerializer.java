@@ -41,6 +41,8 @@ import org.apache.cloudstack.api.response.SuccessResponse;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -72,6 +74,22 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes a paged list response to out one page at a time.  The document is
+     * the same as the one toSerializedString produces for the whole list, but
+     * only one page of responses is held in memory at any point.  Only the
+     * envelope and the number of objects written go into log.
+     */
+    public static void writeListResponse(ListResponse<? extends ResponseObject> result, String responseType, Writer out, StringBuilder log) throws IOException {
+        s_logger.trace("===Streaming Response===");
+        if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            writeJSONListResponse(result, out, log);
+        } else {
+            writeXMLListResponse(result, out, log);
+        }
+        out.flush();
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -170,6 +188,73 @@ public class ApiResponseSerializer {
         return null;
     }
 
+    private static void writeJSONListResponse(ListResponse<? extends ResponseObject> result, Writer out, StringBuilder log) throws IOException {
+        Gson responseBuilder = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+
+        StringBuilder header = new StringBuilder();
+        header.append("{\"").append(result.getResponseName()).append("\":");
+        Integer count = result.getCount();
+        boolean nonZeroCount = (count != null && count.longValue() != 0);
+        if (nonZeroCount) {
+            header.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
+        }
+        out.write(header.toString());
+        log.append(header);
+
+        int written = 0;
+        for (List<? extends ResponseObject> page = result.nextPage(); !page.isEmpty(); page = result.nextPage()) {
+            for (ResponseObject response : page) {
+                if (written == 0) {
+                    out.write(nonZeroCount ? "," : "{");
+                    out.write("\"" + response.getObjectName() + "\":[");
+                } else {
+                    out.write(",");
+                }
+                out.write(unescape(responseBuilder.toJson(response)));
+                written++;
+            }
+            out.flush();
+        }
+
+        if (written > 0) {
+            out.write("]}");
+        } else {
+            out.write(nonZeroCount ? "}" : "{}");
+        }
+        out.write("}");
+        log.append(" ... ").append(written).append(" objects streamed");
+    }
+
+    private static void writeXMLListResponse(ListResponse<? extends ResponseObject> result, Writer out, StringBuilder log) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        Integer count = result.getCount();
+        if (count != null && count != 0) {
+            sb.append("<").append(ApiConstants.COUNT).append(">").append(count).append("</").append(ApiConstants.COUNT).append(">");
+        }
+        out.write(sb.toString());
+        log.append(sb);
+
+        // Each response is serialized into the same builders, which are
+        // emptied again once it has been written out.
+        StringBuilder objLog = new StringBuilder();
+        int written = 0;
+        for (List<? extends ResponseObject> page = result.nextPage(); !page.isEmpty(); page = result.nextPage()) {
+            for (ResponseObject obj : page) {
+                sb.setLength(0);
+                objLog.setLength(0);
+                serializeResponseObjXML(sb, objLog, obj);
+                out.write(sb.toString());
+                written++;
+            }
+            out.flush();
+        }
+
+        out.write("</" + result.getResponseName() + ">");
+        log.append(" ... ").append(written).append(" objects streamed");
+    }
+
     private static String toXMLSerializedString(ResponseObject result, StringBuilder log) {
         if (result != null && log != null) {
             StringBuilder sb = new StringBuilder();
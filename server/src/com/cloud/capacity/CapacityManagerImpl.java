@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -40,6 +41,7 @@ import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.agent.AgentManager;
@@ -85,6 +87,7 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -145,6 +148,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     private int _vmCapacityReleaseInterval;
     private ScheduledExecutorService _executor;
     long _extraBytesPerVolume = 0;
+    private final CapacityIndex _capacityIndex = new CapacityIndex();
 
     @Inject
     MessageBus _messageBus;
@@ -167,9 +171,82 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        _resourceMgr.registerResourceEvent(ResourceListener.EVENT_DELETE_HOST_AFTER, this);
+        if (CapacityIndexEnabled.value()) {
+            _executor.scheduleWithFixedDelay(new CapacityIndexReloader(), 0, CapacityIndexReloadInterval.value(), TimeUnit.SECONDS);
+        }
         return true;
     }
 
+    protected class CapacityIndexReloader extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reloadCapacityIndex();
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reload host capacity", e);
+            }
+        }
+    }
+
+    /**
+     * Reads all host cpu and memory capacity rows into the capacity index.
+     */
+    protected void reloadCapacityIndex() {
+        long since = _capacityIndex.getSequence();
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> rows = _capacityDao.search(sc, null);
+
+        Map<Long, CapacityVO> cpuRows = new HashMap<Long, CapacityVO>();
+        Map<Long, CapacityVO> memoryRows = new HashMap<Long, CapacityVO>();
+        for (CapacityVO row : rows) {
+            (row.getCapacityType() == Capacity.CAPACITY_TYPE_CPU ? cpuRows : memoryRows).put(row.getHostOrPoolId(), row);
+        }
+
+        Map<Long, float[]> overcommitRatios = new HashMap<Long, float[]>();
+        for (CapacityVO cpu : cpuRows.values()) {
+            CapacityVO memory = memoryRows.get(cpu.getHostOrPoolId());
+            CapacityIndex.HostCapacity host = toHostCapacity(cpu, memory);
+            if (host == null) {
+                continue;
+            }
+            float[] ratios = overcommitRatios.get(host.getClusterId());
+            if (ratios == null) {
+                ratios = new float[] {getClusterOverProvisioningFactor(host.getClusterId(), Capacity.CAPACITY_TYPE_CPU),
+                        getClusterOverProvisioningFactor(host.getClusterId(), Capacity.CAPACITY_TYPE_MEMORY)};
+                overcommitRatios.put(host.getClusterId(), ratios);
+            }
+            _capacityIndex.reload(host, ratios[0], ratios[1], since);
+        }
+        _capacityIndex.retainHosts(cpuRows.keySet(), since);
+        _capacityIndex.setLoaded(true);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reloaded capacity of " + _capacityIndex.getHostCount() + " hosts in " + overcommitRatios.size() + " clusters");
+        }
+    }
+
+    protected CapacityIndex.HostCapacity toHostCapacity(CapacityVO cpu, CapacityVO memory) {
+        if (cpu == null || memory == null || cpu.getClusterId() == null || cpu.getPodId() == null) {
+            return null;
+        }
+        boolean enabled = cpu.getCapacityState() == CapacityState.Enabled && memory.getCapacityState() == CapacityState.Enabled;
+        return new CapacityIndex.HostCapacity(cpu.getHostOrPoolId(), cpu.getDataCenterId(), cpu.getPodId(), cpu.getClusterId(), cpu.getTotalCapacity(),
+                cpu.getUsedCapacity(), cpu.getReservedCapacity(), memory.getTotalCapacity(), memory.getUsedCapacity(), memory.getReservedCapacity(), enabled);
+    }
+
+    protected void updateCapacityIndex(CapacityVO cpu, CapacityVO memory, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        CapacityIndex.HostCapacity host = toHostCapacity(cpu, memory);
+        if (host != null) {
+            _capacityIndex.update(host, cpuOvercommitRatio, memoryOvercommitRatio);
+        }
+    }
+
+    @Override
+    public CapacityIndex getCapacityIndex() {
+        return CapacityIndexEnabled.value() && _capacityIndex.isLoaded() ? _capacityIndex : null;
+    }
+
     @Override
     public boolean stop() {
         _executor.shutdownNow();
@@ -201,12 +278,13 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         }
 
         try {
-            final Long clusterIdFinal = clusterId;
+            final float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
+            final float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemoryId = capacityMemory.getId();
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            Pair<CapacityVO, CapacityVO> updated = Transaction.execute(new TransactionCallback<Pair<CapacityVO, CapacityVO>>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
+                public Pair<CapacityVO, CapacityVO> doInTransaction(TransactionStatus status) {
                     CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
                     CapacityVO capacityMemory = _capacityDao.lockRow(capacityMemoryId, true);
 
@@ -215,8 +293,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     long reservedCpu = capacityCpu.getReservedCapacity();
                     long reservedMem = capacityMemory.getReservedCapacity();
                     long actualTotalCpu = capacityCpu.getTotalCapacity();
-                    float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "cpuOvercommitRatio").getValue());
-                    float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "memoryOvercommitRatio").getValue());
                     int vmCPU = svo.getCpu() * svo.getSpeed();
                     long vmMem = svo.getRamSize() * 1024L * 1024L;
                     long actualTotalMem = capacityMemory.getTotalCapacity();
@@ -263,8 +339,10 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMemory.getId(), capacityMemory);
+                    return new Pair<CapacityVO, CapacityVO>(capacityCpu, capacityMemory);
                 }
             });
+            updateCapacityIndex(updated.first(), updated.second(), cpuOvercommitRatio, memoryOvercommitRatio);
 
             return true;
         } catch (Exception e) {
@@ -299,9 +377,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemId = capacityMem.getId();
 
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            Pair<CapacityVO, CapacityVO> updated = Transaction.execute(new TransactionCallback<Pair<CapacityVO, CapacityVO>>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
+                public Pair<CapacityVO, CapacityVO> doInTransaction(TransactionStatus status) {
                     CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
                     CapacityVO capacityMem = _capacityDao.lockRow(capacityMemId, true);
 
@@ -359,14 +437,50 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMem.getId(), capacityMem);
+                    return new Pair<CapacityVO, CapacityVO>(capacityCpu, capacityMem);
                 }
             });
+            updateCapacityIndex(updated.first(), updated.second(), cpuOvercommitRatio, memoryOvercommitRatio);
         } catch (Exception e) {
             s_logger.error("Exception allocating VM capacity", e);
             return;
         }
     }
 
+    @DB
+    @Override
+    public boolean isHostOverAllocated(long hostId, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        if (capacityCpu == null || capacityMem == null) {
+            return false;
+        }
+
+        final long capacityCpuId = capacityCpu.getId();
+        final long capacityMemId = capacityMem.getId();
+        Pair<CapacityVO, CapacityVO> locked = Transaction.execute(new TransactionCallback<Pair<CapacityVO, CapacityVO>>() {
+            @Override
+            public Pair<CapacityVO, CapacityVO> doInTransaction(TransactionStatus status) {
+                return new Pair<CapacityVO, CapacityVO>(_capacityDao.lockRow(capacityCpuId, true), _capacityDao.lockRow(capacityMemId, true));
+            }
+        });
+        capacityCpu = locked.first();
+        capacityMem = locked.second();
+        updateCapacityIndex(capacityCpu, capacityMem, cpuOvercommitRatio, memoryOvercommitRatio);
+
+        long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOvercommitRatio);
+        long totalMem = (long)(capacityMem.getTotalCapacity() * memoryOvercommitRatio);
+        long allocatedCpu = capacityCpu.getUsedCapacity() + capacityCpu.getReservedCapacity();
+        long allocatedMem = capacityMem.getUsedCapacity() + capacityMem.getReservedCapacity();
+        if (allocatedCpu <= totalCpu && allocatedMem <= totalMem) {
+            return false;
+        }
+
+        s_logger.debug("STATS: Host " + hostId + " is over allocated, allocated cpu: " + allocatedCpu + ", total cpu with overprovisioning: " + totalCpu +
+            ", allocated mem: " + allocatedMem + ", total mem with overprovisioning: " + totalMem);
+        return true;
+    }
+
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
 
@@ -739,6 +853,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             try {
                 _capacityDao.update(cpuCap.getId(), cpuCap);
                 _capacityDao.update(memCap.getId(), memCap);
+                updateCapacityIndex(cpuCap, memCap, clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
             } catch (Exception e) {
                 s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
             }
@@ -765,7 +880,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     _capacityDao.persist(capacity);
                 }
             });
-
+            updateCapacityIndex(_capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_CPU),
+                    _capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_MEMORY), clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
         }
 
     }
@@ -1024,8 +1140,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public void processDeletHostEventAfter(Host host) {
-        // TODO Auto-generated method stub
-
+        _capacityIndex.remove(host.getId());
     }
 
     @Override
@@ -1050,6 +1165,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public void processPrepareMaintenaceEventAfter(Long hostId) {
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+        _capacityIndex.remove(hostId);
     }
 
     @Override
@@ -1082,6 +1198,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold};
+            StorageAllocatedCapacityDisableThreshold, CapacityIndexEnabled, CapacityIndexReloadInterval};
     }
 }
@@ -350,6 +350,22 @@ public enum Config {
             "100",
             "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually",
             null),
+    SecurityGroupWorkBatchSize(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.work.batch.size",
+            "50",
+            "Maximum number of vms a security group worker takes off the work queue at once; group members and rules are looked up once per batch",
+            null),
+    SecurityGroupRulesetDeltaEnabled(
+            "Network",
+            ManagementServer.class,
+            Boolean.class,
+            "network.securitygroups.ruleset.delta.enabled",
+            "true",
+            "Send only the changed cidrs of a vm ruleset to KVM hosts that already hold the previous ruleset",
+            null),
 
     SecurityGroupDefaultAdding(
             "Network",
@@ -1324,6 +1340,54 @@ public enum Config {
             "Interval (in days) to check sanity of usage data",
             null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseWorkers(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.workers",
+            "4",
+            "The number of threads the usage job parses accounts with",
+            null),
+    UsageParsePartitionSize(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.partition.size",
+            "500",
+            "The number of accounts the usage job parses and commits together",
+            null),
+    UsageStreamEnabled(
+            "Usage",
+            ManagementServer.class,
+            Boolean.class,
+            "usage.stream.enabled",
+            "false",
+            "If true, usage events are taken in as they are written and usage records are created for every slice instead of once per aggregation range",
+            null),
+    UsageStreamSlice(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.stream.slice",
+            "60",
+            "The length in minutes of the slices usage records are created for when usage.stream.enabled is true",
+            null),
+    UsageStreamPollInterval(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.stream.poll.interval",
+            "60",
+            "The interval in seconds usage events are taken in at when usage.stream.enabled is true",
+            null),
+    UsageStreamResyncInterval(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.stream.resync.interval",
+            "24",
+            "The number of slices after which the accounts with open usage are reloaded from the usage helper tables",
+            null),
     TrafficSentinelIncludeZones(
             "Usage",
             ManagementServer.class,
@@ -1972,6 +2036,15 @@ public enum Config {
             "timeout in seconds for each Virtual Router command being aggregated. The final aggregation command timeout would be determined by this timeout * commands counts ",
             null),
 
+    RouterAggregationCommandBatchSize(
+            "Advanced",
+            NetworkOrchestrationService.class,
+            Integer.class,
+            "router.aggregation.command.batch.size",
+            "100",
+            "maximum number of Virtual Router commands, queued up for the same router, that are applied together in a single configuration file. 1 applies every command on its own",
+            null),
+
     ManagementServerVendor("Advanced", ManagementServer.class, String.class, "mgt.server.vendor", "ACS", "the vendor of management server", null),
     PublishActionEvent("Advanced", ManagementServer.class, Boolean.class, "publish.action.events", "true", "enable or disable publishing of action events on the event bus", null),
     PublishAlertEvent("Advanced", ManagementServer.class, Boolean.class, "publish.alert.events", "true", "enable or disable publishing of alert events on the event bus", null),
@@ -1981,6 +2054,22 @@ public enum Config {
 
     // StatsCollector
     StatsOutPutGraphiteHost("Advanced", ManagementServer.class, String.class, "stats.output.uri", "", "URI to additionally send StatsCollector statistics to", null),
+    StatsHistoryEnabled(
+            "Advanced",
+            ManagementServer.class,
+            Boolean.class,
+            "stats.history.enabled",
+            "true",
+            "Keep the host and vm stats of the last days in memory, rolled up per minute, 5 minutes and hour",
+            null),
+    StatsCollectionParallelism(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "stats.collection.parallelism",
+            "16",
+            "Number of hosts the host, vm and vm disk stats collectors ask for stats at the same time",
+            null),
 
     SSVMPSK("Hidden", ManagementServer.class, String.class, "upload.post.secret.key", "", "PSK with SSVM", null);
 
@@ -523,6 +523,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
             default:
                 throw new InvalidParameterValueException("Scope provided is invalid");
             }
+            _configDepot.bumpConfigVersion();
             return value;
         }
 
@@ -613,6 +614,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         }
 
         txn.commit();
+        _configDepot.bumpConfigVersion();
         return _configDao.getValue(name);
     }
 
@@ -34,6 +34,7 @@ import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.log4j.Logger;
 
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
@@ -197,9 +198,11 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
     private void reorderClustersBasedOnImplicitTags(List<Long> clusterList, int requiredCpu, long requiredRam) {
             final HashMap<Long, Long> UniqueTagsInClusterMap = new HashMap<Long, Long>();
             Long uniqueTags;
+            CapacityIndex capacityIndex = capacityMgr.getCapacityIndex();
             for (Long clusterId : clusterList) {
                 uniqueTags = (long) 0;
-            List<Long> hostList = capacityDao.listHostsWithEnoughCapacity(requiredCpu, requiredRam, clusterId, Host.Type.Routing.toString());
+            List<Long> hostList = capacityIndex != null ? capacityIndex.listHostsWithEnoughCapacity(requiredCpu, requiredRam, clusterId) :
+                capacityDao.listHostsWithEnoughCapacity(requiredCpu, requiredRam, clusterId, Host.Type.Routing.toString());
             if (!hostList.isEmpty() && implicitHostTags.length > 0) {
                 uniqueTags = new Long(hostTagsDao.getDistinctImplicitHostTags(hostList, implicitHostTags).size());
                 }
@@ -315,6 +318,7 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
         ServiceOffering offering = vmProfile.getServiceOffering();
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
+        CapacityIndex capacityIndex = capacityMgr.getCapacityIndex();
 
         // For each capacity get the cluster list crossing the threshold and
         // remove it from the clusterList that will be used for vm allocation.
@@ -323,7 +327,10 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
             if (clusterListForVmAllocation == null || clusterListForVmAllocation.size() == 0) {
                 return;
             }
-            if (capacity == Capacity.CAPACITY_TYPE_CPU) {
+            if (capacityIndex != null) {
+                clustersCrossingThreshold = listClustersCrossingThreshold(capacityIndex, clusterListForVmAllocation, capacity,
+                    capacity == Capacity.CAPACITY_TYPE_CPU ? cpu_requested : ram_requested);
+            } else if (capacity == Capacity.CAPACITY_TYPE_CPU) {
                 clustersCrossingThreshold =
  capacityDao.listClustersCrossingThreshold(capacity, plan.getDataCenterId(), ClusterCPUCapacityDisableThreshold.key(), cpu_requested);
             } else if (capacity == Capacity.CAPACITY_TYPE_MEMORY) {
@@ -344,6 +351,21 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
         }
     }
 
+    /**
+     * Same check as CapacityDao.listClustersCrossingThreshold, limited to the
+     * given clusters and answered from the capacity index.
+     */
+    private List<Long> listClustersCrossingThreshold(CapacityIndex capacityIndex, List<Long> clusterIds, short capacity, long requested) {
+        ConfigKey<Float> threshold = capacity == Capacity.CAPACITY_TYPE_CPU ? ClusterCPUCapacityDisableThreshold : ClusterMemoryCapacityDisableThreshold;
+        List<Long> clustersCrossingThreshold = new ArrayList<Long>();
+        for (Long clusterId : clusterIds) {
+            if (capacityIndex.findClusterConsumption(clusterId, capacity, requested) > threshold.valueIn(clusterId)) {
+                clustersCrossingThreshold.add(clusterId);
+            }
+        }
+        return clustersCrossingThreshold;
+    }
+
     private List<Long> scanClustersForDestinationInZoneOrPod(long id, boolean isZone, VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoid) {
 
         VirtualMachine vm = vmProfile.getVirtualMachine();
@@ -452,11 +474,19 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> clusterIdswithEnoughCapacity = capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        CapacityIndex capacityIndex = capacityMgr.getCapacityIndex();
+        List<Long> clusterIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (capacityIndex != null) {
+            clusterIdswithEnoughCapacity = capacityIndex.listClustersWithHostCapacity(id, isZone, requiredCpu, requiredRam);
+            result = capacityIndex.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        } else {
+            clusterIdswithEnoughCapacity = capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+            result = capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -486,11 +516,19 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> podIdswithEnoughCapacity = capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        CapacityIndex capacityIndex = capacityMgr.getCapacityIndex();
+        List<Long> podIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (capacityIndex != null) {
+            podIdswithEnoughCapacity = capacityIndex.listPodsWithHostCapacity(zoneId, requiredCpu, requiredRam);
+            result = capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType);
+        } else {
+            podIdswithEnoughCapacity = capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+            result = capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
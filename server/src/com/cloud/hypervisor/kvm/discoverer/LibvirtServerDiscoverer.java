@@ -220,6 +220,7 @@ public abstract class LibvirtServerDiscoverer extends DiscovererBase implements
             Map<String, Object> params = new HashMap<String, Object>();
 
             params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+            params.put("router.aggregation.command.batch.size", _configDao.getValue(Config.RouterAggregationCommandBatchSize.toString()));
 
             params.put("zone", Long.toString(dcId));
             params.put("pod", Long.toString(podId));
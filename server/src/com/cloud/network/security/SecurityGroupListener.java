@@ -60,6 +60,7 @@ public class SecurityGroupListener implements Listener {
     Map<Long, Integer> _vmFailureCounts = new ConcurrentHashMap<Long, Integer>();
 
     private SecurityGroupWorkTracker _workTracker;
+    private SecurityGroupRulesetTracker _rulesetTracker;
 
     public SecurityGroupListener(SecurityGroupManagerImpl securityGroupManager, AgentManager agentMgr, SecurityGroupWorkDao workDao) {
         super();
@@ -89,8 +90,14 @@ public class SecurityGroupListener implements Listener {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
                     recordSuccess(ruleAnswer.getVmId());
+                    if (_rulesetTracker != null) {
+                        _rulesetTracker.applied(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber());
+                    }
                 } else {
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);
+                    if (_rulesetTracker != null) {
+                        _rulesetTracker.invalidate(ruleAnswer.getVmId());
+                    }
                     ;
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId + " due to " + ruleAnswer.getDetails() +
                         " and updated  jobs");
@@ -104,6 +111,9 @@ public class SecurityGroupListener implements Listener {
                         } else {
                             s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure: too many retries");
                         }
+                    } else if (ruleAnswer.getReason() == FailureReason.SEQUENCE_MISMATCH) {
+                        s_logger.debug("Host " + agentId + " does not hold the ruleset the delta for vm " + ruleAnswer.getVmId() + " was based on, sending the full ruleset");
+                        affectedVms.add(ruleAnswer.getVmId());
                     }
                 }
                 commandNum++;
@@ -199,4 +209,8 @@ public class SecurityGroupListener implements Listener {
     public void setWorkDispatcher(SecurityGroupWorkTracker workDispatcher) {
         this._workTracker = workDispatcher;
     }
+
+    public void setRulesetTracker(SecurityGroupRulesetTracker rulesetTracker) {
+        this._rulesetTracker = rulesetTracker;
+    }
 }
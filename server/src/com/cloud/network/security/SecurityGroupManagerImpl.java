@@ -498,26 +498,20 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
     protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestMac, Long vmId, String signature, long seqnum,
             Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules, List<String> secIps) {
-        List<IpPortAndProto> ingressResult = new ArrayList<IpPortAndProto>();
-        List<IpPortAndProto> egressResult = new ArrayList<IpPortAndProto>();
-        for (PortAndProto pAp : ingressRules.keySet()) {
-            Set<String> cidrs = ingressRules.get(pAp);
-            if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs
-                        .size()]));
-                ingressResult.add(ipPortAndProto);
-            }
-        }
-        for (PortAndProto pAp : egressRules.keySet()) {
-            Set<String> cidrs = egressRules.get(pAp);
+        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, toRuleSet(ingressRules), toRuleSet(egressRules), secIps);
+    }
+
+    protected IpPortAndProto[] toRuleSet(Map<PortAndProto, Set<String>> rules) {
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (PortAndProto pAp : rules.keySet()) {
+            Set<String> cidrs = rules.get(pAp);
             if (cidrs.size() > 0) {
                 IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs
                         .size()]));
-                egressResult.add(ipPortAndProto);
+                result.add(ipPortAndProto);
             }
         }
-        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]),
-                egressResult.toArray(new IpPortAndProto[egressResult.size()]), secIps);
+        return result.toArray(new IpPortAndProto[result.size()]);
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
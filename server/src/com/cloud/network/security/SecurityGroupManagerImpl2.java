@@ -17,6 +17,7 @@
 package com.cloud.network.security;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,6 +34,10 @@ import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.DetailVO;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.security.SecurityGroupRulesetTracker.Ruleset;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
@@ -41,6 +46,7 @@ import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
@@ -50,15 +56,60 @@ import com.cloud.vm.VirtualMachine.State;
 public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
+    SecurityGroupRulesetTracker _rulesetTracker = new SecurityGroupRulesetTracker();
     SecurityManagerMBeanImpl _mBean;
+    int _workBatchSize = 50;
+    boolean _rulesetDeltaEnabled = true;
 
     @Inject
     ManagedContext _managedContext;
+    @Inject
+    HostDetailsDao _hostDetailsDao;
 
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
+    /**
+     * Group members and rules looked up while working through one batch of
+     * the work queue.  When a vm joins or leaves a group every vm allowing that
+     * group is queued, and they all need the same lookups.
+     */
+    protected class RulesetBatch {
+        private final Map<Long, List<SecurityGroupVMMapVO>> _runningMembers = new HashMap<Long, List<SecurityGroupVMMapVO>>();
+        private final Map<String, List<SecurityGroupRuleVO>> _rules = new HashMap<String, List<SecurityGroupRuleVO>>();
+        private final Map<Long, Boolean> _deltaHosts = new HashMap<Long, Boolean>();
+
+        List<SecurityGroupVMMapVO> listRunningMembers(long groupId) {
+            List<SecurityGroupVMMapVO> members = _runningMembers.get(groupId);
+            if (members == null) {
+                members = _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running);
+                _runningMembers.put(groupId, members);
+            }
+            return members;
+        }
+
+        List<SecurityGroupRuleVO> listRules(long groupId, SecurityRuleType type) {
+            String key = groupId + ":" + type;
+            List<SecurityGroupRuleVO> rules = _rules.get(key);
+            if (rules == null) {
+                rules = _securityGroupRuleDao.listBySecurityGroupId(groupId, type);
+                _rules.put(key, rules);
+            }
+            return rules;
+        }
+
+        boolean supportsDelta(long hostId) {
+            Boolean supported = _deltaHosts.get(hostId);
+            if (supported == null) {
+                DetailVO detail = _hostDetailsDao.findDetail(hostId, SecurityGroupRulesCmd.RULESET_DELTA_DETAIL);
+                supported = detail != null && Boolean.parseBoolean(detail.getValue());
+                _deltaHosts.put(hostId, supported);
+            }
+            return supported;
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -140,7 +191,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            RulesetBatch batch = new RulesetBatch();
             for (SecurityGroupWork work : workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -153,7 +205,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
+                    sendRulesetUpdates(work, batch);
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
                 } catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
@@ -166,6 +218,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     }
 
     public void sendRulesetUpdates(SecurityGroupWork work) {
+        sendRulesetUpdates(work, new RulesetBatch());
+    }
+
+    protected void sendRulesetUpdates(SecurityGroupWork work, RulesetBatch batch) {
         Long userVmId = work.getInstanceId();
         UserVm vm = _userVMDao.findById(userVmId);
 
@@ -173,8 +229,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
+            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule, batch);
+            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule, batch);
             Long agentId = vm.getHostId();
             if (agentId != null) {
                 String privateIp = vm.getPrivateIpAddress();
@@ -191,10 +247,15 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
                         ingressRules, egressRules, nicSecIps);
                 cmd.setMsId(_serverId);
+                SecurityGroupRulesCmd delta = generateRulesetDeltaCmd(vm, agentId, cmd, ingressRules, egressRules, nicSecIps, batch);
+                _rulesetTracker.sent(vm.getId(), new Ruleset(agentId, work.getLogsequenceNumber(), ingressRules, egressRules));
+                if (delta != null) {
+                    cmd = delta;
+                }
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                    s_logger.debug("SecurityGroupManager v2: sending ruleset " + (cmd.isDelta() ? "delta from seqno " + cmd.getBaseSeqNum() : "update") + " for vm " +
+                        vm.getInstanceName() + ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length +
+                        " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
                 Commands cmds = new Commands(cmd);
                 try {
@@ -217,6 +278,42 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         }
     }
 
+    /**
+     * @return the changes from the ruleset the host last acknowledged for the
+     * vm, or null if the complete ruleset has to be sent.  Only KVM agents that
+     * report the RULESET_DELTA_DETAIL host detail keep the programmed ruleset
+     * around to apply a delta to.
+     */
+    protected SecurityGroupRulesCmd generateRulesetDeltaCmd(UserVm vm, long agentId, SecurityGroupRulesCmd full, Map<PortAndProto, Set<String>> ingressRules,
+        Map<PortAndProto, Set<String>> egressRules, List<String> secIps, RulesetBatch batch) {
+        if (!_rulesetDeltaEnabled || vm.getHypervisorType() != HypervisorType.KVM || !batch.supportsDelta(agentId)) {
+            return null;
+        }
+        Ruleset base = _rulesetTracker.getBase(vm.getId(), agentId);
+        if (base == null) {
+            return null;
+        }
+        SecurityGroupRulesCmd delta =
+            generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), full.getSignature(), full.getSeqNum(),
+                SecurityGroupRulesetTracker.difference(ingressRules, base.getIngress()), SecurityGroupRulesetTracker.difference(egressRules, base.getEgress()), secIps);
+        delta.setDelta(base.getSeqNum(), toRuleSet(SecurityGroupRulesetTracker.difference(base.getIngress(), ingressRules)),
+            toRuleSet(SecurityGroupRulesetTracker.difference(base.getEgress(), egressRules)));
+        delta.setMsId(_serverId);
+        return delta;
+    }
+
+    @Override
+    public void handleVmStarted(VMInstanceVO vm) {
+        _rulesetTracker.invalidate(vm.getId());
+        super.handleVmStarted(vm);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _rulesetTracker.invalidate(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
@@ -230,12 +327,16 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, new RulesetBatch());
+    }
+
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, RulesetBatch batch) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
         List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+            List<SecurityGroupRuleVO> rules = batch.listRules(mapVO.getSecurityGroupId(), type);
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
@@ -243,7 +344,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
+                    List<SecurityGroupVMMapVO> allowedInstances = batch.listRunningMembers(rule.getAllowedNetworkId());
                     for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
                         //here, we differ from the superclass: instead of creating N more queries to the
                         //nics table, we use what's already there in the VO since the listBySecurityGroup already
@@ -282,8 +383,12 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _workBatchSize = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 50);
+        String deltaEnabled = configs.get(Config.SecurityGroupRulesetDeltaEnabled.key());
+        _rulesetDeltaEnabled = deltaEnabled == null || Boolean.parseBoolean(deltaEnabled);
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
+        _answerListener.setRulesetTracker(_rulesetTracker);
         return result;
     }
 
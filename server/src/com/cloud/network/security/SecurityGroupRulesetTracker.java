@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+/**
+ * Remembers, per vm, the last ruleset a host acknowledged so that the next
+ * update can be sent as the difference against it.
+ *
+ * A ruleset is recorded as in flight when it is sent and becomes the base for
+ * deltas once the host answers for that sequence number.  Anything unexpected
+ * (a failed answer, another host, a sequence number nobody sent) drops the
+ * vm, and its next update goes out as a full ruleset again.
+ */
+public class SecurityGroupRulesetTracker {
+
+    public static class Ruleset {
+        private final long _hostId;
+        private final long _seqNum;
+        private final Map<PortAndProto, Set<String>> _ingress;
+        private final Map<PortAndProto, Set<String>> _egress;
+
+        public Ruleset(long hostId, long seqNum, Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+            _hostId = hostId;
+            _seqNum = seqNum;
+            _ingress = ingress;
+            _egress = egress;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getSeqNum() {
+            return _seqNum;
+        }
+
+        public Map<PortAndProto, Set<String>> getIngress() {
+            return _ingress;
+        }
+
+        public Map<PortAndProto, Set<String>> getEgress() {
+            return _egress;
+        }
+    }
+
+    private final Map<Long, Ruleset> _applied = new ConcurrentHashMap<Long, Ruleset>();
+    private final Map<Long, Ruleset> _inFlight = new ConcurrentHashMap<Long, Ruleset>();
+
+    /**
+     * @return the ruleset the host of the vm is known to have, if a delta can
+     * be computed against it for a vm running on hostId.
+     */
+    public Ruleset getBase(long vmId, long hostId) {
+        Ruleset applied = _applied.get(vmId);
+        if (applied == null || applied.getHostId() != hostId) {
+            return null;
+        }
+        return applied;
+    }
+
+    public void sent(long vmId, Ruleset ruleset) {
+        _inFlight.put(vmId, ruleset);
+    }
+
+    public void applied(long vmId, long seqNum) {
+        Ruleset sent = _inFlight.get(vmId);
+        if (sent != null && sent.getSeqNum() == seqNum) {
+            _inFlight.remove(vmId);
+            _applied.put(vmId, sent);
+        } else {
+            // an answer to an older update, which a later one replaced before
+            // it was applied; the host no longer holds a known ruleset
+            _applied.remove(vmId);
+        }
+    }
+
+    public void invalidate(long vmId) {
+        _applied.remove(vmId);
+        _inFlight.remove(vmId);
+    }
+
+    public int size() {
+        return _applied.size();
+    }
+
+    /**
+     * @return the cidrs in to that are not in from, by port and protocol.
+     * Swapping the arguments gives the cidrs to revoke.
+     */
+    public static Map<PortAndProto, Set<String>> difference(Map<PortAndProto, Set<String>> to, Map<PortAndProto, Set<String>> from) {
+        Map<PortAndProto, Set<String>> diff = new TreeMap<PortAndProto, Set<String>>();
+        for (Map.Entry<PortAndProto, Set<String>> entry : to.entrySet()) {
+            Set<String> existing = from.get(entry.getKey());
+            Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+            for (String cidr : entry.getValue()) {
+                if (existing == null || !existing.contains(cidr)) {
+                    cidrs.add(cidr);
+                }
+            }
+            if (!cidrs.isEmpty()) {
+                diff.put(entry.getKey(), cidrs);
+            }
+        }
+        return diff;
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -47,7 +48,6 @@ import org.apache.cloudstack.storage.datastore.db.ImageStoreDao;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.apache.cloudstack.utils.graphite.GraphiteClient;
-import org.apache.cloudstack.utils.graphite.GraphiteException;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
@@ -88,6 +88,8 @@ import com.cloud.network.as.dao.ConditionDao;
 import com.cloud.network.as.dao.CounterDao;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
+import com.cloud.server.StatsTimeSeries.Metric;
+import com.cloud.server.StatsTimeSeries.Resolution;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
@@ -204,6 +206,9 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private final ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
     private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
     private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+    private final StatsTimeSeries _hostStatsHistory = new StatsTimeSeries(Metric.CpuUtilization, Metric.NetworkReadKBs, Metric.NetworkWriteKBs, Metric.UsedMemoryKBs);
+    private final StatsTimeSeries _vmStatsHistory = new StatsTimeSeries(Metric.CpuUtilization, Metric.NetworkReadKBs, Metric.NetworkWriteKBs, Metric.DiskReadKBs,
+            Metric.DiskWriteKBs, Metric.DiskReadIOs, Metric.DiskWriteIOs);
 
     long hostStatsInterval = -1L;
     long hostAndVmStatsInterval = -1L;
@@ -219,6 +224,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     int externalStatsPort = -1;
     boolean externalStatsEnabled = false;
     ExternalStatsProtocol externalStatsType = ExternalStatsProtocol.NONE;
+    StatsExporter externalStatsExporter = null;
+    boolean statsHistoryEnabled = true;
+    int statsCollectionParallelism = 16;
+
+    private ExecutorService _statsFanOutExecutor;
+    private StatsFanOut<HostStatsEntry> _hostStatsFanOut;
+    private StatsFanOut<HashMap<Long, VmStatsEntry>> _vmStatsFanOut;
+    private StatsFanOut<HashMap<Long, List<VmDiskStatsEntry>>> _vmDiskStatsFanOut;
 
     private ScheduledExecutorService _diskStatsUpdateExecutor;
     private int _usageAggregationRange = 1440;
@@ -257,6 +270,13 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), 60000L);
         vmDiskStatsInterval = NumbersUtil.parseInt(configs.get("vm.disk.stats.interval"), 0);
+        statsHistoryEnabled = !"false".equalsIgnoreCase(configs.get("stats.history.enabled"));
+        statsCollectionParallelism = Math.max(1, NumbersUtil.parseInt(configs.get("stats.collection.parallelism"), 16));
+
+        _statsFanOutExecutor = Executors.newFixedThreadPool(statsCollectionParallelism, new NamedThreadFactory("StatsCollector-FanOut"));
+        _hostStatsFanOut = new StatsFanOut<HostStatsEntry>("host stats", _statsFanOutExecutor);
+        _vmStatsFanOut = new StatsFanOut<HashMap<Long, VmStatsEntry>>("vm stats", _statsFanOutExecutor);
+        _vmDiskStatsFanOut = new StatsFanOut<HashMap<Long, List<VmDiskStatsEntry>>>("vm disk stats", _statsFanOutExecutor);
 
         /* URI to send statistics to. Currently only Graphite is supported */
         String externalStatsUri = configs.get("stats.output.uri");
@@ -288,6 +308,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             }
         }
 
+        if (externalStatsEnabled && externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+            if (externalStatsPort == -1) {
+                externalStatsPort = 2003;
+            }
+            externalStatsExporter = new StatsExporter(new GraphiteClient(externalStatsHost, externalStatsPort));
+            externalStatsExporter.start();
+        }
+
         if (hostStatsInterval > 0) {
             _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
         }
@@ -374,17 +402,39 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+                final ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
                 List<HostVO> hosts = _hostDao.search(sc, null);
-                for (HostVO host : hosts) {
-                    HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
-                    if (stats != null) {
+                StatsFanOut.CycleReport report = _hostStatsFanOut.run(hosts, new StatsFanOut.Collector<HostStatsEntry>() {
+                    @Override
+                    public HostStatsEntry collect(HostVO host) {
+                        HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                        if (stats == null) {
+                            s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        }
+                        return stats;
+                    }
+                }, new StatsFanOut.Merger<HostStatsEntry>() {
+                    @Override
+                    public void merge(HostVO host, HostStatsEntry stats) {
                         hostStats.put(host.getId(), stats);
-                    } else {
-                        s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        if (statsHistoryEnabled) {
+                            _hostStatsHistory.add(host.getId(), System.currentTimeMillis(), stats.getCpuUtilization(), stats.getNetworkReadKBs(),
+                                    stats.getNetworkWriteKBs(), stats.getTotalMemoryKBs() - stats.getFreeMemoryKBs());
+                        }
+                    }
+                }, hostStatsInterval / 2, hostStatsInterval);
+                // hosts left out of this cycle, or late to answer, keep their last stats
+                for (HostVO host : hosts) {
+                    HostStats previous = _hostStats.get(host.getId());
+                    if (previous != null && !hostStats.containsKey(host.getId())) {
+                        hostStats.put(host.getId(), previous);
                     }
                 }
                 _hostStats = hostStats;
+                exportCycleReport("host", report);
+                if (statsHistoryEnabled) {
+                    _hostStatsHistory.expire(System.currentTimeMillis() - getStatsHistoryRetention());
+                }
                 // Get a subset of hosts with GPU support from the list of "hosts"
                 List<HostVO> gpuEnabledHosts = new ArrayList<HostVO>();
                 if (hostIds != null) {
@@ -428,96 +478,96 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
                 /* HashMap for metrics to be send to Graphite */
-                HashMap metrics = new HashMap<String, Integer>();
+                final HashMap<String, Number> metrics = new HashMap<String, Number>();
 
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
+                StatsFanOut.CycleReport report = _vmStatsFanOut.run(hosts, new StatsFanOut.Collector<HashMap<Long, VmStatsEntry>>() {
+                    @Override
+                    public HashMap<Long, VmStatsEntry> collect(HostVO host) throws Exception {
+                        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+                        List<Long> vmIds = new ArrayList<Long>();
+
+                        for (UserVmVO vm : vms) {
+                            vmIds.add(vm.getId());
+                        }
 
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
+                        return _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
                     }
+                }, new StatsFanOut.Merger<HashMap<Long, VmStatsEntry>>() {
+                    @Override
+                    public void merge(HostVO host, HashMap<Long, VmStatsEntry> vmStatsById) {
+                        VmStatsEntry statsInMemory = null;
 
-                    try {
-                        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-
-                        if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
-
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+                        Set<Long> vmIdSet = vmStatsById.keySet();
+                        for (Long vmId : vmIdSet) {
+                            VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
+                            statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
 
-                                /**
-                                 * Add statistics to HashMap only when they should be send to a external stats collector
-                                 * Performance wise it seems best to only append to the HashMap when needed
-                                 */
-                                if (externalStatsEnabled) {
-                                    VMInstanceVO vmVO = _vmInstance.findById(vmId);
-                                    String vmName = vmVO.getUuid();
-
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
-                                }
+                            if (statsInMemory == null) {
+                                //no stats exist for this vm, directly persist
+                                _VmStats.put(vmId, statsForCurrentIteration);
+                            } else {
+                                //update each field
+                                statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+                                statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+                                statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+                                statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+                                statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+                                statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+                                statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+                                statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+
+                                _VmStats.put(vmId, statsInMemory);
+                            }
 
+                            if (statsHistoryEnabled) {
+                                _vmStatsHistory.add(vmId, System.currentTimeMillis(), statsForCurrentIteration.getCPUUtilization(),
+                                        statsForCurrentIteration.getNetworkReadKBs(), statsForCurrentIteration.getNetworkWriteKBs(),
+                                        statsForCurrentIteration.getDiskReadKBs(), statsForCurrentIteration.getDiskWriteKBs(),
+                                        statsForCurrentIteration.getDiskReadIOs(), statsForCurrentIteration.getDiskWriteIOs());
                             }
 
                             /**
-                             * Send the metrics to a external stats collector
-                             * We send it on a per-host basis to prevent that we flood the host
-                             * Currently only Graphite is supported
+                             * Add statistics to HashMap only when they should be send to a external stats collector
+                             * Performance wise it seems best to only append to the HashMap when needed
                              */
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType != null && externalStatsType == ExternalStatsProtocol.GRAPHITE) {
-
-                                    if (externalStatsPort == -1) {
-                                        externalStatsPort = 2003;
-                                    }
-
-                                    s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+                            if (externalStatsEnabled) {
+                                VMInstanceVO vmVO = _vmInstance.findById(vmId);
+                                String vmName = vmVO.getUuid();
+
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
+                                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
+                            }
 
-                                    try {
-                                        GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-                                        g.sendMetrics(metrics);
-                                    } catch (GraphiteException e) {
-                                        s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
-                                    }
+                        }
 
-                                    metrics.clear();
-                                }
+                        /**
+                         * Hand the metrics over to the exporter, which sends them to the external stats collector
+                         * in the background, batched with those of the other hosts
+                         * Currently only Graphite is supported
+                         */
+                        if (!metrics.isEmpty()) {
+                            if (externalStatsExporter != null) {
+                                externalStatsExporter.export(metrics);
                             }
+                            metrics.clear();
                         }
-
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
                     }
-                }
+                }, hostAndVmStatsInterval / 2, hostAndVmStatsInterval);
+                exportCycleReport("vm", report);
 
+                if (statsHistoryEnabled) {
+                    _vmStatsHistory.expire(System.currentTimeMillis() - getStatsHistoryRetention());
+                }
+                if (externalStatsExporter != null && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Sent " + externalStatsExporter.getSentCount() + " metrics to Graphite host " + externalStatsHost + ":" + externalStatsPort + ", "
+                            + externalStatsExporter.getQueueSize() + " batches queued, " + externalStatsExporter.getDroppedCount() + " dropped");
+                }
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve VM stats", t);
             }
@@ -528,6 +578,55 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return _VmStats.get(id);
     }
 
+    /**
+     * @return the vm statistics collected between from and to, averaged per
+     * slot of the resolution, oldest first
+     */
+    public List<StatsTimeSeries.Point> getVmStatsHistory(long vmId, Resolution resolution, Date from, Date to) {
+        return _vmStatsHistory.list(vmId, resolution, from.getTime(), to.getTime());
+    }
+
+    public List<StatsTimeSeries.Point> getHostStatsHistory(long hostId, Resolution resolution, Date from, Date to) {
+        return _hostStatsHistory.list(hostId, resolution, from.getTime(), to.getTime());
+    }
+
+    /**
+     * @return the report of the last cycle of the host stats collector, or null
+     * if it has not run yet
+     */
+    public StatsFanOut.CycleReport getHostStatsCycleReport() {
+        return _hostStatsFanOut == null ? null : _hostStatsFanOut.getLastReport();
+    }
+
+    public StatsFanOut.CycleReport getVmStatsCycleReport() {
+        return _vmStatsFanOut == null ? null : _vmStatsFanOut.getLastReport();
+    }
+
+    public StatsFanOut.CycleReport getVmDiskStatsCycleReport() {
+        return _vmDiskStatsFanOut == null ? null : _vmDiskStatsFanOut.getLastReport();
+    }
+
+    private void exportCycleReport(String collector, StatsFanOut.CycleReport report) {
+        if (externalStatsExporter == null) {
+            return;
+        }
+        String prefix = externalStatsPrefix + "cloudstack.stats.collector." + collector + ".";
+        HashMap<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put(prefix + "duration_ms", report.getDuration());
+        metrics.put(prefix + "hosts.asked", report.getAsked());
+        metrics.put(prefix + "hosts.answered", report.getAnswered());
+        metrics.put(prefix + "hosts.failed", report.getFailed());
+        metrics.put(prefix + "hosts.skipped", report.getSkipped());
+        metrics.put(prefix + "hosts.late", report.getLate());
+        metrics.put(prefix + "latency.average_ms", report.getAverageLatency());
+        metrics.put(prefix + "latency.max_ms", report.getMaxLatency());
+        externalStatsExporter.export(metrics);
+    }
+
+    private long getStatsHistoryRetention() {
+        return Resolution.OneHour.getMillis() * Resolution.OneHour.getSlots();
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -580,120 +679,126 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         protected void runInContext() {
             // collect the vm disk statistics(total) from hypervisor. added by weizhou, 2013.03.
             try {
-                Transaction.execute(new TransactionCallbackNoReturn() {
+                SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
+                sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
+                sc.addAnd("resourceState", SearchCriteria.Op.NIN, ResourceState.Maintenance, ResourceState.PrepareForMaintenance,
+                        ResourceState.ErrorInMaintenance);
+                sc.addAnd("type", SearchCriteria.Op.EQ, Host.Type.Routing.toString());
+                sc.addAnd("hypervisorType", SearchCriteria.Op.EQ, HypervisorType.KVM); // support KVM only util 2013.06.25
+                List<HostVO> hosts = _hostDao.search(sc, null);
+
+                // the hosts are asked outside of any transaction, each answer is then stored in one of its own
+                StatsFanOut.CycleReport report = _vmDiskStatsFanOut.run(hosts, new StatsFanOut.Collector<HashMap<Long, List<VmDiskStatsEntry>>>() {
                     @Override
-                    public void doInTransactionWithoutResult(TransactionStatus status) {
-                        SearchCriteria<HostVO> sc = _hostDao.createSearchCriteria();
-                        sc.addAnd("status", SearchCriteria.Op.EQ, Status.Up.toString());
-                        sc.addAnd("resourceState", SearchCriteria.Op.NIN, ResourceState.Maintenance, ResourceState.PrepareForMaintenance,
-                                ResourceState.ErrorInMaintenance);
-                        sc.addAnd("type", SearchCriteria.Op.EQ, Host.Type.Routing.toString());
-                        sc.addAnd("hypervisorType", SearchCriteria.Op.EQ, HypervisorType.KVM); // support KVM only util 2013.06.25
-                        List<HostVO> hosts = _hostDao.search(sc, null);
-
-                        for (HostVO host : hosts) {
-                            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                            List<Long> vmIds = new ArrayList<Long>();
-
-                            for (UserVmVO vm : vms) {
-                                if (vm.getType() == VirtualMachine.Type.User) // user vm
-                                    vmIds.add(vm.getId());
-                            }
+                    public HashMap<Long, List<VmDiskStatsEntry>> collect(HostVO host) throws Exception {
+                        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+                        List<Long> vmIds = new ArrayList<Long>();
 
-                            HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById = _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), vmIds);
-                            if (vmDiskStatsById == null)
-                                continue;
+                        for (UserVmVO vm : vms) {
+                            if (vm.getType() == VirtualMachine.Type.User) // user vm
+                                vmIds.add(vm.getId());
+                        }
 
-                            Set<Long> vmIdSet = vmDiskStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
-                                if (vmDiskStats == null)
-                                    continue;
-                                UserVmVO userVm = _userVmDao.findById(vmId);
-                                for (VmDiskStatsEntry vmDiskStat : vmDiskStats) {
-                                    SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
-                                    sc_volume.addAnd("path", SearchCriteria.Op.EQ, vmDiskStat.getPath());
-                                    List<VolumeVO> volumes = _volsDao.search(sc_volume, null);
-                                    if ((volumes == null) || (volumes.size() == 0))
-                                        break;
-                                    VolumeVO volume = volumes.get(0);
-                                    VmDiskStatisticsVO previousVmDiskStats =
-                                            _vmDiskStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
-                                    VmDiskStatisticsVO vmDiskStat_lock = _vmDiskStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
-
-                                    if ((vmDiskStat.getBytesRead() == 0) && (vmDiskStat.getBytesWrite() == 0) && (vmDiskStat.getIORead() == 0) &&
-                                            (vmDiskStat.getIOWrite() == 0)) {
-                                        s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
+                        return _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), vmIds);
+                    }
+                }, new StatsFanOut.Merger<HashMap<Long, List<VmDiskStatsEntry>>>() {
+                    @Override
+                    public void merge(final HostVO host, final HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById) {
+                        Transaction.execute(new TransactionCallbackNoReturn() {
+                            @Override
+                            public void doInTransactionWithoutResult(TransactionStatus status) {
+                                Set<Long> vmIdSet = vmDiskStatsById.keySet();
+                                for (Long vmId : vmIdSet) {
+                                    List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
+                                    if (vmDiskStats == null)
                                         continue;
-                                    }
+                                    UserVmVO userVm = _userVmDao.findById(vmId);
+                                    for (VmDiskStatsEntry vmDiskStat : vmDiskStats) {
+                                        SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
+                                        sc_volume.addAnd("path", SearchCriteria.Op.EQ, vmDiskStat.getPath());
+                                        List<VolumeVO> volumes = _volsDao.search(sc_volume, null);
+                                        if ((volumes == null) || (volumes.size() == 0))
+                                            break;
+                                        VolumeVO volume = volumes.get(0);
+                                        VmDiskStatisticsVO previousVmDiskStats =
+                                                _vmDiskStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+                                        VmDiskStatisticsVO vmDiskStat_lock = _vmDiskStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+
+                                        if ((vmDiskStat.getBytesRead() == 0) && (vmDiskStat.getBytesWrite() == 0) && (vmDiskStat.getIORead() == 0) &&
+                                                (vmDiskStat.getIOWrite() == 0)) {
+                                            s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
+                                            continue;
+                                        }
 
-                                    if (vmDiskStat_lock == null) {
-                                        s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId() +
-                                                " and volumeId:" + volume.getId());
-                                        continue;
-                                    }
+                                        if (vmDiskStat_lock == null) {
+                                            s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId() +
+                                                    " and volumeId:" + volume.getId());
+                                            continue;
+                                        }
 
-                                    if (previousVmDiskStats != null &&
-                                            ((previousVmDiskStats.getCurrentBytesRead() != vmDiskStat_lock.getCurrentBytesRead()) ||
-                                                    (previousVmDiskStats.getCurrentBytesWrite() != vmDiskStat_lock.getCurrentBytesWrite()) ||
-                                                    (previousVmDiskStats.getCurrentIORead() != vmDiskStat_lock.getCurrentIORead()) || (previousVmDiskStats.getCurrentIOWrite() != vmDiskStat_lock.getCurrentIOWrite()))) {
-                                        s_logger.debug("vm disk stats changed from the time GetVmDiskStatsCommand was sent. " + "Ignoring current answer. Host: " +
-                                                host.getName() + " . VM: " + vmDiskStat.getVmName() + " Read(Bytes): " + vmDiskStat.getBytesRead() + " write(Bytes): " +
-                                                vmDiskStat.getBytesWrite() + " Read(IO): " + vmDiskStat.getIORead() + " write(IO): " + vmDiskStat.getIOWrite());
-                                        continue;
-                                    }
+                                        if (previousVmDiskStats != null &&
+                                                ((previousVmDiskStats.getCurrentBytesRead() != vmDiskStat_lock.getCurrentBytesRead()) ||
+                                                        (previousVmDiskStats.getCurrentBytesWrite() != vmDiskStat_lock.getCurrentBytesWrite()) ||
+                                                        (previousVmDiskStats.getCurrentIORead() != vmDiskStat_lock.getCurrentIORead()) || (previousVmDiskStats.getCurrentIOWrite() != vmDiskStat_lock.getCurrentIOWrite()))) {
+                                            s_logger.debug("vm disk stats changed from the time GetVmDiskStatsCommand was sent. " + "Ignoring current answer. Host: " +
+                                                    host.getName() + " . VM: " + vmDiskStat.getVmName() + " Read(Bytes): " + vmDiskStat.getBytesRead() + " write(Bytes): " +
+                                                    vmDiskStat.getBytesWrite() + " Read(IO): " + vmDiskStat.getIORead() + " write(IO): " + vmDiskStat.getIOWrite());
+                                            continue;
+                                        }
 
-                                    if (vmDiskStat_lock.getCurrentBytesRead() > vmDiskStat.getBytesRead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of bytes that's less than the last one.  " +
-                                                    "Assuming something went wrong and persisting it. Host: " + host.getName() + " . VM: " + vmDiskStat.getVmName() +
-                                                    " Reported: " + vmDiskStat.getBytesRead() + " Stored: " + vmDiskStat_lock.getCurrentBytesRead());
+                                        if (vmDiskStat_lock.getCurrentBytesRead() > vmDiskStat.getBytesRead()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Read # of bytes that's less than the last one.  " +
+                                                        "Assuming something went wrong and persisting it. Host: " + host.getName() + " . VM: " + vmDiskStat.getVmName() +
+                                                        " Reported: " + vmDiskStat.getBytesRead() + " Stored: " + vmDiskStat_lock.getCurrentBytesRead());
+                                            }
+                                            vmDiskStat_lock.setNetBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
                                         }
-                                        vmDiskStat_lock.setNetBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesRead(vmDiskStat.getBytesRead());
-                                    if (vmDiskStat_lock.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of bytes that's less than the last one.  " +
-                                                    "Assuming something went wrong and persisting it. Host: " + host.getName() + " . VM: " + vmDiskStat.getVmName() +
-                                                    " Reported: " + vmDiskStat.getBytesWrite() + " Stored: " + vmDiskStat_lock.getCurrentBytesWrite());
+                                        vmDiskStat_lock.setCurrentBytesRead(vmDiskStat.getBytesRead());
+                                        if (vmDiskStat_lock.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Write # of bytes that's less than the last one.  " +
+                                                        "Assuming something went wrong and persisting it. Host: " + host.getName() + " . VM: " + vmDiskStat.getVmName() +
+                                                        " Reported: " + vmDiskStat.getBytesWrite() + " Stored: " + vmDiskStat_lock.getCurrentBytesWrite());
+                                            }
+                                            vmDiskStat_lock.setNetBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
                                         }
-                                        vmDiskStat_lock.setNetBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
-                                    if (vmDiskStat_lock.getCurrentIORead() > vmDiskStat.getIORead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: " +
-                                                    host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIORead() + " Stored: " +
-                                                    vmDiskStat_lock.getCurrentIORead());
+                                        vmDiskStat_lock.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
+                                        if (vmDiskStat_lock.getCurrentIORead() > vmDiskStat.getIORead()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Read # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: " +
+                                                        host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIORead() + " Stored: " +
+                                                        vmDiskStat_lock.getCurrentIORead());
+                                            }
+                                            vmDiskStat_lock.setNetIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                                         }
-                                        vmDiskStat_lock.setNetIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
-                                    }
-                                    vmDiskStat_lock.setCurrentIORead(vmDiskStat.getIORead());
-                                    if (vmDiskStat_lock.getCurrentIOWrite() > vmDiskStat.getIOWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: " +
-                                                    host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIOWrite() + " Stored: " +
-                                                    vmDiskStat_lock.getCurrentIOWrite());
+                                        vmDiskStat_lock.setCurrentIORead(vmDiskStat.getIORead());
+                                        if (vmDiskStat_lock.getCurrentIOWrite() > vmDiskStat.getIOWrite()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Write # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: " +
+                                                        host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIOWrite() + " Stored: " +
+                                                        vmDiskStat_lock.getCurrentIOWrite());
+                                            }
+                                            vmDiskStat_lock.setNetIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
+                                        }
+                                        vmDiskStat_lock.setCurrentIOWrite(vmDiskStat.getIOWrite());
+
+                                        if (!_dailyOrHourly) {
+                                            //update agg bytes
+                                            vmDiskStat_lock.setAggBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
+                                            vmDiskStat_lock.setAggBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
+                                            vmDiskStat_lock.setAggIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
+                                            vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                                         }
-                                        vmDiskStat_lock.setNetIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentIOWrite(vmDiskStat.getIOWrite());
 
-                                    if (!_dailyOrHourly) {
-                                        //update agg bytes
-                                        vmDiskStat_lock.setAggBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                        vmDiskStat_lock.setAggBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                        vmDiskStat_lock.setAggIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                        vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
+                                        _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
                                     }
-
-                                    _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
                                 }
                             }
-                        }
+                        });
                     }
-                });
+                }, vmDiskStatsInterval * 1000L / 2, vmDiskStatsInterval * 1000L / 2);
+                exportCycleReport("vm_disk", report);
             } catch (Exception e) {
                 s_logger.warn("Error while collecting vm disk stats from hosts", e);
             }
@@ -833,6 +938,13 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         }
                         params.put("total_counter", String.valueOf(total_counter));
 
+                        HashMap<Long, Double> historyCounter = getCountersFromStatsHistory(asGroupVmVOs, lstCounter, lstPair);
+                        if (historyCounter != null) {
+                            s_logger.debug("[AutoScale] Using the stats history of the VMs of group " + asGroup.getId());
+                            doAutoscaleAction(historyCounter, asGroup.getId(), currentVM, params);
+                            continue;
+                        }
+
                         PerformanceMonitorCommand perfMon = new PerformanceMonitorCommand(params, 20);
 
                         try {
@@ -885,15 +997,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                         }
                                     }
 
-                                    String scaleAction = getAutoscaleAction(avgCounter, asGroup.getId(), currentVM, params);
-                                    if (scaleAction != null) {
-                                        s_logger.debug("[AutoScale] Doing scale action: " + scaleAction + " for group " + asGroup.getId());
-                                        if (scaleAction.equals("scaleup")) {
-                                            _asManager.doScaleUp(asGroup.getId(), 1);
-                                        } else {
-                                            _asManager.doScaleDown(asGroup.getId());
-                                        }
-                                    }
+                                    doAutoscaleAction(avgCounter, asGroup.getId(), currentVM, params);
                                 }
                             }
 
@@ -910,6 +1014,55 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
         }
 
+        private void doAutoscaleAction(HashMap<Long, Double> avgCounter, long groupId, long currentVM, Map<String, String> params) {
+            String scaleAction = getAutoscaleAction(avgCounter, groupId, currentVM, params);
+            if (scaleAction != null) {
+                s_logger.debug("[AutoScale] Doing scale action: " + scaleAction + " for group " + groupId);
+                if (scaleAction.equals("scaleup")) {
+                    _asManager.doScaleUp(groupId, 1);
+                } else {
+                    _asManager.doScaleDown(groupId);
+                }
+            }
+        }
+
+        /**
+         * Sums the cpu counters of the VMs of a group, averaged over the duration of
+         * their policy, from the stats history instead of the RRDs of the host.
+         *
+         * @return the counters the way they are summed up from the RRDs, or null if
+         * a counter is not cpu or the history of a VM does not cover its duration
+         */
+        private HashMap<Long, Double> getCountersFromStatsHistory(List<AutoScaleVmGroupVmMapVO> asGroupVmVOs, String[] lstCounter,
+                List<Pair<String, Integer>> lstPair) {
+            if (!statsHistoryEnabled) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            HashMap<Long, Double> avgCounter = new HashMap<Long, Double>();
+            for (int i = 0; i < lstCounter.length; i++) {
+                if (!Counter.Source.cpu.toString().equals(lstCounter[i])) {
+                    return null;
+                }
+                long duration = lstPair.get(i).second() * 1000L;
+                Resolution resolution = duration <= Resolution.OneMinute.getMillis() * Resolution.OneMinute.getSlots() ? Resolution.OneMinute : Resolution.FiveMinutes;
+                double sum = 0;
+                for (AutoScaleVmGroupVmMapVO asGroupVmVO : asGroupVmVOs) {
+                    List<StatsTimeSeries.Point> points = _vmStatsHistory.list(asGroupVmVO.getInstanceId(), resolution, now - duration, now);
+                    if (points.isEmpty() || points.get(0).getTime() > now - duration + resolution.getMillis()) {
+                        return null;
+                    }
+                    double vmSum = 0;
+                    for (StatsTimeSeries.Point point : points) {
+                        vmSum += point.getValue(Metric.CpuUtilization);
+                    }
+                    sum += vmSum / points.size();
+                }
+                avgCounter.put((long)(i + 1), sum);
+            }
+            return avgCounter;
+        }
+
         private boolean is_native(long groupId) {
             List<AutoScaleVmGroupPolicyMapVO> vos = _asGroupPolicyDao.listByVmGroupId(groupId);
             for (AutoScaleVmGroupPolicyMapVO vo : vos) {
@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.utils.graphite.GraphiteClient;
+import org.apache.cloudstack.utils.graphite.GraphiteException;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Sends statistics to Graphite from a thread of its own, so that the stats
+ * collectors only hand over the metrics of a host and move on.
+ *
+ * Whatever queued up while a send was in progress goes out in one go, with
+ * the metrics of the same second merged.  If Graphite cannot keep up, the
+ * oldest metrics are dropped rather than holding memory without bound.
+ */
+public class StatsExporter {
+    private static final Logger s_logger = Logger.getLogger(StatsExporter.class);
+
+    private static final int MAX_QUEUED_BATCHES = 10000;
+    private static final int MAX_DRAINED_BATCHES = 500;
+
+    private static class Batch {
+        private final Map<String, Number> _metrics;
+        private final long _timeStamp;
+
+        Batch(Map<String, Number> metrics, long timeStamp) {
+            _metrics = metrics;
+            _timeStamp = timeStamp;
+        }
+    }
+
+    private final GraphiteClient _client;
+    private final BlockingQueue<Batch> _queue = new LinkedBlockingQueue<Batch>(MAX_QUEUED_BATCHES);
+    private final AtomicLong _sentCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private ExecutorService _executor;
+
+    public StatsExporter(GraphiteClient client) {
+        _client = client;
+    }
+
+    public synchronized void start() {
+        if (_executor != null) {
+            return;
+        }
+        _executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("StatsExporter"));
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportLoop();
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    /**
+     * Queues the metrics with the current time, it does not wait for them
+     * to be sent.
+     */
+    public void export(Map<String, ? extends Number> metrics) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch(new HashMap<String, Number>(metrics), System.currentTimeMillis() / 1000);
+        while (!_queue.offer(batch)) {
+            if (_queue.poll() != null) {
+                _droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    public long getSentCount() {
+        return _sentCount.get();
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
+    public int getQueueSize() {
+        return _queue.size();
+    }
+
+    private void exportLoop() {
+        List<Batch> batches = new ArrayList<Batch>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batches.add(_queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            _queue.drainTo(batches, MAX_DRAINED_BATCHES);
+            send(batches);
+            batches.clear();
+        }
+    }
+
+    private void send(List<Batch> batches) {
+        Map<Long, Map<String, Number>> bySecond = new LinkedHashMap<Long, Map<String, Number>>();
+        for (Batch batch : batches) {
+            Map<String, Number> metrics = bySecond.get(batch._timeStamp);
+            if (metrics == null) {
+                metrics = new HashMap<String, Number>();
+                bySecond.put(batch._timeStamp, metrics);
+            }
+            metrics.putAll(batch._metrics);
+        }
+
+        for (Map.Entry<Long, Map<String, Number>> entry : bySecond.entrySet()) {
+            try {
+                _client.sendMetrics(entry.getValue(), entry.getKey());
+                _sentCount.addAndGet(entry.getValue().size());
+            } catch (GraphiteException e) {
+                s_logger.debug("Failed sending " + entry.getValue().size() + " metrics to Graphite: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.host.HostVO;
+
+/**
+ * Collects stats from many hosts at once for one of the stats collectors,
+ * instead of asking them one after the other.
+ *
+ * The requests run on a shared pool, which bounds how many hosts are asked
+ * at a time across all collectors.  Answers are merged on the collector
+ * thread as they arrive, so the merge code needs no locking.  A cycle waits
+ * at most until its deadline; an answer that comes in later is merged at the
+ * start of the next cycle, which leaves that host out as it answered
+ * recently.  A host with a request still outstanding is not asked again.
+ */
+public class StatsFanOut<T> {
+    private static final Logger s_logger = Logger.getLogger(StatsFanOut.class);
+
+    public interface Collector<T> {
+        /**
+         * Runs on a pool thread.
+         *
+         * @return the stats of the host, or null if it has none
+         */
+        T collect(HostVO host) throws Exception;
+    }
+
+    public interface Merger<T> {
+        /**
+         * Runs on the collector thread, one answer at a time.
+         */
+        void merge(HostVO host, T stats);
+    }
+
+    private static class Answer<T> {
+        private final HostVO _host;
+        private final T _stats;
+        private final Exception _error;
+        private final long _latency;
+
+        Answer(HostVO host, T stats, Exception error, long latency) {
+            _host = host;
+            _stats = stats;
+            _error = error;
+            _latency = latency;
+        }
+    }
+
+    public static class CycleReport {
+        private long _duration;
+        private int _asked;
+        private int _answered;
+        private int _failed;
+        private int _skipped;
+        private int _late;
+        private long _totalLatency;
+        private long _maxLatency;
+        private long _slowestHostId;
+
+        public long getDuration() {
+            return _duration;
+        }
+
+        public int getAsked() {
+            return _asked;
+        }
+
+        public int getAnswered() {
+            return _answered;
+        }
+
+        public int getFailed() {
+            return _failed;
+        }
+
+        public int getSkipped() {
+            return _skipped;
+        }
+
+        /**
+         * @return the number of hosts that had not answered by the deadline
+         */
+        public int getLate() {
+            return _late;
+        }
+
+        public long getAverageLatency() {
+            return _answered + _failed > 0 ? _totalLatency / (_answered + _failed) : 0;
+        }
+
+        public long getMaxLatency() {
+            return _maxLatency;
+        }
+
+        public long getSlowestHostId() {
+            return _slowestHostId;
+        }
+
+        @Override
+        public String toString() {
+            return "cycle " + _duration + " ms, hosts asked: " + _asked + ", answered: " + _answered + ", failed: " + _failed + ", skipped: " + _skipped + ", late: "
+                    + _late + ", latency average: " + getAverageLatency() + " ms, max: " + _maxLatency + " ms (host " + _slowestHostId + ")";
+        }
+    }
+
+    private final String _name;
+    private final ExecutorService _executor;
+    private final BlockingQueue<Answer<T>> _answers = new LinkedBlockingQueue<Answer<T>>();
+    private final Set<Long> _outstanding = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final ConcurrentMap<Long, Long> _lastAnswered = new ConcurrentHashMap<Long, Long>();
+    private volatile CycleReport _lastReport;
+
+    public StatsFanOut(String name, ExecutorService executor) {
+        _name = name;
+        _executor = executor;
+    }
+
+    /**
+     * Asks the hosts for their stats and merges the answers.
+     *
+     * @param freshMillis hosts that answered less than this ago are left out
+     * @param deadlineMillis how long to wait for answers
+     */
+    public CycleReport run(List<HostVO> hosts, final Collector<T> collector, Merger<T> merger, long freshMillis, long deadlineMillis) {
+        long startTick = System.currentTimeMillis();
+        CycleReport report = new CycleReport();
+
+        // answers that missed the deadline of the previous cycle
+        Answer<T> answer;
+        while ((answer = _answers.poll()) != null) {
+            merge(answer, merger, report);
+        }
+
+        int pending = 0;
+        for (final HostVO host : hosts) {
+            Long lastAnswered = _lastAnswered.get(host.getId());
+            if ((lastAnswered != null && startTick - lastAnswered < freshMillis) || !_outstanding.add(host.getId())) {
+                report._skipped++;
+                continue;
+            }
+            try {
+                _executor.execute(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        collect(host, collector);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                _outstanding.remove(host.getId());
+                s_logger.warn("Unable to ask host " + host.getId() + " for " + _name + ": " + e.getMessage());
+                continue;
+            }
+            report._asked++;
+            pending++;
+        }
+
+        long deadline = startTick + deadlineMillis;
+        try {
+            while (pending > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || (answer = _answers.poll(wait, TimeUnit.MILLISECONDS)) == null) {
+                    break;
+                }
+                pending--;
+                merge(answer, merger, report);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report._late = pending;
+
+        report._duration = System.currentTimeMillis() - startTick;
+        _lastReport = report;
+
+        if (report._late > 0) {
+            s_logger.warn(_name + " did not finish in time, " + report);
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " " + report);
+        }
+        return report;
+    }
+
+    public CycleReport getLastReport() {
+        return _lastReport;
+    }
+
+    private void collect(HostVO host, Collector<T> collector) {
+        long startTick = System.currentTimeMillis();
+        T stats = null;
+        Exception error = null;
+        try {
+            stats = collector.collect(host);
+        } catch (Exception e) {
+            error = e;
+        }
+        long now = System.currentTimeMillis();
+        if (error == null) {
+            _lastAnswered.put(host.getId(), now);
+        }
+        _outstanding.remove(host.getId());
+        _answers.add(new Answer<T>(host, stats, error, now - startTick));
+    }
+
+    private void merge(Answer<T> answer, Merger<T> merger, CycleReport report) {
+        report._totalLatency += answer._latency;
+        if (answer._latency > report._maxLatency) {
+            report._maxLatency = answer._latency;
+            report._slowestHostId = answer._host.getId();
+        }
+        if (answer._error != null) {
+            report._failed++;
+            s_logger.debug("Failed to get " + _name + " for host " + answer._host.getId() + ": " + answer._error.getMessage());
+            return;
+        }
+        report._answered++;
+        if (answer._stats != null) {
+            try {
+                merger.merge(answer._host, answer._stats);
+            } catch (RuntimeException e) {
+                s_logger.warn("Failed to merge " + _name + " of host " + answer._host.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps recent samples of host or vm statistics per entity, rolled up into
+ * slots of one minute, five minutes and one hour as they come in.
+ *
+ * Every resolution is a ring of a fixed number of slots holding the sum and
+ * the count of the samples that fell into it, in primitive arrays, so an
+ * entity costs the same memory however long it has been collected.  A slot
+ * is reused once its ring has wrapped around.
+ */
+public class StatsTimeSeries {
+
+    public static enum Metric {
+        CpuUtilization, NetworkReadKBs, NetworkWriteKBs, DiskReadKBs, DiskWriteKBs, DiskReadIOs, DiskWriteIOs, UsedMemoryKBs
+    }
+
+    public static enum Resolution {
+        OneMinute(60, 60), FiveMinutes(300, 144), OneHour(3600, 72);
+
+        private final long _millis;
+        private final int _slots;
+
+        Resolution(int seconds, int slots) {
+            _millis = seconds * 1000L;
+            _slots = slots;
+        }
+
+        public long getMillis() {
+            return _millis;
+        }
+
+        public int getSlots() {
+            return _slots;
+        }
+    }
+
+    public static class Point {
+        private final long _time;
+        private final Metric[] _metrics;
+        private final double[] _values;
+
+        Point(long time, Metric[] metrics, double[] values) {
+            _time = time;
+            _metrics = metrics;
+            _values = values;
+        }
+
+        /**
+         * @return the start of the slot, in milliseconds
+         */
+        public long getTime() {
+            return _time;
+        }
+
+        /**
+         * @return the average of the samples in the slot, NaN for a metric
+         * the series does not keep
+         */
+        public double getValue(Metric metric) {
+            for (int i = 0; i < _metrics.length; i++) {
+                if (_metrics[i] == metric) {
+                    return _values[i];
+                }
+            }
+            return Double.NaN;
+        }
+    }
+
+    private static class Ring {
+        private final Resolution _resolution;
+        private final int _width;
+        private final long[] _slotNumbers;
+        private final int[] _counts;
+        private final float[] _sums;
+
+        Ring(Resolution resolution, int width) {
+            _resolution = resolution;
+            _width = width;
+            _slotNumbers = new long[resolution.getSlots()];
+            _counts = new int[resolution.getSlots()];
+            _sums = new float[resolution.getSlots() * width];
+        }
+
+        void add(long time, double[] values) {
+            long slotNumber = time / _resolution.getMillis();
+            int slot = (int)(slotNumber % _slotNumbers.length);
+            if (_slotNumbers[slot] != slotNumber) {
+                if (_slotNumbers[slot] > slotNumber) {
+                    // older than what the ring holds for this slot
+                    return;
+                }
+                _slotNumbers[slot] = slotNumber;
+                _counts[slot] = 0;
+                for (int i = 0; i < _width; i++) {
+                    _sums[slot * _width + i] = 0;
+                }
+            }
+            _counts[slot]++;
+            for (int i = 0; i < _width; i++) {
+                _sums[slot * _width + i] += values[i];
+            }
+        }
+
+        List<Point> list(long from, long to, Metric[] metrics) {
+            List<Point> points = new ArrayList<Point>();
+            long first = from / _resolution.getMillis();
+            long last = to / _resolution.getMillis();
+            for (long slotNumber = Math.max(first, last - _slotNumbers.length + 1); slotNumber <= last; slotNumber++) {
+                int slot = (int)(slotNumber % _slotNumbers.length);
+                if (_slotNumbers[slot] != slotNumber || _counts[slot] == 0) {
+                    continue;
+                }
+                double[] averages = new double[_width];
+                for (int i = 0; i < _width; i++) {
+                    averages[i] = _sums[slot * _width + i] / _counts[slot];
+                }
+                points.add(new Point(slotNumber * _resolution.getMillis(), metrics, averages));
+            }
+            return points;
+        }
+    }
+
+    private static class Series {
+        private final Ring[] _rings;
+        private long _lastSample;
+
+        Series(int width) {
+            Resolution[] resolutions = Resolution.values();
+            _rings = new Ring[resolutions.length];
+            for (int i = 0; i < resolutions.length; i++) {
+                _rings[i] = new Ring(resolutions[i], width);
+            }
+        }
+
+        synchronized void add(long time, double[] values) {
+            for (Ring ring : _rings) {
+                ring.add(time, values);
+            }
+            _lastSample = Math.max(_lastSample, time);
+        }
+
+        synchronized List<Point> list(Resolution resolution, long from, long to, Metric[] metrics) {
+            return _rings[resolution.ordinal()].list(from, to, metrics);
+        }
+
+        synchronized long getLastSample() {
+            return _lastSample;
+        }
+    }
+
+    private final Metric[] _metrics;
+    private final ConcurrentMap<Long, Series> _series = new ConcurrentHashMap<Long, Series>();
+
+    public StatsTimeSeries(Metric... metrics) {
+        _metrics = metrics;
+    }
+
+    public Metric[] getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * @param values one per metric of the store, in the order they were
+     * given to the constructor
+     */
+    public void add(long id, long time, double... values) {
+        if (values.length != _metrics.length) {
+            throw new IllegalArgumentException("Expected " + _metrics.length + " values, got " + values.length);
+        }
+        Series series = _series.get(id);
+        if (series == null) {
+            Series created = new Series(_metrics.length);
+            series = _series.putIfAbsent(id, created);
+            if (series == null) {
+                series = created;
+            }
+        }
+        series.add(time, values);
+    }
+
+    /**
+     * @return the slots of the resolution between from and to, oldest first,
+     * leaving out those without samples
+     */
+    public List<Point> list(long id, Resolution resolution, long from, long to) {
+        Series series = _series.get(id);
+        if (series == null) {
+            return Collections.emptyList();
+        }
+        return series.list(resolution, from, to, _metrics);
+    }
+
+    /**
+     * Drops the entities without a sample since before, such as expunged vms
+     * and removed hosts.
+     */
+    public int expire(long before) {
+        int count = 0;
+        for (Iterator<Series> it = _series.values().iterator(); it.hasNext();) {
+            if (it.next().getLastSample() < before) {
+                it.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return _series.size();
+    }
+}
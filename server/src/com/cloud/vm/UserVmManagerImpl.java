@@ -1830,6 +1830,11 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
                 return null;
             }
 
+            if (s_logger.isDebugEnabled() && ((GetVmStatsAnswer)answer).getCollectionTimeMillis() > 0) {
+                s_logger.debug("Host " + hostName + " collected the statistics of " + vmStatsByName.size() + " of " + vmNames.size() + " VMs in "
+                        + ((GetVmStatsAnswer)answer).getCollectionTimeMillis() + " ms");
+            }
+
             for (Map.Entry<String, VmStatsEntry> entry : vmStatsByName.entrySet()) {
                 vmStatsById.put(vmIds.get(vmNames.indexOf(entry.getKey())), entry.getValue());
             }
@@ -43,6 +43,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.net.URLEncoder;
 import java.net.InetAddress;
@@ -181,7 +182,7 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         Mockito.verify(apiServer, Mockito.never()).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
     }
 
     @SuppressWarnings("unchecked")
@@ -195,7 +196,7 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
         Mockito.verify(apiServer, Mockito.times(1)).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query.dao;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.cloudstack.api.ApiConstants.VMDetails;
+import org.apache.cloudstack.api.ResponseObject.ResponseView;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.user.UserVO;
+import com.cloud.user.dao.UserDao;
+import com.cloud.vm.UserVmDetailVO;
+import com.cloud.vm.dao.NicSecondaryIpDao;
+import com.cloud.vm.dao.NicSecondaryIpVO;
+import com.cloud.vm.dao.UserVmDetailsDao;
+
+import junit.framework.TestCase;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserVmJoinDaoImplTest extends TestCase {
+
+    @Mock (name = "_configDao")
+    private ConfigurationDao _configDao;
+    @Mock (name = "_userDao")
+    private UserDao _userDao;
+    @Mock (name = "_userVmDetailsDao")
+    private UserVmDetailsDao _userVmDetailsDao;
+    @Mock (name = "_nicSecondaryIpDao")
+    private NicSecondaryIpDao _nicSecondaryIpDao;
+
+    @InjectMocks
+    private UserVmJoinDaoImpl _userVmJoinDaoImpl;
+
+    private UserVmJoinVO[] rows;
+
+    protected UserVmJoinVO row(long vmId, long userId, long nicId) {
+        UserVmJoinVO row = mock(UserVmJoinVO.class);
+        when(row.getId()).thenReturn(vmId);
+        when(row.getUuid()).thenReturn("vm-" + vmId);
+        when(row.getUserId()).thenReturn(userId);
+        when(row.getNicId()).thenReturn(nicId);
+        when(row.getNicUuid()).thenReturn("nic-" + nicId);
+        return row;
+    }
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        // vm 1 has two nics and so two rows in user_vm_view
+        rows = new UserVmJoinVO[] {row(1L, 5L, 10L), row(1L, 5L, 11L), row(2L, 6L, 20L)};
+
+        UserVO user = mock(UserVO.class);
+        when(user.getId()).thenReturn(5L);
+        when(user.getUsername()).thenReturn("admin");
+        when(_userDao.listByIds(anyListOf(Long.class))).thenReturn(Arrays.asList(user));
+
+        NicSecondaryIpVO ip = mock(NicSecondaryIpVO.class);
+        when(ip.getNicId()).thenReturn(11L);
+        when(ip.getIp4Address()).thenReturn("10.1.1.99");
+        when(_nicSecondaryIpDao.listByNicIds(anyListOf(Long.class))).thenReturn(Arrays.asList(ip));
+
+        when(_userVmDetailsDao.findDetails(anyListOf(Long.class), anyString())).thenReturn(new ArrayList<UserVmDetailVO>());
+    }
+
+    @Test
+    public void relatedEntitiesAreLoadedOncePerPage() {
+        List<UserVmResponse> responses = _userVmJoinDaoImpl.newUserVmResponses(ResponseView.Full, "virtualmachine", EnumSet.of(VMDetails.nics), rows);
+
+        assertEquals(2, responses.size());
+        assertEquals("vm-1", responses.get(0).getId());
+        assertEquals(2, responses.get(0).getNics().size());
+        assertEquals("admin", responses.get(0).getUserName());
+        assertEquals("vm-2", responses.get(1).getId());
+        assertNull(responses.get(1).getUserName());
+
+        verify(_userDao, times(1)).listByIds(anyListOf(Long.class));
+        verify(_userDao, never()).getUser(anyLong());
+        verify(_nicSecondaryIpDao, times(1)).listByNicIds(anyListOf(Long.class));
+        verify(_nicSecondaryIpDao, never()).listByNicId(anyLong());
+        verify(_userVmDetailsDao, times(1)).findDetails(anyListOf(Long.class), anyString());
+        verify(_userVmDetailsDao, never()).findDetail(anyLong(), anyString());
+    }
+
+    @Test
+    public void singleResponseLooksUpRelatedEntities() {
+        _userVmJoinDaoImpl.newUserVmResponse(ResponseView.Full, "virtualmachine", rows[2], EnumSet.of(VMDetails.nics), null);
+
+        verify(_userDao, times(1)).getUser(6L);
+        verify(_nicSecondaryIpDao, times(1)).listByNicId(20L);
+        verify(_userDao, never()).listByIds(anyListOf(Long.class));
+    }
+}
@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.utils.HttpUtils;
+import com.google.gson.annotations.SerializedName;
+
+public class ApiResponseSerializerTest {
+
+    public static class ItemResponse extends BaseResponse {
+        @SerializedName("id")
+        private String id;
+
+        @SerializedName("name")
+        private String name;
+
+        public ItemResponse(int id) {
+            this.id = String.valueOf(id);
+            this.name = "item-" + id;
+            setObjectName("item");
+        }
+    }
+
+    static class ItemPager implements ListResponse.Pager<ItemResponse> {
+        private final int _total;
+        private final int _pageSize;
+        private int _next;
+        int pagesRead;
+
+        ItemPager(int total, int pageSize) {
+            _total = total;
+            _pageSize = pageSize;
+        }
+
+        @Override
+        public List<ItemResponse> nextPage() {
+            if (_next >= _total) {
+                return Collections.emptyList();
+            }
+            List<ItemResponse> page = new ArrayList<ItemResponse>();
+            for (int end = Math.min(_total, _next + _pageSize); _next < end; _next++) {
+                page.add(new ItemResponse(_next));
+            }
+            pagesRead++;
+            return page;
+        }
+    }
+
+    protected ListResponse<ItemResponse> pagedResponse(int total, int pageSize) {
+        ListResponse<ItemResponse> response = new ListResponse<ItemResponse>();
+        response.setPagedResponses(new ItemPager(total, pageSize), total);
+        response.setResponseName("listitemsresponse");
+        return response;
+    }
+
+    @Test
+    public void testStreamedJsonMatchesSerializedString() throws Exception {
+        String expected = ApiResponseSerializer.toSerializedString(pagedResponse(7, 3), HttpUtils.RESPONSE_TYPE_JSON);
+
+        StringWriter out = new StringWriter();
+        StringBuilder log = new StringBuilder();
+        ApiResponseSerializer.writeListResponse(pagedResponse(7, 3), HttpUtils.RESPONSE_TYPE_JSON, out, log);
+
+        Assert.assertEquals(expected, out.toString());
+        Assert.assertTrue(out.toString().contains("\"count\":7"));
+        Assert.assertTrue(log.toString().endsWith("7 objects streamed"));
+    }
+
+    @Test
+    public void testStreamedEmptyJsonList() throws Exception {
+        ListResponse<ItemResponse> response = pagedResponse(0, 3);
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeListResponse(response, HttpUtils.RESPONSE_TYPE_JSON, out, new StringBuilder());
+        Assert.assertEquals("{\"listitemsresponse\":{}}", out.toString());
+    }
+
+    @Test
+    public void testGetResponsesReadsAllPages() {
+        ListResponse<ItemResponse> response = new ListResponse<ItemResponse>();
+        ItemPager pager = new ItemPager(10, 4);
+        response.setPagedResponses(pager, 10);
+        Assert.assertTrue(response.isPaged());
+
+        Assert.assertEquals(10, response.getResponses().size());
+        Assert.assertEquals(3, pager.pagesRead);
+        Assert.assertFalse(response.isPaged());
+        Assert.assertEquals(Integer.valueOf(10), response.getCount());
+    }
+}
@@ -0,0 +1,171 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package com.cloud.capacity;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.Profiler;
+
+public class CapacityIndexTest {
+    private static final Logger s_logger = Logger.getLogger(CapacityIndexTest.class);
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    protected CapacityIndex.HostCapacity host(long hostId, long podId, long clusterId, long usedCpu, long usedMemory) {
+        return new CapacityIndex.HostCapacity(hostId, 1, podId, clusterId, 10000, usedCpu, 0, 16 * GB, usedMemory, 0, true);
+    }
+
+    @Test
+    public void testClustersOrderedByAggregateCapacity() {
+        CapacityIndex index = new CapacityIndex();
+        index.update(host(1, 1, 10, 8000, 2 * GB), 1.0f, 1.0f);
+        index.update(host(2, 1, 10, 6000, 2 * GB), 1.0f, 1.0f);
+        index.update(host(3, 1, 11, 1000, 2 * GB), 1.0f, 1.0f);
+        index.update(host(4, 2, 12, 5000, 2 * GB), 2.0f, 1.0f);
+
+        Pair<List<Long>, Map<Long, Double>> ordered = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true);
+        Assert.assertEquals(Arrays.asList(11L, 12L, 10L), ordered.first());
+        Assert.assertEquals(0.7, ordered.second().get(10L), 0.0001);
+        Assert.assertEquals(0.25, ordered.second().get(12L), 0.0001);
+
+        ordered = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, false);
+        Assert.assertEquals(Arrays.asList(11L, 10L), ordered.first());
+
+        Pair<List<Long>, Map<Long, Double>> pods = index.orderPodsByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(2L, 1L), pods.first());
+        Assert.assertEquals(0.5, pods.second().get(1L), 0.0001);
+    }
+
+    @Test
+    public void testHostsWithCapacityUseOvercommit() {
+        CapacityIndex index = new CapacityIndex();
+        index.update(host(1, 1, 10, 9000, 2 * GB), 1.0f, 1.0f);
+        index.update(host(2, 1, 11, 9000, 2 * GB), 2.0f, 1.0f);
+
+        Assert.assertEquals(Arrays.asList(11L), index.listClustersWithHostCapacity(1, true, 2000, GB));
+        Assert.assertEquals(Arrays.asList(1L), index.listPodsWithHostCapacity(1, 2000, GB));
+        Assert.assertTrue(index.listHostsWithEnoughCapacity(2000, GB, 10).isEmpty());
+        Assert.assertEquals(Arrays.asList(2L), index.listHostsWithEnoughCapacity(2000, GB, 11));
+        Assert.assertTrue(index.listClustersWithHostCapacity(1, true, 2000, 15 * GB).isEmpty());
+    }
+
+    @Test
+    public void testReservedCapacity() {
+        CapacityIndex index = new CapacityIndex();
+        CapacityIndex.HostCapacity host = new CapacityIndex.HostCapacity(1, 1, 1, 10, 10000, 4000, 4000, 16 * GB, 0, 0, true);
+        index.update(host, 1.0f, 1.0f);
+
+        Assert.assertTrue(index.hasCapacity(host, 4000, GB, false));
+        Assert.assertFalse(index.hasCapacity(host, 4000, GB, true));
+        Assert.assertEquals(0.8f, index.findClusterConsumption(10, Capacity.CAPACITY_TYPE_CPU, 0), 0.0001f);
+        Assert.assertEquals(0.9f, index.findClusterConsumption(10, Capacity.CAPACITY_TYPE_CPU, 1000), 0.0001f);
+    }
+
+    @Test
+    public void testUpdateReplacesHost() {
+        CapacityIndex index = new CapacityIndex();
+        index.update(host(1, 1, 10, 8000, 0), 1.0f, 1.0f);
+        index.update(host(1, 1, 10, 2000, 0), 1.0f, 1.0f);
+        Assert.assertEquals(0.2, index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true).second().get(10L), 0.0001);
+
+        // host moved to another cluster
+        index.update(host(1, 1, 11, 2000, 0), 1.0f, 1.0f);
+        Assert.assertEquals(Arrays.asList(11L), index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true).first());
+
+        index.remove(1);
+        Assert.assertNull(index.getHost(1));
+        Assert.assertTrue(index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true).first().isEmpty());
+    }
+
+    @Test
+    public void testReloadKeepsNewerUpdates() {
+        CapacityIndex index = new CapacityIndex();
+        index.update(host(1, 1, 10, 1000, 0), 1.0f, 1.0f);
+        index.update(host(2, 1, 10, 1000, 0), 1.0f, 1.0f);
+        long since = index.getSequence();
+
+        // host 1 is allocated while the reload reads the database
+        index.update(host(1, 1, 10, 5000, 0), 1.0f, 1.0f);
+        index.reload(host(1, 1, 10, 1000, 0), 1.0f, 1.0f, since);
+        // host 2 is gone from the database
+        index.retainHosts(Arrays.asList(1L), since);
+
+        Assert.assertEquals(5000, index.getHost(1).getUsed(Capacity.CAPACITY_TYPE_CPU));
+        Assert.assertNull(index.getHost(2));
+        Assert.assertEquals(1, index.getHostCount());
+    }
+
+    @Test
+    public void testPlannerQueriesWithManyHosts() {
+        final int zones = 2;
+        final int podsPerZone = 10;
+        final int clustersPerPod = 25;
+        final int hostsPerCluster = 20;
+        final int iterations = 1000;
+
+        CapacityIndex index = new CapacityIndex();
+        long hostId = 0;
+        for (long zone = 1; zone <= zones; zone++) {
+            for (int pod = 0; pod < podsPerZone; pod++) {
+                long podId = zone * 100 + pod;
+                for (int cluster = 0; cluster < clustersPerPod; cluster++) {
+                    long clusterId = podId * 100 + cluster;
+                    for (int i = 0; i < hostsPerCluster; i++) {
+                        hostId++;
+                        index.update(new CapacityIndex.HostCapacity(hostId, zone, podId, clusterId, 64000, hostId * 37 % 64000, 0, 256 * GB,
+                                hostId * 7 % 256 * GB, 0, true), 1.5f, 1.0f);
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(zones * podsPerZone * clustersPerPod * hostsPerCluster, index.getHostCount());
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        int found = 0;
+        for (int i = 0; i < iterations; i++) {
+            List<Long> clusters = index.listClustersWithHostCapacity(1, true, 8000, 16 * GB);
+            List<Long> ordered = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true).first();
+            ordered.retainAll(clusters);
+            for (Long clusterId : ordered) {
+                index.findClusterConsumption(clusterId, Capacity.CAPACITY_TYPE_CPU, 8000);
+                index.findClusterConsumption(clusterId, Capacity.CAPACITY_TYPE_MEMORY, 16 * GB);
+            }
+            found += index.listHostsWithEnoughCapacity(8000, 16 * GB, ordered.get(0)).size();
+
+            // the vm gets allocated on some host
+            long id = 1 + i * 7 % hostId;
+            CapacityIndex.HostCapacity host = index.getHost(id);
+            index.update(new CapacityIndex.HostCapacity(id, host.getZoneId(), host.getPodId(), host.getClusterId(), host.getTotal(Capacity.CAPACITY_TYPE_CPU),
+                    host.getUsed(Capacity.CAPACITY_TYPE_CPU) + 8000, 0, host.getTotal(Capacity.CAPACITY_TYPE_MEMORY),
+                    host.getUsed(Capacity.CAPACITY_TYPE_MEMORY) + 16 * GB, 0, true), 1.5f, 1.0f);
+        }
+        profiler.stop();
+
+        Assert.assertTrue(found > 0);
+        s_logger.info("Planned " + iterations + " vms over " + hostId + " hosts in " + profiler.getDurationInMillis() + " ms, " +
+                profiler.getDuration() / iterations / 1000 + " us per vm");
+    }
+}
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupRulesetTracker.Ruleset;
+
+public class SecurityGroupRulesetTrackerTest {
+    private static final Logger s_logger = Logger.getLogger(SecurityGroupRulesetTrackerTest.class);
+
+    private static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+    private static final PortAndProto HTTP = new PortAndProto("tcp", 80, 80);
+
+    protected Map<PortAndProto, Set<String>> rules(PortAndProto pAp, String... cidrs) {
+        Map<PortAndProto, Set<String>> rules = new TreeMap<PortAndProto, Set<String>>();
+        Set<String> set = new TreeSet<String>(new CidrComparator());
+        set.addAll(Arrays.asList(cidrs));
+        rules.put(pAp, set);
+        return rules;
+    }
+
+    protected IpPortAndProto[] toRuleSet(Map<PortAndProto, Set<String>> rules) {
+        IpPortAndProto[] result = new IpPortAndProto[rules.size()];
+        int i = 0;
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            PortAndProto pAp = entry.getKey();
+            result[i++] = new IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return result;
+    }
+
+    @Test
+    public void testDifference() {
+        Map<PortAndProto, Set<String>> from = rules(SSH, "10.1.1.1/32", "10.1.1.2/32");
+        Map<PortAndProto, Set<String>> to = rules(SSH, "10.1.1.2/32", "10.1.1.3/32");
+        to.putAll(rules(HTTP, "0.0.0.0/0"));
+
+        Map<PortAndProto, Set<String>> added = SecurityGroupRulesetTracker.difference(to, from);
+        Assert.assertEquals(2, added.size());
+        Assert.assertEquals(1, added.get(SSH).size());
+        Assert.assertTrue(added.get(SSH).contains("10.1.1.3/32"));
+        Assert.assertTrue(added.get(HTTP).contains("0.0.0.0/0"));
+
+        Map<PortAndProto, Set<String>> revoked = SecurityGroupRulesetTracker.difference(from, to);
+        Assert.assertEquals(1, revoked.size());
+        Assert.assertTrue(revoked.get(SSH).contains("10.1.1.1/32"));
+
+        Assert.assertTrue(SecurityGroupRulesetTracker.difference(to, to).isEmpty());
+    }
+
+    @Test
+    public void testBaseOnlyAfterAnswer() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        Map<PortAndProto, Set<String>> empty = new TreeMap<PortAndProto, Set<String>>();
+        tracker.sent(1L, new Ruleset(10L, 5L, rules(SSH, "10.1.1.1/32"), empty));
+        Assert.assertNull(tracker.getBase(1L, 10L));
+
+        tracker.applied(1L, 5L);
+        Assert.assertEquals(5L, tracker.getBase(1L, 10L).getSeqNum());
+        Assert.assertNull("the vm moved to another host", tracker.getBase(1L, 11L));
+
+        // an answer for an update that was replaced leaves nothing to diff against
+        tracker.sent(1L, new Ruleset(10L, 7L, rules(SSH, "10.1.1.2/32"), empty));
+        tracker.applied(1L, 6L);
+        Assert.assertNull(tracker.getBase(1L, 10L));
+
+        tracker.sent(1L, new Ruleset(10L, 8L, rules(SSH, "10.1.1.2/32"), empty));
+        tracker.applied(1L, 8L);
+        Assert.assertNotNull(tracker.getBase(1L, 10L));
+        tracker.invalidate(1L);
+        Assert.assertNull(tracker.getBase(1L, 10L));
+        Assert.assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void testDeltaAppliesToBase() {
+        Map<PortAndProto, Set<String>> empty = new TreeMap<PortAndProto, Set<String>>();
+        Map<PortAndProto, Set<String>> from = rules(SSH, "10.1.1.1/32", "10.1.1.2/32");
+        Map<PortAndProto, Set<String>> to = rules(SSH, "10.1.1.2/32", "10.1.1.3/32");
+        to.putAll(rules(HTTP, "0.0.0.0/0"));
+
+        SecurityGroupRulesCmd base = new SecurityGroupRulesCmd("10.1.1.5", "02:00:00:00:00:01", "i-2-5-VM", 5L, "sig1", 1L, toRuleSet(from), toRuleSet(empty));
+        SecurityGroupRulesCmd delta = new SecurityGroupRulesCmd("10.1.1.5", "02:00:00:00:00:01", "i-2-5-VM", 5L, "sig2", 2L,
+            toRuleSet(SecurityGroupRulesetTracker.difference(to, from)), toRuleSet(empty));
+        delta.setDelta(1L, toRuleSet(SecurityGroupRulesetTracker.difference(from, to)), toRuleSet(empty));
+        Assert.assertTrue(delta.isDelta());
+
+        SecurityGroupRulesCmd merged = delta.applyTo(base);
+        Assert.assertFalse(merged.isDelta());
+        Assert.assertEquals(2L, merged.getSeqNum().longValue());
+        Assert.assertEquals("sig2", merged.getSignature());
+
+        SecurityGroupRulesCmd full = new SecurityGroupRulesCmd("10.1.1.5", "02:00:00:00:00:01", "i-2-5-VM", 5L, "sig2", 2L, toRuleSet(to), toRuleSet(empty));
+        Assert.assertEquals(full.getTotalNumCidrs(), merged.getTotalNumCidrs());
+        Assert.assertEquals(full.stringifyRules(), merged.stringifyRules());
+        s_logger.info("Delta of " + delta.getTotalNumCidrs() + " cidrs rebuilt a ruleset of " + merged.getTotalNumCidrs() + " cidrs");
+    }
+}
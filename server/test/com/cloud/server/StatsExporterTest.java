@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.utils.graphite.GraphiteClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsExporterTest {
+
+    private static class RecordingClient extends GraphiteClient {
+        private final List<Map<String, ? extends Number>> _sent = Collections.synchronizedList(new ArrayList<Map<String, ? extends Number>>());
+        private final CountDownLatch _blocked;
+        private final CountDownLatch _released = new CountDownLatch(1);
+        private volatile int _metricCount = 0;
+
+        RecordingClient(CountDownLatch blocked) {
+            super("localhost");
+            _blocked = blocked;
+        }
+
+        @Override
+        public void sendMetrics(Map<String, ? extends Number> metrics, long timeStamp) {
+            _blocked.countDown();
+            try {
+                _released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _sent.add(metrics);
+            _metricCount += metrics.size();
+        }
+    }
+
+    private Map<String, Number> hostMetrics(int host) {
+        Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("cloudstack.stats.instances.vm" + host + ".cpu.utilization", 12.5);
+        metrics.put("cloudstack.stats.instances.vm" + host + ".cpu.num", 2);
+        return metrics;
+    }
+
+    /**
+     * The collector hands over the metrics of every host without waiting for
+     * Graphite, and what piles up during a send goes out in one batch.
+     */
+    @Test
+    public void testExportDoesNotWaitForGraphite() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        RecordingClient client = new RecordingClient(blocked);
+        StatsExporter exporter = new StatsExporter(client);
+        exporter.start();
+        try {
+            exporter.export(hostMetrics(0));
+            Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            long startTick = System.currentTimeMillis();
+            for (int host = 1; host <= 100; host++) {
+                exporter.export(hostMetrics(host));
+            }
+            Assert.assertTrue(System.currentTimeMillis() - startTick < 5000);
+            Assert.assertEquals(100, exporter.getQueueSize());
+
+            client._released.countDown();
+            for (int i = 0; i < 100 && client._metricCount < 202; i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(202, client._metricCount);
+            Assert.assertTrue(client._sent.size() <= 3);
+            Assert.assertEquals(202, exporter.getSentCount());
+            Assert.assertEquals(0, exporter.getDroppedCount());
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testEmptyMetricsAreNotQueued() {
+        StatsExporter exporter = new StatsExporter(new RecordingClient(new CountDownLatch(1)));
+        exporter.export(new HashMap<String, Number>());
+        Assert.assertEquals(0, exporter.getQueueSize());
+    }
+}
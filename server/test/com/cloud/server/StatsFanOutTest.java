@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+
+public class StatsFanOutTest {
+    private static final Logger s_logger = Logger.getLogger(StatsFanOutTest.class);
+
+    private static final int THREADS = 8;
+    private static final int HOSTS = 64;
+    private static final long LATENCY = 50;
+
+    private ExecutorService _executor;
+
+    @Before
+    public void setUp() {
+        _executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    protected List<HostVO> createHosts(int count) {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= count; id++) {
+            hosts.add(new HostVO(id, "host-" + id, Host.Type.Routing, null, null, null, null, null, null, null, null, null, "guid-" + id, Status.Up, null, null, null,
+                    1, null, 1, 0, null, null, null, 0, null));
+        }
+        return hosts;
+    }
+
+    // answers after a fixed latency, counting how many hosts are asked at once
+    private static class SlowCollector implements StatsFanOut.Collector<Long> {
+        private final AtomicInteger _running = new AtomicInteger();
+        private final AtomicInteger _maxRunning = new AtomicInteger();
+
+        @Override
+        public Long collect(HostVO host) throws Exception {
+            int running = _running.incrementAndGet();
+            int max = _maxRunning.get();
+            while (running > max && !_maxRunning.compareAndSet(max, running)) {
+                max = _maxRunning.get();
+            }
+            try {
+                Thread.sleep(LATENCY);
+            } finally {
+                _running.decrementAndGet();
+            }
+            return host.getId();
+        }
+    }
+
+    private static class MapMerger implements StatsFanOut.Merger<Long> {
+        private final Map<Long, Long> _merged = new HashMap<Long, Long>();
+
+        @Override
+        public void merge(HostVO host, Long stats) {
+            _merged.put(host.getId(), stats);
+        }
+    }
+
+    @Test
+    public void testHostsAreAskedInParallel() {
+        StatsFanOut<Long> fanOut = new StatsFanOut<Long>("test stats", _executor);
+        SlowCollector collector = new SlowCollector();
+        MapMerger merger = new MapMerger();
+
+        StatsFanOut.CycleReport report = fanOut.run(createHosts(HOSTS), collector, merger, 0, 60000);
+
+        Assert.assertEquals(HOSTS, report.getAsked());
+        Assert.assertEquals(HOSTS, report.getAnswered());
+        Assert.assertEquals(0, report.getLate());
+        Assert.assertEquals(HOSTS, merger._merged.size());
+        Assert.assertEquals(THREADS, collector._maxRunning.get());
+        // one host after the other would take HOSTS * LATENCY
+        Assert.assertTrue(report.getDuration() < HOSTS * LATENCY / 2);
+        Assert.assertSame(report, fanOut.getLastReport());
+        s_logger.info(HOSTS + " hosts of " + LATENCY + " ms each on " + THREADS + " threads: " + report + ", one after the other: " + HOSTS * LATENCY + " ms");
+    }
+
+    @Test
+    public void testFreshHostsAreSkipped() {
+        StatsFanOut<Long> fanOut = new StatsFanOut<Long>("test stats", _executor);
+        List<HostVO> hosts = createHosts(4);
+        fanOut.run(hosts, new SlowCollector(), new MapMerger(), 60000, 60000);
+
+        StatsFanOut.CycleReport report = fanOut.run(hosts, new SlowCollector(), new MapMerger(), 60000, 60000);
+        Assert.assertEquals(0, report.getAsked());
+        Assert.assertEquals(4, report.getSkipped());
+
+        report = fanOut.run(hosts, new SlowCollector(), new MapMerger(), 0, 60000);
+        Assert.assertEquals(4, report.getAsked());
+    }
+
+    @Test
+    public void testLateAnswerIsMergedNextCycle() throws Exception {
+        StatsFanOut<Long> fanOut = new StatsFanOut<Long>("test stats", _executor);
+        List<HostVO> hosts = createHosts(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StatsFanOut.Collector<Long> blocked = new StatsFanOut.Collector<Long>() {
+            @Override
+            public Long collect(HostVO host) throws Exception {
+                release.await();
+                return host.getId();
+            }
+        };
+
+        MapMerger merger = new MapMerger();
+        StatsFanOut.CycleReport report = fanOut.run(hosts, blocked, merger, 0, 50);
+        Assert.assertEquals(1, report.getLate());
+        Assert.assertTrue(merger._merged.isEmpty());
+
+        // still outstanding, so not asked twice
+        report = fanOut.run(hosts, blocked, merger, 0, 50);
+        Assert.assertEquals(0, report.getAsked());
+        Assert.assertEquals(1, report.getSkipped());
+
+        release.countDown();
+        _executor.shutdown();
+        Assert.assertTrue(_executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        report = fanOut.run(new ArrayList<HostVO>(), blocked, merger, 0, 50);
+        Assert.assertEquals(1, report.getAnswered());
+        Assert.assertEquals(Long.valueOf(1), merger._merged.get(1L));
+    }
+
+    @Test
+    public void testFailedHostIsReported() {
+        StatsFanOut<Long> fanOut = new StatsFanOut<Long>("test stats", _executor);
+        MapMerger merger = new MapMerger();
+        StatsFanOut.CycleReport report = fanOut.run(createHosts(3), new StatsFanOut.Collector<Long>() {
+            @Override
+            public Long collect(HostVO host) throws Exception {
+                if (host.getId() == 2) {
+                    throw new Exception("host is unreachable");
+                }
+                return host.getId() == 3 ? null : host.getId();
+            }
+        }, merger, 60000, 60000);
+
+        Assert.assertEquals(3, report.getAsked());
+        Assert.assertEquals(2, report.getAnswered());
+        Assert.assertEquals(1, report.getFailed());
+        Assert.assertEquals(1, merger._merged.size());
+
+        // the failed host is asked again right away, the others are fresh
+        report = fanOut.run(createHosts(3), new SlowCollector(), merger, 60000, 60000);
+        Assert.assertEquals(1, report.getAsked());
+        Assert.assertEquals(2, report.getSkipped());
+    }
+}
@@ -0,0 +1,134 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.server.StatsTimeSeries.Metric;
+import com.cloud.server.StatsTimeSeries.Point;
+import com.cloud.server.StatsTimeSeries.Resolution;
+
+public class StatsTimeSeriesTest {
+    private static final Logger s_logger = Logger.getLogger(StatsTimeSeriesTest.class);
+
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 60 * MINUTE;
+    // a day boundary, so that slots of every resolution start here
+    private static final long START = 1000L * 24 * HOUR;
+
+    private StatsTimeSeries createSeries() {
+        return new StatsTimeSeries(Metric.CpuUtilization, Metric.NetworkReadKBs);
+    }
+
+    @Test
+    public void testRollups() {
+        StatsTimeSeries series = createSeries();
+        // every 20 seconds for 10 minutes, cpu going up by one per sample
+        for (int i = 0; i < 30; i++) {
+            series.add(1L, START + i * 20000L, i, 100);
+        }
+
+        List<Point> minutes = series.list(1L, Resolution.OneMinute, START, START + 10 * MINUTE);
+        Assert.assertEquals(10, minutes.size());
+        Assert.assertEquals(START, minutes.get(0).getTime());
+        Assert.assertEquals(1.0, minutes.get(0).getValue(Metric.CpuUtilization), 0.001);
+        Assert.assertEquals(28.0, minutes.get(9).getValue(Metric.CpuUtilization), 0.001);
+        Assert.assertEquals(100.0, minutes.get(9).getValue(Metric.NetworkReadKBs), 0.001);
+        Assert.assertTrue(Double.isNaN(minutes.get(0).getValue(Metric.DiskReadKBs)));
+
+        List<Point> fiveMinutes = series.list(1L, Resolution.FiveMinutes, START, START + 10 * MINUTE);
+        Assert.assertEquals(2, fiveMinutes.size());
+        Assert.assertEquals(7.0, fiveMinutes.get(0).getValue(Metric.CpuUtilization), 0.001);
+        Assert.assertEquals(22.0, fiveMinutes.get(1).getValue(Metric.CpuUtilization), 0.001);
+
+        List<Point> hours = series.list(1L, Resolution.OneHour, START, START + HOUR);
+        Assert.assertEquals(1, hours.size());
+        Assert.assertEquals(14.5, hours.get(0).getValue(Metric.CpuUtilization), 0.001);
+
+        Assert.assertEquals(3, series.list(1L, Resolution.OneMinute, START + 2 * MINUTE, START + 4 * MINUTE).size());
+        Assert.assertTrue(series.list(2L, Resolution.OneMinute, START, START + HOUR).isEmpty());
+    }
+
+    @Test
+    public void testRingWrapsAround() {
+        StatsTimeSeries series = createSeries();
+        int minutes = Resolution.OneMinute.getSlots() * 2;
+        for (int i = 0; i < minutes; i++) {
+            series.add(1L, START + i * MINUTE, i, 0);
+        }
+
+        // only the last hour is left at one minute resolution, the rest is in the coarser ones
+        long last = START + (minutes - 1) * MINUTE;
+        List<Point> points = series.list(1L, Resolution.OneMinute, START, last);
+        Assert.assertEquals(Resolution.OneMinute.getSlots(), points.size());
+        Assert.assertEquals(START + (minutes - Resolution.OneMinute.getSlots()) * MINUTE, points.get(0).getTime());
+        Assert.assertEquals(minutes - 1, points.get(points.size() - 1).getValue(Metric.CpuUtilization), 0.001);
+        Assert.assertEquals(minutes / 5, series.list(1L, Resolution.FiveMinutes, START, last).size());
+
+        // a late sample does not overwrite the newer slot in its place
+        series.add(1L, START, 1000, 0);
+        Assert.assertEquals(Resolution.OneMinute.getSlots(), series.list(1L, Resolution.OneMinute, START, last).size());
+        Assert.assertEquals(Resolution.OneMinute.getSlots(), series.list(1L, Resolution.OneMinute, START, last).get(0).getValue(Metric.CpuUtilization), 0.001);
+    }
+
+    @Test
+    public void testExpire() {
+        StatsTimeSeries series = createSeries();
+        series.add(1L, START, 1, 1);
+        series.add(2L, START + HOUR, 1, 1);
+        Assert.assertEquals(1, series.expire(START + MINUTE));
+        Assert.assertEquals(1, series.size());
+        Assert.assertTrue(series.list(1L, Resolution.OneHour, START, START + HOUR).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfValues() {
+        createSeries().add(1L, START, 1);
+    }
+
+    /**
+     * A day of samples every minute for a few thousand vms, which the store
+     * keeps in fixed size arrays per vm.
+     */
+    @Test
+    public void testManyVms() {
+        StatsTimeSeries series = new StatsTimeSeries(Metric.CpuUtilization, Metric.NetworkReadKBs, Metric.NetworkWriteKBs, Metric.DiskReadKBs, Metric.DiskWriteKBs,
+                Metric.DiskReadIOs, Metric.DiskWriteIOs);
+        int vms = 2000;
+        long startTick = System.nanoTime();
+        for (int minute = 0; minute < 24 * 60; minute++) {
+            for (long vmId = 1; vmId <= vms; vmId++) {
+                series.add(vmId, START + minute * MINUTE, minute % 100, 1, 2, 3, 4, 5, 6);
+            }
+        }
+        long addNanos = System.nanoTime() - startTick;
+
+        startTick = System.nanoTime();
+        int points = 0;
+        for (long vmId = 1; vmId <= vms; vmId++) {
+            points += series.list(vmId, Resolution.FiveMinutes, START, START + 24 * HOUR - MINUTE).size();
+        }
+        long listNanos = System.nanoTime() - startTick;
+
+        Assert.assertEquals(vms * Resolution.FiveMinutes.getSlots(), points);
+        s_logger.info("Added " + vms * 24 * 60 + " samples in " + addNanos / 1000000 + " ms, listed " + points + " five minute points in " + listNanos / 1000000 + " ms");
+    }
+}
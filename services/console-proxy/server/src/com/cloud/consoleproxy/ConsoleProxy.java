@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
@@ -31,7 +32,10 @@ import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -70,10 +74,17 @@ public class ConsoleProxy {
     static int httpCmdListenPort = 8001;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
+    static int httpMaxThreads = 64;
+    static int httpQueueSize = 1000;
+    static int ajaxUpdateWaitSeconds = 20;
+    static int webSocketListenPort = 0;
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
 
+    static ConsoleProxyHttpExecutor httpExecutor;
+    static ScheduledExecutorService httpTimer;
+
     static String encryptorPassword = genDefaultEncryptorPassword();
 
     private static String genDefaultEncryptorPassword() {
@@ -158,6 +169,30 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+
+        s = conf.getProperty("consoleproxy.httpMaxThreads");
+        if (s != null) {
+            httpMaxThreads = Integer.parseInt(s);
+            s_logger.info("Setting httpMaxThreads=" + httpMaxThreads);
+        }
+
+        s = conf.getProperty("consoleproxy.httpQueueSize");
+        if (s != null) {
+            httpQueueSize = Integer.parseInt(s);
+            s_logger.info("Setting httpQueueSize=" + httpQueueSize);
+        }
+
+        s = conf.getProperty("consoleproxy.ajaxUpdateWaitSeconds");
+        if (s != null) {
+            ajaxUpdateWaitSeconds = Integer.parseInt(s);
+            s_logger.info("Setting ajaxUpdateWaitSeconds=" + ajaxUpdateWaitSeconds);
+        }
+
+        s = conf.getProperty("consoleproxy.webSocketListenPort");
+        if (s != null) {
+            webSocketListenPort = Integer.parseInt(s);
+            s_logger.info("Setting webSocketListenPort=" + webSocketListenPort);
+        }
     }
 
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -334,6 +369,12 @@ public class ConsoleProxy {
             System.exit(1);
         }
 
+        if (webSocketListenPort > 0) {
+            startupWebSocket();
+        } else {
+            s_logger.info("WebSocket viewer port is disabled");
+        }
+
         if (httpCmdListenPort > 0) {
             startupHttpCmdPort();
         } else {
@@ -353,12 +394,22 @@ public class ConsoleProxy {
                 System.exit(1);
             }
 
+            httpExecutor = new ConsoleProxyHttpExecutor("Console Proxy HTTP", httpMaxThreads, httpQueueSize);
+            httpTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Console Proxy HTTP Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
             HttpServer server = factory.createHttpServerInstance(httpListenPort);
             server.createContext("/getscreen", new ConsoleProxyThumbnailHandler());
             server.createContext("/resource/", new ConsoleProxyResourceHandler());
             server.createContext("/ajax", new ConsoleProxyAjaxHandler());
             server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
-            server.setExecutor(new ThreadExecutor()); // creates a default executor
+            server.setExecutor(httpExecutor);
             server.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -366,12 +417,26 @@ public class ConsoleProxy {
         }
     }
 
+    private static void startupWebSocket() {
+        try {
+            // served over TLS whenever the AJAX viewer is, browsers do not allow ws:// from an https page
+            ServerSocket serverSocket = getHttpServerFactory().createSSLServerSocket(webSocketListenPort);
+            if (serverSocket == null)
+                serverSocket = new ServerSocket(webSocketListenPort);
+            new ConsoleProxyWebSocketServer(serverSocket).start();
+        } catch (Exception e) {
+            // the AJAX viewer keeps working without it
+            s_logger.error("Unable to listen for WebSocket viewers on port " + webSocketListenPort + ", " + e.getMessage(), e);
+            webSocketListenPort = 0;
+        }
+    }
+
     private static void startupHttpCmdPort() {
         try {
             s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
             HttpServer cmdServer = HttpServer.create(new InetSocketAddress(httpCmdListenPort), 2);
             cmdServer.createContext("/cmd", new ConsoleProxyCmdHandler());
-            cmdServer.setExecutor(new ThreadExecutor()); // creates a default executor
+            cmdServer.setExecutor(new ConsoleProxyHttpExecutor("Console Proxy CMD", 4, 100));
             cmdServer.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -531,10 +596,40 @@ public class ConsoleProxy {
         encryptorPassword = password;
     }
 
-    static class ThreadExecutor implements Executor {
-        @Override
-        public void execute(Runnable r) {
-            new Thread(r).start();
-        }
+    /**
+     * Runs a request that was parked while waiting for something, such as an AJAX
+     * update waiting for tiles, on the HTTP threads.
+     */
+    public static void dispatchHttpTask(Runnable task) {
+        if (httpExecutor != null)
+            httpExecutor.execute(task);
+        else
+            task.run();
+    }
+
+    /**
+     * @return false if there is no timer, in which case the caller has to wait
+     * on its own thread
+     */
+    public static boolean scheduleHttpTask(Runnable task, long delayMillis) {
+        if (httpTimer == null)
+            return false;
+        httpTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public static int getAjaxUpdateWaitSeconds() {
+        return ajaxUpdateWaitSeconds;
+    }
+
+    /**
+     * @return the port WebSocket viewers connect to, 0 if they use AJAX only
+     */
+    public static int getWebSocketListenPort() {
+        return webSocketListenPort;
+    }
+
+    public static String getHttpStatsReport() {
+        return httpExecutor != null ? httpExecutor.getStatsReport() : "";
     }
 }
@@ -42,13 +42,14 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange t) throws IOException {
+        boolean parked = false;
         try {
             if (s_logger.isTraceEnabled())
                 s_logger.trace("AjaxHandler " + t.getRequestURI());
 
             long startTick = System.currentTimeMillis();
 
-            doHandle(t);
+            parked = doHandle(t);
 
             if (s_logger.isTraceEnabled())
                 s_logger.trace(t.getRequestURI() + " process time " + (System.currentTimeMillis() - startTick) + " ms");
@@ -61,48 +62,29 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
             s_logger.error("Unexpected exception, ", e);
             t.sendResponseHeaders(500, -1);     // server error
         } finally {
-            t.close();
+            if (!parked)
+                t.close();
         }
     }
 
-    private void doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
+    /**
+     * @return true if the request is parked until there is something to answer it with, in
+     * which case the exchange is closed once it is answered
+     */
+    private boolean doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
         String queries = t.getRequestURI().getQuery();
         if (s_logger.isTraceEnabled())
             s_logger.trace("Handle AJAX request: " + queries);
 
         Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(queries);
 
-        String host = queryMap.get("host");
-        String portStr = queryMap.get("port");
-        String sid = queryMap.get("sid");
-        String tag = queryMap.get("tag");
-        String ticket = queryMap.get("ticket");
         String ajaxSessionIdStr = queryMap.get("sess");
         String eventStr = queryMap.get("event");
-        String console_url = queryMap.get("consoleurl");
-        String console_host_session = queryMap.get("sessionref");
-        String vm_locale = queryMap.get("locale");
-        String hypervHost = queryMap.get("hypervHost");
-        String username = queryMap.get("username");
-        String password = queryMap.get("password");
-
-        if (tag == null)
-            tag = "";
 
         long ajaxSessionId = 0;
         int event = 0;
 
-        int port;
-
-        if (host == null || portStr == null || sid == null)
-            throw new IllegalArgumentException();
-
-        try {
-            port = Integer.parseInt(portStr);
-        } catch (NumberFormatException e) {
-            s_logger.warn("Invalid number parameter in query string: " + portStr);
-            throw new IllegalArgumentException(e);
-        }
+        ConsoleProxyClientParam param = getClientParam(queryMap);
 
         if (ajaxSessionIdStr != null) {
             try {
@@ -124,19 +106,6 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 
         ConsoleProxyClient viewer = null;
         try {
-            ConsoleProxyClientParam param = new ConsoleProxyClientParam();
-            param.setClientHostAddress(host);
-            param.setClientHostPort(port);
-            param.setClientHostPassword(sid);
-            param.setClientTag(tag);
-            param.setTicket(ticket);
-            param.setClientTunnelUrl(console_url);
-            param.setClientTunnelSession(console_host_session);
-            param.setLocale(vm_locale);
-            param.setHypervHost(hypervHost);
-            param.setUsername(username);
-            param.setPassword(password);
-
             viewer = ConsoleProxy.getAjaxVncViewer(param, ajaxSessionIdStr);
         } catch (Exception e) {
 
@@ -151,7 +120,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
                 sb.append(content[i]);
 
             sendResponse(t, "text/html", sb.toString());
-            return;
+            return false;
         }
 
         if (event != 0) {
@@ -186,9 +155,49 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
                 if (s_logger.isTraceEnabled())
                     s_logger.trace("Ajax request indicates client update");
 
-                handleClientUpdate(t, viewer);
+                return handleClientUpdate(t, viewer);
             }
         }
+        return false;
+    }
+
+    /**
+     * Builds the parameters of the console session from the query of an AJAX or WebSocket request.
+     */
+    static ConsoleProxyClientParam getClientParam(Map<String, String> queryMap) throws IllegalArgumentException {
+        String host = queryMap.get("host");
+        String portStr = queryMap.get("port");
+        String sid = queryMap.get("sid");
+        String tag = queryMap.get("tag");
+
+        if (tag == null)
+            tag = "";
+
+        int port;
+
+        if (host == null || portStr == null || sid == null)
+            throw new IllegalArgumentException();
+
+        try {
+            port = Integer.parseInt(portStr);
+        } catch (NumberFormatException e) {
+            s_logger.warn("Invalid number parameter in query string: " + portStr);
+            throw new IllegalArgumentException(e);
+        }
+
+        ConsoleProxyClientParam param = new ConsoleProxyClientParam();
+        param.setClientHostAddress(host);
+        param.setClientHostPort(port);
+        param.setClientHostPassword(sid);
+        param.setClientTag(tag);
+        param.setTicket(queryMap.get("ticket"));
+        param.setClientTunnelUrl(queryMap.get("consoleurl"));
+        param.setClientTunnelSession(queryMap.get("sessionref"));
+        param.setLocale(queryMap.get("locale"));
+        param.setHypervHost(queryMap.get("hypervHost"));
+        param.setUsername(queryMap.get("username"));
+        param.setPassword(queryMap.get("password"));
+        return param;
     }
 
     private static String convertStreamToString(InputStream is, boolean closeStreamAfterRead) {
@@ -223,7 +232,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
     }
 
     @SuppressWarnings("deprecation")
-    private void handleClientEventBag(ConsoleProxyClient viewer, String requestData) {
+    void handleClientEventBag(ConsoleProxyClient viewer, String requestData) {
         if (s_logger.isTraceEnabled())
             s_logger.trace("Handle event bag, event bag: " + requestData);
 
@@ -395,8 +404,26 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
         }
     }
 
-    private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer) throws IOException {
-        String response = viewer.onAjaxClientUpdate();
+    private boolean handleClientUpdate(final HttpExchange t, final ConsoleProxyClient viewer) throws IOException {
+        boolean parked = viewer.waitForAjaxClientUpdate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendClientUpdate(t, viewer.onAjaxClientUpdate(0));
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to answer parked ajax update " + t.getRequestURI() + ", ", e);
+                } finally {
+                    t.close();
+                }
+            }
+        }, ConsoleProxy.getAjaxUpdateWaitSeconds() * 1000L);
+
+        if (!parked)
+            sendClientUpdate(t, viewer.onAjaxClientUpdate());
+        return parked;
+    }
+
+    private void sendClientUpdate(HttpExchange t, String response) throws IOException {
 
         Headers hds = t.getResponseHeaders();
         hds.set("Content-Type", "text/javascript");
@@ -16,10 +16,6 @@
 // under the License.
 package com.cloud.consoleproxy;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Map;
@@ -120,13 +116,11 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
         ConsoleProxyClient viewer = ConsoleProxy.getVncViewer(param);
 
         if (key == 0) {
-            Image scaledImage = viewer.getClientScaledImage(width, height);
-            BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D bufImageGraphics = bufferedImage.createGraphics();
-            bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = viewer.getClientScaledJpeg(width, height);
+            if (bs == null) {
+                t.sendResponseHeaders(500, -1);
+                return;
+            }
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
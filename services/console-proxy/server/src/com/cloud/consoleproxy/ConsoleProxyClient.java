@@ -44,12 +44,35 @@ public interface ConsoleProxyClient {
 
     Image getClientScaledImage(int width, int height);                  // client thumbnail support
 
+    byte[] getClientScaledJpeg(int width, int height);
+
     String onAjaxClientStart(String title, List<String> languages, String guest);
 
     String onAjaxClientUpdate();
 
+    String onAjaxClientUpdate(long waitMillis);
+
+    /**
+     * Runs callback once the viewer has updates to fetch or timeoutMillis passed, so that an AJAX
+     * update request does not hold a thread while it waits.
+     *
+     * @return false if the caller should not wait, as updates are pending already or the
+     * viewer is not ready
+     */
+    boolean waitForAjaxClientUpdate(Runnable callback, long timeoutMillis);
+
     String onAjaxClientKickoff();
 
+    //
+    // WebSocket viewer
+    //
+
+    /**
+     * @return the frame buffer changes since the last call, or the whole frame buffer if full is
+     * set, as a binary update message, or null if there are none
+     */
+    byte[] getFrameBufferUpdate(boolean full);
+
     //
     // Input handling
     //
@@ -18,10 +18,17 @@ package com.cloud.consoleproxy;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.FrameImageCache;
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -43,9 +50,14 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
     protected boolean dirtyFlag = false;
     protected Object tileDirtyEvent = new Object();
+    protected Runnable tileDirtyCallback;
     protected TileTracker tracker;
     protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
 
+    // bumped on every frame buffer change, the encoded frames are reused until then
+    protected final AtomicLong frameGeneration = new AtomicLong();
+    protected FrameImageCache frameImageCache = new FrameImageCache(8);
+
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
 
@@ -94,6 +106,23 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
 
+    @Override
+    public byte[] getClientScaledJpeg(int width, int height) {
+        String key = width + "x" + height;
+        long generation = frameGeneration.get();
+        byte[] imgBits = frameImageCache.getImage(key, generation);
+        if (imgBits == null) {
+            try {
+                imgBits = ImageHelper.jpegFromImage(getClientScaledImage(width, height), width, height);
+            } catch (IOException e) {
+                s_logger.info("[ignored] read error on scaled image", e);
+                return null;
+            }
+            frameImageCache.putImage(key, generation, imgBits);
+        }
+        return imgBits;
+    }
+
     @Override
     public abstract void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers);
 
@@ -144,6 +173,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     @Override
     public void onFramebufferSizeChange(int w, int h) {
         tracker.resize(w, h);
+        frameGeneration.incrementAndGet();
 
         synchronized (this) {
             framebufferResized = true;
@@ -159,6 +189,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         if (s_logger.isTraceEnabled())
             s_logger.trace("Frame buffer update {" + x + "," + y + "," + w + "," + h + "}");
         tracker.invalidate(new Rectangle(x, y, w, h));
+        frameGeneration.incrementAndGet();
 
         signalTileDirtyEvent();
     }
@@ -168,10 +199,20 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     //
     public byte[] getFrameBufferJpeg() {
         FrameBufferCanvas canvas = getFrameBufferCavas();
-        if (canvas != null)
-            return canvas.getFrameBufferJpeg();
+        if (canvas == null)
+            return null;
 
-        return null;
+        long generation = frameGeneration.get();
+        byte[] imgBits = frameImageCache.getImage("frame", generation);
+        if (imgBits == null) {
+            imgBits = canvas.getFrameBufferJpeg();
+            frameImageCache.putImage("frame", generation, imgBits);
+        }
+        return imgBits;
+    }
+
+    public long getFrameGeneration() {
+        return frameGeneration.get();
     }
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
@@ -297,6 +338,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
                 "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/cloud.logger.js\"></script>",
                 "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/ajaxkeys.js\"></script>",
                 "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/ajaxviewer.js\"></script>",
+                "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/wsviewer.js\"></script>",
                 "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/handler.js\"></script>",
                 "<link rel=\"stylesheet\" type=\"text/css\" href=\"/resource/css/ajaxviewer.css\"></link>",
                 "<link rel=\"stylesheet\" type=\"text/css\" href=\"/resource/css/logger.css\"></link>", "<title>" + title + "</title>", "</head>", "<body>",
@@ -316,7 +358,8 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
                 "var ajaxViewer = new AjaxViewer('main_panel', '" + imgUrl + "', '" + updateUrl + "', '" + locale + "', '" + guest + "', tileMap, ",
                 String.valueOf(width) + ", " + String.valueOf(height) + ", " + String.valueOf(tileWidth) + ", " + String.valueOf(tileHeight) + ");",
 
-                "$(function() {", "ajaxViewer.start();", "});",
+                "$(function() {", "ajaxViewer.start();",
+                ConsoleProxy.getWebSocketListenPort() > 0 ? "ajaxViewer.startWebSocket('main_panel', " + ConsoleProxy.getWebSocketListenPort() + ");" : "", "});",
 
                 "</script>", "</body>", "</html>"};
 
@@ -333,14 +376,19 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
     @Override
     public String onAjaxClientUpdate() {
+        return onAjaxClientUpdate(3000);
+    }
+
+    @Override
+    public String onAjaxClientUpdate(long waitMillis) {
         updateFrontEndActivityTime();
         if (!waitForViewerReady())
             return onAjaxClientDisconnected();
 
         synchronized (tileDirtyEvent) {
-            if (!dirtyFlag) {
+            if (!dirtyFlag && waitMillis > 0) {
                 try {
-                    tileDirtyEvent.wait(3000);
+                    tileDirtyEvent.wait(waitMillis);
                 } catch (InterruptedException e) {
                     s_logger.debug("[ignored] Console proxy ajax update was interupted while waiting for viewer to become ready.");
                 }
@@ -378,6 +426,52 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
             tracker.getTileHeight());
     }
 
+    @Override
+    public boolean waitForAjaxClientUpdate(final Runnable callback, long timeoutMillis) {
+        if (getFrameBufferCavas() == null)
+            return false;
+
+        Runnable replaced;
+        synchronized (tileDirtyEvent) {
+            if (dirtyFlag)
+                return false;
+            replaced = tileDirtyCallback;
+            tileDirtyCallback = callback;
+        }
+        updateFrontEndActivityTime();
+
+        // a viewer has one update outstanding, answer the one this replaces (a page reload) right away
+        if (replaced != null)
+            ConsoleProxy.dispatchHttpTask(replaced);
+
+        boolean scheduled = ConsoleProxy.scheduleHttpTask(new Runnable() {
+            @Override
+            public void run() {
+                fireTileDirtyCallback(callback);
+            }
+        }, timeoutMillis);
+        if (!scheduled) {
+            synchronized (tileDirtyEvent) {
+                if (tileDirtyCallback != callback)
+                    return true;
+                tileDirtyCallback = null;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void fireTileDirtyCallback(Runnable expected) {
+        Runnable callback;
+        synchronized (tileDirtyEvent) {
+            callback = tileDirtyCallback;
+            if (callback == null || (expected != null && callback != expected))
+                return;
+            tileDirtyCallback = null;
+        }
+        ConsoleProxy.dispatchHttpTask(callback);
+    }
+
     private String getAjaxViewerUpdatePageContent(String tileSequence, String imgUrl, boolean resized, int width, int height, int tileWidth, int tileHeight) {
 
         String[] content =
@@ -392,6 +486,99 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return sb.toString();
     }
 
+    //
+    // WebSocket viewer
+    //
+    public static final int FRAME_UPDATE_MESSAGE = 1;
+    public static final int FRAME_UPDATE_FLAG_FULL = 1;
+
+    /**
+     * Builds the binary update for the WebSocket viewer with the pixels of the tiles changed
+     * since the last update, a run of adjacent dirty tiles in a tile row is sent as one rectangle.
+     *
+     * Layout, big endian: type (1 byte), flags (1 byte, FRAME_UPDATE_FLAG_FULL when the update
+     * covers the whole frame buffer, as it does after a resize), frame buffer width, height and the
+     * number of rectangles (2 bytes each), then per rectangle x, y, width, height (2 bytes each)
+     * followed by width * height RGB pixels (3 bytes each).
+     *
+     * @param full whether to send the whole frame buffer, rather than the changes only
+     * @return the update, or null if nothing changed
+     */
+    @Override
+    public byte[] getFrameBufferUpdate(boolean full) {
+        FrameBufferCanvas canvas = getFrameBufferCavas();
+        if (canvas == null)
+            return null;
+
+        boolean doResize = false;
+        synchronized (this) {
+            if (framebufferResized) {
+                framebufferResized = false;
+                doResize = true;
+            }
+        }
+
+        // cleared ahead of the scan, a change that comes in meanwhile is sent again rather than lost
+        synchronized (tileDirtyEvent) {
+            dirtyFlag = false;
+        }
+        full = full || doResize;
+        List<TileInfo> tiles = tracker.scan(full);
+        if (tiles.isEmpty())
+            return null;
+
+        List<Rectangle> rects = new ArrayList<Rectangle>();
+        Rectangle run = null;
+        for (TileInfo tile : tiles) {
+            Rectangle rc = tile.getTileRect();
+            if (run != null && run.y == rc.y && run.height == rc.height && run.x + run.width == rc.x) {
+                run.width += rc.width;
+            } else {
+                run = new Rectangle(rc);
+                rects.add(run);
+            }
+        }
+
+        List<int[]> pixels = new ArrayList<int[]>(rects.size());
+        int size = 8;
+        for (Iterator<Rectangle> it = rects.iterator(); it.hasNext();) {
+            Rectangle rc = it.next();
+            int[] rgb = null;
+            try {
+                rgb = canvas.getFrameBufferPixels(rc);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // the canvas is being resized, the size change repaints everything
+                s_logger.debug("[ignored] frame buffer area " + rc + " is out of the canvas");
+            }
+            if (rgb == null) {
+                it.remove();
+                continue;
+            }
+            pixels.add(rgb);
+            size += 8 + rgb.length * 3;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte)FRAME_UPDATE_MESSAGE);
+        buffer.put((byte)(full ? FRAME_UPDATE_FLAG_FULL : 0));
+        buffer.putShort((short)tracker.getTrackWidth());
+        buffer.putShort((short)tracker.getTrackHeight());
+        buffer.putShort((short)rects.size());
+        for (int i = 0; i < rects.size(); i++) {
+            Rectangle rc = rects.get(i);
+            buffer.putShort((short)rc.x);
+            buffer.putShort((short)rc.y);
+            buffer.putShort((short)rc.width);
+            buffer.putShort((short)rc.height);
+            for (int rgb : pixels.get(i)) {
+                buffer.put((byte)(rgb >> 16));
+                buffer.put((byte)(rgb >> 8));
+                buffer.put((byte)rgb);
+            }
+        }
+        return buffer.array();
+    }
+
     //
     // Helpers
     //
@@ -404,6 +591,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
             dirtyFlag = true;
             tileDirtyEvent.notifyAll();
         }
+        fireTileDirtyCallback(null);
     }
 
     public void updateFrontEndActivityTime() {
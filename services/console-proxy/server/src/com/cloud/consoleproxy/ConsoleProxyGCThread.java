@@ -104,8 +104,10 @@ public class ConsoleProxyGCThread extends Thread {
                 ConsoleProxy.reportLoadInfo(loadInfo);
                 lastReportTick = System.currentTimeMillis();
 
-                if (s_logger.isDebugEnabled())
+                if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Report load change : " + loadInfo);
+                    s_logger.debug("HTTP requests : " + ConsoleProxy.getHttpStatsReport());
+                }
             }
 
             try {
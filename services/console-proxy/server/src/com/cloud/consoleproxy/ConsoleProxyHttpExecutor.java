@@ -0,0 +1,106 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * ConsoleProxyHttpExecutor runs the requests of the console proxy HTTP server on a bounded
+ * pool of threads, instead of a new thread per request.
+ *
+ * When all threads are busy and the queue is full, the request runs on the thread that
+ * dispatched it, which holds back accepting new requests until the pool catches up.
+ */
+public class ConsoleProxyHttpExecutor extends ThreadPoolExecutor {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyHttpExecutor.class);
+
+    private final AtomicLong queueTimeMillis = new AtomicLong();
+    private final AtomicLong maxQueueTimeMillis = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public ConsoleProxyHttpExecutor(final String name, int maxThreads, int queueSize) {
+        super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejectedCount.incrementAndGet();
+                if (s_logger.isDebugEnabled())
+                    s_logger.debug("All " + executor.getMaximumPoolSize() + " HTTP threads are busy, running the request on the dispatcher thread");
+                if (!executor.isShutdown())
+                    r.run();
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command));
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getMaxQueueTimeMillis() {
+        return maxQueueTimeMillis.get();
+    }
+
+    public String getStatsReport() {
+        long completed = getCompletedTaskCount();
+        return "threads: " + getPoolSize() + "/" + getMaximumPoolSize() + ", active: " + getActiveCount() + ", queued: " + getQueue().size() + ", completed: "
+            + completed + ", run on dispatcher: " + rejectedCount.get() + ", average queue time: " + (completed > 0 ? queueTimeMillis.get() / completed : 0)
+            + " ms, max queue time: " + maxQueueTimeMillis.get() + " ms";
+    }
+
+    private class QueuedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedTick = System.currentTimeMillis();
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.currentTimeMillis() - queuedTick;
+            queueTimeMillis.addAndGet(waited);
+            long max = maxQueueTimeMillis.get();
+            while (waited > max && !maxQueueTimeMillis.compareAndSet(max, waited))
+                max = maxQueueTimeMillis.get();
+
+            task.run();
+        }
+    }
+}
@@ -20,9 +20,7 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
@@ -32,6 +30,7 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
 
 public class ConsoleProxyThumbnailHandler implements HttpHandler {
@@ -83,9 +82,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
             height = Math.min(height, 600);
 
             BufferedImage img = generateTextImage(width, height, "Cannot Connect");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(img, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = ImageHelper.jpegFromImage(img);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -145,9 +142,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
         if (!viewer.isHostConnected()) {
             // use generated image instead of static
             BufferedImage img = generateTextImage(width, height, "Connecting");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(img, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = ImageHelper.jpegFromImage(img);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -163,13 +158,9 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
         }
 
         {
-            Image scaledImage = viewer.getClientScaledImage(width, height);
-            BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D bufImageGraphics = bufferedImage.createGraphics();
-            bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = viewer.getClientScaledJpeg(width, height);
+            if (bs == null)
+                throw new IOException("Unable to encode the thumbnail of " + host + ":" + port);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * ConsoleProxyWebSocketServer accepts WebSocket connections of the viewers, which then receive
+ * the frame buffer changes as binary messages instead of polling for JPEG tiles.
+ *
+ * The JDK HTTP server cannot hand over a connection after an upgrade, so WebSocket viewers
+ * connect to a port of their own.
+ */
+public class ConsoleProxyWebSocketServer extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketServer.class);
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 30000;
+
+    private final ServerSocket serverSocket;
+    private final AtomicInteger sessionNumber = new AtomicInteger();
+
+    public ConsoleProxyWebSocketServer(ServerSocket serverSocket) {
+        super("Console Proxy WebSocket Listener");
+        this.serverSocket = serverSocket;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("Listening for WebSocket viewers on port " + serverSocket.getLocalPort());
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    s_logger.warn("Unable to accept WebSocket connection: " + e.getMessage());
+                continue;
+            }
+
+            // the handshake runs on the session thread, a slow client does not hold up the others
+            try {
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                Thread thread = new Thread(new ConsoleProxyWebSocketSession(socket), "Console Proxy WebSocket-" + sessionNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                s_logger.warn("Unable to set up WebSocket connection: " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    s_logger.debug("[ignored] unable to close socket: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            s_logger.debug("[ignored] unable to close WebSocket listener: " + e.getMessage());
+        }
+    }
+}
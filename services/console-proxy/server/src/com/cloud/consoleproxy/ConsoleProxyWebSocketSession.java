@@ -0,0 +1,191 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.websocket.WebSocketConnection;
+
+/**
+ * ConsoleProxyWebSocketSession relays the frame buffer changes of a viewer to the browser over
+ * a WebSocket, and the keyboard and mouse events of the browser back to the viewer.
+ *
+ * A session has at most one update in flight. It waits for the frame buffer to change without
+ * a thread, the same way a parked AJAX update does, and sends from the HTTP pool. While an update
+ * is being written to a slow browser the later changes pile up in the tile tracker, and go out
+ * merged into the next update once the browser has taken the previous one.
+ */
+public class ConsoleProxyWebSocketSession implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketSession.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // pending changes go out after this delay, which merges a burst of small updates into one
+    private static final int COALESCE_MILLIS = 40;
+
+    private final Socket socket;
+    private WebSocketConnection connection;
+    private ConsoleProxyClient viewer;
+    private long ajaxSessionId;
+    private volatile boolean closed = false;
+
+    // the browser has what the AJAX viewer drew so far, which may be partial, the first update repaints all
+    private boolean fullUpdate = true;
+
+    private long updateCount = 0;
+    private long updateBytes = 0;
+
+    private final Runnable sendTask = new Runnable() {
+        @Override
+        public void run() {
+            sendUpdate();
+        }
+    };
+
+    public ConsoleProxyWebSocketSession(Socket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try {
+            connection = new WebSocketConnection(socket);
+            if (!connection.accept())
+                return;
+            socket.setSoTimeout(0);
+
+            viewer = getViewer(connection.getRequestUri());
+            if (viewer == null) {
+                connection.sendText("denied");
+                return;
+            }
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket session started for viewer " + viewer + (connection.isDeflate() ? " with compression" : ""));
+
+            ConsoleProxy.dispatchHttpTask(sendTask);
+            ConsoleProxyAjaxHandler eventHandler = new ConsoleProxyAjaxHandler();
+            byte[] message;
+            while (!closed && (message = connection.readMessage()) != null) {
+                if (viewer.getAjaxSessionId() != ajaxSessionId)
+                    break;
+                eventHandler.handleClientEventBag(viewer, new String(message, UTF8));
+            }
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket session closed: " + e.getMessage());
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception in WebSocket session, ", e);
+        } finally {
+            close();
+        }
+    }
+
+    private ConsoleProxyClient getViewer(String requestUri) {
+        String query = URI.create(requestUri).getRawQuery();
+        if (query == null)
+            return null;
+
+        try {
+            Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(query);
+            String ajaxSessionIdStr = queryMap.get("sess");
+            if (ajaxSessionIdStr == null)
+                return null;
+            ajaxSessionId = Long.parseLong(ajaxSessionIdStr);
+
+            // only a viewer started through the AJAX page can be taken over
+            ConsoleProxyClient client = ConsoleProxy.getAjaxVncViewer(ConsoleProxyAjaxHandler.getClientParam(queryMap), ajaxSessionIdStr);
+            if (client.getAjaxSessionId() != ajaxSessionId)
+                return null;
+            return client;
+        } catch (Exception e) {
+            s_logger.warn("Failed to attach WebSocket to viewer due to " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void waitForUpdate() {
+        if (closed)
+            return;
+
+        long waitMillis = ConsoleProxy.getAjaxUpdateWaitSeconds() * 1000L;
+        if (!viewer.waitForAjaxClientUpdate(sendTask, waitMillis)) {
+            // changes are pending already, or the viewer has no frame buffer yet
+            if (!ConsoleProxy.scheduleHttpTask(sendTask, COALESCE_MILLIS))
+                ConsoleProxy.dispatchHttpTask(sendTask);
+        }
+    }
+
+    private void sendUpdate() {
+        if (closed)
+            return;
+
+        try {
+            if (viewer.getAjaxSessionId() != ajaxSessionId) {
+                // another page took over the viewer
+                connection.sendText("kickoff");
+                close();
+                return;
+            }
+
+            byte[] update = viewer.getFrameBufferUpdate(fullUpdate);
+            if (update != null) {
+                fullUpdate = false;
+                connection.sendBinary(update, 0, update.length);
+                updateCount++;
+                updateBytes += update.length;
+            }
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Unable to send WebSocket update: " + e.getMessage());
+            close();
+            return;
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception while sending WebSocket update, ", e);
+            close();
+            return;
+        }
+        waitForUpdate();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        if (connection != null) {
+            connection.close();
+        } else {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                s_logger.debug("[ignored] unable to close WebSocket: " + e.getMessage());
+            }
+        }
+        if (viewer != null && s_logger.isDebugEnabled())
+            s_logger.debug("WebSocket session closed for viewer " + viewer + ", " + updateCount + " updates, " + updateBytes + " bytes");
+    }
+}
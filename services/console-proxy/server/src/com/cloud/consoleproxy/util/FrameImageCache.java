@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FrameImageCache keeps encoded images of a frame buffer, such as the full frame or a
+ * thumbnail of a given size, along with the frame generation they were taken at. An image
+ * is handed out again for as long as the frame buffer has not changed since.
+ *
+ * Callers read the generation before they take the image, so an image can only be newer
+ * than its generation says, never older.
+ */
+public class FrameImageCache {
+    private static class Entry {
+        private final long generation;
+        private final byte[] imageBits;
+
+        Entry(long generation, byte[] imageBits) {
+            this.generation = generation;
+            this.imageBits = imageBits;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final int maxEntries;
+
+    public FrameImageCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public byte[] getImage(String key, long generation) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.generation == generation)
+            return entry.imageBits;
+        return null;
+    }
+
+    public void putImage(String key, long generation, byte[] imageBits) {
+        if (imageBits == null)
+            return;
+
+        if (!entries.containsKey(key)) {
+            Iterator<String> it = entries.keySet().iterator();
+            while (entries.size() >= maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        Entry entry = new Entry(generation, imageBits);
+        Entry existing = entries.putIfAbsent(key, entry);
+        while (existing != null && existing.generation < generation) {
+            if (entries.replace(key, existing, entry))
+                break;
+            existing = entries.putIfAbsent(key, entry);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -16,17 +16,77 @@
 // under the License.
 package com.cloud.consoleproxy.util;
 
+import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 public class ImageHelper {
+
+    /**
+     * A JPEG writer and output buffer kept per thread. ImageIO.write() looks up a new writer
+     * for every image and, with the default ImageIO cache setting, buffers it in a temporary file.
+     */
+    private static class JpegEncoder {
+        private final ImageWriter writer;
+        private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+
+        JpegEncoder() {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+            writer = writers.hasNext() ? writers.next() : null;
+        }
+
+        byte[] encode(BufferedImage image) throws IOException {
+            if (writer == null) {
+                bos.reset();
+                ImageIO.write(image, "jpg", bos);
+                return bos.toByteArray();
+            }
+
+            bos.reset();
+            ImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+            try {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), null);
+            } finally {
+                writer.setOutput(null);
+                ios.close();
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    private static final ThreadLocal<JpegEncoder> s_jpegEncoder = new ThreadLocal<JpegEncoder>() {
+        @Override
+        protected JpegEncoder initialValue() {
+            return new JpegEncoder();
+        }
+    };
+
     public static byte[] jpegFromImage(BufferedImage image) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
-        javax.imageio.ImageIO.write(image, "jpg", bos);
+        return s_jpegEncoder.get().encode(image);
+    }
 
-        byte[] jpegBits = bos.toByteArray();
-        bos.close();
-        return jpegBits;
+    /**
+     * @return the image drawn on a black width by height background, as JPEG
+     */
+    public static byte[] jpegFromImage(Image image, int width, int height) throws IOException {
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = bufferedImage.createGraphics();
+        try {
+            if (image != null)
+                g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return jpegFromImage(bufferedImage);
     }
 }
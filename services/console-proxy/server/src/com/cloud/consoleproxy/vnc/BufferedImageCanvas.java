@@ -128,6 +128,15 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
         return imgBits;
     }
 
+    @Override
+    public int[] getFrameBufferPixels(Rectangle rc) {
+        if (offlineImage == null)
+            return null;
+        synchronized (offlineImage) {
+            return offlineImage.getRGB(rc.x, rc.y, rc.width, rc.height, null, 0, rc.width);
+        }
+    }
+
     @Override
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
         int width = Math.max(tileWidth, tileWidth * tileList.size());
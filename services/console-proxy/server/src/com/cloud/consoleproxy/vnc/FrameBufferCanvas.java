@@ -17,6 +17,7 @@
 package com.cloud.consoleproxy.vnc;
 
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.util.List;
 
 import com.cloud.consoleproxy.util.TileInfo;
@@ -27,4 +28,9 @@ public interface FrameBufferCanvas {
     public byte[] getFrameBufferJpeg();
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+
+    /**
+     * @return the 0xRRGGBB pixels of the area, row by row, or null if there is no frame buffer yet
+     */
+    public int[] getFrameBufferPixels(Rectangle rc);
 }
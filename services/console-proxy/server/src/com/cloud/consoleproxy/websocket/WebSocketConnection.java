@@ -0,0 +1,382 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * WebSocketConnection is the server side of a WebSocket connection (RFC 6455) on an accepted
+ * socket, with the permessage-deflate extension (RFC 7692) when the browser offers it.
+ *
+ * Messages are compressed without context takeover in either direction, which costs some ratio
+ * but keeps no inflate or deflate state per connection between messages.
+ */
+public class WebSocketConnection {
+    private static final Logger s_logger = Logger.getLogger(WebSocketConnection.class);
+
+    public static final int OPCODE_CONTINUATION = 0;
+    public static final int OPCODE_TEXT = 1;
+    public static final int OPCODE_BINARY = 2;
+    public static final int OPCODE_CLOSE = 8;
+    public static final int OPCODE_PING = 9;
+    public static final int OPCODE_PONG = 10;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final byte[] DEFLATE_TAIL = new byte[] {0, 0, (byte)0xff, (byte)0xff};
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private String requestUri;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private boolean deflate = false;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] deflateBuffer = new byte[64 * 1024];
+    private volatile boolean closed = false;
+
+    public WebSocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    /**
+     * Reads the opening handshake and answers it.
+     *
+     * @return false if the request is not a WebSocket upgrade, it has been answered with an error
+     */
+    public boolean accept() throws IOException {
+        String[] lines = new String(readHeader(), ASCII).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            sendHttpError("405 Method Not Allowed");
+            return false;
+        }
+        requestUri = requestLine[1];
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+
+        String key = getHeader("sec-websocket-key");
+        String upgrade = getHeader("upgrade");
+        if (key == null || upgrade == null || !"websocket".equalsIgnoreCase(upgrade) || !"13".equals(getHeader("sec-websocket-version"))) {
+            sendHttpError("400 Bad Request");
+            return false;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 101 Switching Protocols\r\n");
+        sb.append("Upgrade: websocket\r\n");
+        sb.append("Connection: Upgrade\r\n");
+        sb.append("Sec-WebSocket-Accept: ").append(getAcceptKey(key)).append("\r\n");
+        String extensions = getHeader("sec-websocket-extensions");
+        if (extensions != null && extensions.contains("permessage-deflate")) {
+            deflate = true;
+            sb.append("Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover; client_no_context_takeover\r\n");
+        }
+        sb.append("\r\n");
+        synchronized (out) {
+            out.write(sb.toString().getBytes(ASCII));
+            out.flush();
+        }
+        return true;
+    }
+
+    public String getRequestUri() {
+        return requestUri;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public static String getAcceptKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeBase64String(digest.digest((key + ACCEPT_GUID).getBytes(ASCII))).trim();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void sendBinary(byte[] data, int offset, int length) throws IOException {
+        sendMessage(OPCODE_BINARY, data, offset, length);
+    }
+
+    public void sendText(String text) throws IOException {
+        byte[] data = text.getBytes(UTF8);
+        sendMessage(OPCODE_TEXT, data, 0, data.length);
+    }
+
+    private void sendMessage(int opcode, byte[] data, int offset, int length) throws IOException {
+        synchronized (out) {
+            if (closed)
+                throw new IOException("WebSocket is closed");
+            if (deflate && length > 0) {
+                byte[] compressed = compress(data, offset, length);
+                writeFrame(0x80 | 0x40 | opcode, compressed, 0, compressed.length);
+            } else {
+                writeFrame(0x80 | opcode, data, offset, length);
+            }
+            out.flush();
+        }
+    }
+
+    private byte[] compress(byte[] data, int offset, int length) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 4 + 64);
+        int count;
+        do {
+            count = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+            bos.write(deflateBuffer, 0, count);
+        } while (count == deflateBuffer.length || !deflater.needsInput());
+
+        // a sync flush ends with an empty stored block, which the receiver adds back
+        byte[] compressed = bos.toByteArray();
+        int trimmed = compressed.length;
+        if (trimmed >= 4 && compressed[trimmed - 4] == 0 && compressed[trimmed - 3] == 0 && compressed[trimmed - 2] == (byte)0xff && compressed[trimmed - 1] == (byte)0xff)
+            trimmed -= 4;
+        byte[] result = new byte[trimmed];
+        System.arraycopy(compressed, 0, result, 0, trimmed);
+        return result;
+    }
+
+    private void writeFrame(int firstByte, byte[] data, int offset, int length) throws IOException {
+        out.write(firstByte);
+        if (length < 126) {
+            out.write(length);
+        } else if (length < 65536) {
+            out.write(126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int)((long)length >>> shift));
+        }
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Reads the next text or binary message, answering pings and close frames on the way.
+     *
+     * @return the message payload, or null once the peer closed the connection
+     */
+    public byte[] readMessage() throws IOException {
+        synchronized (in) {
+            return readMessageFrames();
+        }
+    }
+
+    private byte[] readMessageFrames() throws IOException {
+        ByteArrayOutputStream message = null;
+        boolean compressed = false;
+        while (true) {
+            int b0 = in.read();
+            if (b0 < 0)
+                return null;
+            int b1 = readByte();
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0f;
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++)
+                    length = (length << 8) | readByte();
+            }
+            if (length > MAX_MESSAGE_SIZE)
+                throw new IOException("WebSocket frame of " + length + " bytes is too large");
+
+            byte[] mask = null;
+            if ((b1 & 0x80) != 0) {
+                mask = new byte[4];
+                readFully(mask);
+            }
+            byte[] payload = new byte[(int)length];
+            readFully(payload);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode == OPCODE_CLOSE) {
+                synchronized (out) {
+                    writeFrame(0x80 | OPCODE_CLOSE, payload, 0, Math.min(payload.length, 2));
+                    out.flush();
+                }
+                close();
+                return null;
+            } else if (opcode == OPCODE_PING) {
+                synchronized (out) {
+                    writeFrame(0x80 | OPCODE_PONG, payload, 0, payload.length);
+                    out.flush();
+                }
+                continue;
+            } else if (opcode == OPCODE_PONG) {
+                continue;
+            }
+
+            if (opcode != OPCODE_CONTINUATION) {
+                message = new ByteArrayOutputStream(payload.length);
+                compressed = deflate && (b0 & 0x40) != 0;
+            } else if (message == null) {
+                throw new IOException("WebSocket continuation frame without a message");
+            }
+            message.write(payload);
+            if (message.size() > MAX_MESSAGE_SIZE)
+                throw new IOException("WebSocket message is too large");
+
+            if (fin)
+                return compressed ? decompress(message.toByteArray()) : message.toByteArray();
+        }
+    }
+
+    private byte[] decompress(byte[] data) throws IOException {
+        if (closed)
+            throw new IOException("WebSocket is closed");
+        inflater.reset();
+        inflater.setInput(data);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            boolean tailAdded = false;
+            while (true) {
+                int count = inflater.inflate(buffer);
+                bos.write(buffer, 0, count);
+                if (bos.size() > MAX_MESSAGE_SIZE)
+                    throw new IOException("WebSocket message is too large");
+                if (count == 0 && inflater.needsInput()) {
+                    if (tailAdded)
+                        break;
+                    inflater.setInput(DEFLATE_TAIL);
+                    tailAdded = true;
+                } else if (inflater.finished()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed WebSocket message", e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Closes the socket. A writer blocked on a browser that stopped reading gets an error,
+     * rather than this waiting for it.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            s_logger.debug("[ignored] unable to close WebSocket: " + e.getMessage());
+        }
+        synchronized (out) {
+            deflater.end();
+        }
+        synchronized (in) {
+            inflater.end();
+        }
+    }
+
+    private byte[] readHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Connection closed during WebSocket handshake");
+            bos.write(b);
+            if (bos.size() > MAX_HEADER_SIZE)
+                throw new IOException("WebSocket handshake is too large");
+            if ((b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)))
+                matched++;
+            else
+                matched = b == '\r' ? 1 : 0;
+        }
+        return bos.toByteArray();
+    }
+
+    private void sendHttpError(String status) throws IOException {
+        synchronized (out) {
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+            out.flush();
+        }
+        close();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count < 0)
+                throw new EOFException();
+            offset += count;
+        }
+    }
+}
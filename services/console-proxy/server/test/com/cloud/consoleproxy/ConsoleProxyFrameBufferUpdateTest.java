@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class ConsoleProxyFrameBufferUpdateTest {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyFrameBufferUpdateTest.class);
+
+    private void assertRect(ByteBuffer buffer, int x, int y, int width, int height) {
+        Assert.assertEquals(x, buffer.getShort());
+        Assert.assertEquals(y, buffer.getShort());
+        Assert.assertEquals(width, buffer.getShort());
+        Assert.assertEquals(height, buffer.getShort());
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int pixel = (x + i) << 12 | (y + j);
+                Assert.assertEquals((byte)(pixel >> 16), buffer.get());
+                Assert.assertEquals((byte)(pixel >> 8), buffer.get());
+                Assert.assertEquals((byte)pixel, buffer.get());
+            }
+        }
+    }
+
+    @Test
+    public void testNothingChanged() {
+        Assert.assertNull(new ConsoleProxyTestClient().getFrameBufferUpdate(false));
+    }
+
+    @Test
+    public void testAdjacentTilesAreMerged() {
+        ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+        // tiles 0 and 1 of the first row, and tile 3 of the second
+        client.onFramebufferUpdate(10, 10, 100, 20);
+        client.onFramebufferUpdate(200, 70, 10, 10);
+
+        ByteBuffer buffer = ByteBuffer.wrap(client.getFrameBufferUpdate(false));
+        Assert.assertEquals(ConsoleProxyClientBase.FRAME_UPDATE_MESSAGE, buffer.get());
+        Assert.assertEquals(0, buffer.get());
+        Assert.assertEquals(800, buffer.getShort());
+        Assert.assertEquals(600, buffer.getShort());
+        Assert.assertEquals(2, buffer.getShort());
+        assertRect(buffer, 0, 0, 128, 64);
+        assertRect(buffer, 192, 64, 64, 64);
+        Assert.assertFalse(buffer.hasRemaining());
+
+        // the changes went out, and the next update waits for new ones
+        Assert.assertNull(client.getFrameBufferUpdate(false));
+    }
+
+    /**
+     * A browser on a slow link misses the updates that came in while it was taking the previous
+     * one, they go out as one update rather than as a queue of stale ones.
+     */
+    @Test
+    public void testUpdatesAreCoalesced() {
+        ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+        for (int i = 0; i < 100; i++)
+            client.onFramebufferUpdate(i * 8, 0, 8, 8);
+
+        byte[] update = client.getFrameBufferUpdate(false);
+        ByteBuffer buffer = ByteBuffer.wrap(update);
+        buffer.position(6);
+        Assert.assertEquals(1, buffer.getShort());
+        assertRect(buffer, 0, 0, 800, 64);
+        s_logger.info("100 frame buffer updates coalesced into one update of " + update.length + " bytes");
+    }
+
+    @Test
+    public void testResizeSendsFullFrame() {
+        ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+        client.onFramebufferSizeChange(200, 100);
+
+        ByteBuffer buffer = ByteBuffer.wrap(client.getFrameBufferUpdate(false));
+        buffer.get();
+        Assert.assertEquals(ConsoleProxyClientBase.FRAME_UPDATE_FLAG_FULL, buffer.get());
+        Assert.assertEquals(200, buffer.getShort());
+        Assert.assertEquals(100, buffer.getShort());
+        Assert.assertEquals(2, buffer.getShort());
+        assertRect(buffer, 0, 0, 200, 64);
+        assertRect(buffer, 0, 64, 200, 36);
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+}
@@ -0,0 +1,118 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsoleProxyHttpExecutorTest {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyHttpExecutorTest.class);
+
+    private static final int THREADS = 4;
+    private static final int SESSIONS = 500;
+
+    private static class CountingCallback implements Runnable {
+        private final CountDownLatch latch;
+
+        CountingCallback(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ConsoleProxy.httpExecutor = new ConsoleProxyHttpExecutor("Test HTTP", THREADS, 1000);
+        ConsoleProxy.httpTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        ConsoleProxy.httpExecutor.shutdownNow();
+        ConsoleProxy.httpTimer.shutdownNow();
+        ConsoleProxy.httpExecutor = null;
+        ConsoleProxy.httpTimer = null;
+    }
+
+    /**
+     * Every session has an update request outstanding, which used to hold a thread each while
+     * waiting for tiles; parked they take no thread until the tiles come in.
+     */
+    @Test
+    public void testParkedUpdatesHoldNoThreads() throws Exception {
+        List<ConsoleProxyTestClient> clients = new ArrayList<ConsoleProxyTestClient>();
+        CountDownLatch answered = new CountDownLatch(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+            clients.add(client);
+            Assert.assertTrue(client.waitForAjaxClientUpdate(new CountingCallback(answered), 60000));
+        }
+        Assert.assertEquals(0, ConsoleProxy.httpExecutor.getActiveCount());
+        Assert.assertEquals(SESSIONS, answered.getCount());
+
+        long startTick = System.currentTimeMillis();
+        for (ConsoleProxyTestClient client : clients)
+            client.onFramebufferUpdate(0, 0, 64, 64);
+        Assert.assertTrue(answered.await(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue(ConsoleProxy.httpExecutor.getLargestPoolSize() <= THREADS);
+        s_logger.info(SESSIONS + " sessions answered in " + (System.currentTimeMillis() - startTick) + " ms on " + ConsoleProxy.httpExecutor.getLargestPoolSize()
+            + " threads instead of " + SESSIONS + ", " + ConsoleProxy.getHttpStatsReport());
+    }
+
+    @Test
+    public void testParkedUpdateTimesOut() throws Exception {
+        CountDownLatch answered = new CountDownLatch(1);
+        Assert.assertTrue(new ConsoleProxyTestClient().waitForAjaxClientUpdate(new CountingCallback(answered), 50));
+        Assert.assertTrue(answered.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPendingUpdateIsNotParked() {
+        ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+        client.onFramebufferUpdate(0, 0, 64, 64);
+        Assert.assertFalse(client.waitForAjaxClientUpdate(new CountingCallback(new CountDownLatch(1)), 60000));
+    }
+
+    @Test
+    public void testReplacedUpdateIsAnswered() throws Exception {
+        ConsoleProxyTestClient client = new ConsoleProxyTestClient();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        Assert.assertTrue(client.waitForAjaxClientUpdate(new CountingCallback(first), 60000));
+        Assert.assertTrue(client.waitForAjaxClientUpdate(new CountingCallback(second), 60000));
+
+        Assert.assertTrue(first.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, second.getCount());
+        client.onFramebufferUpdate(0, 0, 64, 64);
+        Assert.assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.List;
+
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * A console client without a host, its frame buffer pixels hold their own coordinates (x << 12 | y).
+ */
+public class ConsoleProxyTestClient extends ConsoleProxyClientBase {
+    private final FrameBufferCanvas canvas = new FrameBufferCanvas() {
+        @Override
+        public Image getFrameBufferScaledImage(int width, int height) {
+            return null;
+        }
+
+        @Override
+        public byte[] getFrameBufferJpeg() {
+            return new byte[0];
+        }
+
+        @Override
+        public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+            return new byte[0];
+        }
+
+        @Override
+        public int[] getFrameBufferPixels(Rectangle rc) {
+            int[] pixels = new int[rc.width * rc.height];
+            for (int y = 0; y < rc.height; y++) {
+                for (int x = 0; x < rc.width; x++)
+                    pixels[y * rc.width + x] = (rc.x + x) << 12 | (rc.y + y);
+            }
+            return pixels;
+        }
+    };
+
+    @Override
+    public boolean isHostConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isFrontEndAlive() {
+        return true;
+    }
+
+    @Override
+    public void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers) {
+    }
+
+    @Override
+    public void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers) {
+    }
+
+    @Override
+    public void initClient(ConsoleProxyClientParam param) {
+    }
+
+    @Override
+    public void closeClient() {
+    }
+
+    @Override
+    public void onClientConnected() {
+    }
+
+    @Override
+    public void onClientClose() {
+    }
+
+    @Override
+    protected FrameBufferCanvas getFrameBufferCavas() {
+        return canvas;
+    }
+}
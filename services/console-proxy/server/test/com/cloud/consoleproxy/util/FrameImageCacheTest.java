@@ -0,0 +1,62 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FrameImageCacheTest {
+
+    @Test
+    public void testImageIsKeptForItsGeneration() {
+        FrameImageCache cache = new FrameImageCache(4);
+        byte[] frame = new byte[] {1};
+        cache.putImage("frame", 5, frame);
+
+        Assert.assertSame(frame, cache.getImage("frame", 5));
+        Assert.assertNull(cache.getImage("frame", 6));
+        Assert.assertNull(cache.getImage("144x110", 5));
+    }
+
+    @Test
+    public void testOlderImageDoesNotReplaceNewer() {
+        FrameImageCache cache = new FrameImageCache(4);
+        byte[] newer = new byte[] {2};
+        cache.putImage("frame", 6, newer);
+        cache.putImage("frame", 5, new byte[] {1});
+
+        Assert.assertSame(newer, cache.getImage("frame", 6));
+        Assert.assertNull(cache.getImage("frame", 5));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        FrameImageCache cache = new FrameImageCache(2);
+        cache.putImage("a", 1, new byte[] {1});
+        cache.putImage("b", 1, new byte[] {2});
+        cache.putImage("c", 1, new byte[] {3});
+
+        int kept = 0;
+        for (String key : new String[] {"a", "b", "c"}) {
+            if (cache.getImage(key, 1) != null)
+                kept++;
+        }
+        Assert.assertEquals(2, kept);
+        Assert.assertNotNull(cache.getImage("c", 1));
+    }
+}
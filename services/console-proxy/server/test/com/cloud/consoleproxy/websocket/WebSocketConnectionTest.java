@@ -0,0 +1,212 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WebSocketConnectionTest {
+    private static final String HANDSHAKE = "GET /websocket?token=abc&sess=1 HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n";
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Socket client;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+        if (client != null)
+            client.close();
+    }
+
+    private Future<WebSocketConnection> accept() {
+        return executor.submit(new Callable<WebSocketConnection>() {
+            @Override
+            public WebSocketConnection call() throws Exception {
+                WebSocketConnection connection = new WebSocketConnection(serverSocket.accept());
+                return connection.accept() ? connection : null;
+            }
+        });
+    }
+
+    private String connect(String extraHeaders) throws IOException {
+        client = new Socket("localhost", serverSocket.getLocalPort());
+        client.setSoTimeout(10000);
+        client.getOutputStream().write((HANDSHAKE + extraHeaders + "\r\n").getBytes("ISO-8859-1"));
+
+        InputStream in = client.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                break;
+            sb.append((char)b);
+        }
+        return sb.toString();
+    }
+
+    private void sendMasked(int firstByte, byte[] payload) throws IOException {
+        byte[] mask = new byte[] {0x12, 0x34, 0x56, 0x78};
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(firstByte);
+        if (payload.length < 126) {
+            bos.write(0x80 | payload.length);
+        } else {
+            bos.write(0x80 | 126);
+            bos.write(payload.length >>> 8);
+            bos.write(payload.length);
+        }
+        bos.write(mask);
+        for (int i = 0; i < payload.length; i++)
+            bos.write(payload[i] ^ mask[i & 3]);
+        OutputStream out = client.getOutputStream();
+        out.write(bos.toByteArray());
+        out.flush();
+    }
+
+    private byte[] readFrame(int[] firstByte) throws IOException {
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        firstByte[0] = in.readUnsignedByte();
+        long length = in.readUnsignedByte() & 0x7f;
+        if (length == 126)
+            length = in.readUnsignedShort();
+        else if (length == 127)
+            length = in.readLong();
+        byte[] payload = new byte[(int)length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    @Test
+    public void testHandshake() throws Exception {
+        Future<WebSocketConnection> server = accept();
+        String response = connect("");
+        WebSocketConnection connection = server.get(10, TimeUnit.SECONDS);
+
+        Assert.assertNotNull(connection);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 101 "));
+        // the example of RFC 6455
+        Assert.assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        Assert.assertEquals("/websocket?token=abc&sess=1", connection.getRequestUri());
+        Assert.assertFalse(connection.isDeflate());
+        connection.close();
+    }
+
+    @Test
+    public void testPlainRequestIsRejected() throws Exception {
+        Future<WebSocketConnection> server = accept();
+        client = new Socket("localhost", serverSocket.getLocalPort());
+        client.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+        Assert.assertNull(server.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMessages() throws Exception {
+        Future<WebSocketConnection> server = accept();
+        connect("");
+        WebSocketConnection connection = server.get(10, TimeUnit.SECONDS);
+
+        // a fragmented masked text message with a ping in between
+        sendMasked(WebSocketConnection.OPCODE_TEXT, "2|1|1|".getBytes("UTF-8"));
+        sendMasked(WebSocketConnection.OPCODE_PING, new byte[] {1});
+        sendMasked(0x80 | WebSocketConnection.OPCODE_CONTINUATION, "10|20|0|0|".getBytes("UTF-8"));
+        Assert.assertEquals("2|1|1|10|20|0|0|", new String(connection.readMessage(), "UTF-8"));
+
+        int[] firstByte = new int[1];
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, readFrame(firstByte)));
+        Assert.assertEquals(0x80 | WebSocketConnection.OPCODE_PONG, firstByte[0]);
+
+        byte[] update = new byte[70000];
+        for (int i = 0; i < update.length; i++)
+            update[i] = (byte)i;
+        connection.sendBinary(update, 0, update.length);
+        Assert.assertTrue(Arrays.equals(update, readFrame(firstByte)));
+        Assert.assertEquals(0x80 | WebSocketConnection.OPCODE_BINARY, firstByte[0]);
+
+        sendMasked(0x80 | WebSocketConnection.OPCODE_CLOSE, new byte[0]);
+        Assert.assertNull(connection.readMessage());
+        Assert.assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        Future<WebSocketConnection> server = accept();
+        String response = connect("Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n");
+        WebSocketConnection connection = server.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(connection.isDeflate());
+        Assert.assertTrue(response.contains("permessage-deflate"));
+
+        // frame buffer rows compress well, the browser gets them back as sent
+        byte[] update = new byte[640 * 64 * 3];
+        for (int i = 0; i < update.length; i++)
+            update[i] = (byte)(i % 3 == 0 ? 0x40 : i / 1920);
+        connection.sendBinary(update, 0, update.length);
+
+        int[] firstByte = new int[1];
+        byte[] compressed = readFrame(firstByte);
+        Assert.assertEquals(0x80 | 0x40 | WebSocketConnection.OPCODE_BINARY, firstByte[0]);
+        Assert.assertTrue(compressed.length < update.length / 10);
+
+        Inflater inflater = new Inflater(true);
+        byte[] input = Arrays.copyOf(compressed, compressed.length + 4);
+        input[input.length - 2] = (byte)0xff;
+        input[input.length - 1] = (byte)0xff;
+        inflater.setInput(input);
+        byte[] inflated = new byte[update.length];
+        Assert.assertEquals(update.length, inflater.inflate(inflated));
+        Assert.assertTrue(Arrays.equals(update, inflated));
+        inflater.end();
+
+        // and compressed messages from the browser are read back
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] text = "1|2|5|65|0|".getBytes("UTF-8");
+        deflater.setInput(text);
+        byte[] buffer = new byte[256];
+        int count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        sendMasked(0x80 | 0x40 | WebSocketConnection.OPCODE_TEXT, Arrays.copyOf(buffer, count - 4));
+        Assert.assertEquals("1|2|5|65|0|", new String(connection.readMessage(), "UTF-8"));
+        connection.close();
+    }
+}
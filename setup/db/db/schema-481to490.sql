@@ -18,3 +18,7 @@
 --;
 -- Schema upgrade from 4.8.1 to 4.9.0;
 --;
+
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `checkpoint_start_millis` bigint unsigned NOT NULL default '0' COMMENT 'start time in milliseconds of the aggregation interval the usage job was parsing';
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `checkpoint_end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the aggregation range the usage job was parsing';
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `checkpoint_account_id` bigint unsigned NOT NULL default '0' COMMENT 'id of the last account whose usage for the interval is committed';
@@ -0,0 +1,197 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+ 
+  http://www.apache.org/licenses/LICENSE-2.0
+ 
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+*/
+
+//
+// WebSocket transport for the AJAX viewer: the console proxy pushes the changed areas of the
+// frame buffer as raw pixels, which are drawn on a canvas laid over the tile table. Keyboard and
+// mouse events go up the same socket. If the socket cannot be opened or drops, the viewer goes on
+// polling for tiles as before.
+//
+// Update message, big endian: type (1 byte), flags (1 byte, WS_FLAG_FULL if it covers the whole
+// frame buffer, as the first one and those after a resize do), frame buffer width, height and number
+// of rectangles (2 bytes each), then per rectangle x, y, width, height (2 bytes each) followed by
+// width * height RGB pixels.
+//
+AjaxViewer.WS_FRAME_UPDATE = 1;
+AjaxViewer.WS_FLAG_FULL = 1;
+
+AjaxViewer.prototype.startWebSocket = function(panelId, port) {
+	if(window.WebSocket == undefined || window.Uint8Array == undefined || !document.createElement('canvas').getContext)
+		return false;
+
+	var ajaxViewer = this;
+	var scheme = window.location.protocol == "https:" ? "wss://" : "ws://";
+	var url = scheme + window.location.hostname + ":" + port + this.updateUrl.replace(/^\/ajax\?/, "/websocket?");
+
+	var socket;
+	try {
+		socket = new WebSocket(url);
+	} catch(e) {
+		g_logger.log(Logger.LEVEL_WARN, "Unable to open WebSocket " + url + ", " + e);
+		return false;
+	}
+	socket.binaryType = "arraybuffer";
+
+	socket.onopen = function() {
+		g_logger.log(Logger.LEVEL_INFO, "WebSocket connected, tiles are pushed from now on");
+		ajaxViewer.webSocket = socket;
+		ajaxViewer.wsPanelId = panelId;
+		ajaxViewer.createOverlay();
+		ajaxViewer.checkEventQueue();
+	};
+
+	socket.onmessage = function(event) {
+		if(typeof event.data == "string") {
+			if(event.data == "kickoff") {
+				ajaxViewer.closeWebSocket();
+				onKickoff();
+			} else if(event.data == "denied") {
+				ajaxViewer.closeWebSocket();
+			}
+			return;
+		}
+		ajaxViewer.onFrameUpdate(new Uint8Array(event.data));
+	};
+
+	socket.onclose = function() {
+		if(ajaxViewer.webSocket == socket) {
+			g_logger.log(Logger.LEVEL_INFO, "WebSocket closed, back to polling for tiles");
+			ajaxViewer.closeWebSocket();
+			ajaxViewer.setDirty(true);
+		}
+	};
+	return true;
+};
+
+AjaxViewer.prototype.closeWebSocket = function() {
+	var socket = this.webSocket;
+	this.webSocket = null;
+	if(socket)
+		socket.close();
+	if(this.overlay) {
+		$(this.overlay).remove();
+		this.overlay = null;
+	}
+};
+
+AjaxViewer.prototype.createOverlay = function() {
+	var canvas = document.createElement('canvas');
+	canvas.width = this.width;
+	canvas.height = this.height;
+	// hidden until the first update, which covers the whole frame buffer, has been drawn
+	$(canvas).css({ position: "absolute", "z-index": 10000, "pointer-events": "none", visibility: "hidden" }).appendTo(document.body);
+	this.overlay = canvas;
+	this.overlayContext = canvas.getContext('2d');
+	this.placeOverlay();
+};
+
+AjaxViewer.prototype.placeOverlay = function() {
+	if(this.overlay) {
+		var offset = this.panel.offset();
+		$(this.overlay).css({ left: offset.left + "px", top: offset.top + "px" });
+	}
+};
+
+AjaxViewer.prototype.onFrameUpdate = function(data) {
+	if(data.length < 8 || data[0] != AjaxViewer.WS_FRAME_UPDATE)
+		return;
+
+	var width = (data[2] << 8) | data[3];
+	var height = (data[4] << 8) | data[5];
+	var count = (data[6] << 8) | data[7];
+	if(width != this.width || height != this.height) {
+		this.resize(this.wsPanelId, width, height, this.tileWidth, this.tileHeight);
+		this.overlay.width = width;
+		this.overlay.height = height;
+		this.placeOverlay();
+	}
+
+	var context = this.overlayContext;
+	var pos = 8;
+	for(var n = 0; n < count; n++) {
+		var x = (data[pos] << 8) | data[pos + 1];
+		var y = (data[pos + 2] << 8) | data[pos + 3];
+		var w = (data[pos + 4] << 8) | data[pos + 5];
+		var h = (data[pos + 6] << 8) | data[pos + 7];
+		pos += 8;
+		if(w == 0 || h == 0)
+			continue;
+
+		var image = context.createImageData(w, h);
+		var pixels = image.data;
+		var size = w * h * 4;
+		for(var i = 0; i < size; i += 4) {
+			pixels[i] = data[pos++];
+			pixels[i + 1] = data[pos++];
+			pixels[i + 2] = data[pos++];
+			pixels[i + 3] = 255;
+		}
+		context.putImageData(image, x, y);
+	}
+	if((data[1] & AjaxViewer.WS_FLAG_FULL) != 0)
+		$(this.overlay).css("visibility", "visible");
+	window.onStatusNotify(AjaxViewer.STATUS_RECEIVED);
+};
+
+(function() {
+	// while the socket is open, tiles are pushed and events go up the socket
+	var checkUpdate = AjaxViewer.prototype.checkUpdate;
+	AjaxViewer.prototype.checkUpdate = function() {
+		if(!this.webSocket)
+			checkUpdate.call(this);
+	};
+
+	var checkEventQueue = AjaxViewer.prototype.checkEventQueue;
+	AjaxViewer.prototype.checkEventQueue = function() {
+		if(!this.webSocket) {
+			checkEventQueue.call(this);
+			return;
+		}
+		if(this.eventQueue.length == 0)
+			return;
+
+		var sb = new StringBuilder();
+		sb.append("" + this.eventQueue.length).append("|");
+		$.each(this.eventQueue, function() {
+			var item = this;
+			sb.append("" + item.type).append("|");
+			sb.append("" + item.event).append("|");
+			if(item.type == AjaxViewer.EVENT_QUEUE_MOUSE_EVENT) {
+				sb.append("" + item.x).append("|");
+				sb.append("" + item.y).append("|");
+			}
+			sb.append("" + item.code).append("|");
+			sb.append("" + item.modifiers).append("|");
+		});
+		this.eventQueue.length = 0;
+		this.webSocket.send(sb.toString());
+	};
+
+	var stop = AjaxViewer.prototype.stop;
+	AjaxViewer.prototype.stop = function() {
+		this.closeWebSocket();
+		stop.call(this);
+	};
+
+	var onWindowResize = AjaxViewer.prototype.onWindowResize;
+	AjaxViewer.prototype.onWindowResize = function() {
+		onWindowResize.call(this);
+		this.placeOverlay();
+	};
+})();
@@ -0,0 +1,201 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.parser.UsageRecordBuffer;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.TransactionLegacy;
+
+/**
+ * Parses the usage of a list of accounts for one aggregation interval on a
+ * pool of worker threads.  The accounts are cut into partitions of
+ * consecutive ids, and each partition is parsed in a cloud_usage transaction
+ * of its own, writing its usage records with one batched insert.
+ *
+ * Partitions commit in account id order, each together with a checkpoint, so
+ * after a crash every account up to the last checkpoint has been parsed and
+ * no account after it has.  Once a partition fails, no partition commits
+ * after it.
+ */
+public class PartitionedUsageParser {
+    public static final Logger s_logger = Logger.getLogger(PartitionedUsageParser.class.getName());
+
+    public interface AccountParser {
+        void parse(AccountVO account, Date startDate, Date endDate);
+    }
+
+    public interface Checkpoint {
+        /**
+         * Called in the transaction of every partition, in partition order,
+         * right before it commits.
+         */
+        void partitionParsed(long lastAccountId);
+    }
+
+    private final ExecutorService _executor;
+    private final int _partitionSize;
+    private final UsageDao _usageDao;
+
+    public PartitionedUsageParser(ExecutorService executor, int partitionSize, UsageDao usageDao) {
+        _executor = executor;
+        _partitionSize = Math.max(1, partitionSize);
+        _usageDao = usageDao;
+    }
+
+    public static List<List<AccountVO>> partition(List<AccountVO> accounts, int partitionSize) {
+        List<AccountVO> sorted = new ArrayList<AccountVO>(accounts);
+        Collections.sort(sorted, new Comparator<AccountVO>() {
+            @Override
+            public int compare(AccountVO a1, AccountVO a2) {
+                return Long.compare(a1.getId(), a2.getId());
+            }
+        });
+        List<List<AccountVO>> partitions = new ArrayList<List<AccountVO>>();
+        for (int from = 0; from < sorted.size(); from += partitionSize) {
+            partitions.add(sorted.subList(from, Math.min(sorted.size(), from + partitionSize)));
+        }
+        return partitions;
+    }
+
+    /**
+     * @return true if every account was parsed and committed
+     */
+    public boolean parse(List<AccountVO> accounts, Date startDate, Date endDate, AccountParser parser, Checkpoint checkpoint) throws InterruptedException {
+        List<List<AccountVO>> partitions = partition(accounts, _partitionSize);
+        if (partitions.isEmpty()) {
+            return true;
+        }
+
+        PartitionRun run = new PartitionRun(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            PartitionTask task = new PartitionTask(run, i, partitions.get(i), startDate, endDate, parser, checkpoint);
+            try {
+                _executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                s_logger.warn("Unable to queue usage partition " + i + " of " + partitions.size(), e);
+                run._failed.set(true);
+                for (int j = i; j < partitions.size(); j++) {
+                    run._turns[j].countDown();
+                    run._done.countDown();
+                }
+                break;
+            }
+        }
+        run._done.await();
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Parsed usage of " + accounts.size() + " accounts in " + partitions.size() + " partitions between " + startDate + " and " + endDate +
+                (run._failed.get() ? ", failed" : ""));
+        }
+        return !run._failed.get();
+    }
+
+    protected void saveUsageRecords(List<UsageVO> usageRecords) {
+        _usageDao.saveUsageRecords(usageRecords);
+    }
+
+    private static class PartitionRun {
+        // _turns[i] opens once partition i has committed or rolled back
+        private final CountDownLatch[] _turns;
+        private final CountDownLatch _done;
+        private final AtomicBoolean _failed = new AtomicBoolean(false);
+
+        PartitionRun(int partitions) {
+            _turns = new CountDownLatch[partitions];
+            for (int i = 0; i < partitions; i++) {
+                _turns[i] = new CountDownLatch(1);
+            }
+            _done = new CountDownLatch(partitions);
+        }
+    }
+
+    private class PartitionTask extends ManagedContextRunnable {
+        private final PartitionRun _run;
+        private final int _index;
+        private final List<AccountVO> _accounts;
+        private final Date _startDate;
+        private final Date _endDate;
+        private final AccountParser _parser;
+        private final Checkpoint _checkpoint;
+
+        PartitionTask(PartitionRun run, int index, List<AccountVO> accounts, Date startDate, Date endDate, AccountParser parser, Checkpoint checkpoint) {
+            _run = run;
+            _index = index;
+            _accounts = accounts;
+            _startDate = startDate;
+            _endDate = endDate;
+            _parser = parser;
+            _checkpoint = checkpoint;
+        }
+
+        @Override
+        protected void runInContext() {
+            TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+            try {
+                txn.start();
+                UsageRecordBuffer.start();
+                List<UsageVO> usageRecords;
+                try {
+                    for (AccountVO account : _accounts) {
+                        if (_run._failed.get()) {
+                            break;
+                        }
+                        _parser.parse(account, _startDate, _endDate);
+                    }
+                } finally {
+                    usageRecords = UsageRecordBuffer.stop();
+                }
+                if (!usageRecords.isEmpty() && !_run._failed.get()) {
+                    saveUsageRecords(usageRecords);
+                }
+
+                if (_index > 0) {
+                    _run._turns[_index - 1].await();
+                }
+                if (_run._failed.get()) {
+                    txn.rollback();
+                    return;
+                }
+                _checkpoint.partitionParsed(_accounts.get(_accounts.size() - 1).getId());
+                txn.commit();
+            } catch (Throwable e) {
+                s_logger.error("Failed to parse usage for accounts " + _accounts.get(0).getId() + " to " + _accounts.get(_accounts.size() - 1).getId(), e);
+                _run._failed.set(true);
+                txn.rollback();
+            } finally {
+                txn.close();
+                _run._turns[_index].countDown();
+                _run._done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tells the streaming usage job which accounts can have usage in a slice:
+ * those with a helper table entry that is still open, and those that had a
+ * usage event or a network or disk statistics delta since their last
+ * parsed slice.  Every other account would only run the parsers to find
+ * nothing.
+ *
+ * The open accounts are loaded from the helper tables and only grow from
+ * events in between, since an event closing one resource says nothing about
+ * the other resources of the account.  Loading them again every few slices
+ * drops the accounts that have nothing open anymore.
+ */
+public class UsageActivityIndex {
+
+    private volatile Set<Long> _openAccounts = null;
+    private final ConcurrentMap<Long, Long> _touchedAccounts = new ConcurrentHashMap<Long, Long>();
+
+    public boolean isLoaded() {
+        return _openAccounts != null;
+    }
+
+    public void load(Collection<Long> openAccountIds) {
+        Set<Long> openAccounts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        openAccounts.addAll(openAccountIds);
+        _openAccounts = openAccounts;
+    }
+
+    /**
+     * Records a usage event of an account, which may have opened a resource.
+     */
+    public void eventReceived(long accountId, long timeMillis) {
+        touch(accountId, timeMillis);
+        Set<Long> openAccounts = _openAccounts;
+        if (openAccounts != null) {
+            openAccounts.add(accountId);
+        }
+    }
+
+    /**
+     * Records usage of an account at the given time that opens nothing, such
+     * as a network statistics delta.
+     */
+    public void touch(long accountId, long timeMillis) {
+        Long previous;
+        do {
+            previous = _touchedAccounts.putIfAbsent(accountId, timeMillis);
+        } while ((previous != null) && (previous < timeMillis) && !_touchedAccounts.replace(accountId, previous, timeMillis));
+    }
+
+    /**
+     * @return the accounts with something open or with activity not parsed yet
+     */
+    public Set<Long> getAccountsToParse() {
+        Set<Long> accounts = new HashSet<Long>(_touchedAccounts.keySet());
+        Set<Long> openAccounts = _openAccounts;
+        if (openAccounts != null) {
+            accounts.addAll(openAccounts);
+        }
+        return accounts;
+    }
+
+    /**
+     * Forgets the activity up to endMillis once the slices up to it are
+     * committed.  Activity after it is kept for the next slice.
+     */
+    public void parsed(long endMillis) {
+        for (Map.Entry<Long, Long> entry : _touchedAccounts.entrySet()) {
+            if (entry.getValue() <= endMillis) {
+                _touchedAccounts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public int getTouchedCount() {
+        return _touchedAccounts.size();
+    }
+}
@@ -24,7 +24,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -82,6 +84,7 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.VmDiskStatisticsDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -156,6 +159,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private int _aggregationDuration = 0;
     private int _sanityCheckInterval = 0;
     private boolean _runQuota=false;
+    private int _parseWorkers = 4;
+    private int _parsePartitionSize = 500;
+    private boolean _streamEnabled = false;
+    private int _streamPollInterval = 60;
+    private int _streamResyncInterval = 24;
+    private int _slicesSinceResync = 0;
+    private final UsageActivityIndex _activityIndex = new UsageActivityIndex();
     String _hostname = null;
     int _pid = 0;
     TimeZone _usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -166,9 +176,12 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService _heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
     private final ScheduledExecutorService _sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+    private ExecutorService _parseExecutor = null;
+    private PartitionedUsageParser _partitionedParser = null;
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
     private Future _sanity = null;
+    private Future _streamPoll = null;
 
     public UsageManagerImpl() {
     }
@@ -211,6 +224,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (sanityCheckInterval != null) {
             _sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        _parseWorkers = NumbersUtil.parseInt(configs.get("usage.parse.workers"), 4);
+        _parsePartitionSize = NumbersUtil.parseInt(configs.get("usage.parse.partition.size"), 500);
+        _streamEnabled = Boolean.parseBoolean(configs.get("usage.stream.enabled"));
+        _streamPollInterval = NumbersUtil.parseInt(configs.get("usage.stream.poll.interval"), 60);
+        _streamResyncInterval = NumbersUtil.parseInt(configs.get("usage.stream.resync.interval"), 24);
 
         if (aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()) {
             _usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
@@ -256,6 +274,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.warn("Usage stats job aggregation range is to small, using the minimum value of " + UsageUtils.USAGE_AGGREGATION_RANGE_MIN);
                 _aggregationDuration = UsageUtils.USAGE_AGGREGATION_RANGE_MIN;
             }
+            if (_streamEnabled) {
+                // usage is parsed and recorded by slices, events are taken in as they come
+                _aggregationDuration = Math.max(UsageUtils.USAGE_AGGREGATION_RANGE_MIN, NumbersUtil.parseInt(configs.get("usage.stream.slice"), HOURLY_TIME));
+                s_logger.info("Streaming usage in slices of " + _aggregationDuration + " minutes, polling usage events every " + _streamPollInterval + " seconds");
+            }
             _hostname = InetAddress.getLocalHost().getHostName() + "/" + InetAddress.getLocalHost().getHostAddress();
         } catch (NumberFormatException ex) {
             throw new ConfigurationException("Unable to parse usage.stats.job.exec.time '" + execTime + "' or usage.stats.job.aggregation.range '" + aggregationRange +
@@ -274,6 +297,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             s_logger.info("Starting Usage Manager");
         }
 
+        _parseExecutor = Executors.newFixedThreadPool(Math.max(1, _parseWorkers), new NamedThreadFactory("Usage-Parser"));
+        _partitionedParser = new PartitionedUsageParser(_parseExecutor, _parsePartitionSize, _usageDao);
+
         // use the configured exec time and aggregation duration for scheduling the job
         _scheduledFuture =
                 _executor.scheduleAtFixedRate(this, _jobExecTime.getTimeInMillis() - System.currentTimeMillis(), _aggregationDuration * 60 * 1000, TimeUnit.MILLISECONDS);
@@ -286,6 +312,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             _sanity = _sanityExecutor.scheduleAtFixedRate(new SanityCheck(), 1, _sanityCheckInterval, TimeUnit.DAYS);
         }
 
+        if (_streamEnabled) {
+            // on the job thread, so that events are never taken in while a slice is parsed
+            _streamPoll = _executor.scheduleWithFixedDelay(new StreamPoll(), _streamPollInterval, _streamPollInterval, TimeUnit.SECONDS);
+        }
+
         TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
         try {
             if (_heartbeatLock.lock(3)) { // 3 second timeout
@@ -315,6 +346,12 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        if (_streamPoll != null) {
+            _streamPoll.cancel(true);
+        }
+        if (_parseExecutor != null) {
+            _parseExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -434,6 +471,19 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 startDateMillis = lastSuccess + 1; // 1 millisecond after
             }
 
+            // a run that crashed or failed after committing some partitions is
+            // picked up again at the interval and account it got to
+            long resumeAfterAccountId = 0;
+            UsageJobVO checkpoint = _usageJobDao.getLastCheckpoint();
+            if ((checkpoint != null) && (checkpoint.getCheckpointStartMillis() > lastSuccess)) {
+                startDateMillis = checkpoint.getCheckpointStartMillis();
+                endDateMillis = checkpoint.getCheckpointEndMillis();
+                resumeAfterAccountId = checkpoint.getCheckpointAccountId();
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Resuming usage parsing of job " + checkpoint.getId() + " from " + new Date(startDateMillis) + " after account " + resumeAfterAccountId);
+                }
+            }
+
             if (startDateMillis >= endDateMillis) {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("not parsing usage records since start time mills (" + startDateMillis + ") is on or after end time millis (" + endDateMillis + ")");
@@ -615,18 +665,14 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 // to newest, so just test against the first event)
                 if ((events != null) && (events.size() > 0)) {
                     Date oldestEventDate = events.get(0).getCreateDate();
-                    if (oldestEventDate.getTime() < startDateMillis) {
+                    if ((oldestEventDate.getTime() < startDateMillis) && (resumeAfterAccountId == 0)) {
                         startDateMillis = oldestEventDate.getTime();
                         startDate = new Date(startDateMillis);
                     }
 
                     // - loop over the list of events and create entries in the helper tables
                     // - create the usage records using the parse methods below
-                    for (UsageEventVO event : events) {
-                        event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
-                        createHelperRecord(event);
-                    }
+                    processEvents(events);
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
@@ -678,6 +724,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     numAcctsProcessed++;
                 }
                 _usageNetworkDao.saveUsageNetworks(usageNetworks);
+                if (_streamEnabled) {
+                    for (UsageNetworkVO usageNetwork : usageNetworks) {
+                        if ((usageNetwork.getBytesSent() > 0) || (usageNetwork.getBytesReceived() > 0)) {
+                            _activityIndex.touch(usageNetwork.getAccountId(), usageNetwork.getEventTimeMillis());
+                        }
+                    }
+                }
 
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("created network stats helper entries for " + numAcctsProcessed + " accts");
@@ -727,6 +780,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     numAcctsProcessed++;
                 }
                 _usageVmDiskDao.saveUsageVmDisks(usageVmDisks);
+                if (_streamEnabled) {
+                    for (UsageVmDiskVO usageVmDisk : usageVmDisks) {
+                        if ((usageVmDisk.getIORead() > 0) || (usageVmDisk.getIOWrite() > 0) || (usageVmDisk.getBytesRead() > 0) || (usageVmDisk.getBytesWrite() > 0)) {
+                            _activityIndex.touch(usageVmDisk.getAccountId(), usageVmDisk.getEventTimeMillis());
+                        }
+                    }
+                }
 
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("created vm disk stats helper entries for " + numAcctsProcessed + " accts");
@@ -736,7 +796,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 usageTxn.commit();
                 usageTxn.start();
 
-                boolean parsed = false;
+                boolean parsed = true;
                 numAcctsProcessed = 0;
 
                 Date currentStartDate = startDate;
@@ -752,59 +812,45 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     tempDate = aggregateCal.getTime();
                 }
 
+                List<AccountVO> accountsToParse = listAccountsToParse(recentlyDeletedDate);
+                if (_streamEnabled) {
+                    accountsToParse = listActiveAccounts(accountsToParse);
+                }
+                PartitionedUsageParser.AccountParser accountParser = new PartitionedUsageParser.AccountParser() {
+                    @Override
+                    public void parse(AccountVO account, Date intervalStartDate, Date intervalEndDate) {
+                        parseHelperTables(account, intervalStartDate, intervalEndDate);
+                        if (account.getRemoved() != null) {
+                            markPublicTemplatesDeleted(account);
+                        }
+                    }
+                };
+
                 while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                    List<AccountVO> intervalAccounts = accountsToParse;
+                    if (resumeAfterAccountId > 0) {
+                        intervalAccounts = new ArrayList<AccountVO>();
+                        for (AccountVO account : accountsToParse) {
+                            if (account.getId() > resumeAfterAccountId) {
+                                intervalAccounts.add(account);
                             }
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
+                        resumeAfterAccountId = 0;
                     }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
+
+                    final long jobId = job.getId();
+                    final long intervalStartMillis = currentStartDate.getTime();
+                    final long rangeEndMillis = endDateMillis;
+                    parsed = _partitionedParser.parse(intervalAccounts, currentStartDate, currentEndDate, accountParser, new PartitionedUsageParser.Checkpoint() {
+                        @Override
+                        public void partitionParsed(long lastAccountId) {
+                            _usageJobDao.updateCheckpoint(jobId, intervalStartMillis, rangeEndMillis, lastAccountId);
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                    });
+                    if (!parsed) {
+                        break;
+                    }
+                    numAcctsProcessed += intervalAccounts.size();
 
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
@@ -813,15 +859,18 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 }
 
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+                    s_logger.debug("processed Usage for " + accountsToParse.size() + " ACTIVE and RECENTLY DELETED accts, " + numAcctsProcessed + " account intervals");
                 }
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
+                // partitions parsed before a failure stay committed; the checkpoint
+                // makes the next job carry on after them
                 if (!parsed) {
                     usageTxn.rollback();
                 } else {
                     success = true;
+                    if (_streamEnabled) {
+                        _activityIndex.parsed(endDateMillis);
+                    }
                 }
             } catch (Exception ex) {
                 s_logger.error("Exception in usage manager", ex);
@@ -853,6 +902,86 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
+    /**
+     * @return the given accounts that can have usage in the slices being parsed
+     */
+    private List<AccountVO> listActiveAccounts(List<AccountVO> accounts) {
+        if (!_activityIndex.isLoaded() || (++_slicesSinceResync >= _streamResyncInterval)) {
+            _activityIndex.load(_usageDao.listAccountsWithOpenUsage());
+            _slicesSinceResync = 0;
+        }
+        Set<Long> activeAccountIds = _activityIndex.getAccountsToParse();
+        List<AccountVO> activeAccounts = new ArrayList<AccountVO>();
+        for (AccountVO account : accounts) {
+            if (activeAccountIds.contains(account.getId())) {
+                activeAccounts.add(account);
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Parsing the usage of " + activeAccounts.size() + " of " + accounts.size() + " accounts with open or new usage");
+        }
+        return activeAccounts;
+    }
+
+    private void processEvents(List<UsageEventVO> events) {
+        for (UsageEventVO event : events) {
+            event.setProcessed(true);
+            _usageEventDao.update(event.getId(), event);
+            createHelperRecord(event);
+            if (_streamEnabled) {
+                _activityIndex.eventReceived(event.getAccountId(), event.getCreateDate().getTime());
+            }
+        }
+    }
+
+    /**
+     * @return the active accounts and the recently deleted ones
+     */
+    private List<AccountVO> listAccountsToParse(Date recentlyDeletedDate) {
+        List<AccountVO> accountsToParse = new ArrayList<AccountVO>();
+        List<AccountVO> accounts = null;
+        Long offset = Long.valueOf(0);
+        Long limit = Long.valueOf(500);
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            accounts = _accountDao.listAll(filter);
+            if (accounts != null) {
+                accountsToParse.addAll(accounts);
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((accounts != null) && !accounts.isEmpty());
+
+        offset = Long.valueOf(0);
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+            if (accounts != null) {
+                accountsToParse.addAll(accounts);
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((accounts != null) && !accounts.isEmpty());
+        return accountsToParse;
+    }
+
+    private void markPublicTemplatesDeleted(AccountVO account) {
+        List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+        for (Long templateId : publicTemplates) {
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                        "; marking them all as deleted...");
+            }
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved());
+                _usageStorageDao.update(storageVO);
+            }
+        }
+    }
+
     private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
         boolean parsed = false;
 
@@ -1759,6 +1888,51 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         _usageVMSnapshotDao.persist(vsVO);
     }
 
+    /**
+     * Takes the usage events in as they are written, so that the helper tables
+     * are current when a slice is parsed.
+     */
+    private class StreamPoll extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                if (_usageJobDao.isOwner(_hostname, _pid) == null) {
+                    return;
+                }
+                List<UsageEventVO> events = _usageEventDao.getRecentEvents(new Date());
+                if ((events == null) || events.isEmpty()) {
+                    return;
+                }
+                // An event committed late for a slice that has been parsed already is
+                // left to the usage job, which moves its start date back to cover it.
+                // The events are ordered oldest first, so it is enough to test the first.
+                long lastParsedMillis = _usageJobDao.getLastJobSuccessDateMillis();
+                if (events.get(0).getCreateDate().getTime() <= lastParsedMillis) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Leaving " + events.size() + " usage events to the usage job, the oldest is from before " + new Date(lastParsedMillis));
+                    }
+                    return;
+                }
+                TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                try {
+                    usageTxn.start();
+                    processEvents(events);
+                    usageTxn.commit();
+                } catch (Exception e) {
+                    usageTxn.rollback();
+                    throw e;
+                } finally {
+                    usageTxn.close();
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Took in " + events.size() + " usage events, " + _activityIndex.getTouchedCount() + " accounts with usage not parsed yet");
+                }
+            } catch (Exception e) {
+                s_logger.error("Failed to take in usage events", e);
+            }
+        }
+    }
+
     private class Heartbeat extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -31,6 +31,7 @@ import java.util.List;
 import com.cloud.utils.exception.CloudRuntimeException;
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.db.TransactionLegacy;
 
 /**
@@ -41,6 +42,7 @@ public class UsageSanityChecker {
 
     protected static final Logger s_logger = Logger.getLogger(UsageSanityChecker.class);
     protected static final int DEFAULT_AGGREGATION_RANGE = 1440;
+    protected static final int DEFAULT_STREAM_SLICE = 60;
     protected StringBuilder errors;
     protected List<CheckCase> checkCases;
     protected String lastCheckFile = "/usr/local/libexec/sanity-check-last-id";
@@ -93,24 +95,35 @@ public class UsageSanityChecker {
         return checkOk;
     }
 
-    protected void checkMaxUsage() throws SQLException {
-        int aggregationRange = DEFAULT_AGGREGATION_RANGE;
+    protected String getConfigValue(String name) {
         try (PreparedStatement pstmt = conn.prepareStatement(
-                "SELECT value FROM `cloud`.`configuration` where name = 'usage.stats.job.aggregation.range'");)
+                "SELECT value FROM `cloud`.`configuration` where name = ?");)
         {
+            pstmt.setString(1, name);
             try(ResultSet rs = pstmt.executeQuery();) {
-               if (rs.next()) {
-                    aggregationRange = rs.getInt(1);
-                } else {
-                    s_logger.debug("Failed to retrieve aggregation range. Using default : " + aggregationRange);
-                }
+                return rs.next() ? rs.getString(1) : null;
             }catch (SQLException e) {
-                s_logger.error("checkMaxUsage:Exception:"+e.getMessage());
-                throw new CloudRuntimeException("checkMaxUsage:Exception:"+e.getMessage());
+                s_logger.error("getConfigValue:Exception:"+e.getMessage());
+                throw new CloudRuntimeException("getConfigValue:Exception:"+e.getMessage());
             }
         } catch (SQLException e) {
-            s_logger.error("checkMaxUsage:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("checkMaxUsage:Exception:"+e.getMessage());
+            s_logger.error("getConfigValue:Exception:"+e.getMessage());
+            throw new CloudRuntimeException("getConfigValue:Exception:"+e.getMessage());
+        }
+    }
+
+    protected void checkMaxUsage() throws SQLException {
+        int aggregationRange = DEFAULT_AGGREGATION_RANGE;
+        String value = getConfigValue("usage.stats.job.aggregation.range");
+        if (value != null) {
+            aggregationRange = NumbersUtil.parseInt(value, DEFAULT_AGGREGATION_RANGE);
+        } else {
+            s_logger.debug("Failed to retrieve aggregation range. Using default : " + aggregationRange);
+        }
+        // a streaming usage job creates records per slice, none may be longer;
+        // the check works in whole hours, so shorter slices are bound by one
+        if (Boolean.parseBoolean(getConfigValue("usage.stream.enabled"))) {
+            aggregationRange = Math.max(60, NumbersUtil.parseInt(getConfigValue("usage.stream.slice"), DEFAULT_STREAM_SLICE));
         }
         int aggregationHours = aggregationRange / 60;
 
@@ -157,7 +157,7 @@ public class LoadBalancerUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), null, null, null, null, lbId, null,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        UsageRecordBuffer.save(s_usageDao, usageRecord);
     }
 
     private static class LBInfo {
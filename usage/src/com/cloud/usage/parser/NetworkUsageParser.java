@@ -136,7 +136,7 @@ public class NetworkUsageParser {
             }
         }
 
-        s_usageDao.saveUsageRecords(usageRecords);
+        UsageRecordBuffer.save(s_usageDao, usageRecords);
 
         return true;
     }
@@ -0,0 +1,68 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.dao.UsageDao;
+
+/**
+ * Holds the usage records the parsers create on the current thread while a
+ * partition of accounts is parsed, so that they are written with one batched
+ * insert.  Outside of a partition records are written right away.
+ */
+public class UsageRecordBuffer {
+
+    private static final ThreadLocal<List<UsageVO>> s_records = new ThreadLocal<List<UsageVO>>();
+
+    public static void start() {
+        s_records.set(new ArrayList<UsageVO>());
+    }
+
+    /**
+     * @return the records buffered since start(), which are no longer buffered
+     */
+    public static List<UsageVO> stop() {
+        List<UsageVO> records = s_records.get();
+        s_records.remove();
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return records;
+    }
+
+    public static void save(UsageDao usageDao, UsageVO usageRecord) {
+        List<UsageVO> records = s_records.get();
+        if (records != null) {
+            records.add(usageRecord);
+        } else {
+            usageDao.persist(usageRecord);
+        }
+    }
+
+    public static void save(UsageDao usageDao, List<UsageVO> usageRecords) {
+        List<UsageVO> records = s_records.get();
+        if (records != null) {
+            records.addAll(usageRecords);
+        } else {
+            usageDao.saveUsageRecords(usageRecords);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.usage.UsageTypes;
+
+import com.cloud.usage.parser.UsageRecordBuffer;
+import com.cloud.user.AccountVO;
+
+public class PartitionedUsageParserTest {
+    private static final Logger s_logger = Logger.getLogger(PartitionedUsageParserTest.class);
+
+    private static final int ACCOUNTS = 400;
+    private static final int EVENTS_PER_ACCOUNT = 20;
+    private static final int PARTITION_SIZE = 25;
+
+    private ExecutorService _executor;
+
+    static class RecordingParser extends PartitionedUsageParser {
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingParser(ExecutorService executor, int partitionSize) {
+            super(executor, partitionSize, null);
+        }
+
+        @Override
+        protected void saveUsageRecords(List<UsageVO> usageRecords) {
+            batches.add(usageRecords.size());
+        }
+    }
+
+    /**
+     * Stands in for the usage parsers: one usage record per account, built
+     * from the generated usage events of the account, after a pause for the
+     * queries a parser would run.
+     */
+    static class GeneratedEventParser implements PartitionedUsageParser.AccountParser {
+        final long[][] eventMillis;
+        final long failingAccountId;
+        final AtomicInteger parsed = new AtomicInteger();
+
+        GeneratedEventParser(long failingAccountId) {
+            this.failingAccountId = failingAccountId;
+            Random random = new Random(42);
+            eventMillis = new long[ACCOUNTS + 1][EVENTS_PER_ACCOUNT];
+            for (int account = 1; account <= ACCOUNTS; account++) {
+                for (int i = 0; i < EVENTS_PER_ACCOUNT; i++) {
+                    eventMillis[account][i] = random.nextInt(24 * 60 * 60 * 1000);
+                }
+            }
+        }
+
+        @Override
+        public void parse(AccountVO account, Date startDate, Date endDate) {
+            if (account.getId() == failingAccountId) {
+                throw new RuntimeException("parser failure for account " + account.getId());
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long[] events = eventMillis[(int)account.getId()];
+            long runningTime = 0;
+            for (int i = 0; i + 1 < events.length; i += 2) {
+                runningTime += Math.abs(events[i + 1] - events[i]);
+            }
+            UsageRecordBuffer.save(null, new UsageVO(1L, account.getId(), 1L, "generated usage", runningTime + " ms", UsageTypes.RUNNING_VM,
+                new Double(runningTime), account.getId(), "generated", 1L, startDate, endDate));
+            parsed.incrementAndGet();
+        }
+    }
+
+    static class RecordingCheckpoint implements PartitionedUsageParser.Checkpoint {
+        final List<Long> accountIds = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void partitionParsed(long lastAccountId) {
+            accountIds.add(lastAccountId);
+        }
+    }
+
+    protected List<AccountVO> generateAccounts() {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (long id = ACCOUNTS; id >= 1; id--) {
+            accounts.add(new AccountVO(id));
+        }
+        return accounts;
+    }
+
+    @Before
+    public void setUp() {
+        _executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testPartitionsAreOrderedById() {
+        List<List<AccountVO>> partitions = PartitionedUsageParser.partition(generateAccounts(), 150);
+        Assert.assertEquals(3, partitions.size());
+        Assert.assertEquals(1L, partitions.get(0).get(0).getId());
+        Assert.assertEquals(150L, partitions.get(0).get(149).getId());
+        Assert.assertEquals(100, partitions.get(2).size());
+    }
+
+    @Test
+    public void testCheckpointsFollowAccountOrder() throws Exception {
+        RecordingParser parser = new RecordingParser(_executor, PARTITION_SIZE);
+        GeneratedEventParser accountParser = new GeneratedEventParser(-1);
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+
+        Assert.assertTrue(parser.parse(generateAccounts(), new Date(0), new Date(), accountParser, checkpoint));
+
+        Assert.assertEquals(ACCOUNTS, accountParser.parsed.get());
+        Assert.assertEquals(ACCOUNTS / PARTITION_SIZE, checkpoint.accountIds.size());
+        for (int i = 0; i < checkpoint.accountIds.size(); i++) {
+            Assert.assertEquals(Long.valueOf((i + 1) * PARTITION_SIZE), checkpoint.accountIds.get(i));
+        }
+        // one batched insert per partition
+        Assert.assertEquals(ACCOUNTS / PARTITION_SIZE, parser.batches.size());
+        for (Integer batch : parser.batches) {
+            Assert.assertEquals(PARTITION_SIZE, batch.intValue());
+        }
+    }
+
+    @Test
+    public void testNothingCommitsAfterFailedPartition() throws Exception {
+        RecordingParser parser = new RecordingParser(_executor, PARTITION_SIZE);
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+
+        Assert.assertFalse(parser.parse(generateAccounts(), new Date(0), new Date(), new GeneratedEventParser(110), checkpoint));
+
+        // the partition of account 110 ends at account 125
+        for (Long accountId : checkpoint.accountIds) {
+            Assert.assertTrue(accountId < 110);
+        }
+        for (int i = 1; i < checkpoint.accountIds.size(); i++) {
+            Assert.assertEquals(checkpoint.accountIds.get(i - 1) + PARTITION_SIZE, checkpoint.accountIds.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void testCompareWithSerialParsing() throws Exception {
+        List<AccountVO> accounts = generateAccounts();
+
+        ExecutorService serial = Executors.newSingleThreadExecutor();
+        long serialStart = System.nanoTime();
+        try {
+            Assert.assertTrue(new RecordingParser(serial, ACCOUNTS).parse(accounts, new Date(0), new Date(), new GeneratedEventParser(-1), new RecordingCheckpoint()));
+        } finally {
+            serial.shutdownNow();
+        }
+        long serialMillis = (System.nanoTime() - serialStart) / 1000000;
+
+        long parallelStart = System.nanoTime();
+        Assert.assertTrue(new RecordingParser(_executor, PARTITION_SIZE).parse(accounts, new Date(0), new Date(), new GeneratedEventParser(-1),
+            new RecordingCheckpoint()));
+        long parallelMillis = (System.nanoTime() - parallelStart) / 1000000;
+
+        s_logger.info("Parsing " + ACCOUNTS + " accounts of " + EVENTS_PER_ACCOUNT + " generated usage events: serial " + serialMillis + " ms, 4 workers with " +
+            PARTITION_SIZE + " accounts per partition " + parallelMillis + " ms");
+    }
+}
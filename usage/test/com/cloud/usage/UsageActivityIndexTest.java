@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class UsageActivityIndexTest extends TestCase {
+
+    @Test
+    public void testAccountsToParse() {
+        UsageActivityIndex index = new UsageActivityIndex();
+        assertFalse(index.isLoaded());
+
+        index.load(Arrays.asList(1L, 2L));
+        index.eventReceived(3L, 1000L);
+        index.touch(4L, 2000L);
+
+        assertTrue(index.isLoaded());
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L, 3L, 4L)), index.getAccountsToParse());
+        assertEquals(2, index.getTouchedCount());
+    }
+
+    @Test
+    public void testParsedKeepsLaterActivity() {
+        UsageActivityIndex index = new UsageActivityIndex();
+        index.load(Arrays.asList(1L));
+        index.touch(2L, 1000L);
+        index.touch(3L, 1000L);
+        index.touch(3L, 5000L);
+        index.touch(3L, 2000L);
+
+        index.parsed(3000L);
+
+        // account 3 was active after the slice end, the event account stays open
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 3L)), index.getAccountsToParse());
+
+        index.parsed(5000L);
+        assertEquals(0, index.getTouchedCount());
+        assertEquals(new HashSet<Long>(Arrays.asList(1L)), index.getAccountsToParse());
+    }
+
+    @Test
+    public void testLoadDropsClosedAccounts() {
+        UsageActivityIndex index = new UsageActivityIndex();
+        index.load(Arrays.asList(1L));
+        index.eventReceived(2L, 1000L);
+        index.parsed(1000L);
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L)), index.getAccountsToParse());
+
+        index.load(Arrays.asList(2L));
+        assertEquals(new HashSet<Long>(Arrays.asList(2L)), index.getAccountsToParse());
+    }
+}
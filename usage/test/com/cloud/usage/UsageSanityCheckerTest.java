@@ -20,6 +20,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -65,4 +67,36 @@ public class UsageSanityCheckerTest extends TestCase {
         Matcher matcher = pattern.matcher(checker.errors);
         assertTrue("Didn't create complete errors. It should create 2 errors: 8 item1 and 16 item2", matcher.find());
     }
+
+    protected UsageSanityChecker checkerWithConfig(final Map<String, String> config) {
+        UsageSanityChecker checker = new UsageSanityChecker() {
+            @Override
+            protected String getConfigValue(String name) {
+                return config.get(name);
+            }
+        };
+        checker.reset();
+        return checker;
+    }
+
+    @Test
+    public void testCheckMaxUsageBoundBySlice() throws SQLException {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("usage.stats.job.aggregation.range", "1440");
+
+        UsageSanityChecker checker = checkerWithConfig(config);
+        checker.checkMaxUsage();
+        assertTrue(checker.checkCases.get(0).sqlTemplate.contains("raw_usage > 24"));
+
+        config.put("usage.stream.enabled", "true");
+        config.put("usage.stream.slice", "120");
+        checker = checkerWithConfig(config);
+        checker.checkMaxUsage();
+        assertTrue(checker.checkCases.get(0).sqlTemplate.contains("raw_usage > 2"));
+
+        config.put("usage.stream.slice", "15");
+        checker = checkerWithConfig(config);
+        checker.checkMaxUsage();
+        assertTrue(checker.checkCases.get(0).sqlTemplate.contains("raw_usage > 1"));
+    }
 }
@@ -0,0 +1,86 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts values into buckets with fixed upper bounds.  The last
+ * bucket takes everything above the largest bound.  Recording is lock free
+ * so it can sit on hot paths.
+ */
+public class Histogram {
+    private final long[] _bounds;
+    private final AtomicLongArray _counts;
+
+    /**
+     * @param bounds inclusive upper bounds of the buckets, in increasing order.
+     */
+    public Histogram(final long... bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Histogram bounds must be increasing");
+            }
+        }
+        _bounds = bounds.clone();
+        _counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(final long value) {
+        int i = 0;
+        while (i < _bounds.length && value > _bounds[i]) {
+            i++;
+        }
+        _counts.incrementAndGet(i);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return bucket label, such as "<=10" or ">100", to count in bucket order.
+     */
+    public Map<String, Long> toMap() {
+        final Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < _bounds.length; i++) {
+            map.put("<=" + _bounds[i], _counts.get(i));
+        }
+        map.put(">" + (_bounds.length == 0 ? 0 : _bounds[_bounds.length - 1]), _counts.get(_bounds.length));
+        return map;
+    }
+
+    public void reset() {
+        for (int i = 0; i < _counts.length(); i++) {
+            _counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,153 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes so
+ * that socket reads, SSL wraps and unwraps in Link do not allocate on every
+ * call. Buffers larger than the biggest class are allocated on the heap and
+ * never pooled.
+ *
+ * Every class keeps at most maxPerClass idle buffers; anything released
+ * beyond that is left to the GC.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 11;   // 2k
+    private static final int MAX_SHIFT = 17;   // 128k
+    private static final int DEFAULT_MAX_PER_CLASS = 1024;
+
+    private static final BufferPool s_default = new BufferPool(DEFAULT_MAX_PER_CLASS);
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _free;
+    private final AtomicInteger[] _idle;
+    private final int _maxPerClass;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _bytesCopied = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(final int maxPerClass) {
+        _maxPerClass = maxPerClass;
+        final int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        _free = new ConcurrentLinkedQueue[classes];
+        _idle = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _idle[i] = new AtomicInteger();
+        }
+    }
+
+    public static BufferPool getDefault() {
+        return s_default;
+    }
+
+    protected static int sizeClass(final int size) {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < size) {
+            shift++;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * @return a cleared buffer with at least size bytes of capacity.  Its
+     * limit is set to its capacity, which may be larger than size.
+     */
+    public ByteBuffer acquire(final int size) {
+        if (size > (1 << MAX_SHIFT)) {
+            _misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        final int sizeClass = sizeClass(size);
+        final ByteBuffer buffer = _free[sizeClass].poll();
+        if (buffer != null) {
+            _idle[sizeClass].decrementAndGet();
+            _hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        _misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+    }
+
+    /**
+     * Gives a buffer obtained from acquire back to the pool.  The caller must
+     * not touch it afterwards.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT) || capacity > (1 << MAX_SHIFT)) {
+            return;
+        }
+        final int sizeClass = sizeClass(capacity);
+        if (_idle[sizeClass].incrementAndGet() > _maxPerClass) {
+            _idle[sizeClass].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _free[sizeClass].offer(buffer);
+    }
+
+    public void recordCopy(final int bytes) {
+        _bytesCopied.addAndGet(bytes);
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public double getHitRate() {
+        final long hits = _hits.get();
+        final long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    public long getBytesCopied() {
+        return _bytesCopied.get();
+    }
+
+    public int getIdleCount() {
+        int idle = 0;
+        for (final AtomicInteger count : _idle) {
+            idle += count.get();
+        }
+        return idle;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("BufferPool[hits=").append(getHits()).append(", misses=").append(getMisses()).append(", hitRate=")
+                .append(String.format("%.3f", getHitRate())).append(", idle=").append(getIdleCount()).append(", bytesCopied=").append(getBytesCopied())
+                .append("]").toString();
+    }
+}
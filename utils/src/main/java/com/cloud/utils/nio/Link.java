@@ -55,6 +55,14 @@ import com.cloud.utils.db.DbProperties;
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
 
+    // Queued after the last buffers to write when the link should be closed.
+    private static final ByteBuffer[] CLOSE_MARKER = new ByteBuffer[0];
+
+    // Plaintext buffers bigger than this are not kept between messages.
+    private static final int MAX_RETAINED_PLAINTEXT = 64 * 1024;
+
+    private static final BufferPool s_pool = BufferPool.getDefault();
+
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
     private SelectionKey _key;
@@ -71,7 +79,7 @@ public class Link {
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _readBuffer = s_pool.acquire(2048);
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -144,57 +152,53 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    /**
+     * Wraps the buffers into SSL packets and writes each one framed by its
+     * 4 byte header.  The header is reserved at the front of the pooled
+     * packet buffer so header and packet go out in a single write.
+     */
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, int offset, int length, SSLEngine sslEngine) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 44);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
         int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
+        for (int i = offset; i < offset + length; i++) {
+            totalLen += buffers[i].limit();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
-            }
+        try {
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, offset, length, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+                processedLen = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    processedLen += buffers[i].position();
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                while (pkgBuf.hasRemaining()) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + pkgBuf.remaining());
+                    }
+                    ch.write(pkgBuf);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            s_pool.release(pkgBuf);
         }
     }
 
@@ -209,7 +213,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized (ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, 0, buffers.length, sslEngine);
         }
     }
 
@@ -218,6 +222,9 @@ public class Link {
     protected static final int HEADER_FLAG_FOLLOWING = 0x10000;
 
     public byte[] read(SocketChannel ch) throws IOException {
+        if (_readBuffer == null) {
+            throw new IOException("Link to " + _addr + " has been released");
+        }
         if (_readHeader) {   // Start of a packet
             if (_readBuffer.position() == 0) {
                 _readBuffer.limit(4);
@@ -243,7 +250,11 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null) {
+                    _plaintextBuffer = ByteBuffer.allocate(_sslEngine.getSession().getApplicationBufferSize() + 40);
+                } else {
+                    _plaintextBuffer.clear();
+                }
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -259,7 +270,8 @@ public class Link {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
-                _readBuffer = ByteBuffer.allocate(readSize);
+                s_pool.release(_readBuffer);
+                _readBuffer = s_pool.acquire(readSize);
             }
             _readBuffer.limit(readSize);
         }
@@ -277,16 +289,23 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            int appSize = sslSession.getApplicationBufferSize() + 40;
+            if (_plaintextBuffer.remaining() < appSize) {
+                // Make room so the packet can be unwrapped in place
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appSize));
+                _plaintextBuffer.flip();
+                s_pool.recordCopy(_plaintextBuffer.remaining());
+                newBuffer.put(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            int before = _plaintextBuffer.position();
+            engResult = _sslEngine.unwrap(_readBuffer, _plaintextBuffer);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
@@ -295,17 +314,8 @@ public class Link {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                s_logger.trace("Done with packet: " + (_plaintextBuffer.position() - before));
             }
         }
 
@@ -316,6 +326,10 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            s_pool.recordCopy(result.length);
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT) {
+                _plaintextBuffer = null;
+            }
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -334,24 +348,17 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_MARKER);
         }
         synchronized (this) {
             if (_key == null) {
@@ -374,17 +381,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_MARKER) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, 0, data.length, _sslEngine);
         }
         return false;
     }
@@ -401,6 +405,17 @@ public class Link {
         _key = null;
     }
 
+    /**
+     * Returns the pooled read buffer.  Only called from the selector thread
+     * once the key has been cancelled, so no read can be in progress.
+     */
+    void releaseBuffers() {
+        ByteBuffer readBuffer = _readBuffer;
+        _readBuffer = null;
+        _plaintextBuffer = null;
+        s_pool.release(readBuffer);
+    }
+
     public synchronized void schedule(Task task) throws ClosedChannelException {
         if (_key == null) {
             throw new ClosedChannelException();
@@ -461,106 +476,117 @@ public class Link {
         SSLEngineResult engResult;
         SSLSession sslSession = sslEngine.getSession();
         HandshakeStatus hsStatus;
-        ByteBuffer in_pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer in_appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        ByteBuffer out_pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer out_appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer in_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer in_appBuf = s_pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer out_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer out_appBuf = s_pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer tmp_pkgBuf = null;
         int count;
         ch.socket().setSoTimeout(60 * 1000);
         InputStream inStream = ch.socket().getInputStream();
         // Use readCh to make sure the timeout on reading is working
         ReadableByteChannel readCh = Channels.newChannel(inStream);
 
-        if (isClient) {
-            hsStatus = SSLEngineResult.HandshakeStatus.NEED_WRAP;
-        } else {
-            hsStatus = SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
-        }
-
-        while (hsStatus != SSLEngineResult.HandshakeStatus.FINISHED) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("SSL: Handshake status " + hsStatus);
+        try {
+            if (isClient) {
+                hsStatus = SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            } else {
+                hsStatus = SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
             }
-            engResult = null;
-            if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
-                out_pkgBuf.clear();
-                out_appBuf.clear();
-                out_appBuf.put("Hello".getBytes());
-                engResult = sslEngine.wrap(out_appBuf, out_pkgBuf);
-                out_pkgBuf.flip();
-                int remain = out_pkgBuf.limit();
-                while (remain != 0) {
-                    remain -= ch.write(out_pkgBuf);
-                    if (remain < 0) {
-                        throw new IOException("Too much bytes sent?");
-                    }
+
+            while (hsStatus != SSLEngineResult.HandshakeStatus.FINISHED) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("SSL: Handshake status " + hsStatus);
                 }
-            } else if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
-                in_appBuf.clear();
-                // One packet may contained multiply operation
-                if (in_pkgBuf.position() == 0 || !in_pkgBuf.hasRemaining()) {
-                    in_pkgBuf.clear();
-                    count = 0;
-                    try {
-                        count = readCh.read(in_pkgBuf);
-                    } catch (SocketTimeoutException ex) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Handshake reading time out! Cut the connection");
+                engResult = null;
+                if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    out_pkgBuf.clear();
+                    out_appBuf.clear();
+                    out_appBuf.put("Hello".getBytes());
+                    engResult = sslEngine.wrap(out_appBuf, out_pkgBuf);
+                    out_pkgBuf.flip();
+                    int remain = out_pkgBuf.limit();
+                    while (remain != 0) {
+                        remain -= ch.write(out_pkgBuf);
+                        if (remain < 0) {
+                            throw new IOException("Too much bytes sent?");
                         }
-                        count = -1;
-                    }
-                    if (count == -1) {
-                        throw new IOException("Connection closed with -1 on reading size.");
-                    }
-                    in_pkgBuf.flip();
-                }
-                engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
-                ByteBuffer tmp_pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-                int loop_count = 0;
-                while (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
-                    // The client is too slow? Cut it and let it reconnect
-                    if (loop_count > 10) {
-                        throw new IOException("Too many times in SSL BUFFER_UNDERFLOW, disconnect guest.");
-                    }
-                    // We need more packets to complete this operation
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SSL: Buffer underflowed, getting more packets");
                     }
-                    tmp_pkgBuf.clear();
-                    count = ch.read(tmp_pkgBuf);
-                    if (count == -1) {
-                        throw new IOException("Connection closed with -1 on reading size.");
+                } else if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    in_appBuf.clear();
+                    // One packet may contained multiply operation
+                    if (in_pkgBuf.position() == 0 || !in_pkgBuf.hasRemaining()) {
+                        in_pkgBuf.clear();
+                        count = 0;
+                        try {
+                            count = readCh.read(in_pkgBuf);
+                        } catch (SocketTimeoutException ex) {
+                            if (s_logger.isTraceEnabled()) {
+                                s_logger.trace("Handshake reading time out! Cut the connection");
+                            }
+                            count = -1;
+                        }
+                        if (count == -1) {
+                            throw new IOException("Connection closed with -1 on reading size.");
+                        }
+                        in_pkgBuf.flip();
                     }
-                    tmp_pkgBuf.flip();
+                    engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
+                    int loop_count = 0;
+                    while (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        // The client is too slow? Cut it and let it reconnect
+                        if (loop_count > 10) {
+                            throw new IOException("Too many times in SSL BUFFER_UNDERFLOW, disconnect guest.");
+                        }
+                        // We need more packets to complete this operation
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("SSL: Buffer underflowed, getting more packets");
+                        }
+                        if (tmp_pkgBuf == null) {
+                            tmp_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+                        }
+                        tmp_pkgBuf.clear();
+                        count = ch.read(tmp_pkgBuf);
+                        if (count == -1) {
+                            throw new IOException("Connection closed with -1 on reading size.");
+                        }
+                        tmp_pkgBuf.flip();
 
-                    in_pkgBuf.mark();
-                    in_pkgBuf.position(in_pkgBuf.limit());
-                    in_pkgBuf.limit(in_pkgBuf.limit() + tmp_pkgBuf.limit());
-                    in_pkgBuf.put(tmp_pkgBuf);
-                    in_pkgBuf.reset();
+                        in_pkgBuf.mark();
+                        in_pkgBuf.position(in_pkgBuf.limit());
+                        in_pkgBuf.limit(in_pkgBuf.limit() + tmp_pkgBuf.limit());
+                        in_pkgBuf.put(tmp_pkgBuf);
+                        in_pkgBuf.reset();
 
-                    in_appBuf.clear();
-                    engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
-                    loop_count++;
-                }
-            } else if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
-                Runnable run;
-                while ((run = sslEngine.getDelegatedTask()) != null) {
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SSL: Running delegated task!");
+                        in_appBuf.clear();
+                        engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
+                        loop_count++;
                     }
-                    run.run();
+                } else if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable run;
+                    while ((run = sslEngine.getDelegatedTask()) != null) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("SSL: Running delegated task!");
+                        }
+                        run.run();
+                    }
+                } else if (hsStatus == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    throw new IOException("NOT a handshaking!");
                 }
-            } else if (hsStatus == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-                throw new IOException("NOT a handshaking!");
-            }
-            if (engResult != null && engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("Fail to handshake! " + engResult.getStatus());
+                if (engResult != null && engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("Fail to handshake! " + engResult.getStatus());
+                }
+                if (engResult != null)
+                    hsStatus = engResult.getHandshakeStatus();
+                else
+                    hsStatus = sslEngine.getHandshakeStatus();
             }
-            if (engResult != null)
-                hsStatus = engResult.getHandshakeStatus();
-            else
-                hsStatus = sslEngine.getHandshakeStatus();
+        } finally {
+            s_pool.release(in_pkgBuf);
+            s_pool.release(in_appBuf);
+            s_pool.release(out_pkgBuf);
+            s_pool.release(out_appBuf);
+            s_pool.release(tmp_pkgBuf);
         }
     }
 
@@ -37,12 +37,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -56,21 +58,36 @@ import com.cloud.utils.exception.NioConnectionException;
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ *
+ * By default one selector thread accepts, handshakes, reads and writes for
+ * every link.  When additional selectors are configured, the main selector
+ * only accepts and hands each new channel to one of the SelectorWorkers,
+ * which does the SSL handshake and serves the link from then on.
  */
 public abstract class NioConnection implements Callable<Boolean> {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
 
+    private static final long BUFFER_STATS_INTERVAL = 5 * 60 * 1000L;
+
     protected Selector _selector;
     protected ExecutorService _threadExecutor;
     protected Future<Boolean> _futureTask;
 
-    protected boolean _isRunning;
+    // read by the selector workers as well
+    protected volatile boolean _isRunning;
     protected boolean _isStartup;
     protected int _port;
     protected List<ChangeRequest> _todos;
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected long _lastBufferStats;
+
+    protected int _selectorCount = 0;
+    protected boolean _leastLoaded = true;
+    protected SelectorWorker[] _selectorWorkers = new SelectorWorker[0];
+    protected ExecutorService _selectorExecutor;
+    protected final AtomicInteger _nextSelectorWorker = new AtomicInteger();
 
     public NioConnection(final String name, final int port, final int workers, final HandlerFactory factory) {
         _name = name;
@@ -81,11 +98,24 @@ public abstract class NioConnection implements Callable<Boolean> {
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
+    /**
+     * Serves links from count additional selectors.  Must be called before
+     * start().
+     *
+     * @param count number of selectors, 0 or less keeps everything on the main selector.
+     * @param leastLoaded hand new links to the selector with the fewest links rather than round robin.
+     */
+    public void setSelectors(final int count, final boolean leastLoaded) {
+        _selectorCount = count;
+        _leastLoaded = leastLoaded;
+    }
+
     public void start() throws NioConnectionException {
         _todos = new ArrayList<ChangeRequest>();
 
         try {
             init();
+            initSelectorWorkers();
         } catch (final ConnectException e) {
             s_logger.warn("Unable to connect to remote: is there a server running on port " + _port);
             return;
@@ -98,10 +128,29 @@ public abstract class NioConnection implements Callable<Boolean> {
         }
         _isStartup = true;
 
+        _isRunning = true;
+
         _threadExecutor = Executors.newSingleThreadExecutor();
         _futureTask = _threadExecutor.submit(this);
 
-        _isRunning = true;
+        if (_selectorWorkers.length > 0) {
+            _selectorExecutor = Executors.newFixedThreadPool(_selectorWorkers.length, new NamedThreadFactory(_name + "-Selector"));
+            for (final SelectorWorker worker : _selectorWorkers) {
+                _selectorExecutor.submit(worker);
+            }
+        }
+    }
+
+    protected void initSelectorWorkers() throws IOException {
+        if (_selectorCount <= 0) {
+            return;
+        }
+        final SelectorWorker[] workers = new SelectorWorker[_selectorCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new SelectorWorker(Selector.open());
+        }
+        _selectorWorkers = workers;
+        s_logger.info(_name + " is serving links from " + workers.length + " selectors");
     }
 
     public void stop() {
@@ -111,6 +160,12 @@ public abstract class NioConnection implements Callable<Boolean> {
             _futureTask.cancel(false);
             _threadExecutor.shutdown();
         }
+        if (_selectorExecutor != null) {
+            for (final SelectorWorker worker : _selectorWorkers) {
+                worker.wakeup();
+            }
+            _selectorExecutor.shutdown();
+        }
     }
 
     public boolean isRunning() {
@@ -127,42 +182,12 @@ public abstract class NioConnection implements Callable<Boolean> {
             try {
                 _selector.select();
 
-                // Someone is ready for I/O, get the ready keys
-                final Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                final Iterator<SelectionKey> i = readyKeys.iterator();
-
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    final SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        final Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
-                }
+                processSelectedKeys(_selector);
 
                 s_logger.trace("Keys Done Processing.");
 
                 processTodos();
+                logBufferStats();
             } catch (final ClosedSelectorException e) {
                 /*
                  * Exception occurred when calling java.nio.channels.Selector.selectedKeys() method. It means the connection has not yet been established. Let's continue trying
@@ -177,6 +202,52 @@ public abstract class NioConnection implements Callable<Boolean> {
         return true;
     }
 
+    protected void processSelectedKeys(final Selector selector) throws IOException {
+        // Someone is ready for I/O, get the ready keys
+        final Set<SelectionKey> readyKeys = selector.selectedKeys();
+        final Iterator<SelectionKey> i = readyKeys.iterator();
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Keys Processing: " + readyKeys.size());
+        }
+        // Walk through the ready keys collection.
+        while (i.hasNext()) {
+            final SelectionKey sk = i.next();
+            i.remove();
+
+            if (!sk.isValid()) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Selection Key is invalid: " + sk.toString());
+                }
+                final Link link = (Link)sk.attachment();
+                if (link != null) {
+                    link.terminated();
+                    link.releaseBuffers();
+                } else {
+                    closeConnection(sk);
+                }
+            } else if (sk.isReadable()) {
+                read(sk);
+            } else if (sk.isWritable()) {
+                write(sk);
+            } else if (sk.isAcceptable()) {
+                accept(sk);
+            } else if (sk.isConnectable()) {
+                connect(sk);
+            }
+        }
+    }
+
+    protected void logBufferStats() {
+        if (s_logger.isDebugEnabled()) {
+            final long now = System.currentTimeMillis();
+            if (now - _lastBufferStats > BUFFER_STATS_INTERVAL) {
+                _lastBufferStats = now;
+                s_logger.debug(_name + ": " + BufferPool.getDefault());
+            }
+        }
+    }
+
     abstract void init() throws IOException;
 
     abstract void registerLink(InetSocketAddress saddr, Link link);
@@ -194,6 +265,21 @@ public abstract class NioConnection implements Callable<Boolean> {
             s_logger.trace("Connection accepted for " + socket);
         }
 
+        final SelectorWorker worker = nextSelectorWorker();
+        if (worker != null) {
+            worker.enqueue(socketChannel);
+            return;
+        }
+        completeAccept(socketChannel, key.selector());
+    }
+
+    /**
+     * Does the SSL handshake on an accepted channel and registers the new
+     * link for reads with the given selector.
+     */
+    protected void completeAccept(final SocketChannel socketChannel, final Selector selector) throws IOException {
+        final Socket socket = socketChannel.socket();
+
         // Begin SSL handshake in BLOCKING mode
         socketChannel.configureBlocking(true);
 
@@ -223,7 +309,7 @@ public abstract class NioConnection implements Callable<Boolean> {
         final InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         final Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        link.setKey(socketChannel.register(selector, SelectionKey.OP_READ, link));
         final Task task = _factory.create(Task.Type.CONNECT, link, null);
         registerLink(saddr, link);
 
@@ -305,6 +391,34 @@ public abstract class NioConnection implements Callable<Boolean> {
         }
     }
 
+    protected SelectorWorker nextSelectorWorker() {
+        final SelectorWorker[] workers = _selectorWorkers;
+        if (workers.length == 0) {
+            return null;
+        }
+        final int start = (_nextSelectorWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+        if (!_leastLoaded) {
+            return workers[start];
+        }
+        SelectorWorker selected = null;
+        for (int i = 0; i < workers.length; i++) {
+            final SelectorWorker worker = workers[(start + i) % workers.length];
+            if (selected == null || worker.getLoad() < selected.getLoad()) {
+                selected = worker;
+            }
+        }
+        return selected;
+    }
+
+    protected SelectorWorker findSelectorWorker(final Selector selector) {
+        for (final SelectorWorker worker : _selectorWorkers) {
+            if (worker.getSelector() == selector) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
     protected void processTodos() {
         List<ChangeRequest> todos;
         if (_todos.size() == 0) {
@@ -316,6 +430,10 @@ public abstract class NioConnection implements Callable<Boolean> {
             _todos = new ArrayList<ChangeRequest>();
         }
 
+        processChangeRequests(todos, _selector);
+    }
+
+    protected void processChangeRequests(final List<ChangeRequest> todos, final Selector selector) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -339,7 +457,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 break;
             case ChangeRequest.REGISTER:
                 try {
-                    key = ((SocketChannel)todo.key).register(_selector, todo.ops, todo.att);
+                    key = ((SocketChannel)todo.key).register(selector, todo.ops, todo.att);
                     if (todo.att != null) {
                         final Link link = (Link)todo.att;
                         link.setKey(key);
@@ -437,6 +555,10 @@ public abstract class NioConnection implements Callable<Boolean> {
         if (key != null) {
             final SocketChannel channel = (SocketChannel)key.channel();
             key.cancel();
+            final Object attachment = key.attachment();
+            if (attachment instanceof Link) {
+                ((Link)attachment).releaseBuffers();
+            }
             try {
                 if (channel != null) {
                     if (s_logger.isDebugEnabled()) {
@@ -459,15 +581,25 @@ public abstract class NioConnection implements Callable<Boolean> {
     }
 
     public void change(final int ops, final SelectionKey key, final Object att) {
-        final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        addTodo(key, new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att));
     }
 
     public void close(final SelectionKey key) {
-        final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        addTodo(key, new ChangeRequest(key, ChangeRequest.CLOSE, 0, null));
+    }
+
+    /**
+     * Queues the change with the selector the key is registered with so
+     * that only the thread owning that selector touches it.
+     */
+    protected void addTodo(final SelectionKey key, final ChangeRequest todo) {
+        if (key != null) {
+            final SelectorWorker worker = findSelectorWorker(key.selector());
+            if (worker != null) {
+                worker.addTodo(todo);
+                return;
+            }
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -479,6 +611,98 @@ public abstract class NioConnection implements Callable<Boolean> {
         if (_selector != null) {
             _selector.close();
         }
+        for (final SelectorWorker worker : _selectorWorkers) {
+            worker.getSelector().close();
+        }
+    }
+
+    /**
+     * SelectorWorker runs one of the additional selectors.  Channels
+     * accepted by the main selector are queued to it and it wakes up to
+     * handshake and register them, so neither the handshake nor the reads of
+     * one worker's links hold up the others.
+     */
+    public class SelectorWorker implements Callable<Boolean> {
+        private final Selector _workerSelector;
+        private final ConcurrentLinkedQueue<SocketChannel> _accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        private final AtomicInteger _pending = new AtomicInteger();
+        private List<ChangeRequest> _workerTodos = new ArrayList<ChangeRequest>();
+        private volatile int _links;
+
+        public SelectorWorker(final Selector selector) {
+            _workerSelector = selector;
+        }
+
+        public Selector getSelector() {
+            return _workerSelector;
+        }
+
+        /**
+         * @return links registered with this selector plus the ones waiting to be.
+         */
+        public int getLoad() {
+            return _links + _pending.get();
+        }
+
+        public void enqueue(final SocketChannel channel) {
+            _pending.incrementAndGet();
+            _accepted.add(channel);
+            _workerSelector.wakeup();
+        }
+
+        public void addTodo(final ChangeRequest todo) {
+            synchronized (this) {
+                _workerTodos.add(todo);
+            }
+            _workerSelector.wakeup();
+        }
+
+        public void wakeup() {
+            _workerSelector.wakeup();
+        }
+
+        @Override
+        public Boolean call() {
+            while (_isRunning) {
+                try {
+                    _workerSelector.select();
+
+                    processSelectedKeys(_workerSelector);
+                    processAccepted();
+
+                    List<ChangeRequest> todos = null;
+                    synchronized (this) {
+                        if (!_workerTodos.isEmpty()) {
+                            todos = _workerTodos;
+                            _workerTodos = new ArrayList<ChangeRequest>();
+                        }
+                    }
+                    if (todos != null) {
+                        processChangeRequests(todos, _workerSelector);
+                    }
+                    _links = _workerSelector.keys().size();
+                    logBufferStats();
+                } catch (final ClosedSelectorException e) {
+                    break;
+                } catch (final Exception e) {
+                    s_logger.warn("Caught exception in " + _name + " selector, continuing", e);
+                }
+            }
+            return true;
+        }
+
+        protected void processAccepted() {
+            SocketChannel channel;
+            while ((channel = _accepted.poll()) != null) {
+                _pending.decrementAndGet();
+                try {
+                    completeAccept(channel, _workerSelector);
+                } catch (final IOException e) {
+                    s_logger.warn("Unable to register accepted connection " + channel.socket(), e);
+                    closeAutoCloseable(channel, "accepted socketChannel");
+                }
+            }
+        }
     }
 
     public class ChangeRequest {
@@ -43,6 +43,16 @@ public class NioServer extends NioConnection {
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
     }
 
+    /**
+     * A count of 0 or less means one selector per core; 1 keeps accept and
+     * all link I/O on the single selector thread.
+     */
+    @Override
+    public void setSelectors(final int count, final boolean leastLoaded) {
+        final int selectors = count <= 0 ? Runtime.getRuntime().availableProcessors() : count;
+        super.setSelectors(selectors > 1 ? selectors : 0, leastLoaded);
+    }
+
     @Override
     protected void init() throws IOException {
         _selector = SelectorProvider.provider().openSelector();
@@ -69,12 +79,16 @@ public class NioServer extends NioConnection {
 
     @Override
     protected void registerLink(final InetSocketAddress addr, final Link link) {
-        _links.put(addr, link);
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(final InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
 
     /**
@@ -87,7 +101,10 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(final InetSocketAddress saddr, final byte[] data) throws ClosedChannelException {
-        final Link link = _links.get(saddr);
+        final Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
@@ -19,6 +19,7 @@
 
 package org.apache.cloudstack.utils.graphite;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -29,6 +30,9 @@ import java.util.Map;
 
 public class GraphiteClient {
 
+    // Carbon splits a datagram into lines, metrics are packed into datagrams of up to this size
+    private static final int MAX_DATAGRAM_SIZE = 1400;
+
     private String graphiteHost;
     private int graphitePort;
 
@@ -67,7 +71,7 @@ public class GraphiteClient {
      *
      * @param metrics the metrics as key-value-pairs
      */
-    public void sendMetrics(Map<String, Integer> metrics) {
+    public void sendMetrics(Map<String, ? extends Number> metrics) {
         sendMetrics(metrics, getCurrentSystemTime());
     }
 
@@ -77,15 +81,21 @@ public class GraphiteClient {
      * @param metrics the metrics as key-value-pairs
      * @param timeStamp the timestamp
      */
-    public void sendMetrics(Map<String, Integer> metrics, long timeStamp) {
+    public void sendMetrics(Map<String, ? extends Number> metrics, long timeStamp) {
         try (DatagramSocket sock = new DatagramSocket()){
             java.security.Security.setProperty("networkaddress.cache.ttl", "0");
             InetAddress addr = InetAddress.getByName(this.graphiteHost);
 
-            for (Map.Entry<String, Integer> metric: metrics.entrySet()) {
+            ByteArrayOutputStream datagram = new ByteArrayOutputStream(MAX_DATAGRAM_SIZE);
+            for (Map.Entry<String, ? extends Number> metric: metrics.entrySet()) {
                 byte[] message = new String(metric.getKey() + " " + metric.getValue() + " " + timeStamp + "\n").getBytes();
-                DatagramPacket packet = new DatagramPacket(message, message.length, addr, graphitePort);
-                sock.send(packet);
+                if (datagram.size() > 0 && datagram.size() + message.length > MAX_DATAGRAM_SIZE) {
+                    send(sock, addr, datagram);
+                }
+                datagram.write(message, 0, message.length);
+            }
+            if (datagram.size() > 0) {
+                send(sock, addr, datagram);
             }
         } catch (UnknownHostException e) {
             throw new GraphiteException("Unknown host: " + graphiteHost);
@@ -94,6 +104,12 @@ public class GraphiteClient {
         }
     }
 
+    private void send(DatagramSocket sock, InetAddress addr, ByteArrayOutputStream datagram) throws IOException {
+        DatagramPacket packet = new DatagramPacket(datagram.toByteArray(), datagram.size(), addr, graphitePort);
+        sock.send(packet);
+        datagram.reset();
+    }
+
     /**
      * Send a single metric with the current time as timestamp to graphite.
      *
@@ -0,0 +1,53 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+    @Test
+    public void testBuckets() {
+        Histogram histogram = new Histogram(1, 10, 100);
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(5);
+        histogram.record(100);
+        histogram.record(1000);
+
+        Map<String, Long> map = histogram.toMap();
+        Assert.assertEquals(4, map.size());
+        Assert.assertEquals(Long.valueOf(2), map.get("<=1"));
+        Assert.assertEquals(Long.valueOf(1), map.get("<=10"));
+        Assert.assertEquals(Long.valueOf(1), map.get("<=100"));
+        Assert.assertEquals(Long.valueOf(1), map.get(">100"));
+        Assert.assertEquals(5, histogram.getCount());
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBoundsMustIncrease() {
+        new Histogram(10, 5);
+    }
+}
@@ -0,0 +1,88 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquireRoundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(16709);
+        assertTrue(buffer.isDirect());
+        assertEquals(32 * 1024, buffer.capacity());
+        assertEquals(buffer.capacity(), buffer.limit());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(3000);
+        buffer.putInt(5);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(4000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0.5, pool.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(1024 * 1024);
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void idleBuffersAreCapped() {
+        BufferPool pool = new BufferPool(2);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(2048);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        BufferPool pool = new BufferPool(2);
+        pool.release(ByteBuffer.allocateDirect(3000));
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(null);
+        assertEquals(0, pool.getIdleCount());
+    }
+}
@@ -0,0 +1,218 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.testcase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.exception.NioConnectionException;
+import com.cloud.utils.exception.TaskExecutionException;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.NioConnection;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+import com.cloud.utils.nio.Task.Type;
+
+/**
+ * NioTest with the server serving its links from additional selectors:
+ * links are accepted by the main selector and handed to the selector
+ * workers, which read, write and close them through their own todo queues.
+ */
+public class NioSelectorsTest {
+    private static final Logger s_logger = Logger.getLogger(NioSelectorsTest.class);
+
+    private static final int PORT = 7778;
+    private static final int SELECTORS = 3;
+    private static final long WAIT_SECONDS = 30;
+
+    private TestServer _server;
+    private final List<NioClient> _clients = new ArrayList<NioClient>();
+
+    private final BlockingQueue<Link> _serverLinks = new LinkedBlockingQueue<Link>();
+    private final BlockingQueue<Link> _clientLinks = new LinkedBlockingQueue<Link>();
+    private final BlockingQueue<byte[]> _clientData = new LinkedBlockingQueue<byte[]>();
+    private final CountDownLatch _clientDisconnected = new CountDownLatch(1);
+
+    /**
+     * Exposes the selectors of the server to the test.
+     */
+    private class TestServer extends NioServer {
+        TestServer() {
+            super("NioSelectorsTestServer", PORT, 5, new EchoServer());
+        }
+
+        NioConnection.SelectorWorker[] getSelectorWorkers() {
+            return _selectorWorkers;
+        }
+
+        int getMainSelectorKeyCount() {
+            return _selector.keys().size();
+        }
+    }
+
+    @Before
+    public void setUp() throws NioConnectionException {
+        _server = new TestServer();
+        _server.setSelectors(SELECTORS, false);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (NioClient client : _clients) {
+            client.stop();
+            client.cleanUp();
+        }
+        // closes the server socket as well, for the next test to listen on the port
+        _server.stop();
+        _server.cleanUp();
+    }
+
+    private Link connect() throws Exception {
+        NioClient client = new NioClient("NioSelectorsTestClient", "127.0.0.1", PORT, 5, new EchoClient());
+        _clients.add(client);
+        client.start();
+        Link link = _clientLinks.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("client link is not up", link);
+        return link;
+    }
+
+    private int[] waitForLoads(int... expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_SECONDS * 1000;
+        while (true) {
+            NioConnection.SelectorWorker[] workers = _server.getSelectorWorkers();
+            int[] loads = new int[workers.length];
+            boolean matches = loads.length == expected.length;
+            for (int i = 0; i < workers.length; i++) {
+                loads[i] = workers[i].getLoad();
+                matches = matches && loads[i] == expected[i];
+            }
+            if (matches || System.currentTimeMillis() > deadline) {
+                return loads;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testLinksAreHandedToSelectorWorkers() throws Exception {
+        assertEquals(SELECTORS, _server.getSelectorWorkers().length);
+        for (int i = 0; i < SELECTORS; i++) {
+            connect();
+        }
+
+        // round robin, one link per selector, the main selector keeps only the server socket
+        int[] loads = waitForLoads(1, 1, 1);
+        for (int load : loads) {
+            assertEquals(1, load);
+        }
+        assertEquals(1, _server.getMainSelectorKeyCount());
+    }
+
+    @Test
+    public void testDataIsReadAndWrittenBySelectorWorkers() throws Exception {
+        List<Link> links = new ArrayList<Link>();
+        for (int i = 0; i < SELECTORS; i++) {
+            links.add(connect());
+        }
+
+        Random random = new Random();
+        for (Link link : links) {
+            byte[] data = new byte[100000];
+            random.nextBytes(data);
+            link.send(data);
+            byte[] echo = _clientData.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("no echo from the server", echo);
+            assertArrayEquals(data, echo);
+        }
+    }
+
+    @Test
+    public void testLinkIsClosedThroughSelectorWorker() throws Exception {
+        connect();
+        Link serverLink = _serverLinks.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(serverLink);
+        assertEquals(1, waitForLoads(1, 0, 0)[0]);
+
+        serverLink.close();
+        assertTrue("client is not disconnected", _clientDisconnected.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        // the cancelled key leaves the key set of the selector on its next select
+        _server.getSelectorWorkers()[0].wakeup();
+        assertEquals(0, waitForLoads(0, 0, 0)[0]);
+    }
+
+    public class EchoClient implements HandlerFactory {
+        @Override
+        public Task create(final Type type, final Link link, final byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(final Task task) {
+                    if (task.getType() == Task.Type.CONNECT) {
+                        _clientLinks.add(task.getLink());
+                    } else if (task.getType() == Task.Type.DATA) {
+                        _clientData.add(task.getData());
+                    } else if (task.getType() == Task.Type.DISCONNECT) {
+                        s_logger.info("Client: Received DISCONNECT task");
+                        _clientDisconnected.countDown();
+                    }
+                }
+            };
+        }
+    }
+
+    public class EchoServer implements HandlerFactory {
+        @Override
+        public Task create(final Type type, final Link link, final byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(final Task task) throws TaskExecutionException {
+                    if (task.getType() == Task.Type.CONNECT) {
+                        _serverLinks.add(task.getLink());
+                    } else if (task.getType() == Task.Type.DATA) {
+                        try {
+                            task.getLink().send(task.getData());
+                        } catch (final ClosedChannelException e) {
+                            throw new TaskExecutionException("Link closed before the echo was sent", e);
+                        }
+                    }
+                }
+            };
+        }
+    }
+}